@@ -1,6 +1,8 @@
 package com.redisj;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -8,37 +10,90 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.io.Writer;
 import java.net.BindException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.IllegalFormatException;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.BaseLib;
+import org.luaj.vm2.lib.DebugLib;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.PackageLib;
+import org.luaj.vm2.lib.StringLib;
+import org.luaj.vm2.lib.TableLib;
+import org.luaj.vm2.lib.ThreeArgFunction;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JseMathLib;
+
 /**
  *
  * @author apdlv72
@@ -87,6 +142,12 @@ public class RedisServer {
 
     public static boolean DEFAULT_LOCKING = true;
 
+    public static final long DEFAULT_PROTO_MAX_BULK_LEN = 512*1024*1024;
+
+    public static final long DEFAULT_LUA_TIME_LIMIT = 5000;
+
+    public static final int DEFAULT_CHUNKED_BULK_LEN = 1024*1024;
+
     public RedisServer() {
         this(DEFAULT_LOCKING);
     }
@@ -108,8 +169,9 @@ public class RedisServer {
     }
 
     public RedisServer(int port, int maxDb, boolean locking) {
-        this.port  = port;
-        this.maxDb = maxDb;
+        this.port    = port;
+        this.maxDb   = maxDb;
+        this.locking = locking;
         databases = new Databases(locking);
     }
 
@@ -137,6 +199,132 @@ public class RedisServer {
         return this;
     }
 
+    /**
+     * @param length the length in chars from which bulk arguments are received and stored
+     *        as a ChunkedString
+     */
+    public RedisServer withChunkedBulkLength(int length) {
+        this.chunkedBulkLen = length;
+        return this;
+    }
+
+    /**
+     * @param dbs the databases keeping a radix tree index of their key names
+     */
+    public RedisServer withPrefixIndex(int ... dbs) {
+        StringBuilder sb = new StringBuilder();
+        for (int db : dbs) {
+            sb.append(db).append(' ');
+        }
+        setConfig("prefix-index-dbs", sb.toString());
+        return this;
+    }
+
+    /**
+     * @param flags the notify-keyspace-events flags, e.g. "KEA"
+     */
+    public RedisServer withNotifyKeyspaceEvents(String flags) {
+        setConfig("notify-keyspace-events", flags);
+        return this;
+    }
+
+    /**
+     * @return the value of a configuration parameter or null if it is not supported.
+     */
+    public String getConfig(String name) {
+        if ("notify-keyspace-events".equalsIgnoreCase(name)) {
+            return formatKeyspaceEvents(notifyFlags);
+        }
+        if ("prefix-index-dbs".equalsIgnoreCase(name)) {
+            StringBuilder sb = new StringBuilder();
+            for (int db : prefixIndexDbs) {
+                sb.append(0==sb.length() ? "" : " ").append(db);
+            }
+            return sb.toString();
+        }
+        if ("proto-max-bulk-len".equalsIgnoreCase(name)) {
+            return Long.toString(protoMaxBulkLen);
+        }
+        if ("lua-time-limit".equalsIgnoreCase(name) || "busy-reply-threshold".equalsIgnoreCase(name)) {
+            return Long.toString(luaTimeLimit);
+        }
+        return null;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the parameter is not supported or the value is invalid
+     */
+    public void setConfig(String name, String value) {
+        if ("notify-keyspace-events".equalsIgnoreCase(name)) {
+            int flags = parseKeyspaceEvents(value);
+            if (flags<0) {
+                throw new IllegalArgumentException("Invalid event class character. Use 'Ag$lshzxeKEtmn'.");
+            }
+            notifyFlags = flags;
+            updateNotifyMask();
+        }
+        else if ("prefix-index-dbs".equalsIgnoreCase(name)) {
+            Set<Integer> dbs = new TreeSet<Integer>();
+            for (String db : value.trim().split("[\\s,]+")) {
+                if (!db.isEmpty()) {
+                    try {
+                        dbs.add(Integer.parseInt(db));
+                    }
+                    catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid database number '" + db + "'");
+                    }
+                }
+            }
+            prefixIndexDbs = dbs;
+            for (Database db : databases.values()) {
+                db.setPrefixIndex(dbs.contains(db.getNumber()));
+            }
+        }
+        else if ("proto-max-bulk-len".equalsIgnoreCase(name)) {
+            long len = parseMemory(value);
+            // Strings are Java strings, so their length is limited to an int.
+            if (len<1024*1024 || len>Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("argument must be between 1mb and " + Integer.MAX_VALUE + " bytes");
+            }
+            protoMaxBulkLen = len;
+        }
+        else if ("lua-time-limit".equalsIgnoreCase(name) || "busy-reply-threshold".equalsIgnoreCase(name)) {
+            try {
+                luaTimeLimit = Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("argument couldn't be parsed into an integer");
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported CONFIG parameter: " + name);
+        }
+    }
+
+    /**
+     * @return the number of bytes of a memory size like 1048576, 512mb or 1gb, -1 if invalid
+     */
+    static long parseMemory(String value) {
+        String s = value.trim().toLowerCase();
+        long unit = 1;
+        if (s.endsWith("gb") || s.endsWith("g")) {
+            unit = 1024*1024*1024;
+        }
+        else if (s.endsWith("mb") || s.endsWith("m")) {
+            unit = 1024*1024;
+        }
+        else if (s.endsWith("kb") || s.endsWith("k")) {
+            unit = 1024;
+        }
+        s = s.replaceFirst("[kmg]b?$", "");
+        try {
+            return Long.parseLong(s)*unit;
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public RedisServer serveForEver(boolean background) throws BindException {
 
         synchronized (this) {
@@ -161,6 +349,7 @@ public class RedisServer {
 
                     for (Integer num : dbs.keySet()) {
                         Database db = dbs.get(num);
+                        db.lockReader();
                         try {
                             int count = db.size();
                             sb.append(num).append(":").append(count).append(" ");
@@ -270,17 +459,54 @@ public class RedisServer {
         return false;
     }
 
-    public Database getDb(int num) {
-        databases.lockReader();
+    /**
+     * Swaps two databases by exchanging their slots in the directory, connections see
+     * the other contents from their next command on. No database lock is needed, as a
+     * command still running on either database behaves as if it ran before the swap, but
+     * the directory is held exclusively so no transaction sees the numbers move.
+     */
+    public void swapDb(int a, int b) {
+        databases.lockWriter();
         try {
-            Database db = databases.get(num);
-            if (null==db) {
-                databases.put(num, db=new Database(num, locking));
-            }
-            return db;
+            databases.swap(a, b);
         }
         finally {
-            databases.unlockReader();
+            databases.unlockWriter();
+        }
+    }
+
+    /**
+     * Does not lock the directory, so it can be called while holding database locks.
+     */
+    public Database getDb(int num) {
+        return databases.getOrCreate(num);
+    }
+
+    /**
+     * Takes the write locks of databases in the order of their ids. Every thread holding
+     * more than one database lock takes them in this order, and a database created later
+     * gets a higher id than all before it, so no two threads can wait for each other.
+     * @return the databases locked, for unlockWriters
+     */
+    public List<Database> lockWriters(Collection<Database> dbs) {
+        Set<Database> distinct = Collections.newSetFromMap(new IdentityHashMap<Database, Boolean>());
+        distinct.addAll(dbs);
+        List<Database> sorted = new ArrayList<Database>(distinct);
+        Collections.sort(sorted, new Comparator<Database>() {
+            @Override
+            public int compare(Database a, Database b) {
+                return Long.compare(a.id, b.id);
+            }
+        });
+        for (Database db : sorted) {
+            db.lockWriter();
+        }
+        return sorted;
+    }
+
+    public void unlockWriters(List<Database> locked) {
+        for (int i=locked.size()-1; i>=0; i--) {
+            locked.get(i).unlockWriter();
         }
     }
 
@@ -288,6 +514,27 @@ public class RedisServer {
         return port;
     }
 
+    /**
+     * Registers a function that can be called by FCALL, replacing any function of the
+     * same name. It runs atomically while holding the write lock of the selected database.
+     */
+    public RedisServer registerFunction(String name, RedisFunction function) {
+        return registerFunction(name, function, false);
+    }
+
+    /**
+     * @param readOnly true if the function does not modify the database, it then runs
+     * while holding the read lock and may also be called by FCALL_RO.
+     */
+    public RedisServer registerFunction(String name, RedisFunction function, boolean readOnly) {
+        functions.put(name, new RegisteredFunction(name, function, readOnly));
+        return this;
+    }
+
+    public void unregisterFunction(String name) {
+        functions.remove(name);
+    }
+
     public void addCommandListener(RedisListener l) {
         synchronized (commandListeners) {
             commandListeners.add(l);
@@ -315,6 +562,22 @@ public class RedisServer {
         return ex;
     }
 
+    /**
+     * @return the executor of BGDEL and BGEXPIRE: KeyJob.THREADS daemon threads and a queue
+     *         of at most KeyJob.MAX_QUEUED jobs, further jobs are rejected
+     */
+    protected ExecutorService createKeyJobExecutor() {
+        return new ThreadPoolExecutor(KeyJob.THREADS, KeyJob.THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(KeyJob.MAX_QUEUED), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, KeyJob.class.getSimpleName());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
     protected boolean checkMissingKeys(Set<String> missing) {
         return false;
     }
@@ -492,7 +755,56 @@ public class RedisServer {
     }
 
     protected boolean notExpired(Ageable a) {
-        return null!=a && (a.expires<0 || a.expires<now());
+        return null!=a && (a.expires<0 || a.expires>now());
+    }
+
+    /**
+     * @return the flags of a notify-keyspace-events string or -1 if it is invalid.
+     */
+    protected static int parseKeyspaceEvents(String s) {
+        int flags = 0;
+        for (char c : s.toCharArray()) {
+            int i = NOTIFY_CHARS.indexOf(c);
+            if (i<0) {
+                return -1;
+            }
+            flags |= NOTIFY_CHAR_FLAGS[i];
+        }
+        return flags;
+    }
+
+    protected static String formatKeyspaceEvents(int flags) {
+        StringBuilder sb = new StringBuilder();
+        if ((flags & NOTIFY_ALL)==NOTIFY_ALL) {
+            sb.append('A');
+            flags &= ~NOTIFY_ALL;
+        }
+        for (int i=0; i<NOTIFY_CHARS.length(); i++) {
+            if ('A'!=NOTIFY_CHARS.charAt(i) && 0!=(flags & NOTIFY_CHAR_FLAGS[i])) {
+                sb.append(NOTIFY_CHARS.charAt(i));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Recomputes the mask checked by the database operations whenever the flags or the
+     * number of subscriptions change.
+     */
+    protected void updateNotifyMask() {
+        int flags = notifyFlags;
+        boolean enabled = 0!=(flags & (NOTIFY_KEYSPACE|NOTIFY_KEYEVENT)) && pubsub.hasSubscriptions();
+        notifyMask = enabled ? flags & ~(NOTIFY_KEYSPACE|NOTIFY_KEYEVENT) : 0;
+    }
+
+    protected void notifyKeyspaceEvent(String event, String key, int db) {
+        int flags = notifyFlags;
+        if (0!=(flags & NOTIFY_KEYSPACE)) {
+            pubsub.publish("__keyspace@" + db + "__:" + key, event);
+        }
+        if (0!=(flags & NOTIFY_KEYEVENT)) {
+            pubsub.publish("__keyevent@" + db + "__:" + event, key);
+        }
     }
 
     protected long now() {
@@ -539,7 +851,7 @@ public class RedisServer {
 
         // If this server is supposed to stick to a given redis version,
         // check if the respective command would be supported by this redis version.
-        if (version!=null) {
+        if (version!=null && !anno.extension()) {
             if (version.compareTo(anno.since())<1) {
                 return null;
             }
@@ -611,6 +923,9 @@ public class RedisServer {
             try {
                 socket   = createServerSocket(port);
                 executor = createExecutor();
+                keyJobExecutor = createKeyJobExecutor();
+                subscriberPoller = new SubscriberPoller(executor);
+                expirer = new Expirer();
             }
             catch (BindException e) {
                 throw e;
@@ -640,6 +955,8 @@ public class RedisServer {
         protected void serve() {
 
             boolean first = true;
+            subscriberPoller.start();
+            expirer.start();
 
             while (!stopRequested && null!=socket) {
 
@@ -658,7 +975,9 @@ public class RedisServer {
                     totalConnectionsReceived++;
 
                     Worker worker = new Worker(clientSocket);
-                    workers.add(worker);
+                    synchronized (workers) {
+                        workers.add(worker);
+                    }
                     executor.execute(worker);
                 }
                 catch (Exception e) {
@@ -684,6 +1003,14 @@ public class RedisServer {
             }
 
             executor.shutdownNow();
+            subscriberPoller.interrupt();
+            expirer.interrupt();
+            synchronized (keyJobs) {
+                for (KeyJob job : keyJobs.values()) {
+                    job.cancel();
+                }
+            }
+            keyJobExecutor.shutdownNow();
 
             String reason = stopRequested ? "Requested" : isInterrupted() ? "Interrupted" : "Socket closed";
 
@@ -695,6 +1022,7 @@ public class RedisServer {
         protected boolean stopRequested;
         protected int port;
         protected ExecutorService executor;
+        protected ExecutorService keyJobExecutor;
     }
 
     class WorkerMethod {
@@ -709,6 +1037,7 @@ public class RedisServer {
             this.even = anno.even();
             this.odd  = anno.odd();
             this.ro   = anno.ro();
+            this.chunked = anno.chunked();
         }
 
         String checkArguments(Args args) {
@@ -718,7 +1047,7 @@ public class RedisServer {
             if (rm.min>-1 || rm.max>-1) {
                 if ((rm.min>-1 && actual<rm.min) || (rm.max>-1 && actual>rm.max)) {
                     return String.format("Wrong number of arguments for '%s' command. Expected %d - %d but actual number is %d",
-                            rm.min, rm.max, actual);
+                            name, rm.min, rm.max, actual);
                 }
             }
             else {
@@ -773,6 +1102,7 @@ public class RedisServer {
         //private RedisCommand anno;
         private Method method;
         private boolean ro;
+        private int chunked;
     }
 
     /**
@@ -790,16 +1120,21 @@ public class RedisServer {
         @Override
         public void run() {
 
+            boolean parked = false;
             try {
-                boolean connected = socket.isConnected();
-                boolean closed = socket.isClosed();
+                boolean connected = null!=socket && socket.isConnected();
+                boolean closed = null==socket || socket.isClosed();
 
                 do {
                     try {
-                        handleRequests();
+                        parked = handleRequests();
                     } catch (IOException e) {
                         logError(e.getMessage());
                     }
+                    if (parked) {
+                        // Another thread may already have resumed this worker.
+                        return;
+                    }
                     connected = null!=socket && socket.isConnected();
                     closed    = null!=socket && socket.isClosed();
                 }
@@ -813,30 +1148,50 @@ public class RedisServer {
                 }
             }
             finally {
-                workers.remove(this);
+                if (!parked) {
+                    disconnected();
+                }
             }
         }
 
-        public void handleRequests() throws IOException {
+        /**
+         * @return true if the worker was parked as an idle subscriber and gave up its thread.
+         */
+        public boolean handleRequests() throws IOException {
 
             final String METHOD = CN + ".handleRequest: ";
 
-            writer = new RESPWriter(socket) {
-                @Override
-                protected void onError(String cause) {
-                    logError("%s", cause);
-                }
-            };
-            reader = new RESPReader(socket) {
-                @Override
-                protected void onError(String cause) {
-                    logError("%s", cause);
-                }
-            };
+            if (null==writer) {
+                writer = new RESPWriter(socket) {
+                    @Override
+                    protected void onError(String cause) {
+                        logError("%s", cause);
+                    }
+                };
+                reader = new RESPReader(socket) {
+                    @Override
+                    protected void onError(String cause) {
+                        logError("%s", cause);
+                    }
+
+                    @Override
+                    protected long maxBulkLength() {
+                        return protoMaxBulkLen;
+                    }
+
+                    @Override
+                    protected long chunkedBulkLength() {
+                        return chunkedBulkLen;
+                    }
+                };
+            }
 
             int commands = 0;
             Args list = null;
             do {
+                if (isSubscribed() && !reader.ready() && null!=subscriberPoller && subscriberPoller.park(this)) {
+                    return true;
+                }
                 list = null;
                 try {
                     list = reader.readList();
@@ -848,6 +1203,11 @@ public class RedisServer {
                     }
                     list = null;
                 }
+                catch (RESPException e) {
+                    // The rest of the request cannot be parsed, so the connection is closed like in Redis.
+                    writer.sendError("ERR", "Protocol error: %s", e.getMessage());
+                    list = null;
+                }
                 catch (Exception e) {
                     String message = e.getMessage();
                     logError(METHOD + "readList: %s", message + " on " + socket.getRemoteSocketAddress() + " after " + commands + " commands");
@@ -860,6 +1220,7 @@ public class RedisServer {
 
                         if (!commandListeners.isEmpty()) {
                             Database db = getSelectedDb();
+                            args.materialize(-1);
                             onBeforeCommand(db.number, db.size(), cmd, args);
                         }
 
@@ -883,6 +1244,7 @@ public class RedisServer {
                 socket.close();
             }
             socket = null;
+            return false;
         }
 
         public String getInfo() {
@@ -901,29 +1263,60 @@ public class RedisServer {
             String name  = null==clientName ? "" : clientName;
 
             String info = String.format(
-                    "id=%d addr=%s fd=%d name=%s age=%d idle=%d flags=%s db=%d sub=0 psub=0 multi=-1 qbuf=0 qbuf-free=32768 obl=0 oll=0 omem=0 events=r cmd=%s",
-                    id,    addr,   fd,   name,   age,   idle,   flags,   db, cmd
+                    "id=%d addr=%s fd=%d name=%s age=%d idle=%d flags=%s db=%d sub=%d psub=%d multi=%d qbuf=0 qbuf-free=32768 obl=0 oll=0 omem=0 events=r cmd=%s",
+                    id,    addr,   fd,   name,   age,   idle,   flags,   db, channels.size(), patterns.size(), null==transaction ? -1 : transaction.size(), cmd
                     );
             return info;
         }
 
         protected void dispatchCommand(String cmd, Args args) throws IOException {
+            if (!isSubscribed()) {
+                _dispatchCommand(cmd, args);
+                return;
+            }
+            // Publishing threads write to the same connection.
+            synchronized (writer) {
+                _dispatchCommand(cmd, args);
+            }
+        }
+
+        protected void _dispatchCommand(String cmd, Args args) throws IOException {
 
             try {
                 this.lastCommand = cmd;
 
                 WorkerMethod rm = findWorkerMethod(cmd);
                 if (null==rm) {
+                    transactionFailed = null!=transaction;
                     writer.sendError("WRONGCMD", "Unknown command '%s'", cmd);
                     return;
                 }
 
+                if (isSubscribed() && !SUBSCRIBED_COMMANDS.contains(rm.name)) {
+                    writer.sendError("ERR", "Can't execute '%s': only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT are allowed in this context", rm.name);
+                    return;
+                }
+
+                if (isBusy() && !("script".equals(rm.name) && 1==args.size() && "KILL".equalsIgnoreCase(args.get(0)))
+                        && !("shutdown".equals(rm.name) && 1==args.size() && "NOSAVE".equalsIgnoreCase(args.get(0)))) {
+                    writer.sendError("BUSY", "Redis is busy running a script. You can only call SCRIPT KILL or SHUTDOWN NOSAVE.");
+                    return;
+                }
+
                 String error = rm.checkArguments(args);
                 if (null!=error) {
+                    transactionFailed = null!=transaction;
                     writer.sendError("WRONGARGS", error);
                     return;
                 }
 
+                if (null!=transaction && !TRANSACTION_COMMANDS.contains(rm.name)) {
+                    transaction.add(new QueuedCommand(cmd, args));
+                    writer.write(QUEUED_BYTES);
+                    return;
+                }
+
+                args.materialize(rm.chunked);
                 rm.invoke(this, args);
             }
             catch (InvocationTargetException e) {
@@ -978,21 +1371,24 @@ public class RedisServer {
             writer.write(EMPTY_BYTES);
         }
 
-        @CommandMethod(args = {"pattern"}, since="1.0.0", ro=true)
-        protected void keys(Database db, Args args) throws IOException {
-            String pattern = args.key();
-            Collection<String> matches = db.keys(pattern);
-            writer.sendArray(matches);
+        @CommandMethod(args = {"pattern"}, since="1.0.0", ro=true, db=false)
+        protected void keys(Database unused, Args args) throws IOException {
+            Database db = getSelectedDb();
+            Glob glob = Glob.compile(args.key());
+            sendBatched(db.keys(glob).count(), db.keys(glob));
         }
 
         @CommandMethod(args= {"key"}, since="1.0.0", ro=true)
         protected void get(Database db, Args args) throws IOException {
-            String string = db.get(args.key());
-            if (null==string) {
+            CharSequence value = db.getChars(args.key());
+            if (null==value) {
                 writer.write(EMPTY_BYTES);
             }
+            else if (value instanceof ChunkedString) {
+                writer.sendChunked((ChunkedString) value);
+            }
             else {
-                writer.sendString(string);
+                writer.sendString(value.toString());
             }
         }
 
@@ -1002,90 +1398,362 @@ public class RedisServer {
             writer.sendNumber(exists ? 1 : 0);
         }
 
-        @CommandMethod(args= {"key"}, since="2.6.0")
+        @CommandMethod(args= {"key", "[start end [BYTE|BIT]]"}, min=1, max=4, since="2.6.0", ro=true)
         protected void bitcount(Database db, Args args) throws IOException {
-            int count = db.bitcount(args.key());
-            writer.sendNumber(count);
+            if (2==args.size()) {
+                writer.sendError("ERR", "syntax error");
+                return;
+            }
+            Long start = args.size()>1 ? toLong(args.get(1)) : null;
+            Long end   = args.size()>2 ? toLong(args.get(2)) : null;
+            Boolean bitUnit = toBitUnit(args, 3);
+            if (null!=bitUnit) {
+                writer.sendNumber(db.bitcount(args.key(), start, end, bitUnit));
+            }
+        }
+
+        @CommandMethod(args= {"key", "bit", "[start [end [BYTE|BIT]]]"}, min=2, max=5, since="2.8.7", ro=true)
+        protected void bitpos(Database db, Args args) throws IOException {
+            String bit = args.get(1);
+            if (!"0".equals(bit) && !"1".equals(bit)) {
+                writer.sendError("ERR", "The bit argument must be 1 or 0.");
+                return;
+            }
+            Long start = args.size()>2 ? toLong(args.get(2)) : null;
+            Long end   = args.size()>3 ? toLong(args.get(3)) : null;
+            Boolean bitUnit = toBitUnit(args, 4);
+            if (null!=bitUnit) {
+                writer.sendNumber(db.bitpos(args.key(), toInt(bit), start, end, bitUnit));
+            }
         }
 
         @CommandMethod(args= {"key", "offset"}, since="2.2.0", ro=true)
         protected void getbit(Database db, Args args) throws IOException {
-            int off = Integer.parseInt(args.get(1));
-            int value = db.getbit(args.key(), off);
-            writer.sendNumber(value);
+            Long offset = toBitOffset(args.get(1));
+            if (null!=offset) {
+                writer.sendNumber(db.getbit(args.key(), offset));
+            }
         }
 
-        @CommandMethod(args = {"key", "value"}, since="1.0.0")
-        protected void set(Database db, Args args) throws IOException {
-            db.set(args.key(), args.get(1));
-            writer.write(OK_BYTES);
+        @CommandMethod(args= {"key", "offset", "value"}, since="2.2.0")
+        protected void setbit(Database db, Args args) throws IOException {
+            Long offset = toBitOffset(args.get(1));
+            if (null==offset) {
+                return;
+            }
+            String value = args.get(2);
+            if (!"0".equals(value) && !"1".equals(value)) {
+                writer.sendError("ERR", "bit is not an integer or out of range");
+                return;
+            }
+            writer.sendNumber(db.setbit(args.key(), offset, toInt(value)));
         }
 
-        @CommandMethod(args = {"key", "value"}, since="1.0.0")
-        protected void setnx(Database db, Args args) throws IOException {
-            boolean ok = db.setnx(args.key(), args.get(1));
-            if (ok) {
-                writer.write(OK_BYTES);
+        @CommandMethod(args= {"operation", "destkey", "key", "..."}, min=3, since="2.6.0")
+        protected void bitop(Database db, Args args) throws IOException {
+            String operation = args.remove(0).toUpperCase();
+            String dest = args.remove(0);
+            int op;
+            if ("AND".equals(operation)) {
+                op = Bitmap.AND;
+            }
+            else if ("OR".equals(operation)) {
+                op = Bitmap.OR;
+            }
+            else if ("XOR".equals(operation)) {
+                op = Bitmap.XOR;
+            }
+            else if ("NOT".equals(operation)) {
+                op = Bitmap.NOT;
+                if (1!=args.size()) {
+                    writer.sendError("ERR", "BITOP NOT must be called with a single source key.");
+                    return;
+                }
             }
             else {
-                writer.sendError("ERR", "Key exists");
+                writer.sendError("ERR", "syntax error");
+                return;
             }
+            writer.sendNumber(db.bitop(op, dest, args));
         }
 
-        @CommandMethod(args = {"key", "value"}, since="2.0.0")
-        protected void append(Database db, Args args) throws IOException {
-            String key   = args.key();
-            String value = args.get(1);
-            long len = db.append(key, value);
-            writer.sendNumber(len);
-        }
+        @CommandMethod(args= {"key", "[GET type offset]", "[SET type offset value]", "[INCRBY type offset increment]", "[OVERFLOW WRAP|SAT|FAIL]"}, min=1, since="3.2.0")
+        protected void bitfield(Database db, Args args) throws IOException {
+            List<Bitmap.FieldOp> ops = new ArrayList<Bitmap.FieldOp>();
+            int overflow = Bitmap.OVERFLOW_WRAP;
+            for (int i=1; i<args.size(); i++) {
+                String subcommand = args.get(i).toUpperCase();
+                if ("OVERFLOW".equals(subcommand) && i+1<args.size()) {
+                    String type = args.get(++i).toUpperCase();
+                    if ("WRAP".equals(type)) {
+                        overflow = Bitmap.OVERFLOW_WRAP;
+                    }
+                    else if ("SAT".equals(type)) {
+                        overflow = Bitmap.OVERFLOW_SAT;
+                    }
+                    else if ("FAIL".equals(type)) {
+                        overflow = Bitmap.OVERFLOW_FAIL;
+                    }
+                    else {
+                        writer.sendError("ERR", "Invalid OVERFLOW type specified");
+                        return;
+                    }
+                    continue;
+                }
 
-        @CommandMethod(args = {"key1", "key2", "..."}, min=1, since="1.0.0", ro=true)
-        protected void mget(Database db, Args args) throws IOException {
-            List<String> values = db.mget(args);
-            writer.sendArray(values);
-        }
+                int op;
+                if ("GET".equals(subcommand) && i+2<args.size()) {
+                    op = Bitmap.FieldOp.GET;
+                }
+                else if ("SET".equals(subcommand) && i+3<args.size()) {
+                    op = Bitmap.FieldOp.SET;
+                }
+                else if ("INCRBY".equals(subcommand) && i+3<args.size()) {
+                    op = Bitmap.FieldOp.INCRBY;
+                }
+                else {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
 
-        @CommandMethod(args = {"key"}, since="1.0.0", ro=true)
-        protected void llen(Database db, Args args) throws IOException {
-            int len = db.llen(args.key());
-            writer.sendNumber(len);
-        }
+                String type = args.get(++i);
+                int bits = -1;
+                boolean signed = type.startsWith("i") || type.startsWith("I");
+                if (signed || type.startsWith("u") || type.startsWith("U")) {
+                    try {
+                        bits = Integer.parseInt(type.substring(1));
+                    }
+                    catch (NumberFormatException e) {
+                        bits = -1;
+                    }
+                }
+                if (bits<1 || bits>(signed ? 64 : 63)) {
+                    writer.sendError("ERR", "Invalid bitfield type. Use something like i16 u8. Note that u64 is not supported but i64 is.");
+                    return;
+                }
 
-        @CommandMethod(args = {"key"}, since="1.0.0")
-        protected void lpop(Database db, Args args) throws IOException {
-            String item = db.lpop(args.key());
-            if (null==item) {
-                writer.write(EMPTY_BYTES);
+                String position = args.get(++i);
+                boolean multiply = position.startsWith("#");
+                Long offset = toBitOffset(multiply ? position.substring(1) : position);
+                if (null==offset) {
+                    return;
+                }
+                if (multiply) {
+                    offset *= bits;
+                }
+                if (offset+bits>MAX_BIT_OFFSET+1) {
+                    writer.sendError("ERR", "bit offset is not an integer or out of range");
+                    return;
+                }
+
+                long value = 0;
+                if (Bitmap.FieldOp.GET!=op) {
+                    try {
+                        value = Long.parseLong(args.get(++i));
+                    }
+                    catch (NumberFormatException e) {
+                        writer.sendError("ERR", "value is not an integer or out of range");
+                        return;
+                    }
+                }
+                ops.add(new Bitmap.FieldOp(op, signed, bits, offset, value, overflow));
             }
-            else {
-                writer.sendString(item);
+
+            List<Long> results = db.bitfield(args.key(), ops);
+            writer.sendArrayLength(results.size());
+            for (Long result : results) {
+                if (null==result) {
+                    writer.write(EMPTY_BYTES);
+                }
+                else {
+                    writer.sendNumber(result);
+                }
             }
         }
 
-        @CommandMethod(args = {"key"}, since="1.0.0")
-        protected void rpop(Database db, Args args) throws IOException {
-            String item = db.rpop(args.key());
-            if (null==item) {
-                writer.write(EMPTY_BYTES);
+        /**
+         * @return the bit offset or null if an error was sent
+         */
+        protected Long toBitOffset(String s) throws IOException {
+            try {
+                long offset = Long.parseLong(s);
+                if (offset>=0 && offset<=MAX_BIT_OFFSET) {
+                    return offset;
+                }
             }
-            else {
-                writer.sendString(item);
+            catch (NumberFormatException e) {
             }
+            writer.sendError("ERR", "bit offset is not an integer or out of range");
+            return null;
         }
 
-        @CommandMethod(args = {"key", "value"}, since="1.0.0")
-        protected void rpush(Database db, Args args) throws IOException {
-            String value = args.get(1);
-            List<Object> list = db.rpush(args.key(), value);
-            writer.sendNumber(list.size());
+        /**
+         * @return true if the optional argument at index is BIT, false if it is BYTE or
+         * missing, null if an error was sent
+         */
+        protected Boolean toBitUnit(Args args, int index) throws IOException {
+            if (index>=args.size() || "BYTE".equalsIgnoreCase(args.get(index))) {
+                return false;
+            }
+            if ("BIT".equalsIgnoreCase(args.get(index))) {
+                return true;
+            }
+            writer.sendError("ERR", "syntax error");
+            return null;
         }
 
-        @CommandMethod(args = {"key", "value"}, since="1.0.0")
-        protected void lpush(Database db, Args args) throws IOException {
+        @CommandMethod(args = {"key", "value", "[NX|XX]", "[GET]", "[EX seconds|PX milliseconds|EXAT unix-time-seconds|PXAT unix-time-milliseconds|KEEPTTL]"}, min=2, max=7, since="1.0.0", chunked=1)
+        protected void set(Database db, Args args) throws IOException {
+            SetArgs set = parseSetArgs("set", args, 2);
+            if (null==set) {
+                return;
+            }
+            boolean done = db.set(args.key(), args.value(1), set);
+            if (set.get) {
+                writer.sendString(set.old);
+            }
+            else if (done) {
+                writer.write(OK_BYTES);
+            }
+            else {
+                writer.write(EMPTY_BYTES);
+            }
+        }
+
+        @CommandMethod(args = {"key", "value"}, since="1.0.0")
+        protected void setnx(Database db, Args args) throws IOException {
+            writer.sendNumber(db.setnx(args.key(), args.get(1)) ? 1 : 0);
+        }
+
+        @CommandMethod(args = {"key", "value"}, since="1.0.0")
+        protected void getset(Database db, Args args) throws IOException {
+            SetArgs set = new SetArgs();
+            set.get = true;
+            db.set(args.key(), args.get(1), set);
+            writer.sendString(set.old);
+        }
+
+        @CommandMethod(args = {"key", "[EX seconds|PX milliseconds|EXAT unix-time-seconds|PXAT unix-time-milliseconds|PERSIST]"}, min=1, max=3, since="6.2.0")
+        protected void getex(Database db, Args args) throws IOException {
+            SetArgs set = parseSetArgs("getex", args, 1);
+            if (null!=set) {
+                writer.sendString(db.getex(args.key(), set));
+            }
+        }
+
+        @CommandMethod(args = {"key"}, since="6.2.0")
+        protected void getdel(Database db, Args args) throws IOException {
+            writer.sendString(db.getdel(args.key()));
+        }
+
+        /**
+         * Parses the options of SET, or of GETEX, which takes the expiry options and PERSIST.
+         * @return null after sending an error
+         */
+        protected SetArgs parseSetArgs(String cmd, Args args, int from) throws IOException {
+            boolean getex = "getex".equals(cmd);
+            SetArgs set = new SetArgs();
+            boolean expiry = false;
+            for (int i=from; i<args.size(); i++) {
+                String option = args.get(i).toUpperCase();
+                boolean hasValue = i+1<args.size();
+                if ("NX".equals(option) && !getex && !set.xx) {
+                    set.nx = true;
+                }
+                else if ("XX".equals(option) && !getex && !set.nx) {
+                    set.xx = true;
+                }
+                else if ("GET".equals(option) && !getex) {
+                    set.get = true;
+                }
+                else if ("KEEPTTL".equals(option) && !getex && !expiry) {
+                    set.keepTtl = expiry = true;
+                }
+                else if ("PERSIST".equals(option) && getex && !expiry) {
+                    set.persist = expiry = true;
+                }
+                else if (("EX".equals(option) || "PX".equals(option) || "EXAT".equals(option) || "PXAT".equals(option)) && hasValue && !expiry) {
+                    expiry = true;
+                    long time;
+                    try {
+                        time = Long.parseLong(args.get(++i));
+                    }
+                    catch (NumberFormatException e) {
+                        writer.sendError("ERR", "value is not an integer or out of range");
+                        return null;
+                    }
+                    if (time<=0 || (option.startsWith("EX") && time>Long.MAX_VALUE/1000)) {
+                        writer.sendError("ERR", "invalid expire time in '%s' command", cmd);
+                        return null;
+                    }
+                    long millis = option.startsWith("EX") ? 1000*time : time;
+                    set.expiresAt = option.endsWith("AT") ? millis : now()+millis;
+                }
+                else {
+                    writer.sendError("ERR", "syntax error");
+                    return null;
+                }
+            }
+            return set;
+        }
+
+        @CommandMethod(args = {"key", "value"}, since="2.0.0")
+        protected void append(Database db, Args args) throws IOException {
+            String key   = args.key();
             String value = args.get(1);
-            List<Object> list = db.lpush(args.key(), value);
-            writer.sendNumber(list.size());
+            long len = db.append(key, value);
+            if (len<0) {
+                writer.sendError("ERR", "string exceeds maximum allowed size (proto-max-bulk-len)");
+                return;
+            }
+            writer.sendNumber(len);
+        }
+
+        @CommandMethod(args = {"key1", "key2", "..."}, min=1, since="1.0.0", ro=true, db=false)
+        protected void mget(Database unused, Args args) throws IOException {
+            sendBatched(args.size(), getSelectedDb().mget(args));
+        }
+
+        @CommandMethod(args = {"key"}, since="1.0.0", ro=true)
+        protected void llen(Database db, Args args) throws IOException {
+            int len = db.llen(args.key());
+            writer.sendNumber(len);
+        }
+
+        @CommandMethod(args = {"key"}, since="1.0.0")
+        protected void lpop(Database db, Args args) throws IOException {
+            String item = db.lpop(args.key());
+            if (null==item) {
+                writer.write(EMPTY_BYTES);
+            }
+            else {
+                writer.sendString(item);
+            }
+        }
+
+        @CommandMethod(args = {"key"}, since="1.0.0")
+        protected void rpop(Database db, Args args) throws IOException {
+            String item = db.rpop(args.key());
+            if (null==item) {
+                writer.write(EMPTY_BYTES);
+            }
+            else {
+                writer.sendString(item);
+            }
+        }
+
+        @CommandMethod(args = {"key", "value1", "value2", "..."}, min=2, since="1.0.0")
+        protected void rpush(Database db, Args args) throws IOException {
+            String key = args.remove(0);
+            int len = db.rpush(key, args);
+            writer.sendNumber(len);
+        }
+
+        @CommandMethod(args = {"key", "value1", "value2", "..."}, min=2, since="1.0.0")
+        protected void lpush(Database db, Args args) throws IOException {
+            String key = args.remove(0);
+            int len = db.lpush(key, args);
+            writer.sendNumber(len);
         }
 
         @CommandMethod(args = {"key"}, since="1.0.0", ro=true)
@@ -1188,7 +1856,7 @@ public class RedisServer {
             writer.sendString(message);
         }
 
-        @CommandMethod(args = {}, since="1.0.0", ro=true)
+        @CommandMethod(args = {"key"}, since="1.0.0", ro=true)
         protected void strlen(Database db, Args args) throws IOException {
             int len = db.strlen(args.key());
             writer.sendNumber(len);
@@ -1226,16 +1894,41 @@ public class RedisServer {
             writer.sendString("OK");
         }
 
-        @CommandMethod(args = {"key"}, since="2.0.0", ro=true)
-        protected void hkeys(Database db, Args args) throws IOException {
-            List<String> list = db.hkeys(args.key());
-            writer.sendArray(list);
+        @CommandMethod(args = {"key"}, since="2.0.0", ro=true, db=false)
+        protected void hkeys(Database unused, Args args) throws IOException {
+            Database db = getSelectedDb();
+            sendBatched(db.hlen(args.key()), db.hscan(args.key(), true, false));
         }
 
-        @CommandMethod(args = {"key"}, since="2.0.0", ro=true)
-        protected void hvals(Database db, Args args) throws IOException {
-            List<String> list = db.hvals(args.key());
-            writer.sendArray(list);
+        /**
+         * HRANDFIELD key [count [WITHVALUES]]: like SRANDMEMBER a negative count allows
+         * repeated fields.
+         */
+        @CommandMethod(args = {"key", "[count [WITHVALUES]]"}, min=1, max=3, since="6.2.0", ro=true)
+        protected void hrandfield(Database db, Args args) throws IOException {
+            List<String> items = new ArrayList<String>();
+            if (args.size()<2) {
+                db.hrandfield(args.key(), 1, true, false, items);
+                writer.sendString(items.isEmpty() ? null : items.get(0));
+                return;
+            }
+            boolean withValues = false;
+            if (args.size()>2) {
+                if (!"WITHVALUES".equalsIgnoreCase(args.get(2))) {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+                withValues = true;
+            }
+            int count = toInt(args.get(1));
+            db.hrandfield(args.key(), Math.abs(count), count>=0, withValues, items);
+            writer.sendArray(items);
+        }
+
+        @CommandMethod(args = {"key"}, since="2.0.0", ro=true, db=false)
+        protected void hvals(Database unused, Args args) throws IOException {
+            Database db = getSelectedDb();
+            sendBatched(db.hlen(args.key()), db.hscan(args.key(), false, true));
         }
 
         @CommandMethod(args = {"key", "field1", "field2", "..."}, min=2, since="2.0.0")
@@ -1265,11 +1958,10 @@ public class RedisServer {
             writer.sendString(rc);
         }
 
-        @CommandMethod(args = {"key"}, since="2.0.0", ro=true)
-        protected void hgetall(Database db, Args args) throws IOException {
-            String key = args.key();
-            List<String> list = db.hgetall(key);
-            writer.sendArray(list);
+        @CommandMethod(args = {"key"}, since="2.0.0", ro=true, db=false)
+        protected void hgetall(Database unused, Args args) throws IOException {
+            Database db = getSelectedDb();
+            sendBatched(2*db.hlen(args.key()), db.hscan(args.key(), true, true));
         }
 
         @CommandMethod(args = {"key", "field", "amount"}, since="2.0.0")
@@ -1296,41 +1988,199 @@ public class RedisServer {
             writer.sendNumber(rc);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void save(Database db, Args args) throws IOException {
-            databases.lockWriter();
+        @CommandMethod(args = {"key", "seconds", "[NX|XX|GT|LT]", "FIELDS", "numfields", "field", "..."}, min=5, since="7.4.0")
+        protected void hexpire(Database db, Args args) throws IOException {
+            hexpire(db, args, 1000, false);
+        }
+
+        @CommandMethod(args = {"key", "milliseconds", "[NX|XX|GT|LT]", "FIELDS", "numfields", "field", "..."}, min=5, since="7.4.0")
+        protected void hpexpire(Database db, Args args) throws IOException {
+            hexpire(db, args, 1, false);
+        }
+
+        @CommandMethod(args = {"key", "unix-time-seconds", "[NX|XX|GT|LT]", "FIELDS", "numfields", "field", "..."}, min=5, since="7.4.0")
+        protected void hexpireat(Database db, Args args) throws IOException {
+            hexpire(db, args, 1000, true);
+        }
+
+        @CommandMethod(args = {"key", "unix-time-milliseconds", "[NX|XX|GT|LT]", "FIELDS", "numfields", "field", "..."}, min=5, since="7.4.0")
+        protected void hpexpireat(Database db, Args args) throws IOException {
+            hexpire(db, args, 1, true);
+        }
+
+        @CommandMethod(args = {"key", "FIELDS", "numfields", "field", "..."}, min=4, since="7.4.0", ro=true)
+        protected void httl(Database db, Args args) throws IOException {
+            httl(db, args, false, false);
+        }
+
+        @CommandMethod(args = {"key", "FIELDS", "numfields", "field", "..."}, min=4, since="7.4.0", ro=true)
+        protected void hpttl(Database db, Args args) throws IOException {
+            httl(db, args, true, false);
+        }
+
+        @CommandMethod(args = {"key", "FIELDS", "numfields", "field", "..."}, min=4, since="7.4.0", ro=true)
+        protected void hexpiretime(Database db, Args args) throws IOException {
+            httl(db, args, false, true);
+        }
+
+        @CommandMethod(args = {"key", "FIELDS", "numfields", "field", "..."}, min=4, since="7.4.0", ro=true)
+        protected void hpexpiretime(Database db, Args args) throws IOException {
+            httl(db, args, true, true);
+        }
+
+        @CommandMethod(args = {"key", "FIELDS", "numfields", "field", "..."}, min=4, since="7.4.0")
+        protected void hpersist(Database db, Args args) throws IOException {
+            List<String> fields = parseHashFields(args, 1);
+            if (null!=fields) {
+                sendNumbers(db.hpersist(args.key(), fields));
+            }
+        }
+
+        /**
+         * @param unit the milliseconds per unit of the time argument
+         * @param absolute true if the time is a unix time, false if relative
+         */
+        protected void hexpire(Database db, Args args, long unit, boolean absolute) throws IOException {
+            long time;
             try {
-                Persistifier pers = new Persistifier(RedisServer.this, "/tmp/radisj");
-                pers.persist(databases, true);
-                writer.write(OK_BYTES);
+                time = Long.parseLong(args.get(1));
             }
-            finally {
-                databases.unlockWriter();
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "value is not an integer or out of range");
+                return;
+            }
+            if (time<0 || time>Long.MAX_VALUE/unit/2) {
+                writer.sendError("ERR", "invalid expire time in '%s' command", lastCommand.toLowerCase());
+                return;
+            }
+            int condition = 0;
+            int from = 2;
+            String option = args.get(from).toUpperCase();
+            if ("NX".equals(option)) {
+                condition = Hash.EXPIRE_NX;
+            }
+            else if ("XX".equals(option)) {
+                condition = Hash.EXPIRE_XX;
+            }
+            else if ("GT".equals(option)) {
+                condition = Hash.EXPIRE_GT;
+            }
+            else if ("LT".equals(option)) {
+                condition = Hash.EXPIRE_LT;
+            }
+            if (0!=condition) {
+                from++;
+            }
+            List<String> fields = parseHashFields(args, from);
+            if (null!=fields) {
+                long when = absolute ? time*unit : now()+time*unit;
+                sendNumbers(db.hexpireAt(args.key(), when, condition, fields));
+            }
+        }
+
+        protected void httl(Database db, Args args, boolean millis, boolean absolute) throws IOException {
+            List<String> fields = parseHashFields(args, 1);
+            if (null!=fields) {
+                sendNumbers(db.httl(args.key(), fields, millis, absolute));
+            }
+        }
+
+        /**
+         * Parses FIELDS numfields field ... at index from to the end of the arguments.
+         * @return null after sending an error
+         */
+        protected List<String> parseHashFields(Args args, int from) throws IOException {
+            if (from+2>args.size() || !"FIELDS".equalsIgnoreCase(args.get(from))) {
+                writer.sendError("ERR", "Mandatory argument FIELDS is missing or not at the right position");
+                return null;
+            }
+            int count;
+            try {
+                count = Integer.parseInt(args.get(from+1));
+            }
+            catch (NumberFormatException e) {
+                count = 0;
+            }
+            if (count<=0) {
+                writer.sendError("ERR", "Parameter `numFields` should be greater than 0");
+                return null;
+            }
+            if (count!=args.size()-from-2) {
+                writer.sendError("ERR", "The `numfields` parameter must match the number of arguments");
+                return null;
+            }
+            return args.subList(from+2, args.size());
+        }
+
+        protected void sendNumbers(List<Long> numbers) throws IOException {
+            writer.sendArrayLength(numbers.size());
+            for (long number : numbers) {
+                writer.sendNumber(number);
             }
         }
 
-        @CommandMethod(args = {}, min=0, max=1, since="1.0.0", ro=true)
+        @CommandMethod(args = {}, since="1.0.0", db=false)
+        protected void save(Database db, Args args) throws IOException {
+            Persistifier pers = new Persistifier(RedisServer.this, "/tmp/radisj");
+            pers.persist(databases, true);
+            writer.write(OK_BYTES);
+        }
+
+        @CommandMethod(args = {}, min=0, max=1, since="1.0.0", db=false)
         protected void ping(Database db, Args args) throws IOException {
+            if (isSubscribed()) {
+                writer.sendArray("pong", args.isEmpty() ? "" : args.get(0));
+                return;
+            }
             writer.sendString("PONG");
         }
 
-        @CommandMethod(args = {"key1", "key2", "...", "timeout"}, min=2, since="2.0.0")
-        protected void blpop(Database db, Args args) throws IOException {
-            List<String> list = db.blpop(args);
-            writer.sendArray(list);
+        @CommandMethod(args = {"key1", "key2", "...", "timeout"}, min=2, since="2.0.0", db=false)
+        protected void blpop(Database unused, Args args) throws IOException {
+            _bpop(args, true);
         }
 
-        @CommandMethod(args = {"key"}, since="2.0.0")
-        protected void brpop(Database db, Args args) throws IOException {
-            List<String> list = db.brpop(args);
-            writer.sendArray(list);
+        @CommandMethod(args = {"key1", "key2", "...", "timeout"}, min=2, since="2.0.0", db=false)
+        protected void brpop(Database unused, Args args) throws IOException {
+            _bpop(args, false);
+        }
+
+        /**
+         * Waits for a push to one of the keys like XREAD BLOCK, without holding the database
+         * lock. A transaction does not block at all.
+         */
+        protected void _bpop(Args args, boolean left) throws IOException {
+            List<String> keys = args.subList(0, args.size()-1);
+            double timeout = toDouble(args.get(args.size()-1));
+            if (timeout<0) {
+                writer.sendError("ERR", "timeout is negative");
+                return;
+            }
+            Database db = getSelectedDb();
+            KeyNotifier.Ticket ticket = executing ? null : db.notifier.watch(keys);
+            try {
+                long deadline = timeout>0 ? now()+(long) (1000*timeout) : -1;
+                for (;;) {
+                    List<String> popped = left ? db.blpop(keys) : db.brpop(keys);
+                    if (null!=popped || null==ticket || !ticket.await(deadline)) {
+                        writer.sendArray(popped);
+                        return;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                writer.write(EMPTY_BYTES);
+            }
+            finally {
+                if (null!=ticket) {
+                    ticket.close();
+                }
+            }
         }
 
-        @CommandMethod(args={"key"}, min=1, since="1.0.0")
+        @CommandMethod(args={"key", "..."}, min=1, since="1.0.0")
         protected void del(Database db, Args args) throws IOException {
-            String key = args.key();
-            Ageable a = db.markDirty().remove(key);
-            writer.sendNumber(notExpired(a) ? 1 : 0);
+            writer.sendNumber(db.del(args));
         }
 
         @CommandMethod(args = {}, since="1.0.0")
@@ -1362,20 +2212,40 @@ public class RedisServer {
             writer.sendNumber(rc);
         }
 
-        @CommandMethod(args = {"key", "ttl"}, since="1.0.0")
+        @CommandMethod(args = {"key", "milliseconds"}, since="2.6.0")
+        protected void pexpire(Database db, Args args) throws IOException {
+            long millis = Long.parseLong(args.get(1));
+            writer.sendNumber(db.pexpireAt(args.key(), now()+millis));
+        }
+
+        @CommandMethod(args = {"key", "timestamp"}, since="1.2.0")
+        protected void expireat(Database db, Args args) throws IOException {
+            long secs = Long.parseLong(args.get(1));
+            writer.sendNumber(db.pexpireAt(args.key(), 1000L*secs));
+        }
+
+        @CommandMethod(args = {"key", "millisecondsTimestamp"}, since="2.6.0")
+        protected void pexpireat(Database db, Args args) throws IOException {
+            writer.sendNumber(db.pexpireAt(args.key(), Long.parseLong(args.get(1))));
+        }
+
+        @CommandMethod(args = {"key", "seconds", "value"}, since="2.0.0")
         protected void setex(Database db, Args args) throws IOException {
-            int    secs  = Integer.parseInt(args.get(1));
-            String value = args.get(2);
-            int rc = db.setex(args.key(), secs, value);
-            writer.sendNumber(rc);
+            setex(db, args, "EX");
         }
 
-        @CommandMethod(args = {"key", "ttl"}, since="1.0.0")
+        @CommandMethod(args = {"key", "milliseconds", "value"}, since="2.6.0")
         protected void psetex(Database db, Args args) throws IOException {
-            int    millis  = Integer.parseInt(args.get(1));
-            String value = args.get(2);
-            int rc = db.psetex(args.key(), millis, value);
-            writer.sendNumber(rc);
+            setex(db, args, "PX");
+        }
+
+        protected void setex(Database db, Args args, String unit) throws IOException {
+            Args options = new Args(args.key(), unit, args.get(1));
+            SetArgs set = parseSetArgs("EX".equals(unit) ? "setex" : "psetex", options, 1);
+            if (null!=set) {
+                db.set(args.key(), args.get(2), set);
+                writer.write(OK_BYTES);
+            }
         }
 
         @CommandMethod(args = {"key1", "val1", "key2", "val2"}, min=2, even=true, since="1.0.1")
@@ -1393,59 +2263,53 @@ public class RedisServer {
         @CommandMethod(args = {}, db=false, since="1.0.0", ro=true)
         protected void info(Database unused, Args args) throws IOException {
 
-            databases.lockReader();
-            try {
-
-                StringBuilder sb = new StringBuilder();
-
-                long uptimeSeconds = (now()-startTime)/1000;
-                int connectedClients = workers.size();
-
-                sb.append("# Server\r\n");
-                sb.append("redis_version:");
-                sb.append(null==version ? "2.0.0" : version);
-                sb.append(" ***** THIS IS NOT REAL REDIS BUT REDISJ - A VERY BASIC JAVA PORT *****\r\n");
-                sb.append(String.format("tcp_port:%d\r\n", port));
-                sb.append(String.format("uptime_in_seconds:%d\r\n", uptimeSeconds));
-                sb.append(CRLF_STRING);
+            StringBuilder sb = new StringBuilder();
 
-                sb.append("# Stats\r\n");
-                sb.append(String.format("total_connections_received:%d\r\n", totalConnectionsReceived));
-                sb.append(String.format("total_commands_processed:%d\r\n", totalCommandsProcessed));
-                sb.append(CRLF_STRING);
+            long uptimeSeconds = (now()-startTime)/1000;
+            int connectedClients = workers.size();
 
-                sb.append("# Clients\r\n");
-                sb.append(String.format("connected_clients:%d\r\n", connectedClients));
-                sb.append(String.format("client_longest_output_list:%d\r\n", clientLongestOutputList));
-                sb.append(String.format("client_biggest_input_buf:%d\r\n", clientBiggestInputBuf));
-                sb.append(String.format("blocked_clients:%d\r\n", blockedClients));
-                sb.append(CRLF_STRING);
+            sb.append("# Server\r\n");
+            sb.append("redis_version:");
+            sb.append(null==version ? "2.0.0" : version);
+            sb.append(" ***** THIS IS NOT REAL REDIS BUT REDISJ - A VERY BASIC JAVA PORT *****\r\n");
+            sb.append(String.format("tcp_port:%d\r\n", port));
+            sb.append(String.format("uptime_in_seconds:%d\r\n", uptimeSeconds));
+            sb.append(CRLF_STRING);
 
-                sb.append("# Keyspace\r\n");
-                Set<Integer> keys = null;
-                synchronized (databases) {
-                    keys = new LinkedHashSet<Integer>(databases.keySet());
-                }
+            sb.append("# Stats\r\n");
+            sb.append(String.format("total_connections_received:%d\r\n", totalConnectionsReceived));
+            sb.append(String.format("total_commands_processed:%d\r\n", totalCommandsProcessed));
+            sb.append(CRLF_STRING);
 
-                for (Integer num : keys) {
-                    Database db = RedisServer.this.getDb(num);
-                    int count = db.size();
-                    long expires = 0;
-                    long avgTtl = 0;
-                    sb.append(String.format("db%d:keys=%d,expires=%d,avg_ttl=%d\r\n", num, count, expires, avgTtl ));
-                }
+            sb.append("# Clients\r\n");
+            sb.append(String.format("connected_clients:%d\r\n", connectedClients));
+            sb.append(String.format("client_longest_output_list:%d\r\n", clientLongestOutputList));
+            sb.append(String.format("client_biggest_input_buf:%d\r\n", clientBiggestInputBuf));
+            sb.append(String.format("blocked_clients:%d\r\n", blockedClients));
+            sb.append(CRLF_STRING);
 
-                writer.sendReply(sb);
-            }
-            finally {
-                databases.unlockReader();
+            sb.append("# Keyspace\r\n");
+            for (Map.Entry<Integer, Database> entry : databases.snapshot().entrySet()) {
+                int num = entry.getKey();
+                Database db = entry.getValue();
+                int count = db.size();
+                long expires = 0;
+                long avgTtl = 0;
+                sb.append(String.format("db%d:keys=%d,expires=%d,avg_ttl=%d\r\n", num, count, expires, avgTtl ));
             }
+
+            writer.sendReply(sb);
         }
 
-        @CommandMethod(args = {"[NOSAVE|SAVE]"}, min=0, max=1, since="1.0.0")
-        protected void shutdown(Database db, Args args) throws IOException {
+        @CommandMethod(args = {"[NOSAVE|SAVE]"}, min=0, max=1, since="1.0.0", db=false)
+        protected void shutdown(Database unused, Args args) throws IOException {
 
             logInfo("User requested shutdown...");
+            boolean save = !(1==args.size() && "NOSAVE".equalsIgnoreCase(args.get(0)));
+            Worker running = runningScript;
+            if (null!=running && running!=this) {
+                running.lua.kill();
+            }
             stopRequested = true;
             portListener.executor.shutdownNow();
             portListener.interrupt();
@@ -1453,7 +2317,7 @@ public class RedisServer {
             for (Worker w : workers) {
                 w.kill();
             }
-            if (null!=persistifier) {
+            if (null!=persistifier && save) {
                 try {
                     logInfo("Saving the final RDB snapshot before exiting.");
                     persistifier.persist(databases, true);
@@ -1484,9 +2348,14 @@ public class RedisServer {
             writer.sendArray(list);
         }
 
-        @CommandMethod(args = {"key", "cursor", "[MATCH pattern]"}, min=2, since="2.8.0")
+        @CommandMethod(args = {"key", "cursor", "[MATCH pattern]", "[COUNT count]", "[NOVALUES]"}, min=2, max=7, since="2.8.0", ro=true)
         protected void hscan(Database db, Args args) throws IOException {
-            _todo("hscan");
+            ScanArgs scan = parseScanArgs(args, 1, "NOVALUES");
+            if (null!=scan) {
+                List<String> items = new ArrayList<String>();
+                long cursor = db.hscan(args.key(), scan.cursor, scan.count, scan.match, scan.noValues, items);
+                sendScanReply(cursor, items);
+            }
         }
 
         @CommandMethod(args = {}, since="1.0.0", ro=true)
@@ -1504,11 +2373,6 @@ public class RedisServer {
             _todo("sync");
         }
 
-        @CommandMethod(args= {"key", "bit", "value"}, since="2.2.0")
-        protected void setbit(Database db, Args args) throws IOException {
-            _todo("setbit");
-        }
-
         @CommandMethod(args = {"key", "value"}, since="2.2.0")
         protected void rpushx(Database db, Args args) throws IOException {
             _todo("rpushx");
@@ -1519,38 +2383,144 @@ public class RedisServer {
             _todo("auth");
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void bgrewriteaof(Database db, Args args) throws IOException {
-            _todo("bgrewriteaof");
-        }
-
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void bgsave(Database db, Args args) throws IOException {
-            _todo("bgsave");
-        }
-
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void bitfield(Database db, Args args) throws IOException {
-            _todo("bitfield");
-        }
-
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void bitop(Database db, Args args) throws IOException {
-            _todo("bitop");
-        }
-
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void bitpos(Database db, Args args) throws IOException {
-            _todo("bitpos");
+        /**
+         * BGDEL pattern [BATCH count], not part of Redis: deletes the keys matching pattern
+         * in the background and replies with the id of the job for BGJOBS.
+         */
+        @CommandMethod(args = {"pattern", "[BATCH count]"}, min=1, max=3, extension=true, db=false)
+        protected void bgdel(Database unused, Args args) throws IOException {
+            startKeyJob(args.get(0), -1, args.subList(1, args.size()));
         }
 
-        @CommandMethod(args = {"source","destination","timeout"}, since="1.0.0")
-        protected void brpoplpush(Database db, Args args) throws IOException {
-            _todo("brpoplpush");
+        /**
+         * BGEXPIRE pattern seconds [BATCH count], not part of Redis: sets the time to live of
+         * the keys matching pattern in the background and replies with the id of the job.
+         */
+        @CommandMethod(args = {"pattern", "seconds", "[BATCH count]"}, min=2, max=4, extension=true, db=false)
+        protected void bgexpire(Database unused, Args args) throws IOException {
+            Long seconds;
+            try {
+                seconds = toLong(args.get(1));
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "value is not an integer or out of range");
+                return;
+            }
+            if (seconds<0) {
+                writer.sendError("ERR", "invalid expire time in 'bgexpire' command");
+                return;
+            }
+            startKeyJob(args.get(0), 1000*seconds, args.subList(2, args.size()));
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void bzpopmin(Database db, Args args) throws IOException {
+        protected void startKeyJob(String pattern, long ttl, List<String> options) throws IOException {
+            int batch = KeyJob.DEFAULT_BATCH;
+            if (!options.isEmpty()) {
+                if (2!=options.size() || !"BATCH".equalsIgnoreCase(options.get(0))) {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+                try {
+                    batch = Integer.parseInt(options.get(1));
+                }
+                catch (NumberFormatException e) {
+                    batch = 0;
+                }
+                if (batch<1) {
+                    writer.sendError("ERR", "value is not an integer or out of range");
+                    return;
+                }
+            }
+            KeyJob job = new KeyJob(getSelectedDb(), pattern, ttl, batch);
+            synchronized (keyJobs) {
+                // Keep the last finished jobs for BGJOBS.
+                int finished = 0;
+                for (KeyJob j : keyJobs.values()) {
+                    if (j.finished) {
+                        finished++;
+                    }
+                }
+                for (Iterator<KeyJob> it=keyJobs.values().iterator(); it.hasNext() && finished>=KeyJob.MAX_FINISHED; ) {
+                    if (it.next().finished) {
+                        it.remove();
+                        finished--;
+                    }
+                }
+                keyJobs.put(job.id, job);
+            }
+            try {
+                portListener.keyJobExecutor.execute(job);
+            }
+            catch (RejectedExecutionException e) {
+                synchronized (keyJobs) {
+                    keyJobs.remove(job.id);
+                }
+                writer.sendError("ERR", "Too many background jobs, try again later");
+                return;
+            }
+            writer.sendNumber(job.id);
+        }
+
+        /**
+         * BGJOBS [id], BGJOBS CANCEL id, not part of Redis: reports the progress of the jobs
+         * started by BGDEL and BGEXPIRE as field value pairs, or cancels one.
+         */
+        @CommandMethod(args = {"[CANCEL]", "[id]"}, min=0, max=2, extension=true, db=false)
+        protected void bgjobs(Database unused, Args args) throws IOException {
+            boolean cancel = 2==args.size();
+            if (cancel && !"CANCEL".equalsIgnoreCase(args.get(0))) {
+                writer.sendError("ERR", "syntax error");
+                return;
+            }
+            List<KeyJob> jobs;
+            synchronized (keyJobs) {
+                jobs = new ArrayList<KeyJob>(keyJobs.values());
+            }
+            if (args.isEmpty()) {
+                writer.sendArrayLength(jobs.size());
+                for (KeyJob job : jobs) {
+                    writer.sendArray(job.getStatus());
+                }
+                return;
+            }
+            KeyJob job = null;
+            try {
+                int id = Integer.parseInt(args.get(args.size()-1));
+                synchronized (keyJobs) {
+                    job = keyJobs.get(id);
+                }
+            }
+            catch (NumberFormatException e) {
+            }
+            if (null==job) {
+                writer.sendError("ERR", "No such job");
+            }
+            else if (cancel) {
+                job.cancel();
+                writer.write(OK_BYTES);
+            }
+            else {
+                writer.sendArray(job.getStatus());
+            }
+        }
+
+        @CommandMethod(args = {}, since="1.0.0")
+        protected void bgrewriteaof(Database db, Args args) throws IOException {
+            _todo("bgrewriteaof");
+        }
+
+        @CommandMethod(args = {}, since="1.0.0")
+        protected void bgsave(Database db, Args args) throws IOException {
+            _todo("bgsave");
+        }
+
+        @CommandMethod(args = {"source","destination","timeout"}, since="1.0.0")
+        protected void brpoplpush(Database db, Args args) throws IOException {
+            _todo("brpoplpush");
+        }
+
+        @CommandMethod(args = {}, since="1.0.0")
+        protected void bzpopmin(Database db, Args args) throws IOException {
             _todo("bzpopmin");
         }
 
@@ -1569,9 +2539,88 @@ public class RedisServer {
             _todo("command");
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"subcommand", "[argument]", "..."}, min=1, since="2.0.0", db=false)
         protected void config(Database db, Args args) throws IOException {
-            _todo("config");
+            String subcommand = args.get(0).toUpperCase();
+            if ("GET".equals(subcommand) && 2==args.size()) {
+                Glob glob = Glob.compile(args.get(1).toLowerCase());
+                List<String> list = new ArrayList<String>();
+                for (String name : CONFIG_PARAMETERS) {
+                    if (glob.matches(name)) {
+                        list.add(name);
+                        list.add(getConfig(name));
+                    }
+                }
+                writer.sendArray(list);
+            }
+            else if ("SET".equals(subcommand) && 3==args.size()) {
+                if (null==getConfig(args.get(1))) {
+                    writer.sendError("ERR", "Unknown option or number of arguments for CONFIG SET - '%s'", args.get(1));
+                    return;
+                }
+                try {
+                    setConfig(args.get(1), args.get(2));
+                }
+                catch (IllegalArgumentException e) {
+                    writer.sendError("ERR", "%s", e.getMessage());
+                    return;
+                }
+                writer.sendString("OK");
+            }
+            else if ("RESETSTAT".equals(subcommand) && 1==args.size()) {
+                writer.sendString("OK");
+            }
+            else {
+                writer.sendError("ERR", "Unknown subcommand or wrong number of arguments for '%s'. Try CONFIG HELP.", args.get(0));
+            }
+        }
+
+        @CommandMethod(args = {"source", "destination", "[DB destination-db]", "[REPLACE]"}, min=2, max=5, since="6.2.0", db=false)
+        protected void copy(Database unused, Args args) throws IOException {
+            Database db = getSelectedDb();
+            int num = db.getNumber();
+            boolean replace = false;
+            for (int i=2; i<args.size(); i++) {
+                String option = args.get(i).toUpperCase();
+                if ("REPLACE".equals(option)) {
+                    replace = true;
+                }
+                else if ("DB".equals(option) && i+1<args.size()) {
+                    Integer n = toDbIndex(args.get(++i));
+                    if (null==n) {
+                        return;
+                    }
+                    num = n;
+                }
+                else {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+            }
+            if (num==db.getNumber() && args.key().equals(args.get(1))) {
+                writer.sendError("ERR", "source and destination objects are the same");
+                return;
+            }
+            writer.sendNumber(db.copy(args.key(), getDb(num), args.get(1), replace) ? 1 : 0);
+        }
+
+        /**
+         * @return the database number, null after sending an error if it is invalid
+         */
+        protected Integer toDbIndex(String s) throws IOException {
+            int num;
+            try {
+                num = Integer.parseInt(s);
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "value is not an integer or out of range");
+                return null;
+            }
+            if (num<0 || (maxDb>-1 && num>=maxDb)) {
+                writer.sendError("ERR", "DB index is out of range");
+                return null;
+            }
+            return num;
         }
 
         @CommandMethod(args = {}, since="1.0.0", ro=true)
@@ -1579,9 +2628,15 @@ public class RedisServer {
             _todo("debug");
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void discard(Database db, Args args) throws IOException {
-            _todo("discard");
+        @CommandMethod(args = {}, since="2.0.0", db=false)
+        protected void discard(Database unused, Args args) throws IOException {
+            if (null==transaction) {
+                writer.sendError("ERR", "DISCARD without MULTI");
+                return;
+            }
+            transaction = null;
+            unwatchAll();
+            writer.write(OK_BYTES);
         }
 
         @CommandMethod(args = {}, since="1.0.0", ro=true)
@@ -1589,110 +2644,705 @@ public class RedisServer {
             _todo("dump");
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void eval(Database db, Args args) throws IOException {
-            _todo("eval");
-        }
-
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void evalsha(Database db, Args args) throws IOException {
-            _todo("evalsha");
-        }
-
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void exec(Database db, Args args) throws IOException {
-            _todo("exec");
+        @CommandMethod(args = {"script", "numkeys", "[key ...]", "[arg ...]"}, min=2, since="2.6.0", db=false)
+        protected void eval(Database unused, Args args) throws IOException {
+            Lua.Chunk chunk = compileScript(args.get(0));
+            if (null!=chunk) {
+                runScript(chunk, args, false);
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void expireat(Database db, Args args) throws IOException {
-            _todo("expireat");
+        @CommandMethod(args = {"script", "numkeys", "[key ...]", "[arg ...]"}, min=2, since="7.0.0", db=false)
+        protected void eval_ro(Database unused, Args args) throws IOException {
+            Lua.Chunk chunk = compileScript(args.get(0));
+            if (null!=chunk) {
+                runScript(chunk, args, true);
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void geoadd(Database db, Args args) throws IOException {
-            _todo("geoadd");
+        @CommandMethod(args = {"sha1", "numkeys", "[key ...]", "[arg ...]"}, min=2, since="2.6.0", db=false)
+        protected void evalsha(Database unused, Args args) throws IOException {
+            _evalsha(args, false);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void geohash(Database db, Args args) throws IOException {
-            _todo("geohash");
+        @CommandMethod(args = {"sha1", "numkeys", "[key ...]", "[arg ...]"}, min=2, since="7.0.0", db=false)
+        protected void evalsha_ro(Database unused, Args args) throws IOException {
+            _evalsha(args, true);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void geopos(Database db, Args args) throws IOException {
-            _todo("geopos");
+        protected void _evalsha(Args args, boolean ro) throws IOException {
+            Lua.Chunk chunk = scripts.get(args.get(0).toLowerCase());
+            if (null==chunk) {
+                writer.sendError("NOSCRIPT", "No matching script. Please use EVAL.");
+                return;
+            }
+            runScript(chunk, args, ro);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void geodist(Database db, Args args) throws IOException {
-            _todo("geodist");
+        /**
+         * @return the compiled script, from the cache if it was compiled before, or null
+         *         after sending the compile error
+         */
+        protected Lua.Chunk compileScript(String body) throws IOException {
+            String sha = Lua.sha1hex(body);
+            Lua.Chunk chunk = scripts.get(sha);
+            if (null==chunk) {
+                try {
+                    chunk = Lua.compile(body);
+                }
+                catch (LuaError e) {
+                    writer.sendError("ERR", "Error compiling script (new function): %s", e.getMessage());
+                    return null;
+                }
+                scripts.put(sha, chunk);
+            }
+            return chunk;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void georadius(Database db, Args args) throws IOException {
-            _todo("georadius");
-        }
+        /**
+         * Runs a script holding the database directory and the locks of all databases for
+         * its whole duration, so it executes atomically like a transaction whichever
+         * databases it selects. Once it runs longer than lua-time-limit other clients get
+         * BUSY errors and SCRIPT KILL can stop it, unless it already wrote.
+         */
+        protected void runScript(Lua.Chunk chunk, Args args, boolean ro) throws IOException {
+            int numkeys;
+            try {
+                numkeys = Integer.parseInt(args.get(1));
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "value is not an integer or out of range");
+                return;
+            }
+            if (numkeys<0) {
+                writer.sendError("ERR", "Number of keys can't be negative");
+                return;
+            }
+            if (numkeys>args.size()-2) {
+                writer.sendError("ERR", "Number of keys can't be greater than number of args");
+                return;
+            }
+            List<String> keys = args.subList(2, 2+numkeys);
+            List<String> argv = args.subList(2+numkeys, args.size());
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void georadiusbymember(Database db, Args args) throws IOException {
-            _todo("georadiusbymember");
-        }
+            if (null==lua) {
+                lua = new Lua.State(new Lua.Caller() {
+                    @Override
+                    public LuaValue call(String[] command) {
+                        return scriptCall(command);
+                    }
+                });
+            }
 
-        @CommandMethod(args = {"key", "startOffset", "endOffset"}, since="1.0.0", ro=true)
-        protected void getrange(Database db, Args args) throws IOException {
-            _todo("getrange");
+            LuaValue result = null;
+            String error = null;
+            int db = selectedDb;
+            boolean wasExecuting = executing;
+            databases.lockWriter();
+            List<Database> locked = null;
+            try {
+                List<Database> dbs = new ArrayList<Database>(databases.values());
+                dbs.add(getDb(selectedDb));
+                locked = lockWriters(dbs);
+                executing = true;
+                scriptReadOnly = ro;
+                scriptWrote = false;
+                scriptStarted = now();
+                runningScript = this;
+                result = lua.execute(chunk, keys, argv);
+            }
+            catch (LuaError e) {
+                LuaValue value = e.getMessageObject();
+                if (null!=value && value.istable() && value.rawget("err").isstring()) {
+                    result = value;
+                }
+                else {
+                    error = lua.message(e);
+                }
+            }
+            catch (Lua.Killed e) {
+                error = "user_script: Script killed by user with SCRIPT KILL...";
+            }
+            catch (StackOverflowError e) {
+                error = "user_script: stack overflow";
+            }
+            finally {
+                runningScript = null;
+                selectedDb = db;
+                executing = wasExecuting;
+                scriptReadOnly = false;
+                if (null!=locked) {
+                    unlockWriters(locked);
+                }
+                databases.unlockWriter();
+            }
+            if (null!=error) {
+                writer.sendError("ERR", "Error running script (call to f_%s): @%s", chunk.sha, error);
+            }
+            else {
+                sendScriptResult(result);
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void getset(Database db, Args args) throws IOException {
-            _todo("getset");
+        /**
+         * Calls a command from a script through the command table. The reply is written
+         * straight into a Lua value by a Lua.Replies writer.
+         */
+        protected LuaValue scriptCall(String[] command) {
+            try {
+                WorkerMethod rm = findWorkerMethod(command[0]);
+                if (null==rm) {
+                    return Lua.errorReply("ERR Unknown Redis command called from script");
+                }
+                if (SCRIPT_DENIED_COMMANDS.contains(rm.name)) {
+                    return Lua.errorReply("ERR This Redis command is not allowed from script");
+                }
+                boolean write = !rm.ro && !"ping".equals(rm.name);
+                if (scriptReadOnly && write) {
+                    return Lua.errorReply("ERR Write commands are not allowed from read-only scripts.");
+                }
+                if (write) {
+                    scriptWrote = true;
+                }
+                RESPWriter saved = writer;
+                Lua.Replies replies = new Lua.Replies();
+                writer = replies;
+                try {
+                    _dispatchCommand(command[0], new Args(Arrays.copyOfRange(command, 1, command.length)));
+                }
+                finally {
+                    writer = saved;
+                }
+                return replies.getReply();
+            }
+            catch (IOException e) {
+                return Lua.errorReply("ERR " + e.getMessage());
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0", ro=true)
-        protected void lolwut(Database db, Args args) throws IOException {
-            _todo("lolwut");
+        /**
+         * Sends the value returned by a script: numbers are truncated to integers, true
+         * is 1, false and nil are nil and tables are arrays up to their first nil unless
+         * they have an err or ok field.
+         */
+        protected void sendScriptResult(LuaValue result) throws IOException {
+            switch (result.type()) {
+            case LuaValue.TSTRING:
+                writer.sendString(result.tojstring());
+                break;
+            case LuaValue.TNUMBER:
+                writer.sendNumber((long) result.todouble());
+                break;
+            case LuaValue.TBOOLEAN:
+                if (result.toboolean()) {
+                    writer.sendNumber(1);
+                }
+                else {
+                    writer.write(EMPTY_BYTES);
+                }
+                break;
+            case LuaValue.TTABLE: {
+                LuaValue err = result.rawget("err");
+                LuaValue ok  = result.rawget("ok");
+                if (err.isstring()) {
+                    String message = err.tojstring();
+                    if (message.startsWith("-")) {
+                        message = message.substring(1);
+                    }
+                    int space = message.indexOf(' ');
+                    String code = space>0 ? message.substring(0, space) : "";
+                    if (!code.isEmpty() && code.equals(code.toUpperCase(Locale.ROOT))) {
+                        writer.sendError(code, "%s", message.substring(space+1));
+                    }
+                    else {
+                        writer.sendError("ERR", "%s", message);
+                    }
+                }
+                else if (ok.isstring()) {
+                    writer.write(("+" + ok.tojstring() + CRLF_STRING).getBytes(StandardCharsets.UTF_8));
+                }
+                else {
+                    int n = 0;
+                    while (!result.rawget(n+1).isnil()) {
+                        n++;
+                    }
+                    writer.sendArrayLength(n);
+                    for (int i=1; i<=n; i++) {
+                        sendScriptResult(result.rawget(i));
+                    }
+                }
+                break;
+            }
+            default:
+                writer.write(EMPTY_BYTES);
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0", ro=true)
-        protected void lindex(Database db, Args args) throws IOException {
-            _todo("lindex");
+        /**
+         * Writes an array of length items read from batches. Each batch is written after its
+         * lock was released, so neither the lock nor the memory for the whole reply is held
+         * while a slow client reads it. A collection changed meanwhile is seen like by SCAN:
+         * the items present all the time are written once, and the reply is cut to length
+         * or filled up with nils.
+         */
+        protected void sendBatched(int length, ReplyBatches batches) throws IOException {
+            writer.sendArrayLength(length);
+            List<String> items = new ArrayList<String>(ReplyBatches.BATCH);
+            int sent = 0;
+            boolean more = length>0;
+            while (more) {
+                items.clear();
+                more = batches.next(ReplyBatches.BATCH, items);
+                int n = Math.min(items.size(), length-sent);
+                writer.sendStrings(items.subList(0, n));
+                sent += n;
+                more &= sent<length;
+            }
+            for (; sent<length; sent++) {
+                writer.write(EMPTY_BYTES);
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void linsert(Database db, Args args) throws IOException {
-            _todo("linsert");
+        /**
+         * @return true if another client runs a script for longer than lua-time-limit
+         */
+        protected boolean isBusy() {
+            Worker running = runningScript;
+            long limit = luaTimeLimit;
+            return null!=running && running!=this && limit>0 && now()-running.scriptStarted>limit;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void lpushx(Database db, Args args) throws IOException {
-            _todo("lpushx");
-        }
+        @CommandMethod(args = {}, since="1.2.0", db=false)
+        protected void exec(Database unused, Args args) throws IOException {
+            if (null==transaction) {
+                writer.sendError("ERR", "EXEC without MULTI");
+                return;
+            }
+            List<QueuedCommand> commands = transaction;
+            transaction = null;
+            if (transactionFailed) {
+                unwatchAll();
+                writer.sendError("EXECABORT", "Transaction discarded because of previous errors.");
+                return;
+            }
+            // Every database the transaction can touch is locked up front in the order of
+            // their ids, the queued commands reenter these locks so no other client can
+            // interleave. A transaction which can replace databases holds the directory
+            // exclusively, otherwise shared, so the numbers resolve to the locked databases.
+            Set<Integer> numbers = new TreeSet<Integer>();
+            numbers.add(selectedDb);
+            if (null!=watches) {
+                for (Watch w : watches) {
+                    numbers.add(w.db.number);
+                }
+            }
+            boolean all = false;
+            boolean replaces = false;
+            for (QueuedCommand command : commands) {
+                WorkerMethod rm = findWorkerMethod(command.cmd);
+                String name = null==rm ? "" : rm.name;
+                Args a = command.args;
+                if ("select".equals(name)) {
+                    addDbIndex(numbers, a.get(0));
+                }
+                else if ("move".equals(name)) {
+                    addDbIndex(numbers, a.get(1));
+                }
+                else if ("copy".equals(name)) {
+                    for (int i=2; i<a.size()-1; i++) {
+                        if ("DB".equalsIgnoreCase(a.get(i))) {
+                            addDbIndex(numbers, a.get(i+1));
+                        }
+                    }
+                }
+                else if ("swapdb".equals(name) || "flushall".equals(name)) {
+                    replaces = true;
+                }
+                else if (SCRIPT_COMMANDS.contains(name)) {
+                    all = true;
+                    replaces = true;
+                }
+            }
+            if (replaces) {
+                databases.lockWriter();
+            }
+            else {
+                databases.lockReader();
+            }
+            List<Database> locked = null;
+            try {
+                List<Database> dbs = new ArrayList<Database>();
+                if (all) {
+                    dbs.addAll(databases.values());
+                }
+                for (int num : numbers) {
+                    dbs.add(getDb(num));
+                }
+                locked = lockWriters(dbs);
 
-        @CommandMethod(args = {}, since="1.0.0", ro=true)
-        protected void lrange(Database db, Args args) throws IOException {
-            _todo("lrange");
+                boolean modified = isWatchedKeyModified();
+                unwatchAll();
+                if (modified) {
+                    writer.sendArrayLength(-1);
+                    return;
+                }
+                writer.sendArrayLength(commands.size());
+                executing = true;
+                for (QueuedCommand command : commands) {
+                    _dispatchCommand(command.cmd, command.args);
+                }
+            }
+            finally {
+                executing = false;
+                if (null!=locked) {
+                    unlockWriters(locked);
+                }
+                if (replaces) {
+                    databases.unlockWriter();
+                }
+                else {
+                    databases.unlockReader();
+                }
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void lrem(Database db, Args args) throws IOException {
-            _todo("lrem");
+        /**
+         * Adds a database number named by a queued command, invalid ones fail when run.
+         */
+        protected void addDbIndex(Set<Integer> numbers, String s) {
+            try {
+                int num = Integer.parseInt(s);
+                if (num>=0 && (maxDb<0 || num<maxDb)) {
+                    numbers.add(num);
+                }
+            }
+            catch (NumberFormatException e) {
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void lset(Database db, Args args) throws IOException {
-            _todo("lset");
+        @CommandMethod(args = {"function", "numkeys", "[key ...]", "[arg ...]"}, min=2, since="7.0.0", db=false)
+        protected void fcall(Database unused, Args args) throws IOException {
+            _fcall(args, false);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void ltrim(Database db, Args args) throws IOException {
-            _todo("ltrim");
+        @CommandMethod(args = {"function", "numkeys", "[key ...]", "[arg ...]"}, min=2, since="7.0.0", db=false)
+        protected void fcall_ro(Database unused, Args args) throws IOException {
+            _fcall(args, true);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void memory(Database db, Args args) throws IOException {
-            _todo("memory");
-        }
+        protected void _fcall(Args args, boolean ro) throws IOException {
+            RegisteredFunction f = functions.get(args.get(0));
+            if (null==f) {
+                writer.sendError("ERR", "Function not found");
+                return;
+            }
+            if (ro && !f.ro) {
+                writer.sendError("ERR", "Can not execute a script with write flag using *_ro command.");
+                return;
+            }
+            int numkeys;
+            try {
+                numkeys = Integer.parseInt(args.get(1));
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "value is not an integer or out of range");
+                return;
+            }
+            if (numkeys<0) {
+                writer.sendError("ERR", "Number of keys can't be negative");
+                return;
+            }
+            if (numkeys>args.size()-2) {
+                writer.sendError("ERR", "Number of keys can't be greater than number of args");
+                return;
+            }
+            List<String> keys = args.subList(2, 2+numkeys);
+            List<String> argv = args.subList(2+numkeys, args.size());
+
+            Object result;
+            Database db = getSelectedDb();
+            if (f.ro) {
+                db.lockReader();
+            }
+            else {
+                db.lockWriter();
+            }
+            try {
+                result = f.function.call(db, keys, argv);
+            }
+            catch (ClassCastException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                writer.sendError("ERR", "Error running function '%s': %s", f.name, e.getMessage());
+                return;
+            }
+            finally {
+                if (f.ro) {
+                    db.unlockReader();
+                }
+                else {
+                    db.unlockWriter();
+                }
+            }
+            sendObject(result);
+        }
+
+        @CommandMethod(args = {"subcommand", "[argument]", "..."}, min=1, since="7.0.0", db=false)
+        protected void function(Database unused, Args args) throws IOException {
+            String subcommand = args.get(0).toUpperCase();
+            if ("LIST".equals(subcommand)) {
+                Glob glob = null;
+                if (3==args.size() && "LIBRARYNAME".equalsIgnoreCase(args.get(1))) {
+                    glob = Glob.compile(args.get(2));
+                }
+                else if (1!=args.size()) {
+                    writer.sendError("ERR", "Unknown argument %s", args.get(1));
+                    return;
+                }
+                List<RegisteredFunction> list = new ArrayList<RegisteredFunction>();
+                for (RegisteredFunction f : new TreeMap<String, RegisteredFunction>(functions).values()) {
+                    if (null==glob || glob.matches(f.name)) {
+                        list.add(f);
+                    }
+                }
+                writer.sendArrayLength(list.size());
+                for (RegisteredFunction f : list) {
+                    writer.sendArrayLength(6);
+                    writer.sendString("library_name");
+                    writer.sendString(f.name);
+                    writer.sendString("engine");
+                    writer.sendString("JAVA");
+                    writer.sendString("functions");
+                    writer.sendArrayLength(1);
+                    writer.sendArrayLength(4);
+                    writer.sendString("name");
+                    writer.sendString(f.name);
+                    writer.sendString("flags");
+                    if (f.ro) {
+                        writer.sendArray("no-writes");
+                    }
+                    else {
+                        writer.sendArrayLength(0);
+                    }
+                }
+            }
+            else if ("DELETE".equals(subcommand) && 2==args.size()) {
+                if (null==functions.remove(args.get(1))) {
+                    writer.sendError("ERR", "Library not found");
+                    return;
+                }
+                writer.write(OK_BYTES);
+            }
+            else if ("FLUSH".equals(subcommand) && args.size()<=2) {
+                functions.clear();
+                writer.write(OK_BYTES);
+            }
+            else if ("HELP".equals(subcommand)) {
+                writer.sendArray(
+                        "FUNCTION <subcommand> [<arg> [value] [opt] ...]. Subcommands are:",
+                        "DELETE <library-name>",
+                        "    Delete a function registered with RedisServer.registerFunction().",
+                        "FLUSH [ASYNC|SYNC]",
+                        "    Delete all functions.",
+                        "LIST [LIBRARYNAME <library-name-pattern>]",
+                        "    Return information about the registered functions.");
+            }
+            else {
+                writer.sendError("ERR", "Unknown subcommand or wrong number of arguments for '%s'. Try FUNCTION HELP.", args.get(0));
+            }
+        }
+
+        @CommandMethod(args = {"key", "[NX|XX]", "[CH]", "longitude", "latitude", "member", "..."}, min=4, since="3.2.0")
+        protected void geoadd(Database db, Args args) throws IOException {
+            int flags = 0;
+            int i = 1;
+            for (; i<args.size(); i++) {
+                String opt = args.get(i).toUpperCase();
+                if      ("NX".equals(opt)) flags |= ZSet.ZADD_NX;
+                else if ("XX".equals(opt)) flags |= ZSet.ZADD_XX;
+                else if ("CH".equals(opt)) flags |= ZSet.ZADD_CH;
+                else break;
+            }
+            int triples = (args.size()-i)/3;
+            if (0==triples || (args.size()-i)%3!=0 || (0!=(flags & ZSet.ZADD_NX) && 0!=(flags & ZSet.ZADD_XX))) {
+                writer.sendError("ERR", "syntax error");
+                return;
+            }
+            double[] scores  = new double[triples];
+            String[] members = new String[triples];
+            GeoHash.Shape point = new GeoHash.Shape();
+            for (int t=0; t<triples; t++, i+=3) {
+                if (!toCoordinates(args, i, point)) {
+                    return;
+                }
+                scores[t]  = GeoHash.encode(point.lon, point.lat, GeoHash.STEP_MAX);
+                members[t] = args.get(i+2);
+            }
+            writer.sendNumber(db.zadd(args.key(), flags, scores, members));
+        }
+
+        @CommandMethod(args = {"key", "member", "..."}, min=1, since="3.2.0", ro=true)
+        protected void geohash(Database db, Args args) throws IOException {
+            List<String> hashes = new ArrayList<String>(args.size()-1);
+            for (String member : args.subList(1, args.size())) {
+                Double score = db.zscore(args.key(), member);
+                hashes.add(null==score ? null : GeoHash.toString(score));
+            }
+            writer.sendArray(hashes);
+        }
+
+        @CommandMethod(args = {"key", "member", "..."}, min=1, since="3.2.0", ro=true)
+        protected void geopos(Database db, Args args) throws IOException {
+            writer.sendArrayLength(args.size()-1);
+            for (String member : args.subList(1, args.size())) {
+                Double score = db.zscore(args.key(), member);
+                if (null==score) {
+                    writer.sendArrayLength(-1);
+                    continue;
+                }
+                double[] xy = GeoHash.decodeScore(score);
+                writer.sendArray(ZSet.formatScore(xy[0]), ZSet.formatScore(xy[1]));
+            }
+        }
+
+        @CommandMethod(args = {"key", "member1", "member2", "[unit]"}, min=3, max=4, since="3.2.0", ro=true)
+        protected void geodist(Database db, Args args) throws IOException {
+            double conversion = args.size()>3 ? toGeoUnit(args.get(3)) : 1;
+            if (conversion<0) {
+                return;
+            }
+            Double score1 = db.zscore(args.key(), args.get(1));
+            Double score2 = db.zscore(args.key(), args.get(2));
+            if (null==score1 || null==score2) {
+                writer.sendString(null);
+                return;
+            }
+            double[] xy1 = GeoHash.decodeScore(score1);
+            double[] xy2 = GeoHash.decodeScore(score2);
+            writer.sendString(formatGeoDistance(GeoHash.distance(xy1[0], xy1[1], xy2[0], xy2[1]), conversion));
+        }
+
+        @CommandMethod(args = {"key", "longitude", "latitude", "radius", "m|km|ft|mi", "[options]", "..."}, min=5, since="3.2.0")
+        protected void georadius(Database db, Args args) throws IOException {
+            geoquery(db, args, GEO_COORDS);
+        }
+
+        @CommandMethod(args = {"key", "longitude", "latitude", "radius", "m|km|ft|mi", "[options]", "..."}, min=5, since="3.2.10", ro=true)
+        protected void georadius_ro(Database db, Args args) throws IOException {
+            geoquery(db, args, GEO_COORDS|GEO_NOSTORE);
+        }
+
+        @CommandMethod(args = {"key", "member", "radius", "m|km|ft|mi", "[options]", "..."}, min=4, since="3.2.0")
+        protected void georadiusbymember(Database db, Args args) throws IOException {
+            geoquery(db, args, GEO_MEMBER);
+        }
+
+        @CommandMethod(args = {"key", "member", "radius", "m|km|ft|mi", "[options]", "..."}, min=4, since="3.2.10", ro=true)
+        protected void georadiusbymember_ro(Database db, Args args) throws IOException {
+            geoquery(db, args, GEO_MEMBER|GEO_NOSTORE);
+        }
+
+        @CommandMethod(args = {"key", "FROMMEMBER member|FROMLONLAT longitude latitude", "BYRADIUS radius unit|BYBOX width height unit", "[options]", "..."}, min=5, since="6.2.0", ro=true)
+        protected void geosearch(Database db, Args args) throws IOException {
+            geoquery(db, args, GEO_SEARCH|GEO_NOSTORE);
+        }
+
+        @CommandMethod(args = {"destination", "source", "FROMMEMBER member|FROMLONLAT longitude latitude", "BYRADIUS radius unit|BYBOX width height unit", "[options]", "..."}, min=6, since="6.2.0")
+        protected void geosearchstore(Database db, Args args) throws IOException {
+            geoquery(db, args, GEO_SEARCH|GEO_STORE);
+        }
+
+        @CommandMethod(args = {"key", "start", "end"}, since="2.4.0", ro=true)
+        protected void getrange(Database db, Args args) throws IOException {
+            long start;
+            long end;
+            try {
+                start = Long.parseLong(args.get(1));
+                end   = Long.parseLong(args.get(2));
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "value is not an integer or out of range");
+                return;
+            }
+            writer.sendString(db.getrange(args.key(), start, end));
+        }
+
+        @CommandMethod(args = {}, since="1.0.0", ro=true)
+        protected void lolwut(Database db, Args args) throws IOException {
+            _todo("lolwut");
+        }
+
+        @CommandMethod(args = {"key", "index"}, since="1.0.0", ro=true)
+        protected void lindex(Database db, Args args) throws IOException {
+            int index = toInt(args.get(1));
+            String item = db.lindex(args.key(), index);
+            if (null==item) {
+                writer.write(EMPTY_BYTES);
+            }
+            else {
+                writer.sendString(item);
+            }
+        }
+
+        @CommandMethod(args = {"key", "BEFORE|AFTER", "pivot", "value"}, since="2.2.0")
+        protected void linsert(Database db, Args args) throws IOException {
+            String where = args.get(1).toUpperCase();
+            if (!"BEFORE".equals(where) && !"AFTER".equals(where)) {
+                writer.sendError("ERR", "syntax error");
+                return;
+            }
+            int rc = db.linsert(args.key(), "BEFORE".equals(where), args.get(2), args.get(3));
+            writer.sendNumber(rc);
+        }
+
+        @CommandMethod(args = {}, since="1.0.0")
+        protected void lpushx(Database db, Args args) throws IOException {
+            _todo("lpushx");
+        }
+
+        @CommandMethod(args = {"key", "start", "stop"}, since="1.0.0", ro=true)
+        protected void lrange(Database db, Args args) throws IOException {
+            int start = toInt(args.get(1));
+            int stop  = toInt(args.get(2));
+            List<String> list = db.lrange(args.key(), start, stop);
+            writer.sendArray(list);
+        }
+
+        @CommandMethod(args = {"key", "count", "value"}, since="1.0.0")
+        protected void lrem(Database db, Args args) throws IOException {
+            int count = toInt(args.get(1));
+            int removed = db.lrem(args.key(), count, args.get(2));
+            writer.sendNumber(removed);
+        }
+
+        @CommandMethod(args = {"key", "index", "value"}, since="1.0.0")
+        protected void lset(Database db, Args args) throws IOException {
+            int index = toInt(args.get(1));
+            int rc = db.lset(args.key(), index, args.get(2));
+            if (rc>0) {
+                writer.write(OK_BYTES);
+            }
+            else if (rc==0) {
+                writer.sendError("ERR", "no such key");
+            }
+            else {
+                writer.sendError("ERR", "index out of range");
+            }
+        }
+
+        @CommandMethod(args = {"key", "start", "stop"}, since="1.0.0")
+        protected void ltrim(Database db, Args args) throws IOException {
+            int start = toInt(args.get(1));
+            int stop  = toInt(args.get(2));
+            db.ltrim(args.key(), start, stop);
+            writer.write(OK_BYTES);
+        }
+
+        @CommandMethod(args = {}, since="1.0.0")
+        protected void memory(Database db, Args args) throws IOException {
+            _todo("memory");
+        }
 
         @CommandMethod(args = {}, since="1.0.0")
         protected void migrate(Database db, Args args) throws IOException {
@@ -1704,14 +3354,29 @@ public class RedisServer {
             _todo("module");
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void move(Database db, Args args) throws IOException {
-            _todo("move");
+        @CommandMethod(args = {"key", "db"}, since="1.0.0", db=false)
+        protected void move(Database unused, Args args) throws IOException {
+            Integer num = toDbIndex(args.get(1));
+            if (null==num) {
+                return;
+            }
+            Database db = getSelectedDb();
+            if (num==db.getNumber()) {
+                writer.sendError("ERR", "source and destination objects are the same");
+                return;
+            }
+            writer.sendNumber(db.move(args.key(), getDb(num)) ? 1 : 0);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void multi(Database db, Args args) throws IOException {
-            _todo("multi");
+        @CommandMethod(args = {}, since="1.2.0", db=false)
+        protected void multi(Database unused, Args args) throws IOException {
+            if (null!=transaction) {
+                writer.sendError("ERR", "MULTI calls can not be nested");
+                return;
+            }
+            transaction = new ArrayList<QueuedCommand>();
+            transactionFailed = false;
+            writer.write(OK_BYTES);
         }
 
         @CommandMethod(args = {"one","two"}, since="1.0.0")
@@ -1724,49 +3389,106 @@ public class RedisServer {
             _todo("persist");
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void pexpire(Database db, Args args) throws IOException {
-            _todo("pexpire");
-        }
-
-        @CommandMethod(args = {"key", "millisecondsTimestamp"}, since="1.0.0")
-        protected void pexpireat(Database db, Args args) throws IOException {
-            _todo("pexpireat");
-        }
-
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key", "[element ...]"}, min=1, since="2.8.9")
         protected void pfadd(Database db, Args args) throws IOException {
-            _todo("pfadd");
+            String key = args.remove(0);
+            writer.sendNumber(db.pfadd(key, args) ? 1 : 0);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key1", "key2", "..."}, min=1, since="2.8.9", ro=true)
         protected void pfcount(Database db, Args args) throws IOException {
-            _todo("pfcount");
+            writer.sendNumber(db.pfcount(args));
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"destkey", "[sourcekey ...]"}, min=1, since="2.8.9")
         protected void pfmerge(Database db, Args args) throws IOException {
-            _todo("pfmerge");
+            String dest = args.remove(0);
+            db.pfmerge(dest, args);
+            writer.write(OK_BYTES);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"pattern", "..."}, min=1, since="2.0.0", db=false)
         protected void psubscribe(Database db, Args args) throws IOException {
-            _todo("psubscribe");
+            synchronized (writer) {
+                for (String pattern : args) {
+                    if (patterns.add(pattern)) {
+                        pubsub.psubscribe(this, pattern);
+                    }
+                    sendSubscription("psubscribe", pattern);
+                }
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        /**
+         * PREFIX COUNT prefix and PREFIX DEL prefix, not part of Redis: count or delete the
+         * keys of a namespace, fast in databases with a prefix index (prefix-index-dbs).
+         */
+        @CommandMethod(args = {"COUNT|DEL", "prefix"}, extension=true, db=false)
+        protected void prefix(Database unused, Args args) throws IOException {
+            String subcommand = args.get(0).toUpperCase();
+            String prefix = args.get(1);
+            if ("COUNT".equals(subcommand)) {
+                writer.sendNumber(getSelectedDb().countPrefix(prefix));
+            }
+            else if ("DEL".equals(subcommand)) {
+                writer.sendNumber(getSelectedDb().deletePrefix(prefix));
+            }
+            else {
+                writer.sendError("ERR", "Unknown subcommand '%s'. Try COUNT or DEL.", args.get(0));
+            }
+        }
+
+        @CommandMethod(args = {"subcommand", "[argument]", "..."}, min=1, since="2.8.0", db=false)
         protected void pubsub(Database db, Args args) throws IOException {
-            _todo("pubsub");
+            String subcommand = args.get(0).toUpperCase();
+            if ("CHANNELS".equals(subcommand) && args.size()<=2) {
+                writer.sendArray(pubsub.channels(args.size()>1 ? args.get(1) : null));
+            }
+            else if ("NUMSUB".equals(subcommand)) {
+                writer.sendArrayLength(2*(args.size()-1));
+                for (String channel : args.subList(1, args.size())) {
+                    writer.sendString(channel);
+                    writer.sendNumber(pubsub.numsub(channel));
+                }
+            }
+            else if ("NUMPAT".equals(subcommand) && 1==args.size()) {
+                writer.sendNumber(pubsub.numpat());
+            }
+            else if ("HELP".equals(subcommand)) {
+                writer.sendArray(
+                        "PUBSUB <subcommand> [<arg> [value] [opt] ...]. Subcommands are:",
+                        "CHANNELS [<pattern>]",
+                        "    Return the currently active channels matching a <pattern> (default: '*').",
+                        "NUMPAT",
+                        "    Return number of subscriptions to patterns.",
+                        "NUMSUB [<channel> ...]",
+                        "    Return the number of subscribers for the specified channels, excluding",
+                        "    pattern subscriptions(default: no channels).");
+            }
+            else {
+                writer.sendError("ERR", "Unknown subcommand or wrong number of arguments for '%s'. Try PUBSUB HELP.", args.get(0));
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"channel", "message"}, since="2.0.0", db=false)
         protected void publish(Database db, Args args) throws IOException {
-            _todo("publish");
+            writer.sendNumber(pubsub.publish(args.get(0), args.get(1)));
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"[pattern]", "..."}, min=0, since="2.0.0", db=false)
         protected void punsubscribe(Database db, Args args) throws IOException {
-            _todo("punsubscribe");
+            synchronized (writer) {
+                List<String> list = args.isEmpty() ? new ArrayList<String>(patterns) : args;
+                if (list.isEmpty()) {
+                    sendSubscription("punsubscribe", null);
+                }
+                for (String pattern : list) {
+                    if (patterns.remove(pattern)) {
+                        pubsub.punsubscribe(this, pattern);
+                    }
+                    sendSubscription("punsubscribe", pattern);
+                }
+            }
         }
 
         @CommandMethod(args = {}, since="1.0.0")
@@ -1774,9 +3496,9 @@ public class RedisServer {
             _todo("quit");
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {}, since="1.0.0", ro=true)
         protected void randomkey(Database db, Args args) throws IOException {
-            _todo("randomkey");
+            writer.sendString(db.randomKey());
         }
 
         @CommandMethod(args = {}, since="1.0.0")
@@ -1789,14 +3511,25 @@ public class RedisServer {
             _todo("readwrite");
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key", "newkey"}, since="1.0.0")
         protected void rename(Database db, Args args) throws IOException {
-            _todo("rename");
+            if (-1==db.rename(args.key(), args.get(1), false)) {
+                writer.sendError("ERR", "no such key");
+            }
+            else {
+                writer.write(OK_BYTES);
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key", "newkey"}, since="1.0.0")
         protected void renamenx(Database db, Args args) throws IOException {
-            _todo("renamenx");
+            int renamed = db.rename(args.key(), args.get(1), true);
+            if (-1==renamed) {
+                writer.sendError("ERR", "no such key");
+            }
+            else {
+                writer.sendNumber(renamed);
+            }
         }
 
         @CommandMethod(args = {}, since="1.0.0")
@@ -1809,7 +3542,7 @@ public class RedisServer {
             _todo("rpoplpush");
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key", "member", "..."}, min=2, since="1.0.0")
         protected void sadd(Database db, Args args) throws IOException {
 
             String  key = args.remove(0);
@@ -1817,44 +3550,116 @@ public class RedisServer {
             writer.sendNumber(count);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key"}, since="1.0.0", ro=true)
         protected void scard(Database db, Args args) throws IOException {
-            _todo("scard");
+            writer.sendNumber(db.scard(args.key()));
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void script(Database db, Args args) throws IOException {
-            _todo("script");
+        @CommandMethod(args = {"subcommand", "[argument]", "..."}, min=1, since="2.6.0", db=false)
+        protected void script(Database unused, Args args) throws IOException {
+            String subcommand = args.get(0).toUpperCase();
+            if ("LOAD".equals(subcommand) && 2==args.size()) {
+                if (null!=compileScript(args.get(1))) {
+                    writer.sendString(Lua.sha1hex(args.get(1)));
+                }
+            }
+            else if ("EXISTS".equals(subcommand) && args.size()>1) {
+                writer.sendArrayLength(args.size()-1);
+                for (String sha : args.subList(1, args.size())) {
+                    writer.sendNumber(scripts.containsKey(sha.toLowerCase()) ? 1 : 0);
+                }
+            }
+            else if ("FLUSH".equals(subcommand) && args.size()<=2) {
+                if (2==args.size() && !"ASYNC".equalsIgnoreCase(args.get(1)) && !"SYNC".equalsIgnoreCase(args.get(1))) {
+                    writer.sendError("ERR", "SCRIPT FLUSH only support SYNC|ASYNC option");
+                    return;
+                }
+                scripts.clear();
+                writer.write(OK_BYTES);
+            }
+            else if ("KILL".equals(subcommand) && 1==args.size()) {
+                Worker running = runningScript;
+                if (null==running || running==this) {
+                    writer.sendError("NOTBUSY", "No scripts in execution right now.");
+                }
+                else if (running.scriptWrote) {
+                    writer.sendError("UNKILLABLE", "Sorry the script already executed write commands against the dataset. You can either wait the script termination or kill the server in a hard way using the SHUTDOWN NOSAVE command.");
+                }
+                else {
+                    running.lua.kill();
+                    writer.write(OK_BYTES);
+                }
+            }
+            else if ("HELP".equals(subcommand) && 1==args.size()) {
+                writer.sendArray(
+                        "SCRIPT <subcommand> [<arg> [value] [opt] ...]. Subcommands are:",
+                        "EXISTS <sha1> [<sha1> ...]",
+                        "    Return information about the existence of the scripts in the script cache.",
+                        "FLUSH [ASYNC|SYNC]",
+                        "    Flush the Lua scripts cache.",
+                        "KILL",
+                        "    Kill the currently executing Lua script.",
+                        "LOAD <script>",
+                        "    Load a script into the scripts cache without executing it.",
+                        "HELP",
+                        "    Print this help.");
+            }
+            else {
+                writer.sendError("ERR", "unknown subcommand or wrong number of arguments for '%s'. Try SCRIPT HELP.", args.get(0));
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key1", "key2", "..."}, min=1, since="1.0.0", db=false, ro=true)
         protected void sdiff(Database db, Args args) throws IOException {
-            _todo("sdiff");
+            writer.sendArray(getSelectedDb().sdiff(args));
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"destination", "key1", "..."}, min=2, since="1.0.0", db=false)
         protected void sdiffstore(Database db, Args args) throws IOException {
-            _todo("sdiffstore");
+            Database selected = getSelectedDb();
+            String dest = args.remove(0);
+            _Set result = selected.sdiff(args);
+            writer.sendNumber(selected.store(dest, result, result.size(), "sdiffstore"));
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key", "offset", "value"}, since="2.2.0")
         protected void setrange(Database db, Args args) throws IOException {
-            _todo("setrange");
+            long offset;
+            try {
+                offset = Long.parseLong(args.get(1));
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "value is not an integer or out of range");
+                return;
+            }
+            if (offset<0) {
+                writer.sendError("ERR", "offset is out of range");
+                return;
+            }
+            long len = db.setrange(args.key(), offset, args.get(2));
+            if (len<0) {
+                writer.sendError("ERR", "string exceeds maximum allowed size (proto-max-bulk-len)");
+                return;
+            }
+            writer.sendNumber(len);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key1", "key2", "..."}, min=1, since="1.0.0", db=false, ro=true)
         protected void sinter(Database db, Args args) throws IOException {
-            _todo("sinter");
+            writer.sendArray(getSelectedDb().sinter(args));
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"destination", "key1", "..."}, min=2, since="1.0.0", db=false)
         protected void sinterstore(Database db, Args args) throws IOException {
-            _todo("sinterstore");
+            Database selected = getSelectedDb();
+            String dest = args.remove(0);
+            _Set result = selected.sinter(args);
+            writer.sendNumber(selected.store(dest, result, result.size(), "sinterstore"));
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key", "member"}, since="1.0.0", ro=true)
         protected void sismember(Database db, Args args) throws IOException {
-            _todo("sismember");
+            writer.sendNumber(db.sismember(args.key(), args.get(1)) ? 1 : 0);
         }
 
         @CommandMethod(args = {}, since="1.0.0")
@@ -1872,9 +3677,9 @@ public class RedisServer {
             _todo("slowlog");
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key"}, since="1.0.0", ro=true)
         protected void smembers(Database db, Args args) throws IOException {
-            _todo("smembers");
+            writer.sendArray(db.smembers(args.key()));
         }
 
         @CommandMethod(args = {}, since="1.0.0")
@@ -1882,1918 +3687,11942 @@ public class RedisServer {
             _todo("smove");
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key", "[BY pattern]", "[LIMIT offset count]", "[GET pattern ...]", "[ASC|DESC]", "[ALPHA]", "[STORE destination]"}, min=1, since="1.0.0")
         protected void sort(Database db, Args args) throws IOException {
-            _todo("sort");
+            sort(db, args, false);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        @CommandMethod(args = {"key", "[BY pattern]", "[LIMIT offset count]", "[GET pattern ...]", "[ASC|DESC]", "[ALPHA]"}, min=1, since="7.0.0", ro=true)
+        protected void sort_ro(Database db, Args args) throws IOException {
+            sort(db, args, true);
+        }
+
+        @CommandMethod(args = {"key", "[count]"}, min=1, max=2, since="1.0.0")
         protected void spop(Database db, Args args) throws IOException {
-            _todo("spop");
+            if (args.size()<2) {
+                List<String> members = db.spop(args.key(), 1);
+                writer.sendString(members.isEmpty() ? null : members.get(0));
+                return;
+            }
+            int count = toInt(args.get(1));
+            if (count<0) {
+                writer.sendError("ERR", "value is out of range, must be positive");
+                return;
+            }
+            writer.sendArray(db.spop(args.key(), count));
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
+        /**
+         * SRANDMEMBER key [count]: a positive count returns distinct members, a negative
+         * one -count members which may repeat.
+         */
+        @CommandMethod(args = {"key", "[count]"}, min=1, max=2, since="1.0.0", ro=true)
         protected void srandmember(Database db, Args args) throws IOException {
-            _todo("srandmember");
+            if (args.size()<2) {
+                List<String> members = db.srandmember(args.key(), 1, true);
+                writer.sendString(members.isEmpty() ? null : members.get(0));
+                return;
+            }
+            int count = toInt(args.get(1));
+            writer.sendArray(db.srandmember(args.key(), Math.abs(count), count>=0));
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void srem(Database db, Args args) throws IOException {
-            _todo("srem");
-        }
+        @CommandMethod(args = {}, since="1.0.0")
+        protected void srem(Database db, Args args) throws IOException {
+            _todo("srem");
+        }
+
+        @CommandMethod(args = {"channel", "..."}, min=1, since="2.0.0", db=false)
+        protected void subscribe(Database db, Args args) throws IOException {
+            // A message published in between must not end up in the middle of the reply.
+            synchronized (writer) {
+                for (String channel : args) {
+                    if (channels.add(channel)) {
+                        pubsub.subscribe(this, channel);
+                    }
+                    sendSubscription("subscribe", channel);
+                }
+            }
+        }
+
+        @CommandMethod(args = {"key1", "key2", "..."}, min=1, since="1.0.0", db=false, ro=true)
+        protected void sunion(Database db, Args args) throws IOException {
+            writer.sendArray(getSelectedDb().sunion(args));
+        }
+
+        @CommandMethod(args = {"destination", "key1", "..."}, min=2, since="1.0.0", db=false)
+        protected void sunionstore(Database db, Args args) throws IOException {
+            Database selected = getSelectedDb();
+            String dest = args.remove(0);
+            _Set result = selected.sunion(args);
+            writer.sendNumber(selected.store(dest, result, result.size(), "sunionstore"));
+        }
+
+        @CommandMethod(args = {"index1", "index2"}, since="4.0.0", db=false)
+        protected void swapdb(Database unused, Args args) throws IOException {
+            Integer a = toDbIndex(args.get(0));
+            Integer b = null==a ? null : toDbIndex(args.get(1));
+            if (null!=b) {
+                swapDb(a, b);
+                writer.write(OK_BYTES);
+            }
+        }
+
+        @CommandMethod(args = {}, since="1.0.0")
+        protected void psync(Database db, Args args) throws IOException {
+            _todo("psync");
+        }
+
+        @CommandMethod(args = {}, since="1.0.0")
+        protected void touch(Database db, Args args) throws IOException {
+            _todo("touch");
+        }
+
+        @CommandMethod(args = {"[channel]", "..."}, min=0, since="2.0.0", db=false)
+        protected void unsubscribe(Database db, Args args) throws IOException {
+            synchronized (writer) {
+                List<String> list = args.isEmpty() ? new ArrayList<String>(channels) : args;
+                if (list.isEmpty()) {
+                    sendSubscription("unsubscribe", null);
+                }
+                for (String channel : list) {
+                    if (channels.remove(channel)) {
+                        pubsub.unsubscribe(this, channel);
+                    }
+                    sendSubscription("unsubscribe", channel);
+                }
+            }
+        }
+
+        @CommandMethod(args = {}, since="1.0.0")
+        protected void unlink(Database db, Args args) throws IOException {
+            _todo("unlink");
+        }
+
+        @CommandMethod(args = {}, since="2.2.0", db=false)
+        protected void unwatch(Database unused, Args args) throws IOException {
+            unwatchAll();
+            writer.write(OK_BYTES);
+        }
+
+        @CommandMethod(args = {}, since="1.0.0")
+        protected void wait(Database db, Args args) throws IOException {
+            _todo("wait");
+        }
+
+        @CommandMethod(args = {"key", "..."}, min=1, since="2.2.0", ro=true)
+        protected void watch(Database db, Args args) throws IOException {
+            if (null!=transaction) {
+                writer.sendError("ERR", "WATCH inside MULTI is not allowed");
+                return;
+            }
+            if (null==watches) {
+                watches = new ArrayList<Watch>();
+            }
+            for (String key : args) {
+                watches.add(new Watch(db, key, db.watch(key)));
+            }
+            writer.write(OK_BYTES);
+        }
+
+        @CommandMethod(args = {"key", "[NX|XX]", "[GT|LT]", "[CH]", "[INCR]", "score", "member", "..."}, min=3, since="1.2.0")
+        protected void zadd(Database db, Args args) throws IOException {
+            String key = args.key();
+            int     flags = 0;
+            boolean incr  = false;
+            int i = 1;
+            for (; i<args.size(); i++) {
+                String opt = args.get(i).toUpperCase();
+                if      ("NX".equals(opt))   flags |= ZSet.ZADD_NX;
+                else if ("XX".equals(opt))   flags |= ZSet.ZADD_XX;
+                else if ("GT".equals(opt))   flags |= ZSet.ZADD_GT;
+                else if ("LT".equals(opt))   flags |= ZSet.ZADD_LT;
+                else if ("CH".equals(opt))   flags |= ZSet.ZADD_CH;
+                else if ("INCR".equals(opt)) incr = true;
+                else break;
+            }
+
+            int pairs = (args.size()-i)/2;
+            if (0==pairs || (args.size()-i)%2!=0) {
+                writer.sendError("ERR", "syntax error");
+                return;
+            }
+            if (0!=(flags & ZSet.ZADD_NX) && 0!=(flags & ZSet.ZADD_XX)) {
+                writer.sendError("ERR", "XX and NX options at the same time are not compatible");
+                return;
+            }
+            if (Integer.bitCount(flags & (ZSet.ZADD_NX|ZSet.ZADD_GT|ZSet.ZADD_LT))>1) {
+                writer.sendError("ERR", "GT, LT, and/or NX options at the same time are not compatible");
+                return;
+            }
+            if (incr && pairs>1) {
+                writer.sendError("ERR", "INCR option supports a single increment-element pair");
+                return;
+            }
+
+            double[] scores  = new double[pairs];
+            String[] members = new String[pairs];
+            for (int p=0; p<pairs; p++, i+=2) {
+                Double score = toScore(args.get(i));
+                if (null==score) {
+                    return;
+                }
+                scores[p]  = score;
+                members[p] = args.get(i+1);
+            }
+
+            if (incr) {
+                Double score;
+                try {
+                    score = db.zincrby(key, flags, scores[0], members[0]);
+                }
+                catch (RESPException e) {
+                    writer.sendError("ERR", e.getMessage());
+                    return;
+                }
+                writer.sendString(null==score ? null : ZSet.formatScore(score));
+            }
+            else {
+                writer.sendNumber(db.zadd(key, flags, scores, members));
+            }
+        }
+
+        @CommandMethod(args = {"key"}, since="1.2.0", ro=true)
+        protected void zcard(Database db, Args args) throws IOException {
+            writer.sendNumber(db.zcard(args.key()));
+        }
+
+        @CommandMethod(args = {"key", "min", "max"}, since="2.0.0", ro=true)
+        protected void zcount(Database db, Args args) throws IOException {
+            ZSet.ScoreRange range = toScoreRange(args.get(1), args.get(2));
+            if (null!=range) {
+                writer.sendNumber(db.zcount(args.key(), range));
+            }
+        }
+
+        @CommandMethod(args = {"key", "increment", "member"}, since="1.2.0")
+        protected void zincrby(Database db, Args args) throws IOException {
+            Double increment = toScore(args.get(1));
+            if (null!=increment) {
+                try {
+                    Double score = db.zincrby(args.key(), 0, increment, args.get(2));
+                    writer.sendString(ZSet.formatScore(score));
+                }
+                catch (RESPException e) {
+                    writer.sendError("ERR", e.getMessage());
+                }
+            }
+        }
+
+        @CommandMethod(args = {"destination", "numkeys", "key", "...", "[WEIGHTS weight ...]", "[AGGREGATE SUM|MIN|MAX]"}, min=3, since="2.0.0", db=false)
+        protected void zinterstore(Database db, Args args) throws IOException {
+            zstore(args, true);
+        }
+
+        @CommandMethod(args = {"key", "min", "max"}, since="2.8.9", ro=true)
+        protected void zlexcount(Database db, Args args) throws IOException {
+            ZSet.LexRange range = toLexRange(args.get(1), args.get(2));
+            if (null!=range) {
+                writer.sendNumber(db.zlexcount(args.key(), range));
+            }
+        }
+
+        @CommandMethod(args = {"key", "[count]"}, min=1, max=2, since="5.0.0")
+        protected void zpopmax(Database db, Args args) throws IOException {
+            zpop(db, args, true);
+        }
+
+        @CommandMethod(args = {"key", "[count]"}, min=1, max=2, since="5.0.0")
+        protected void zpopmin(Database db, Args args) throws IOException {
+            zpop(db, args, false);
+        }
+
+        @CommandMethod(args = {"key", "start", "stop", "[WITHSCORES]"}, min=3, max=4, since="1.2.0", ro=true)
+        protected void zrange(Database db, Args args) throws IOException {
+            zrange(db, args, false);
+        }
+
+        @CommandMethod(args = {"key", "min", "max", "[LIMIT offset count]"}, min=3, max=6, since="2.8.9", ro=true)
+        protected void zrangebylex(Database db, Args args) throws IOException {
+            zrangebylex(db, args, false);
+        }
+
+        @CommandMethod(args = {"key", "max", "min", "[LIMIT offset count]"}, min=3, max=6, since="2.8.9", ro=true)
+        protected void zrevrangebylex(Database db, Args args) throws IOException {
+            zrangebylex(db, args, true);
+        }
+
+        @CommandMethod(args = {"key", "min", "max", "[WITHSCORES]", "[LIMIT offset count]"}, min=3, max=7, since="1.0.5", ro=true)
+        protected void zrangebyscore(Database db, Args args) throws IOException {
+            zrangebyscore(db, args, false);
+        }
+
+        @CommandMethod(args = {"key", "member"}, since="2.0.0", ro=true)
+        protected void zrank(Database db, Args args) throws IOException {
+            Integer rank = db.zrank(args.key(), args.get(1), false);
+            if (null==rank) {
+                writer.write(EMPTY_BYTES);
+            }
+            else {
+                writer.sendNumber(rank);
+            }
+        }
+
+        @CommandMethod(args = {"key", "member1", "member2", "..."}, min=2, since="1.2.0")
+        protected void zrem(Database db, Args args) throws IOException {
+            String key = args.remove(0);
+            writer.sendNumber(db.zrem(key, args));
+        }
+
+        @CommandMethod(args = {"key", "min", "max"}, since="2.8.9")
+        protected void zremrangebylex(Database db, Args args) throws IOException {
+            ZSet.LexRange range = toLexRange(args.get(1), args.get(2));
+            if (null!=range) {
+                writer.sendNumber(db.zremrangebylex(args.key(), range));
+            }
+        }
+
+        @CommandMethod(args = {"key", "start", "stop"}, since="2.0.0")
+        protected void zremrangebyrank(Database db, Args args) throws IOException {
+            int start = toInt(args.get(1));
+            int stop  = toInt(args.get(2));
+            writer.sendNumber(db.zremrangebyrank(args.key(), start, stop));
+        }
+
+        @CommandMethod(args = {"key", "min", "max"}, since="1.2.0")
+        protected void zremrangebyscore(Database db, Args args) throws IOException {
+            ZSet.ScoreRange range = toScoreRange(args.get(1), args.get(2));
+            if (null!=range) {
+                writer.sendNumber(db.zremrangebyscore(args.key(), range));
+            }
+        }
+
+        @CommandMethod(args = {"key", "start", "stop", "[WITHSCORES]"}, min=3, max=4, since="1.2.0", ro=true)
+        protected void zrevrange(Database db, Args args) throws IOException {
+            zrange(db, args, true);
+        }
+
+        @CommandMethod(args = {"key", "max", "min", "[WITHSCORES]", "[LIMIT offset count]"}, min=3, max=7, since="2.2.0", ro=true)
+        protected void zrevrangebyscore(Database db, Args args) throws IOException {
+            zrangebyscore(db, args, true);
+        }
+
+        @CommandMethod(args = {"key", "member"}, since="2.0.0", ro=true)
+        protected void zrevrank(Database db, Args args) throws IOException {
+            Integer rank = db.zrank(args.key(), args.get(1), true);
+            if (null==rank) {
+                writer.write(EMPTY_BYTES);
+            }
+            else {
+                writer.sendNumber(rank);
+            }
+        }
+
+        @CommandMethod(args = {"key", "member"}, since="1.2.0", ro=true)
+        protected void zscore(Database db, Args args) throws IOException {
+            Double score = db.zscore(args.key(), args.get(1));
+            writer.sendString(null==score ? null : ZSet.formatScore(score));
+        }
+
+        @CommandMethod(args = {"destination", "numkeys", "key", "...", "[WEIGHTS weight ...]", "[AGGREGATE SUM|MIN|MAX]"}, min=3, since="2.0.0", db=false)
+        protected void zunionstore(Database db, Args args) throws IOException {
+            zstore(args, false);
+        }
+
+        @CommandMethod(args = {"cursor", "[MATCH pattern]", "[COUNT count]", "[TYPE type]"}, min=1, max=7, since="2.8.0", ro=true)
+        protected void scan(Database db, Args args) throws IOException {
+            ScanArgs scan = parseScanArgs(args, 0, "TYPE");
+            if (null!=scan) {
+                List<String> keys = new ArrayList<String>();
+                long cursor = db.scan(scan.cursor, scan.count, scan.match, scan.type, keys);
+                sendScanReply(cursor, keys);
+            }
+        }
+
+        @CommandMethod(args = {"key", "cursor", "[MATCH pattern]", "[COUNT count]"}, min=2, max=6, since="2.8.0", ro=true)
+        protected void sscan(Database db, Args args) throws IOException {
+            ScanArgs scan = parseScanArgs(args, 1, null);
+            if (null!=scan) {
+                List<String> members = new ArrayList<String>();
+                long cursor = db.sscan(args.key(), scan.cursor, scan.count, scan.match, members);
+                sendScanReply(cursor, members);
+            }
+        }
+
+        @CommandMethod(args = {"key", "cursor", "[MATCH pattern]", "[COUNT count]"}, min=2, max=6, since="2.8.0", ro=true)
+        protected void zscan(Database db, Args args) throws IOException {
+            ScanArgs scan = parseScanArgs(args, 1, null);
+            if (null!=scan) {
+                List<String> items = new ArrayList<String>();
+                long cursor = db.zscan(args.key(), scan.cursor, scan.count, scan.match, items);
+                sendScanReply(cursor, items);
+            }
+        }
+
+        /**
+         * Parses the cursor at index from and the MATCH and COUNT options following it.
+         * @param extra the additional option of the command, TYPE or NOVALUES, if any
+         * @return null after sending an error
+         */
+        protected ScanArgs parseScanArgs(Args args, int from, String extra) throws IOException {
+            ScanArgs scan = new ScanArgs();
+            try {
+                scan.cursor = Long.parseUnsignedLong(args.get(from));
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "invalid cursor");
+                return null;
+            }
+            for (int i=from+1; i<args.size(); i++) {
+                String option = args.get(i).toUpperCase();
+                boolean hasValue = i+1<args.size();
+                if ("MATCH".equals(option) && hasValue) {
+                    String pattern = args.get(++i);
+                    scan.match = "*".equals(pattern) ? null : Glob.compile(pattern);
+                }
+                else if ("COUNT".equals(option) && hasValue) {
+                    try {
+                        scan.count = Integer.parseInt(args.get(++i));
+                    }
+                    catch (NumberFormatException e) {
+                        writer.sendError("ERR", "value is not an integer or out of range");
+                        return null;
+                    }
+                    if (scan.count<1) {
+                        writer.sendError("ERR", "syntax error");
+                        return null;
+                    }
+                }
+                else if ("TYPE".equals(option) && option.equals(extra) && hasValue) {
+                    scan.type = args.get(++i).toLowerCase();
+                }
+                else if ("NOVALUES".equals(option) && option.equals(extra)) {
+                    scan.noValues = true;
+                }
+                else {
+                    writer.sendError("ERR", "syntax error");
+                    return null;
+                }
+            }
+            return scan;
+        }
+
+        protected void sendScanReply(long cursor, List<String> items) throws IOException {
+            writer.sendArrayLength(2);
+            writer.sendString(Long.toUnsignedString(cursor));
+            writer.sendArray(items);
+        }
+
+        @CommandMethod(args = {"key", "[NOMKSTREAM]", "[MAXLEN|MINID [=|~] threshold [LIMIT count]]", "*|id", "field", "value", "..."}, min=4, since="5.0.0")
+        protected void xadd(Database db, Args args) throws IOException {
+            boolean create = true;
+            Stream.Trim trim = new Stream.Trim();
+            int i = 1;
+            for (; i<args.size(); i++) {
+                String option = args.get(i).toUpperCase();
+                if ("NOMKSTREAM".equals(option)) {
+                    create = false;
+                }
+                else if ("MAXLEN".equals(option) || "MINID".equals(option)) {
+                    i = parseTrim(args, i, trim);
+                    if (i<0) {
+                        return;
+                    }
+                }
+                else {
+                    break;
+                }
+            }
+            int pairs = args.size()-i-1;
+            if (pairs<2 || 0!=pairs%2) {
+                writer.sendError("ERR", "wrong number of arguments for 'xadd' command");
+                return;
+            }
+
+            String key  = args.key();
+            String spec = args.get(i);
+            Stream.ID last = db.xlastId(key);
+            Stream.ID id;
+            try {
+                if ("*".equals(spec)) {
+                    id = Stream.nextId(last, -1);
+                }
+                else if (spec.endsWith("-*")) {
+                    long ms = Long.parseLong(spec.substring(0, spec.length()-2));
+                    if (ms<0) {
+                        throw new NumberFormatException(spec);
+                    }
+                    id = Stream.nextId(last, ms);
+                }
+                else {
+                    id = Stream.ID.parse(spec, 0);
+                    if (Stream.ID.MIN.equals(id)) {
+                        writer.sendError("ERR", "The ID specified in XADD must be greater than 0-0");
+                        return;
+                    }
+                    if (id.compareTo(last)<=0) {
+                        id = null;
+                    }
+                }
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "Invalid stream ID specified as stream command argument");
+                return;
+            }
+            if (null==id) {
+                writer.sendError("ERR", "The ID specified in XADD is equal or smaller than the target stream top item");
+                return;
+            }
+            if (!create && !db.exists(key)) {
+                writer.write(EMPTY_BYTES);
+                return;
+            }
+
+            String[] fieldsValues = args.subList(i+1, args.size()).toArray(new String[pairs]);
+            db.xadd(key, id, fieldsValues, trim);
+            writer.sendString(id.toString());
+        }
+
+        @CommandMethod(args = {"key", "MAXLEN|MINID", "[=|~]", "threshold", "[LIMIT count]"}, min=3, max=6, since="5.0.0")
+        protected void xtrim(Database db, Args args) throws IOException {
+            String strategy = args.get(1).toUpperCase();
+            if (!"MAXLEN".equals(strategy) && !"MINID".equals(strategy)) {
+                writer.sendError("ERR", "syntax error");
+                return;
+            }
+            Stream.Trim trim = new Stream.Trim();
+            int i = parseTrim(args, 1, trim);
+            if (i<0) {
+                return;
+            }
+            if (i!=args.size()-1) {
+                writer.sendError("ERR", "syntax error");
+                return;
+            }
+            writer.sendNumber(db.xtrim(args.key(), trim));
+        }
+
+        @CommandMethod(args = {"key", "id", "..."}, min=2, since="5.0.0")
+        protected void xdel(Database db, Args args) throws IOException {
+            List<Stream.ID> ids = new ArrayList<Stream.ID>();
+            for (int i=1; i<args.size(); i++) {
+                Stream.ID id = toStreamId(args.get(i), 0);
+                if (null==id) {
+                    return;
+                }
+                ids.add(id);
+            }
+            writer.sendNumber(db.xdel(args.key(), ids));
+        }
+
+        @CommandMethod(args = {"key", "start", "end", "[COUNT count]"}, min=3, max=5, since="5.0.0", ro=true)
+        protected void xrange(Database db, Args args) throws IOException {
+            xrange(db, args, args.get(1), args.get(2), false);
+        }
+
+        @CommandMethod(args = {"key", "end", "start", "[COUNT count]"}, min=3, max=5, since="5.0.0", ro=true)
+        protected void xrevrange(Database db, Args args) throws IOException {
+            xrange(db, args, args.get(2), args.get(1), true);
+        }
+
+        @CommandMethod(args = {"key"}, since="5.0.0", ro=true)
+        protected void xlen(Database db, Args args) throws IOException {
+            writer.sendNumber(db.xlen(args.key()));
+        }
+
+        @CommandMethod(args = {"[COUNT count]", "[BLOCK milliseconds]", "STREAMS", "key", "...", "id", "..."}, min=3, since="5.0.0", db=false)
+        protected void xread(Database unused, Args args) throws IOException {
+            long count = -1;
+            long block = -1;
+            int i = 0;
+            for (; i<args.size(); i++) {
+                String option = args.get(i).toUpperCase();
+                if ("COUNT".equals(option) && i+1<args.size()) {
+                    count = toLong(args.get(++i));
+                }
+                else if ("BLOCK".equals(option) && i+1<args.size()) {
+                    block = toLong(args.get(++i));
+                    if (block<0) {
+                        writer.sendError("ERR", "timeout is negative");
+                        return;
+                    }
+                }
+                else if ("STREAMS".equals(option)) {
+                    break;
+                }
+                else {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+            }
+            int streams = args.size()-i-1;
+            if (streams<2 || 0!=streams%2) {
+                writer.sendError("ERR", "Unbalanced 'xread' list of streams: for each stream key an ID or '$' must be specified.");
+                return;
+            }
+
+            Database db = getSelectedDb();
+            List<String> keys = new ArrayList<String>(args.subList(i+1, i+1+streams/2));
+            List<Stream.ID> ids = new ArrayList<Stream.ID>(keys.size());
+            // A transaction must not block while holding the database lock.
+            KeyNotifier.Ticket ticket = block<0 || executing ? null : db.notifier.watch(keys);
+            try {
+                for (int k=0; k<keys.size(); k++) {
+                    String spec = args.get(i+1+streams/2+k);
+                    Stream.ID id = "$".equals(spec) ? db.xlastId(keys.get(k)) : toStreamId(spec, 0);
+                    if (null==id) {
+                        return;
+                    }
+                    ids.add(id);
+                }
+
+                long deadline = block>0 ? now()+block : -1;
+                for (;;) {
+                    Map<String, List<Stream.Entry>> result = db.xread(keys, ids, count);
+                    if (!result.isEmpty()) {
+                        sendStreams(result);
+                        return;
+                    }
+                    if (null==ticket || !ticket.await(deadline)) {
+                        writer.write(EMPTY_BYTES);
+                        return;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                writer.write(EMPTY_BYTES);
+            }
+            finally {
+                if (null!=ticket) {
+                    ticket.close();
+                }
+            }
+        }
+
+        @CommandMethod(args = {"subcommand", "key", "group", "[argument ...]"}, min=1, since="5.0.0")
+        protected void xgroup(Database db, Args args) throws IOException {
+            String subcommand = args.get(0).toUpperCase();
+            if ("HELP".equals(subcommand)) {
+                writer.sendArray(Arrays.asList(
+                        "XGROUP <subcommand> [<arg> [value] [opt] ...]. Subcommands are:",
+                        "CREATE <key> <groupname> <id|$> [MKSTREAM]",
+                        "CREATECONSUMER <key> <groupname> <consumer>",
+                        "DELCONSUMER <key> <groupname> <consumer>",
+                        "DESTROY <key> <groupname>",
+                        "SETID <key> <groupname> <id|$>"));
+                return;
+            }
+            if (args.size()<3) {
+                writer.sendError("ERR", "wrong number of arguments for 'xgroup|%s' command", subcommand.toLowerCase());
+                return;
+            }
+            String key   = args.get(1);
+            String group = args.get(2);
+
+            if ("CREATE".equals(subcommand) || "SETID".equals(subcommand)) {
+                boolean mkstream = false;
+                for (int i=4; i<args.size(); i++) {
+                    String option = args.get(i).toUpperCase();
+                    if ("MKSTREAM".equals(option) && "CREATE".equals(subcommand)) {
+                        mkstream = true;
+                    }
+                    else if ("ENTRIESREAD".equals(option) && i+1<args.size()) {
+                        // accepted for compatibility, lag is not tracked
+                        i++;
+                    }
+                    else {
+                        writer.sendError("ERR", "syntax error");
+                        return;
+                    }
+                }
+                if (args.size()<4) {
+                    writer.sendError("ERR", "wrong number of arguments for 'xgroup|%s' command", subcommand.toLowerCase());
+                    return;
+                }
+                Stream.ID id = null;
+                if (!"$".equals(args.get(3))) {
+                    id = toStreamId(args.get(3), 0);
+                    if (null==id) {
+                        return;
+                    }
+                }
+                if ("CREATE".equals(subcommand)) {
+                    int rc = db.xgroupCreate(key, group, id, mkstream);
+                    if (0==rc) {
+                        writer.sendError("ERR", "The XGROUP subcommand requires the key to exist. Note that for CREATE you may want to use the MKSTREAM option to create an empty stream automatically.");
+                        return;
+                    }
+                    if (rc<0) {
+                        writer.sendError("BUSYGROUP", "Consumer Group name already exists");
+                        return;
+                    }
+                }
+                else if (!db.xgroupSetId(key, group, id)) {
+                    writer.sendError("NOGROUP", "No such key '%s' or consumer group '%s'", key, group);
+                    return;
+                }
+                writer.write(OK_BYTES);
+            }
+            else if ("DESTROY".equals(subcommand)) {
+                writer.sendNumber(db.xgroupDestroy(key, group) ? 1 : 0);
+            }
+            else if (("CREATECONSUMER".equals(subcommand) || "DELCONSUMER".equals(subcommand)) && 4==args.size()) {
+                long rc = "CREATECONSUMER".equals(subcommand)
+                        ? db.xgroupCreateConsumer(key, group, args.get(3))
+                        : db.xgroupDelConsumer(key, group, args.get(3));
+                if (rc<0) {
+                    writer.sendError("NOGROUP", "No such consumer group '%s' for key name '%s'", group, key);
+                    return;
+                }
+                writer.sendNumber(rc);
+            }
+            else {
+                writer.sendError("ERR", "unknown subcommand or wrong number of arguments for '%s'. Try XGROUP HELP.", args.get(0));
+            }
+        }
+
+        @CommandMethod(args = {"GROUP", "group", "consumer", "[COUNT count]", "[BLOCK milliseconds]", "[NOACK]", "STREAMS", "key", "...", "id", "..."}, min=6, since="5.0.0", db=false)
+        protected void xreadgroup(Database unused, Args args) throws IOException {
+            if (!"GROUP".equalsIgnoreCase(args.get(0))) {
+                writer.sendError("ERR", "Missing GROUP option for XREADGROUP");
+                return;
+            }
+            String group    = args.get(1);
+            String consumer = args.get(2);
+            long count = -1;
+            long block = -1;
+            boolean noack = false;
+            int i = 3;
+            for (; i<args.size(); i++) {
+                String option = args.get(i).toUpperCase();
+                if ("COUNT".equals(option) && i+1<args.size()) {
+                    count = toLong(args.get(++i));
+                }
+                else if ("BLOCK".equals(option) && i+1<args.size()) {
+                    block = toLong(args.get(++i));
+                    if (block<0) {
+                        writer.sendError("ERR", "timeout is negative");
+                        return;
+                    }
+                }
+                else if ("NOACK".equals(option)) {
+                    noack = true;
+                }
+                else if ("STREAMS".equals(option)) {
+                    break;
+                }
+                else {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+            }
+            int streams = args.size()-i-1;
+            if (streams<2 || 0!=streams%2) {
+                writer.sendError("ERR", "Unbalanced 'xreadgroup' list of streams: for each stream key an ID or '>' must be specified.");
+                return;
+            }
+
+            List<String> keys = new ArrayList<String>(args.subList(i+1, i+1+streams/2));
+            List<Stream.ID> ids = new ArrayList<Stream.ID>(keys.size());
+            boolean history = false;
+            for (int k=0; k<keys.size(); k++) {
+                String spec = args.get(i+1+streams/2+k);
+                if (">".equals(spec)) {
+                    ids.add(null);
+                }
+                else {
+                    Stream.ID id = toStreamId(spec, 0);
+                    if (null==id) {
+                        return;
+                    }
+                    ids.add(id);
+                    history = true;
+                }
+            }
+
+            Database db = getSelectedDb();
+            KeyNotifier.Ticket ticket = block<0 || history || executing ? null : db.notifier.watch(keys);
+            try {
+                long deadline = block>0 ? now()+block : -1;
+                for (;;) {
+                    Map<String, List<Stream.Entry>> result = db.xreadgroup(group, consumer, keys, ids, count, noack);
+                    if (null==result) {
+                        for (String key : keys) {
+                            if (null==db.xgroup(key, group)) {
+                                writer.sendError("NOGROUP", "No such key '%s' or consumer group '%s' in XREADGROUP with GROUP option", key, group);
+                                return;
+                            }
+                        }
+                    }
+                    else if (!result.isEmpty()) {
+                        sendStreams(result);
+                        return;
+                    }
+                    if (null==ticket || !ticket.await(deadline)) {
+                        writer.write(EMPTY_BYTES);
+                        return;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                writer.write(EMPTY_BYTES);
+            }
+            finally {
+                if (null!=ticket) {
+                    ticket.close();
+                }
+            }
+        }
+
+        @CommandMethod(args = {"key", "group", "id", "..."}, min=3, since="5.0.0")
+        protected void xack(Database db, Args args) throws IOException {
+            List<Stream.ID> ids = new ArrayList<Stream.ID>();
+            for (int i=2; i<args.size(); i++) {
+                Stream.ID id = toStreamId(args.get(i), 0);
+                if (null==id) {
+                    return;
+                }
+                ids.add(id);
+            }
+            writer.sendNumber(db.xack(args.key(), args.get(1), ids));
+        }
+
+        @CommandMethod(args = {"key", "group", "consumer", "min-idle-time", "id", "...", "[IDLE ms]", "[TIME ms]", "[RETRYCOUNT count]", "[FORCE]", "[JUSTID]"}, min=5, since="5.0.0")
+        protected void xclaim(Database db, Args args) throws IOException {
+            long minIdle = Math.max(0, toLong(args.get(3)));
+            List<Stream.ID> ids = new ArrayList<Stream.ID>();
+            int i = 4;
+            for (; i<args.size(); i++) {
+                try {
+                    ids.add(Stream.ID.parse(args.get(i), 0));
+                }
+                catch (NumberFormatException e) {
+                    break;
+                }
+            }
+            if (ids.isEmpty()) {
+                writer.sendError("ERR", "Invalid stream ID specified as stream command argument");
+                return;
+            }
+            long deliveryTime = -1;
+            long retryCount = -1;
+            boolean force  = false;
+            boolean justId = false;
+            for (; i<args.size(); i++) {
+                String option = args.get(i).toUpperCase();
+                if ("IDLE".equals(option) && i+1<args.size()) {
+                    deliveryTime = now()-toLong(args.get(++i));
+                }
+                else if ("TIME".equals(option) && i+1<args.size()) {
+                    deliveryTime = toLong(args.get(++i));
+                }
+                else if ("RETRYCOUNT".equals(option) && i+1<args.size()) {
+                    retryCount = toLong(args.get(++i));
+                }
+                else if ("FORCE".equals(option)) {
+                    force = true;
+                }
+                else if ("JUSTID".equals(option)) {
+                    justId = true;
+                }
+                else if ("LASTID".equals(option) && i+1<args.size()) {
+                    // accepted for compatibility with replication
+                    i++;
+                }
+                else {
+                    writer.sendError("ERR", "Unrecognized XCLAIM option '%s'", args.get(i));
+                    return;
+                }
+            }
+
+            List<Stream.Entry> entries = db.xclaim(args.key(), args.get(1), args.get(2), minIdle, ids, deliveryTime, retryCount, force, justId);
+            if (null==entries) {
+                writer.sendError("NOGROUP", "No such key '%s' or consumer group '%s'", args.key(), args.get(1));
+                return;
+            }
+            if (justId) {
+                writer.sendArrayLength(entries.size());
+                for (Stream.Entry entry : entries) {
+                    writer.sendString(entry.getId().toString());
+                }
+            }
+            else {
+                sendEntries(entries);
+            }
+        }
+
+        @CommandMethod(args = {"key", "group", "[[IDLE min-idle-time] start end count [consumer]]"}, min=2, max=8, since="5.0.0", ro=true)
+        protected void xpending(Database db, Args args) throws IOException {
+            String key   = args.key();
+            String group = args.get(1);
+            if (2==args.size()) {
+                Stream.Group g = db.xgroup(key, group);
+                if (null==g) {
+                    writer.sendError("NOGROUP", "No such key '%s' or consumer group '%s'", key, group);
+                    return;
+                }
+                NavigableMap<Stream.ID, Stream.Pending> pel = g.getPending();
+                writer.sendArrayLength(4);
+                writer.sendNumber(pel.size());
+                if (pel.isEmpty()) {
+                    writer.write(EMPTY_BYTES);
+                    writer.write(EMPTY_BYTES);
+                    writer.write(EMPTY_BYTES);
+                    return;
+                }
+                writer.sendString(pel.firstKey().toString());
+                writer.sendString(pel.lastKey().toString());
+                List<Stream.Consumer> consumers = new ArrayList<Stream.Consumer>();
+                for (Stream.Consumer consumer : g.getConsumers()) {
+                    if (!consumer.getPending().isEmpty()) {
+                        consumers.add(consumer);
+                    }
+                }
+                writer.sendArrayLength(consumers.size());
+                for (Stream.Consumer consumer : consumers) {
+                    writer.sendArray(Arrays.asList(consumer.getName(), Integer.toString(consumer.getPending().size())));
+                }
+                return;
+            }
+
+            int i = 2;
+            long minIdle = 0;
+            if ("IDLE".equalsIgnoreCase(args.get(i)) && i+1<args.size()) {
+                minIdle = toLong(args.get(i+1));
+                i += 2;
+            }
+            if (args.size()-i<3 || args.size()-i>4) {
+                writer.sendError("ERR", "syntax error");
+                return;
+            }
+            Stream.ID start = toStreamBound(args.get(i), true);
+            Stream.ID end   = toStreamBound(args.get(i+1), false);
+            if (null==start || null==end) {
+                writer.sendError("ERR", "Invalid stream ID specified as stream command argument");
+                return;
+            }
+            long count = toLong(args.get(i+2));
+            String consumer = args.size()-i==4 ? args.get(i+3) : null;
+            List<Stream.Pending> pending = db.xpending(key, group, start, end, Math.max(0, count), consumer, minIdle);
+            if (null==pending) {
+                writer.sendError("NOGROUP", "No such key '%s' or consumer group '%s'", key, group);
+                return;
+            }
+            long now = now();
+            writer.sendArrayLength(pending.size());
+            for (Stream.Pending p : pending) {
+                writer.sendArrayLength(4);
+                writer.sendString(p.getId().toString());
+                writer.sendString(p.getConsumer().getName());
+                writer.sendNumber(now-p.getDeliveryTime());
+                writer.sendNumber(p.getDeliveryCount());
+            }
+        }
+
+        @CommandMethod(args = {"subcommand", "key", "[group]"}, min=1, max=3, since="5.0.0", ro=true)
+        protected void xinfo(Database db, Args args) throws IOException {
+            String subcommand = args.get(0).toUpperCase();
+            if ("HELP".equals(subcommand)) {
+                writer.sendArray(Arrays.asList(
+                        "XINFO <subcommand> [<arg> [value] [opt] ...]. Subcommands are:",
+                        "CONSUMERS <key> <groupname>",
+                        "GROUPS <key>",
+                        "STREAM <key>"));
+                return;
+            }
+            boolean consumers = "CONSUMERS".equals(subcommand);
+            if (!(consumers ? 3==args.size() : 2==args.size())
+                    || (!consumers && !"GROUPS".equals(subcommand) && !"STREAM".equals(subcommand))) {
+                writer.sendError("ERR", "unknown subcommand or wrong number of arguments for '%s'. Try XINFO HELP.", args.get(0));
+                return;
+            }
+            Stream stream = db.xstream(args.get(1));
+            if (null==stream) {
+                writer.sendError("ERR", "no such key");
+                return;
+            }
+
+            long now = now();
+            if ("STREAM".equals(subcommand)) {
+                writer.sendArrayLength(18);
+                writer.sendString("length");
+                writer.sendNumber(stream.size());
+                writer.sendString("radix-tree-keys");
+                writer.sendNumber(stream.getNodeCount());
+                writer.sendString("radix-tree-nodes");
+                writer.sendNumber(stream.getNodeCount());
+                writer.sendString("last-generated-id");
+                writer.sendString(stream.getLastId().toString());
+                writer.sendString("max-deleted-entry-id");
+                writer.sendString(stream.getMaxDeletedId().toString());
+                writer.sendString("entries-added");
+                writer.sendNumber(stream.getEntriesAdded());
+                writer.sendString("groups");
+                writer.sendNumber(stream.getGroups().size());
+                writer.sendString("first-entry");
+                sendEntry(stream.first());
+                writer.sendString("last-entry");
+                sendEntry(stream.last());
+            }
+            else if ("GROUPS".equals(subcommand)) {
+                writer.sendArrayLength(stream.getGroups().size());
+                for (Stream.Group group : stream.getGroups()) {
+                    writer.sendArrayLength(8);
+                    writer.sendString("name");
+                    writer.sendString(group.getName());
+                    writer.sendString("consumers");
+                    writer.sendNumber(group.getConsumers().size());
+                    writer.sendString("pending");
+                    writer.sendNumber(group.getPending().size());
+                    writer.sendString("last-delivered-id");
+                    writer.sendString(group.getLastDeliveredId().toString());
+                }
+            }
+            else {
+                Stream.Group group = stream.getGroup(args.get(2));
+                if (null==group) {
+                    writer.sendError("NOGROUP", "No such consumer group '%s' for key name '%s'", args.get(2), args.get(1));
+                    return;
+                }
+                writer.sendArrayLength(group.getConsumers().size());
+                for (Stream.Consumer consumer : group.getConsumers()) {
+                    writer.sendArrayLength(6);
+                    writer.sendString("name");
+                    writer.sendString(consumer.getName());
+                    writer.sendString("pending");
+                    writer.sendNumber(consumer.getPending().size());
+                    writer.sendString("idle");
+                    writer.sendNumber(now-consumer.getSeenTime());
+                }
+            }
+        }
+
+        @CommandMethod(args = {}, since="1.0.0")
+        protected void latency(Database db, Args args) throws IOException {
+            _todo("latency");
+        }
+
+        protected void xrange(Database db, Args args, String startSpec, String endSpec, boolean reverse) throws IOException {
+            long count = -1;
+            if (args.size()>3) {
+                if (5!=args.size() || !"COUNT".equalsIgnoreCase(args.get(3))) {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+                count = toLong(args.get(4));
+            }
+            Stream.ID start = toStreamBound(startSpec, true);
+            Stream.ID end   = toStreamBound(endSpec, false);
+            if (null==start || null==end) {
+                writer.sendError("ERR", "Invalid stream ID specified as stream command argument");
+                return;
+            }
+            sendEntries(db.xrange(args.key(), start, end, count, reverse));
+        }
+
+        /**
+         * @return the inclusive bound of a range given as "-", "+", a possibly incomplete ID or
+         * an exclusive "(" ID, or null if it is invalid
+         */
+        protected Stream.ID toStreamBound(String spec, boolean start) {
+            if ("-".equals(spec)) {
+                return Stream.ID.MIN;
+            }
+            if ("+".equals(spec)) {
+                return Stream.ID.MAX;
+            }
+            boolean exclusive = spec.startsWith("(");
+            try {
+                Stream.ID id = Stream.ID.parse(exclusive ? spec.substring(1) : spec, start ? 0 : Long.MAX_VALUE);
+                if (exclusive) {
+                    id = start ? id.next() : id.previous();
+                    if (null==id) {
+                        // the range is empty
+                        return start ? Stream.ID.MAX : Stream.ID.MIN;
+                    }
+                }
+                return id;
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return the ID or null if an error was sent
+         */
+        protected Stream.ID toStreamId(String spec, long defaultSeq) throws IOException {
+            try {
+                return Stream.ID.parse(spec, defaultSeq);
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "Invalid stream ID specified as stream command argument");
+                return null;
+            }
+        }
+
+        /**
+         * Parses MAXLEN|MINID [=|~] threshold [LIMIT count] starting at index.
+         * @return the index of the last argument parsed or -1 if an error was sent
+         */
+        protected int parseTrim(Args args, int i, Stream.Trim trim) throws IOException {
+            boolean minId = "MINID".equalsIgnoreCase(args.get(i));
+            if (i+1<args.size() && ("~".equals(args.get(i+1)) || "=".equals(args.get(i+1)))) {
+                trim.approx = "~".equals(args.get(++i));
+            }
+            if (i+1>=args.size()) {
+                writer.sendError("ERR", "syntax error");
+                return -1;
+            }
+            String threshold = args.get(++i);
+            if (minId) {
+                trim.minId = toStreamId(threshold, 0);
+                if (null==trim.minId) {
+                    return -1;
+                }
+            }
+            else {
+                try {
+                    trim.maxLen = Long.parseLong(threshold);
+                }
+                catch (NumberFormatException e) {
+                    trim.maxLen = -1;
+                }
+                if (trim.maxLen<0) {
+                    writer.sendError("ERR", "The MAXLEN argument must be >= 0.");
+                    return -1;
+                }
+            }
+            if (i+2<args.size() && "LIMIT".equalsIgnoreCase(args.get(i+1))) {
+                if (!trim.approx) {
+                    writer.sendError("ERR", "syntax error, LIMIT cannot be used without the special ~ option");
+                    return -1;
+                }
+                i += 2;
+                trim.limit = toLong(args.get(i));
+            }
+            return i;
+        }
+
+        protected void sendEntries(List<Stream.Entry> entries) throws IOException {
+            writer.sendArrayLength(entries.size());
+            for (Stream.Entry entry : entries) {
+                sendEntry(entry);
+            }
+        }
+
+        /**
+         * Sends an entry as its ID and fields, the fields are nil for deleted entries.
+         */
+        protected void sendEntry(Stream.Entry entry) throws IOException {
+            if (null==entry) {
+                writer.write(EMPTY_BYTES);
+                return;
+            }
+            writer.sendArrayLength(2);
+            writer.sendString(entry.getId().toString());
+            writer.sendArray(entry.getFieldsValues());
+        }
+
+        protected void sendStreams(Map<String, List<Stream.Entry>> streams) throws IOException {
+            writer.sendArrayLength(streams.size());
+            for (Entry<String, List<Stream.Entry>> e : streams.entrySet()) {
+                writer.sendArrayLength(2);
+                writer.sendString(e.getKey());
+                sendEntries(e.getValue());
+            }
+        }
+
+        protected void zpop(Database db, Args args, boolean max) throws IOException {
+            int count = args.size()>1 ? toInt(args.get(1)) : 1;
+            List<ZSet.Node> nodes = db.zpop(args.key(), count, max);
+            sendNodes(nodes, true);
+        }
+
+        protected void sort(Database db, Args args, boolean ro) throws IOException {
+            SortArgs sort = new SortArgs();
+            for (int i=1; i<args.size(); i++) {
+                String option = args.get(i).toUpperCase();
+                int left = args.size()-i-1;
+                if ("ASC".equals(option)) {
+                    sort.desc = false;
+                }
+                else if ("DESC".equals(option)) {
+                    sort.desc = true;
+                }
+                else if ("ALPHA".equals(option)) {
+                    sort.alpha = true;
+                }
+                else if ("BY".equals(option) && left>=1) {
+                    sort.by = new SortArgs.Pattern(args.get(++i));
+                }
+                else if ("GET".equals(option) && left>=1) {
+                    sort.get.add(new SortArgs.Pattern(args.get(++i)));
+                }
+                else if ("LIMIT".equals(option) && left>=2) {
+                    try {
+                        sort.offset = Integer.parseInt(args.get(++i));
+                        sort.count  = Integer.parseInt(args.get(++i));
+                    }
+                    catch (NumberFormatException e) {
+                        writer.sendError("ERR", "value is not an integer or out of range");
+                        return;
+                    }
+                }
+                else if ("STORE".equals(option) && left>=1 && !ro) {
+                    sort.store = args.get(++i);
+                }
+                else {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+            }
+            List<String> result;
+            try {
+                result = db.sort(args.key(), sort);
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "One or more scores can't be converted into double");
+                return;
+            }
+            if (null==sort.store) {
+                writer.sendArray(result);
+                return;
+            }
+            QuickList list = new QuickList();
+            for (String item : result) {
+                list.addLast(null==item ? "" : item);
+            }
+            writer.sendNumber(db.store(sort.store, list, list.size(), "sortstore"));
+        }
+
+        protected void zrange(Database db, Args args, boolean reverse) throws IOException {
+            boolean withScores = false;
+            if (args.size()>3) {
+                if (!"WITHSCORES".equalsIgnoreCase(args.get(3))) {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+                withScores = true;
+            }
+            int start = toInt(args.get(1));
+            int stop  = toInt(args.get(2));
+            sendNodes(db.zrange(args.key(), start, stop, reverse), withScores);
+        }
+
+        protected void zrangebyscore(Database db, Args args, boolean reverse) throws IOException {
+            // The reverse variants take max before min.
+            ZSet.ScoreRange range = reverse ? toScoreRange(args.get(2), args.get(1)) : toScoreRange(args.get(1), args.get(2));
+            if (null==range) {
+                return;
+            }
+            boolean withScores = false;
+            int offset = 0;
+            int count  = -1;
+            for (int i=3; i<args.size(); i++) {
+                String opt = args.get(i).toUpperCase();
+                if ("WITHSCORES".equals(opt)) {
+                    withScores = true;
+                }
+                else if ("LIMIT".equals(opt) && i+2<args.size()) {
+                    offset = toInt(args.get(++i));
+                    count  = toInt(args.get(++i));
+                }
+                else {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+            }
+            sendNodes(db.zrangebyscore(args.key(), range, reverse, offset, count), withScores);
+        }
+
+        protected void zrangebylex(Database db, Args args, boolean reverse) throws IOException {
+            ZSet.LexRange range = reverse ? toLexRange(args.get(2), args.get(1)) : toLexRange(args.get(1), args.get(2));
+            if (null==range) {
+                return;
+            }
+            int offset = 0;
+            int count  = -1;
+            if (args.size()>3) {
+                if (args.size()!=6 || !"LIMIT".equalsIgnoreCase(args.get(3))) {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+                offset = toInt(args.get(4));
+                count  = toInt(args.get(5));
+            }
+            sendNodes(db.zrangebylex(args.key(), range, reverse, offset, count), false);
+        }
+
+        protected void zstore(Args args, boolean intersect) throws IOException {
+            String dest = args.get(0);
+            int numkeys = toInt(args.get(1));
+            if (numkeys<1) {
+                writer.sendError("ERR", "at least 1 input key is needed for ZUNIONSTORE/ZINTERSTORE");
+                return;
+            }
+            if (2+numkeys>args.size()) {
+                writer.sendError("ERR", "syntax error");
+                return;
+            }
+            List<String> keys = new ArrayList<String>(args.subList(2, 2+numkeys));
+            double[] weights = new double[numkeys];
+            Arrays.fill(weights, 1);
+            int aggregate = SetAlgebra.AGGREGATE_SUM;
+            for (int i=2+numkeys; i<args.size(); i++) {
+                String option = args.get(i).toUpperCase();
+                if ("WEIGHTS".equals(option) && i+numkeys<args.size()) {
+                    for (int w=0; w<numkeys; w++) {
+                        try {
+                            weights[w] = ZSet.parseScore(args.get(++i));
+                        }
+                        catch (NumberFormatException e) {
+                            writer.sendError("ERR", "weight value is not a float");
+                            return;
+                        }
+                    }
+                }
+                else if ("AGGREGATE".equals(option) && i+1<args.size()) {
+                    String value = args.get(++i).toUpperCase();
+                    if ("SUM".equals(value)) {
+                        aggregate = SetAlgebra.AGGREGATE_SUM;
+                    }
+                    else if ("MIN".equals(value)) {
+                        aggregate = SetAlgebra.AGGREGATE_MIN;
+                    }
+                    else if ("MAX".equals(value)) {
+                        aggregate = SetAlgebra.AGGREGATE_MAX;
+                    }
+                    else {
+                        writer.sendError("ERR", "syntax error");
+                        return;
+                    }
+                }
+                else {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+            }
+
+            Database selected = getSelectedDb();
+            SetAlgebra algebra = new SetAlgebra(selected);
+            ZSet result = intersect ? algebra.zinter(keys, weights, aggregate) : algebra.zunion(keys, weights, aggregate);
+            writer.sendNumber(selected.store(dest, result, result.size(), intersect ? "zinterstore" : "zunionstore"));
+        }
+
+        static final int GEO_COORDS  = 1;
+        static final int GEO_MEMBER  = 2;
+        static final int GEO_SEARCH  = 4;
+        static final int GEO_STORE   = 8;
+        static final int GEO_NOSTORE = 16;
+
+        /**
+         * Implements GEORADIUS, GEORADIUSBYMEMBER, GEOSEARCH, GEOSEARCHSTORE and the read-only
+         * variants, which only differ in how center and shape are given.
+         */
+        protected void geoquery(Database db, Args args, int flags) throws IOException {
+            boolean search    = 0!=(flags & GEO_SEARCH);
+            boolean storeOnly = 0!=(flags & GEO_STORE);
+            String  command   = storeOnly ? "GEOSEARCHSTORE" : "GEOSEARCH";
+            String  storeKey  = storeOnly ? args.get(0) : null;
+            int     i         = storeOnly ? 1 : 0;
+            String  key       = args.get(i++);
+
+            GeoHash.Shape shape = new GeoHash.Shape();
+            String  fromMember  = null;
+            boolean fromLonLat  = false;
+            boolean byShape     = false;
+            if (0!=(flags & GEO_COORDS)) {
+                if (!toCoordinates(args, i, shape)) {
+                    return;
+                }
+                fromLonLat = true;
+                i += 2;
+            }
+            else if (0!=(flags & GEO_MEMBER)) {
+                fromMember = args.get(i++);
+            }
+            if (!search) {
+                if (!toRadius(args, i, shape)) {
+                    return;
+                }
+                byShape = true;
+                i += 2;
+            }
+
+            boolean withDist  = false;
+            boolean withHash  = false;
+            boolean withCoord = false;
+            boolean storeDist = false;
+            boolean any       = false;
+            int     sort      = 0;
+            int     count     = -1;
+            for (; i<args.size(); i++) {
+                String  opt  = args.get(i).toUpperCase();
+                int     more = args.size()-i-1;
+                if      ("WITHDIST".equals(opt))  withDist  = true;
+                else if ("WITHHASH".equals(opt))  withHash  = true;
+                else if ("WITHCOORD".equals(opt)) withCoord = true;
+                else if ("ANY".equals(opt))       any       = true;
+                else if ("ASC".equals(opt))       sort      = 1;
+                else if ("DESC".equals(opt))      sort      = -1;
+                else if ("COUNT".equals(opt) && more>=1) {
+                    count = toInt(args.get(++i));
+                    if (count<=0) {
+                        writer.sendError("ERR", "COUNT must be > 0");
+                        return;
+                    }
+                }
+                else if (!search && 0==(flags & GEO_NOSTORE) && ("STORE".equals(opt) || "STOREDIST".equals(opt)) && more>=1) {
+                    storeKey  = args.get(++i);
+                    storeDist = "STOREDIST".equals(opt);
+                }
+                else if (storeOnly && "STOREDIST".equals(opt)) {
+                    storeDist = true;
+                }
+                else if (search && "FROMMEMBER".equals(opt) && more>=1) {
+                    if (null!=fromMember || fromLonLat) {
+                        writer.sendError("ERR", "exactly one of FROMMEMBER or FROMLONLAT can be specified for %s", command);
+                        return;
+                    }
+                    fromMember = args.get(++i);
+                }
+                else if (search && "FROMLONLAT".equals(opt) && more>=2) {
+                    if (null!=fromMember || fromLonLat) {
+                        writer.sendError("ERR", "exactly one of FROMMEMBER or FROMLONLAT can be specified for %s", command);
+                        return;
+                    }
+                    if (!toCoordinates(args, i+1, shape)) {
+                        return;
+                    }
+                    fromLonLat = true;
+                    i += 2;
+                }
+                else if (search && "BYRADIUS".equals(opt) && more>=2) {
+                    if (byShape) {
+                        writer.sendError("ERR", "exactly one of BYRADIUS and BYBOX can be specified for %s", command);
+                        return;
+                    }
+                    if (!toRadius(args, i+1, shape)) {
+                        return;
+                    }
+                    byShape = true;
+                    i += 2;
+                }
+                else if (search && "BYBOX".equals(opt) && more>=3) {
+                    if (byShape) {
+                        writer.sendError("ERR", "exactly one of BYRADIUS and BYBOX can be specified for %s", command);
+                        return;
+                    }
+                    if (!toBox(args, i+1, shape)) {
+                        return;
+                    }
+                    byShape = true;
+                    i += 3;
+                }
+                else {
+                    writer.sendError("ERR", "syntax error");
+                    return;
+                }
+            }
+
+            if (null==fromMember && !fromLonLat) {
+                writer.sendError("ERR", "exactly one of FROMMEMBER or FROMLONLAT can be specified for %s", command);
+                return;
+            }
+            if (!byShape) {
+                writer.sendError("ERR", "exactly one of BYRADIUS and BYBOX can be specified for %s", command);
+                return;
+            }
+            if (null!=storeKey && (withDist || withHash || withCoord)) {
+                writer.sendError("ERR", "%s is not compatible with WITHDIST, WITHHASH and WITHCOORD options",
+                        storeOnly ? "GEOSEARCHSTORE" : "STORE option in GEORADIUS");
+                return;
+            }
+            if (any && count<0) {
+                writer.sendError("ERR", "the ANY argument requires COUNT argument");
+                return;
+            }
+
+            List<GeoHash.Point> points = new ArrayList<GeoHash.Point>();
+            if (db.zcard(key)>0) {
+                if (null!=fromMember) {
+                    Double score = db.zscore(key, fromMember);
+                    if (null==score) {
+                        writer.sendError("ERR", "could not decode requested zset member");
+                        return;
+                    }
+                    double[] xy = GeoHash.decodeScore(score);
+                    shape.lon = xy[0];
+                    shape.lat = xy[1];
+                }
+                points = db.geosearch(key, shape, count, any);
+            }
+
+            // A COUNT without ANY asks for the closest points.
+            if (0==sort && count>0 && !any) {
+                sort = 1;
+            }
+            if (0!=sort) {
+                final int order = sort;
+                Collections.sort(points, new Comparator<GeoHash.Point>() {
+                    @Override
+                    public int compare(GeoHash.Point a, GeoHash.Point b) {
+                        return order*Double.compare(a.distance, b.distance);
+                    }
+                });
+            }
+            if (count>0 && points.size()>count) {
+                points = points.subList(0, count);
+            }
+
+            if (null!=storeKey) {
+                ZSet zset = new ZSet();
+                for (GeoHash.Point p : points) {
+                    zset.add(p.member, storeDist ? p.distance/shape.conversion : p.score);
+                }
+                writer.sendNumber(db.store(storeKey, zset, zset.size(), storeOnly ? "geosearchstore" : "georadiusstore"));
+                return;
+            }
+
+            int fields = 1+(withDist ? 1 : 0)+(withHash ? 1 : 0)+(withCoord ? 1 : 0);
+            writer.sendArrayLength(points.size());
+            for (GeoHash.Point p : points) {
+                if (1==fields) {
+                    writer.sendString(p.member);
+                    continue;
+                }
+                writer.sendArrayLength(fields);
+                writer.sendString(p.member);
+                if (withDist) {
+                    writer.sendString(formatGeoDistance(p.distance, shape.conversion));
+                }
+                if (withHash) {
+                    writer.sendNumber((long)p.score);
+                }
+                if (withCoord) {
+                    writer.sendArray(ZSet.formatScore(p.lon), ZSet.formatScore(p.lat));
+                }
+            }
+        }
+
+        /**
+         * Parses a longitude, latitude pair into the center of shape and replies with an error
+         * if it is not valid.
+         */
+        protected boolean toCoordinates(Args args, int i, GeoHash.Shape shape) throws IOException {
+            Double lon = toScore(args.get(i));
+            Double lat = null==lon ? null : toScore(args.get(i+1));
+            if (null==lat) {
+                return false;
+            }
+            if (!GeoHash.isValid(lon, lat)) {
+                writer.sendError("ERR", "invalid longitude,latitude pair %s", String.format(Locale.ROOT, "%f,%f", lon, lat));
+                return false;
+            }
+            shape.lon = lon;
+            shape.lat = lat;
+            return true;
+        }
+
+        protected boolean toRadius(Args args, int i, GeoHash.Shape shape) throws IOException {
+            double radius;
+            try {
+                radius = ZSet.parseScore(args.get(i));
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "need numeric radius");
+                return false;
+            }
+            if (radius<0) {
+                writer.sendError("ERR", "radius cannot be negative");
+                return false;
+            }
+            double conversion = toGeoUnit(args.get(i+1));
+            if (conversion<0) {
+                return false;
+            }
+            shape.box        = false;
+            shape.radius     = radius*conversion;
+            shape.conversion = conversion;
+            return true;
+        }
+
+        protected boolean toBox(Args args, int i, GeoHash.Shape shape) throws IOException {
+            Double width  = toScore(args.get(i));
+            Double height = null==width ? null : toScore(args.get(i+1));
+            if (null==height) {
+                return false;
+            }
+            if (width<0 || height<0) {
+                writer.sendError("ERR", "height or width cannot be negative");
+                return false;
+            }
+            double conversion = toGeoUnit(args.get(i+2));
+            if (conversion<0) {
+                return false;
+            }
+            shape.box        = true;
+            shape.width      = width*conversion;
+            shape.height     = height*conversion;
+            shape.conversion = conversion;
+            return true;
+        }
+
+        /**
+         * @return the number of meters of a unit or -1 if an error was sent.
+         */
+        protected double toGeoUnit(String unit) throws IOException {
+            String u = unit.toLowerCase();
+            if ("m".equals(u))  return 1;
+            if ("km".equals(u)) return 1000;
+            if ("ft".equals(u)) return 0.3048;
+            if ("mi".equals(u)) return 1609.34;
+            writer.sendError("ERR", "unsupported unit provided. please use M, KM, FT, MI");
+            return -1;
+        }
+
+        protected String formatGeoDistance(double meters, double conversion) {
+            return String.format(Locale.ROOT, "%.4f", meters/conversion);
+        }
+
+        protected void sendNodes(List<ZSet.Node> nodes, boolean withScores) throws IOException {
+            List<String> list = new ArrayList<String>(withScores ? 2*nodes.size() : nodes.size());
+            for (ZSet.Node n : nodes) {
+                list.add(n.getMember());
+                if (withScores) {
+                    list.add(ZSet.formatScore(n.getScore()));
+                }
+            }
+            writer.sendArray(list);
+        }
+
+        /**
+         * Parses a score and replies with an error if it is not a valid float.
+         * @return the score or null if an error was sent.
+         */
+        protected Double toScore(String s) throws IOException {
+            try {
+                return ZSet.parseScore(s);
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "value is not a valid float");
+                return null;
+            }
+        }
+
+        protected ZSet.ScoreRange toScoreRange(String min, String max) throws IOException {
+            try {
+                return new ZSet.ScoreRange(min, max);
+            }
+            catch (NumberFormatException e) {
+                writer.sendError("ERR", "min or max is not a float");
+                return null;
+            }
+        }
+
+        protected ZSet.LexRange toLexRange(String min, String max) throws IOException {
+            try {
+                return new ZSet.LexRange(min, max);
+            }
+            catch (IllegalArgumentException e) {
+                writer.sendError("ERR", "min or max not valid string range item");
+                return null;
+            }
+        }
+
+        /**
+         * Sends the result of a function: null as nil, integral numbers as integers, other
+         * objects as bulk strings, booleans as 1 or nil and collections, arrays and maps
+         * (as key value pairs) as nested arrays.
+         */
+        protected void sendObject(Object o) throws IOException {
+            if (null==o || Boolean.FALSE.equals(o)) {
+                writer.write(EMPTY_BYTES);
+            }
+            else if (Boolean.TRUE.equals(o)) {
+                writer.sendNumber(1);
+            }
+            else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+                writer.sendNumber(((Number) o).longValue());
+            }
+            else if (o instanceof Collection) {
+                Collection<?> c = (Collection<?>) o;
+                writer.sendArrayLength(c.size());
+                for (Object e : c) {
+                    sendObject(e);
+                }
+            }
+            else if (o instanceof Object[]) {
+                sendObject(Arrays.asList((Object[]) o));
+            }
+            else if (o instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) o;
+                writer.sendArrayLength(2*map.size());
+                for (Map.Entry<?, ?> e : map.entrySet()) {
+                    sendObject(e.getKey());
+                    sendObject(e.getValue());
+                }
+            }
+            else {
+                writer.sendString(o.toString());
+            }
+        }
+
+        protected void sendSubscription(String kind, String name) throws IOException {
+            writer.sendArrayLength(3);
+            writer.sendString(kind);
+            writer.sendString(name);
+            writer.sendNumber(channels.size()+patterns.size());
+        }
+
+        protected boolean isSubscribed() {
+            return !channels.isEmpty() || !patterns.isEmpty();
+        }
+
+        /**
+         * Writes a message frame published by another client.
+         */
+        protected void deliver(byte[] frame) {
+            try {
+                synchronized (writer) {
+                    writer.write(frame);
+                }
+            }
+            catch (IOException e) {
+                // The worker or the poller cleans up once the closed socket is noticed.
+                kill();
+            }
+        }
+
+        protected boolean isOpen() {
+            Socket s = socket;
+            return null!=s && !s.isClosed();
+        }
+
+        /**
+         * @return true if any key watched by this client was touched since. The database of
+         * a watched key is looked up again as FLUSHALL replaces the databases.
+         */
+        protected boolean isWatchedKeyModified() {
+            if (null!=watches) {
+                for (Watch w : watches) {
+                    if (getDb(w.db.number).isModified(w)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        protected void unwatchAll() {
+            if (null!=watches) {
+                for (Watch w : watches) {
+                    w.db.unwatch();
+                }
+                watches = null;
+            }
+        }
+
+        /**
+         * Releases the subscriptions and the connection of a client that is gone.
+         */
+        protected void disconnected() {
+            unwatchAll();
+            for (String channel : channels) {
+                pubsub.unsubscribe(this, channel);
+            }
+            for (String pattern : patterns) {
+                pubsub.punsubscribe(this, pattern);
+            }
+            Socket s = socket;
+            if (null!=s) {
+                try {
+                    s.close();
+                }
+                catch (IOException e) {
+                }
+            }
+            synchronized (workers) {
+                workers.remove(this);
+            }
+        }
+
+        /**
+         * This method is a placeholder for any method corresponding to a Redis command
+         * not (yet) implemented/supported.
+         * @param cmd
+         * @throws IOException
+         */
+        protected void _todo(String cmd) throws IOException {
+            writer.sendError("TODO", "Command '%s' not yet implemented", cmd);
+        }
+
+        protected void kill() {
+            try {
+                socket.close();
+                socket = null;
+            }
+            catch (Exception e) {
+                logError("%s[%d]: kill: %s, ", getClass().getSimpleName(), port, e);
+            }
+        }
+
+        protected boolean hasAddr(String ipPort) {
+            String actual = socket.getRemoteSocketAddress().toString();
+            if (actual.startsWith("/")) {
+                actual = actual.substring(1);
+            }
+            return ipPort.equals(actual);
+        }
+
+        protected long clientId() {
+            return Thread.currentThread().getId();
+        }
+
+        protected void assertArgCount(List<String> args, int expected) throws WrongNumberOfArgsException {
+            if (null==args || args.size()!=expected) {
+                throw new WrongNumberOfArgsException();
+            }
+        }
+
+        protected Database getSelectedDb() {
+            return RedisServer.this.getDb(selectedDb);
+        }
+
+        protected Long toLong(String s) {
+            return null==s ? null : Long.parseLong(s);
+        }
+
+        protected Integer toInt(String s) {
+            return null==s ? null : Integer.parseInt(s);
+        }
+
+        protected Double toDouble(String s) {
+            return null==s ? null : Double.parseDouble(s);
+        }
+
+        protected String lastCommand;
+
+        /**
+         * The commands queued since MULTI, null unless in a transaction.
+         */
+        protected List<QueuedCommand> transaction;
+        protected boolean transactionFailed;
+        protected boolean executing;
+        protected List<Watch> watches;
+
+        /**
+         * The interpreter of this client's scripts, created by the first EVAL.
+         */
+        protected Lua.State lua;
+        protected boolean scriptReadOnly;
+
+        /**
+         * When the running script of this client started and if it called a write command,
+         * which makes it unkillable.
+         */
+        protected volatile long scriptStarted;
+        protected volatile boolean scriptWrote;
+
+        protected String clientName;
+        protected int selectedDb;
+        protected RESPReader reader;
+        protected long started;
+
+        protected RESPWriter writer;
+        protected Socket socket;
+
+        protected final Set<String> channels = new LinkedHashSet<String>();
+        protected final Set<String> patterns = new LinkedHashSet<String>();
+    }
+
+    /**
+     * This class implements the reading part of the RESP protocol, @see https://redis.io/topics/protocol
+     */
+    public static class RESPReader {
+
+        private int localPort;
+        public RESPReader(InputStream is) throws IOException {
+            this.br = new BufferedReader(new InputStreamReader(is));
+            this.socket = null;
+        }
+
+        public RESPReader(Socket socket) throws IOException {
+            this(socket.getInputStream());
+            this.socket = socket;
+            this.localPort = socket.getLocalPort();
+        }
+
+        public RESPReader withNonStandard(boolean b) {
+            nonStandard = b;
+            return this;
+        }
+
+        /**
+         * @return true if input can be read without blocking.
+         */
+        public boolean ready() throws IOException {
+            return br.ready();
+        }
+
+        /**
+         * Unlike ready() this tells an idle connection from one the peer has closed, at the
+         * cost of waiting up to timeout ms for input.
+         * @return true if the end of the stream was reached
+         */
+        public boolean isClosed(int timeout) throws IOException {
+            if (null==socket || br.ready()) {
+                return false;
+            }
+            int soTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(timeout);
+            try {
+                br.mark(1);
+                if (br.read()<0) {
+                    return true;
+                }
+                br.reset();
+                return false;
+            }
+            catch (SocketTimeoutException e) {
+                return false;
+            }
+            finally {
+                socket.setSoTimeout(soTimeout);
+            }
+        }
+
+        public Object readStringOrList() throws IOException {
+
+            String line = br.readLine();
+            if (line.startsWith("+")) {
+                return line.substring(1);
+            }
+
+            int count = Integer.parseInt(line.substring(1));
+            if (line.startsWith("$")) {
+                return readString(count);
+            }
+            else if (line.startsWith("*")) {
+                return readList(count);
+            }
+            else if (line.startsWith("#") && nonStandard) {
+                return readHash(count);
+            }
+            else if (line.startsWith("~") && nonStandard) {
+                return readHashWithExpiries(count);
+            }
+            else if (line.startsWith("%") && nonStandard) {
+                return readSet(count);
+            }
+            else if (line.startsWith("^") && nonStandard) {
+                return readZSet(count);
+            }
+            else if (line.startsWith("&") && nonStandard) {
+                return HyperLogLog.fromByteArray(Base64.getDecoder().decode(readString(count)));
+            }
+            else if (line.startsWith("@") && nonStandard) {
+                return readStream(count);
+            }
+            else if (line.startsWith("!") && nonStandard) {
+                return Bitmap.fromByteArray(Base64.getDecoder().decode(readString(count)));
+            }
+            throw new RESPException("Expected character out of ['$','*','#','~','%','^','&','!','@'] but found " + truncateString(line));
+        }
+
+        public String readString() throws IOException {
+            CharSequence s = readBulk();
+            return null==s ? null : s.toString();
+        }
+
+        /**
+         * Reads a bulk string, one longer than chunkedBulkLength() as a ChunkedString.
+         */
+        public CharSequence readBulk() throws IOException {
+
+            String line = br.readLine();
+            if (null==line) {
+                return null; // EOF
+            }
+
+            if (!line.startsWith("$")) {
+                throw new RESPException("Expected $ but got " + truncateString(line));
+            }
+
+            int length = Integer.parseInt(line.substring(1));
+            return length>chunkedBulkLength() ? readChunked(length) : readString(length);
+        }
+
+        public Args readList() throws IOException {
+
+            String line = br.readLine();
+            if (null==line) {
+                SocketAddress addr = null==socket ? null :  socket.getRemoteSocketAddress();
+                String cause = String.format("RESPReader[%d]: client disconnected %s", localPort, addr);
+                onError(cause);
+                return null; // EOF
+            }
+
+            if (line.startsWith("-")) {
+                throw new RESPException("Error: " + line);
+            }
+
+            if (!line.startsWith("*")) {
+                throw new RESPException("Expected * but got " + truncateString(line));
+            }
+
+            int count = Integer.parseInt(line.substring(1));
+            Args list = readList(count);
+            return list;
+        }
+
+        protected void onError(String cause) {
+        }
+
+        public Long readNumber() throws IOException {
+            String line = br.readLine();
+            if (!line.startsWith(":")) {
+                throw new RESPException("Expected : but got " + truncateString(line));
+            }
+            long number = Long.parseLong(line.substring(1));
+            return number;
+        }
+
+        protected Args readList(int count) throws IOException {
+            Args list = new Args();
+            for (int i=0; i<count; i++) {
+                CharSequence s = readBulk();
+                if (s instanceof ChunkedString) {
+                    list.add((ChunkedString) s);
+                }
+                else {
+                    list.add((String) s);
+                }
+            }
+            return list;
+        }
+
+        protected Hash readHash(int count) throws IOException {
+            Hash hash = new Hash(count);
+            for (int i=0; i<count; i++) {
+                String key  = readString();
+                String value = readString();
+                hash.put(key, value);
+            }
+            return hash;
+        }
+
+        protected Hash readHashWithExpiries(int count) throws IOException {
+            Hash hash = new Hash(count);
+            for (int i=0; i<count; i++) {
+                String field = readString();
+                String value = readString();
+                hash.put(field, value);
+                hash.expireAt(field, readNumber());
+            }
+            return hash;
+        }
+
+        protected _Set readSet(int count) throws IOException {
+            _Set hash = new _Set(count);
+            for (int i=0; i<count; i++) {
+                String value = readString();
+                hash.add(value);
+            }
+            return hash;
+        }
+
+        protected ZSet readZSet(int count) throws IOException {
+            ZSet zset = new ZSet();
+            for (int i=0; i<count; i++) {
+                String member = readString();
+                String score  = readString();
+                zset.add(member, ZSet.parseScore(score));
+            }
+            return zset;
+        }
+
+        protected Stream readStream(int count) throws IOException {
+            Stream stream = new Stream();
+            Stream.ID lastId = Stream.ID.parse(readString(), 0);
+            for (int i=0; i<count; i++) {
+                Stream.ID id = Stream.ID.parse(readString(), 0);
+                Args fieldsValues = readList();
+                stream.add(id, fieldsValues.toArray(new String[fieldsValues.size()]));
+            }
+            stream.setLastId(lastId);
+            long groups = readNumber();
+            for (long g=0; g<groups; g++) {
+                Stream.Group group = stream.createGroup(readString(), Stream.ID.parse(readString(), 0));
+                long consumers = readNumber();
+                for (long c=0; c<consumers; c++) {
+                    group.consumer(readString(), System.currentTimeMillis());
+                }
+                long pending = readNumber();
+                for (long p=0; p<pending; p++) {
+                    Stream.ID id = Stream.ID.parse(readString(), 0);
+                    Stream.Consumer consumer = group.consumer(readString(), System.currentTimeMillis());
+                    group.restorePending(id, consumer, readNumber(), readNumber());
+                }
+            }
+            return stream;
+        }
+
+        protected String truncateString(String s) {
+            if (s.length()>200) s = s.substring(0,200);
+            s = s.replace("\r", "\\r");
+            s = s.replace("\n", "\\n");
+            return s;
+        }
+
+        /**
+         * @return the maximum length of a bulk string, checked before anything is allocated
+         */
+        protected long maxBulkLength() {
+            return Integer.MAX_VALUE;
+        }
+
+        /**
+         * @return the length from which readBulk() returns a ChunkedString
+         */
+        protected long chunkedBulkLength() {
+            return Integer.MAX_VALUE;
+        }
+
+        protected String readString(int length) throws IOException {
+            if (length>CHUNK_SIZE) {
+                return readChunked(length).toString();
+            }
+            if (length<0 || length>maxBulkLength()) {
+                throw new RESPException("invalid bulk length");
+            }
+            char[] cbuf = new char[length];
+            readComplete(cbuf);
+            readCrLf();
+            return new String(cbuf);
+        }
+
+        /**
+         * Reads a bulk string into chunks of CHUNK_SIZE chars, each allocated when its data
+         * is read, so no buffer of the full length is needed.
+         */
+        protected ChunkedString readChunked(int length) throws IOException {
+            if (length<0 || length>maxBulkLength()) {
+                throw new RESPException("invalid bulk length");
+            }
+            char[][] chunks = new char[(length+CHUNK_SIZE-1)/CHUNK_SIZE][];
+            for (int i=0; i<chunks.length; i++) {
+                chunks[i] = new char[Math.min(CHUNK_SIZE, length-i*CHUNK_SIZE)];
+                readComplete(chunks[i]);
+            }
+            readCrLf();
+            return new ChunkedString(chunks, length);
+        }
+
+        protected void readComplete(char[] cbuf) throws IOException {
+
+            int length = cbuf.length;
+            int count  = 0;
+            while (count<cbuf.length) {
+
+                int read = br.read(cbuf, count, length-count);
+                if (read>0) {
+                    count+=read;
+                }
+                else if (read<0) {
+                    break;
+                }
+            }
+            if (count!=length) {
+                throw new IOException("Incomplete read. Expected " + length + " bytes but actually got only " + count);
+            }
+        }
+
+        protected void readCrLf() throws IOException {
+            char cbuf[] = new char[2];
+            readComplete(cbuf);
+            if ('\r'!=cbuf[0]) throw new RESPException("Invalid line end");
+            if ('\n'!=cbuf[1]) throw new RESPException("Invalid line end");
+        }
+
+        static final int CHUNK_SIZE = 64*1024;
+
+        private BufferedReader br;
+        private Socket socket;
+        private boolean nonStandard;
+
+    }
+
+    /**
+     * This class implements the writing part of the RESP protocol, @see https://redis.io/topics/protocol
+     */
+    public static class RESPWriter {
+
+        public RESPWriter(Socket socket) throws IOException {
+            this(socket.getOutputStream());
+            this.socket = socket;
+        }
+
+        public RESPWriter(OutputStream output) {
+            this.output = output;
+        }
+
+        /**
+         * Encodes an array of bulk strings, e.g. to write the same frame to many clients.
+         */
+        public static byte[] encode(String ... strings) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] header = ("*" + strings.length + CRLF_STRING).getBytes();
+            out.write(header, 0, header.length);
+            for (String s : strings) {
+                byte[] data = s.getBytes();
+                byte[] len  = ("$" + data.length + CRLF_STRING).getBytes();
+                out.write(len, 0, len.length);
+                out.write(data, 0, data.length);
+                out.write(CRLF_BYTES, 0, CRLF_BYTES.length);
+            }
+            return out.toByteArray();
+        }
+
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        public void write(byte[] data) throws IOException {
+            output.write(data);
+        }
+
+        public void sendReply(StringBuilder sb) throws IOException {
+            String string = sb.toString();
+            byte[] data = string.getBytes(StandardCharsets.UTF_8);
+
+            String lenStr = String.format("$%d\r\n", data.length);
+
+            output.write(lenStr.getBytes());
+            output.write(data);
+            output.write(CRLF_BYTES);
+            output.flush();
+        }
+
+        public void sendArray(String ... strings) throws IOException {
+            sendArrayLength(strings.length);
+            for (String s : strings) {
+                sendString(s);
+            }
+        }
+
+        /**
+         * Writes a value of any type in the form of the persistence files.
+         */
+        public void sendValue(Object obj) throws IOException {
+            if (obj instanceof ChunkedString) {
+                sendChunked((ChunkedString) obj);
+            }
+            else if (obj instanceof String || obj instanceof MutableString) {
+                sendString(obj.toString());
+            }
+            else if (obj instanceof List) {
+                @SuppressWarnings("unchecked")
+                List<String> list = (List<String>) obj;
+                sendArray(list);
+            }
+            else if (obj instanceof Hash) {
+                sendHash((Hash) obj);
+            }
+            else if (obj instanceof _Set) {
+                sendSet((_Set) obj);
+            }
+            else if (obj instanceof ZSet) {
+                sendZSet((ZSet) obj);
+            }
+            else if (obj instanceof Stream) {
+                sendStream((Stream) obj);
+            }
+            else if (obj instanceof Bitmap) {
+                sendBitmap((Bitmap) obj);
+            }
+            else if (obj instanceof HyperLogLog) {
+                sendHyperLogLog((HyperLogLog) obj);
+            }
+            else {
+                throw new RuntimeException("Unsupported type " + obj.getClass());
+            }
+        }
+
+        public void sendHash(Hash hash) throws IOException {
+            if (hash.hasExpiries()) {
+                sendHashWithExpiries(hash);
+                return;
+            }
+            sendHashLength(hash.size());
+            for (Entry<String, String> e : hash.entrySet()) {
+                sendString(e.getKey());
+                sendString(e.getValue());
+            }
+        }
+
+        /**
+         * Writes the fields alive with their values and expiry times, -1 for none.
+         */
+        public void sendHashWithExpiries(Hash hash) throws IOException {
+            long now = System.currentTimeMillis();
+            List<String> live = new ArrayList<String>(hash.size());
+            for (String field : hash.keySet()) {
+                if (hash.isLive(field, now)) {
+                    live.add(field);
+                }
+            }
+            output.write(("~" + live.size()).getBytes());
+            output.write(CRLF_BYTES);
+            for (String field : live) {
+                sendString(field);
+                sendString(hash.get(field));
+                sendNumber(hash.expiresAt(field));
+            }
+        }
+
+        public void sendSet(_Set set) throws IOException {
+            sendSetLength(set.size());
+            for (String member : set) {
+                sendString(member);
+            }
+        }
+
+        public void sendZSet(ZSet zset) throws IOException {
+            sendZSetLength(zset.size());
+            for (ZSet.Node n : zset.range(0, zset.size()-1)) {
+                sendString(n.getMember());
+                sendString(ZSet.formatScore(n.getScore()));
+            }
+        }
+
+        /**
+         * Writes the number of entries, the last ID and the entries followed by the number
+         * of consumer groups and for each group its name, last delivered ID, consumers and
+         * pending entries.
+         */
+        public void sendStream(Stream stream) throws IOException {
+            List<Stream.Entry> entries = stream.range(Stream.ID.MIN, Stream.ID.MAX, -1, false);
+            output.write(("@" + entries.size()).getBytes());
+            output.write(CRLF_BYTES);
+            sendString(stream.getLastId().toString());
+            for (Stream.Entry entry : entries) {
+                sendString(entry.getId().toString());
+                sendArray(entry.getFieldsValues());
+            }
+            sendNumber(stream.getGroups().size());
+            for (Stream.Group group : stream.getGroups()) {
+                sendString(group.getName());
+                sendString(group.getLastDeliveredId().toString());
+                sendNumber(group.getConsumers().size());
+                for (Stream.Consumer consumer : group.getConsumers()) {
+                    sendString(consumer.getName());
+                }
+                sendNumber(group.getPending().size());
+                for (Stream.Pending pending : group.getPending().values()) {
+                    sendString(pending.getId().toString());
+                    sendString(pending.getConsumer().getName());
+                    sendNumber(pending.getDeliveryTime());
+                    sendNumber(pending.getDeliveryCount());
+                }
+            }
+        }
+
+        public void sendBitmap(Bitmap bitmap) throws IOException {
+            String encoded = Base64.getEncoder().encodeToString(bitmap.toByteArray());
+            output.write(("!" + encoded.length()).getBytes());
+            output.write(CRLF_BYTES);
+            output.write(encoded.getBytes(StandardCharsets.US_ASCII));
+            output.write(CRLF_BYTES);
+        }
+
+        public void sendHyperLogLog(HyperLogLog hll) throws IOException {
+            String encoded = Base64.getEncoder().encodeToString(hll.toByteArray());
+            output.write(("&" + encoded.length()).getBytes());
+            output.write(CRLF_BYTES);
+            output.write(encoded.getBytes(StandardCharsets.US_ASCII));
+            output.write(CRLF_BYTES);
+        }
+
+        /**
+         * Writes the strings in chunks of about CHUNK_SIZE bytes, so a large array needs
+         * neither a copy of the whole reply nor a write per element.
+         */
+        public void sendArray(Collection<String> strings) throws IOException {
+            if (null==strings) {
+                write(EMPTY_BYTES);
+                return;
+            }
+            sendArrayLength(strings.size());
+            sendStrings(strings);
+        }
+
+        /**
+         * Writes the strings as elements of an array whose length was sent before, in chunks
+         * like sendArray.
+         */
+        public void sendStrings(Collection<String> strings) throws IOException {
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            for (String s : strings) {
+                if (null==s) {
+                    chunk.write(EMPTY_BYTES, 0, EMPTY_BYTES.length);
+                }
+                else {
+                    byte[] len  = ("$" + s.length() + CRLF_STRING).getBytes();
+                    byte[] data = s.getBytes();
+                    chunk.write(len, 0, len.length);
+                    chunk.write(data, 0, data.length);
+                    chunk.write(CRLF_BYTES, 0, CRLF_BYTES.length);
+                }
+                if (chunk.size()>=CHUNK_SIZE) {
+                    chunk.writeTo(output);
+                    chunk.reset();
+                }
+            }
+            chunk.writeTo(output);
+        }
+
+        public void sendArrayLength(int len) throws IOException {
+            output.write(("*" + len).getBytes());
+            output.write(CRLF_BYTES);
+        }
+
+        public void sendHashLength(int len) throws IOException {
+            output.write(("#" + len).getBytes());
+            output.write(CRLF_BYTES);
+        }
+
+        public void sendSetLength(int len) throws IOException {
+            output.write(("%" + len).getBytes());
+            output.write(CRLF_BYTES);
+        }
+
+        public void sendZSetLength(int len) throws IOException {
+            output.write(("^" + len).getBytes());
+            output.write(CRLF_BYTES);
+        }
+
+        public void sendNumber(long l) throws IOException {
+            output.write((":" + l).getBytes());
+            output.write(CRLF_BYTES);
+        }
+
+        public void sendString(String s) throws IOException {
+            if (null==s) {
+                output.write(EMPTY_BYTES);
+            }
+            else {
+                String formatted = String.format("$%d\r\n%s\r\n", s.length(), s);
+                byte[] bytes = formatted.getBytes();
+                output.write(bytes);
+            }
+        }
+
+        /**
+         * Writes a chunked string as a bulk string one chunk at a time.
+         */
+        public void sendChunked(ChunkedString s) throws IOException {
+            output.write(("$" + s.length() + CRLF_STRING).getBytes());
+            Writer chars = new OutputStreamWriter(output);
+            s.writeTo(chars);
+            chars.flush();
+            output.write(CRLF_BYTES);
+        }
+
+        public void sendError(String category, String format, Object ... args) throws IOException {
+
+            String formatted = String.format(format, args);
+            onError(CN + ".sendError: " + formatted);
+            String line = "-" + category + " " + formatted + "\r\n";
+            output.write(line.getBytes(StandardCharsets.UTF_8));
+            output.flush();
+        }
+
+        protected void onError(String cause) {
+        }
+
+        public void close() throws IOException {
+            output.close();
+        }
+
+        private static final String CN = RESPWriter.class.getSimpleName();
+
+        static final int CHUNK_SIZE = 64*1024;
+
+        @SuppressWarnings("unused")
+        private Socket socket;
+        private OutputStream output;
+    }
+
+    /**
+     * Base class for any exceptions thrown in result of a RESP protocol issue.
+     */
+    @SuppressWarnings("serial")
+    static class RESPException extends RuntimeException {
+        public RESPException(String msg) {
+            super(msg);
+        }
+        public RESPException(String msg, Throwable cause) {
+            super(msg, cause);
+        }
+    }
+
+    /**
+     * Exception thrown when a RESP command was received with a wrong number of arguments.
+     */
+    @SuppressWarnings("serial")
+    class WrongNumberOfArgsException extends RESPException {
+        public WrongNumberOfArgsException() {
+            super("Wrong number of arguments");
+        }
+    }
+
+    /**
+     * This class implements reading and writing all databases to/from persistent storage (disk);
+     */
+    class Persistifier extends Thread {
+
+        public Persistifier(RedisServer redisServer) {
+            this(redisServer, createWorkDir());
+        }
+
+        public Persistifier(RedisServer redisServer, String dirname) {
+            super(Persistifier.class.getSimpleName());
+            super.setDaemon(true);
+            this.redisServer = redisServer;
+            this.dir = new File(dirname);
+            this.dir.mkdirs();
+        }
+
+        @Override
+        public void interrupt() {
+            this.stopRequested = true;
+            super.interrupt();
+        }
+
+        @Override
+        public synchronized void start() {
+            this.stopRequested = false;
+            super.start();
+        }
+
+        @Override
+        public void run() {
+
+            final String info = getInfo();
+
+            while (!this.stopRequested) {
+                // 10 minutes:
+                sleepMillis(10*60*1000);
+
+                if (!stopRequested) {
+                    try {
+                        logInfo("%s: Persisting databases to disk", info);
+                        persist(databases, false);
+                    }
+                    catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            logInfo("%s: terminating", info);
+        }
+
+        public Map<Integer, Database> load() throws IOException {
+
+            logInfo("%s: loading databases from %s", getInfo(), dir);
+
+            Map<Integer, Database> map = new HashMap<Integer, Database>();
+            for (int num=0; num<16; num++) {
+
+                try {
+                    Database db = load(num);
+                    if (null!=db) {
+                        map.put(num, db);
+                        int keyCount = db.size();
+                        onDatabaseLoaded(num, keyCount, "OK");
+                    }
+                }
+                catch (Exception e) {
+                    onDatabaseLoaded(num, -1, "EXCEPTION " + e.getMessage());
+                }
+
+            }
+
+            onLoadingComplete(map.size());
+            return map;
+        }
+
+        public synchronized void persist(Databases databases, boolean force) throws IOException {
+            final String info = getInfo();
+            SortedMap<Integer, Database> copy = databases.snapshot();
+            logInfo("%s: saving %d databases", info, copy.size());
+
+            Set<Integer> keys = copy.keySet();
+            for (Integer num : keys) {
+                Database db = copy.get(num);
+                if (force || db.dirty) {
+                    this.persist(db);
+                }
+                else {
+                    logInfo("%s: database %d was not modified", info, num);
+                }
+            }
+        }
+
+        public String getInfo() {
+            return getClass().getSimpleName() + "[" + redisServer.getPort() + "]";
+        }
+
+        public void persist(Database db) throws IOException {
+
+            db.lockReader();
+            Database copy = null;
+            try {
+                copy = new Database(db);
+            }
+            finally {
+                db.unlockReader();
+            }
+
+            String info = getInfo();
+
+            int num  = copy.getNumber();
+            File tmp  = new File(dir, String.format("db%d.tmp", num));
+            File dest = getFileForDb(num);
+
+            FileOutputStream fos = new FileOutputStream(tmp);
+            RESPWriter writer = new RESPWriter(fos);
+
+            int keyCount = -1;
+            synchronized (copy) {
+                Set<String> keys = copy.keySet();
+                keyCount = keys.size();
+
+                logInfo("%s: saving %d keys in db %d to %s", info, keyCount, databases.size(), tmp);
+                onSaving(num, keyCount, dest);
+
+                for (String key : keys) {
+
+                    Ageable a = copy.get(key, false);
+                    if (null==a) {
+                        // expired right now??
+                        continue;
+                    }
+
+                    writer.sendString(key);
+                    writer.sendNumber(a.expires);
+                    writer.sendValue(a.value);
+                }
+            }
+            writer.close();
+
+            Database check = load(num, tmp, true);
+            if (check.size() != keyCount) {
+
+                Set<String> missing = new TreeSet<String>();
+                for (String key : copy.keySet()) {
+                    if (!check.containsKey(key)) {
+                        missing.add(key);
+                    }
+                }
+
+                if (!checkMissingKeys(missing)) {
+                    String msg = String.format("Failed to save database %d. Wrote %d keys, read %d keys. Missing: %s",
+                            num, keyCount, check.size(), missing);
+                    logError("%s", msg);
+                    throw new RuntimeException(msg);
+                }
+            }
+
+            dest.delete();
+            logInfo("%s: renaming %s -> %s", getInfo(), tmp, dest);
+            tmp.renameTo(dest);
+        }
+
+        protected Database load(int num) throws IOException {
+            File file = getFileForDb(num);
+            return load(num, file, false);
+        }
+
+        protected Database load(int num, File file, boolean testWise) throws IOException {
+
+            if (!file.isFile()) {
+                onFileNotFound(num, file);
+                return null;
+            }
+
+            if (!testWise) {
+                logInfo("%s: loading: %s", getInfo(), file);
+            }
+
+            FileInputStream fis = new FileInputStream(file);
+            RESPReader reader = new RESPReader(fis).withNonStandard(true);
+
+            Database db = new Database(num, locking);
+            boolean done = false;
+            do {
+                String key = reader.readString();
+                if (null==key) {
+                    done = true;
+                }
+                else {
+                    Long   expires = reader.readNumber();
+                    Object value   = reader.readStringOrList();
+                    if (value instanceof Args) {
+                        value = new QuickList((Args) value);
+                    }
+                    Ageable a = new Ageable(value);
+                    db.put(key, a);
+                    db.expireAt(key, a, expires);
+                    if (value instanceof Hash && ((Hash) value).hasExpiries()) {
+                        db.expireFields(key, a);
+                    }
+                }
+            }
+            while (!done);
+
+            if (!testWise) {
+                logInfo("%s: loaded:  %s: %d keys", getInfo(), file, db.size());
+            }
+
+            return db;
+        }
+
+        protected File getFileForDb(int num) {
+            File dest = new File(dir, String.format("db%d%s", num, SUFFIX));
+            return dest;
+        }
+
+        protected volatile boolean stopRequested;
+        protected final String SUFFIX = ".redisj";
+        protected File dir;
+        protected RedisServer redisServer;
+    }
+
+
+    class NoLock implements Lock {
+        @Override
+        public void lock() {}
+        @Override
+        public void lockInterruptibly() throws InterruptedException {}
+        @Override
+        public boolean tryLock() { return true; }
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException { return true; }
+        @Override
+        public void unlock() {}
+        @Override
+        public Condition newCondition() { return null; }
+    }
+
+    class ReadWriteNoLock implements ReadWriteLock {
+
+        ReadWriteNoLock() {
+            this.lock = new NoLock();
+        }
+        @Override
+        public Lock writeLock() { return lock; }
+
+        @Override
+        public Lock readLock() { return lock; }
+
+        private NoLock lock;
+    }
+
+    /**
+     * The databases by number. Lookups read an immutable snapshot without any lock and
+     * every change publishes a new one, so a command holding database locks can resolve
+     * another database. Changes are serialized on the monitor, which is never held while
+     * waiting for another lock. The read-write lock serializes operations over all
+     * databases and, like the monitor, is never taken while holding a database lock.
+     */
+    class Databases {
+
+        Databases(boolean locking) {
+            this.lock = locking ? new ReentrantReadWriteLock() : new ReadWriteNoLock();
+        }
+
+        public Database get(int num) {
+            return map.get(num);
+        }
+
+        public Database getOrCreate(int num) {
+            Database db = map.get(num);
+            return null!=db ? db : create(num);
+        }
+
+        private synchronized Database create(int num) {
+            Database db = map.get(num);
+            if (null==db) {
+                TreeMap<Integer, Database> copy = new TreeMap<Integer, Database>(map);
+                copy.put(num, db = new Database(num, locking));
+                map = Collections.unmodifiableSortedMap(copy);
+            }
+            return db;
+        }
+
+        public synchronized void swap(int a, int b) {
+            Database x = getOrCreate(a);
+            Database y = getOrCreate(b);
+            if (x==y) {
+                return;
+            }
+            TreeMap<Integer, Database> copy = new TreeMap<Integer, Database>(map);
+            copy.put(a, y);
+            copy.put(b, x);
+            x.number = b;
+            y.number = a;
+            x.markDirty();
+            y.markDirty();
+            map = Collections.unmodifiableSortedMap(copy);
+        }
+
+        public synchronized void putAll(Map<Integer, Database> dbs) {
+            TreeMap<Integer, Database> copy = new TreeMap<Integer, Database>(map);
+            copy.putAll(dbs);
+            map = Collections.unmodifiableSortedMap(copy);
+        }
+
+        public synchronized void clear() {
+            map = Collections.unmodifiableSortedMap(new TreeMap<Integer, Database>());
+        }
+
+        /**
+         * @return the databases by number at this moment, the map does not change
+         */
+        public SortedMap<Integer, Database> snapshot() {
+            return map;
+        }
+
+        public Set<Integer> keySet() {
+            return map.keySet();
+        }
+
+        public Collection<Database> values() {
+            return map.values();
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public void lockReader() {
+            lock.readLock().lock();
+        }
+
+        public void lockWriter() {
+            lock.writeLock().lock();
+        }
+
+        public void unlockReader() {
+            lock.readLock().unlock();
+        }
+
+        public void unlockWriter() {
+            lock.writeLock().unlock();
+        }
+
+        private ReadWriteLock lock;
+        private volatile SortedMap<Integer, Database> map = Collections.unmodifiableSortedMap(new TreeMap<Integer, Database>());
+    }
+
+    /**
+     * This class represents a single Redis database.
+     */
+    @SuppressWarnings("serial")
+    public class Database extends LinkedHashMap<String, Ageable> {
+
+        static final int RANDOM_KEY_TRIES = 100;
+
+        public Database(int number, boolean locking) {
+            this.number  = number;
+            this.locking = locking;
+            this.lock    = locking ? new ReentrantReadWriteLock() : new ReadWriteNoLock();
+            if (prefixIndexDbs.contains(number)) {
+                this.prefixIndex = new RadixTree();
+            }
+        }
+
+        public Database(Database that) {
+            super(that);
+            this.number  = that.number;
+            this.locking = that.locking;
+            this.lock    = that.locking ? new ReentrantReadWriteLock() : new ReadWriteNoLock();
+            this.prefixIndex = null==that.prefixIndex ? null : new RadixTree();
+            for (String key : keySet()) {
+                index.add(key);
+                if (null!=prefixIndex) {
+                    prefixIndex.add(key);
+                }
+            }
+        }
+
+        /**
+         * Enables or disables the radix tree index of the key names, which makes KEYS and
+         * SCAN with a pattern starting with a literal prefix, PREFIX COUNT and PREFIX DEL
+         * proportional to the number of matching keys rather than to the database size.
+         */
+        public void setPrefixIndex(boolean enabled) {
+            lockWriter();
+            try {
+                if (!enabled) {
+                    prefixIndex = null;
+                }
+                else if (null==prefixIndex) {
+                    RadixTree tree = new RadixTree();
+                    for (String key : keySet()) {
+                        tree.add(key);
+                    }
+                    prefixIndex = tree;
+                }
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public boolean hasPrefixIndex() {
+            return null!=prefixIndex;
+        }
+
+        public int strlen(String key) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null!=a && a.value instanceof Bitmap) {
+                    return ((Bitmap) a.value).length();
+                }
+                if (null!=a && a.value instanceof HyperLogLog) {
+                    return _string(a).length();
+                }
+                return null==a ? 0 : ((CharSequence) a.value).length();
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public void lockReader() {
+            lock.readLock().lock();
+        }
+
+        public void lockWriter() {
+            lock.writeLock().lock();
+        }
+
+        public void unlockReader() {
+            lock.readLock().unlock();
+        }
+
+        public void unlockWriter() {
+            lock.writeLock().unlock();
+        }
+
+        /**
+         * @return true if the current thread holds either the read or the write lock.
+         */
+        public boolean isLockedByCurrentThread() {
+            if (lock instanceof ReentrantReadWriteLock) {
+                ReentrantReadWriteLock rrwl = (ReentrantReadWriteLock) lock;
+                return rrwl.isWriteLockedByCurrentThread() || rrwl.getReadHoldCount()>0;
+            }
+            return false;
+        }
+
+        public long dbsize() {
+            lockReader();
+            try {
+                return size();
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public Database flushDb() {
+            clear();
+            return this;
+        }
+
+        public void mset(List<String> args) throws IOException {
+            lockWriter();
+            try {
+                for (int i=0; i<args.size(); i+=2) {
+                    String key = args.get(i);
+                    String val = args.get(i+1);
+                    markDirty();
+                    put(key, new Ageable(val));
+                    notifyEvent(NOTIFY_STRING, "set", key);
+                }
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public List<String> hmget(String key, Args args) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                List<String> list = new ArrayList<String>();
+                if (null!=a) {
+                    Hash hash = (Hash) a.value;
+                    for (int i=1, len=args.size(); i<len; i++) {
+                        String value = hash.get(args.get(i));
+                        list.add(value);
+                    }
+                }
+                return list;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public int llen(String key) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                int len = 0;
+                if (null!=a) {
+                    QuickList list = a.get();
+                    len = list.size();
+                }
+                return len;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return the values of keys in batches, each read under the read lock, keys holding
+         *         no string read as null
+         */
+        public ReplyBatches mget(final List<String> keys) {
+            return new ReplyBatches() {
+                @Override
+                protected boolean next(int count, List<String> out) {
+                    lockReader();
+                    try {
+                        int end = Math.min(keys.size(), next+count);
+                        for (; next<end; next++) {
+                            Ageable a = get(keys.get(next), false);
+                            boolean string = null!=a && (a.value instanceof CharSequence || a.value instanceof Bitmap || a.value instanceof HyperLogLog);
+                            out.add(string ? _string(a) : null);
+                        }
+                        return next<keys.size();
+                    }
+                    finally {
+                        unlockReader();
+                    }
+                }
+
+                private int next;
+            };
+        }
+
+        public int msetnx(List<String> args) throws IOException {
+            lockWriter();
+            try {
+                for (int i=1; i<args.size(); i+=2) {
+                    String key = args.get(i);
+                    Ageable a = get(key, false);
+                    if (notExpired(a)) {
+                        return 0;
+                    }
+                }
+
+                int count = 0;
+                for (int i=0; i<args.size(); i+=2) {
+                    markDirty();
+                    String key = args.get(i);
+                    String val = args.get(i+1);
+                    put(key, new Ageable(val));
+                    notifyEvent(NOTIFY_STRING, "set", key);
+                    count ++;
+                }
+                return count;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public String type(String key) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                return notExpired(a) ? typeOf(a.value) : null;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return the new length, -1 if it would exceed proto-max-bulk-len
+         */
+        public long append(String key, String value) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                long len = 0;
+                if (null==a) {
+                    put(key, new Ageable(value));
+                    len = value.length();
+                }
+                else {
+                    MutableString s = _mutableString(a);
+                    if ((long) s.length()+value.length()>protoMaxBulkLen) {
+                        return -1;
+                    }
+                    len = s.append(value);
+                }
+                markDirty();
+                notifyEvent(NOTIFY_STRING, "append", key);
+                return len;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return the new length, -1 if it would exceed proto-max-bulk-len
+         */
+        public long setrange(String key, long offset, String value) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                if (value.isEmpty()) {
+                    // Nothing is created or padded, like in Redis.
+                    return null==a ? 0 : _string(a).length();
+                }
+                if (offset+value.length()>protoMaxBulkLen) {
+                    return -1;
+                }
+                MutableString s;
+                if (null==a) {
+                    put(key, new Ageable(s = new MutableString("")));
+                }
+                else {
+                    s = _mutableString(a);
+                }
+                long len = s.setRange((int) offset, value);
+                markDirty();
+                notifyEvent(NOTIFY_STRING, "setrange", key);
+                return len;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @param start the first character, counted from the end if negative
+         * @param end the last character, inclusive, counted from the end if negative
+         * @return the characters in the range, copying only those of a String or MutableString
+         */
+        public String getrange(String key, long start, long end) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return "";
+                }
+                CharSequence s = a.value instanceof Bitmap || a.value instanceof HyperLogLog ? a.value.toString() : (CharSequence) a.value;
+                long len = s.length();
+                if (start<0) {
+                    start = Math.max(0, len+start);
+                }
+                if (end<0) {
+                    end = Math.max(0, len+end);
+                }
+                end = Math.min(end, len-1);
+                if (start>end) {
+                    return "";
+                }
+                return s.subSequence((int) start, (int) end+1).toString();
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return the mutable string of a string value, converting the value if necessary
+         */
+        private MutableString _mutableString(Ageable a) {
+            if (!(a.value instanceof MutableString)) {
+                a.value = new MutableString(_string(a));
+            }
+            return (MutableString) a.value;
+        }
+
+        public double incrbyfloat(String key, double amount) {
+            lockWriter();
+            try {
+            Ageable a = markDirty().get(key, false);
+            if (null==a) {
+                put(key, a = new Ageable("0"));
+            }
+
+            String s = _string(a);
+            Double l = toDouble(s)+amount;
+            s = l.toString();
+            a.value  = s;
+            notifyEvent(NOTIFY_STRING, "incrbyfloat", key);
+            return l;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public boolean exists(String key) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                return null!=a;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return the keys matching glob in batches, from the prefix index in the order of
+         *         their chars if the database has one and glob a prefix, otherwise by SCAN
+         */
+        public ReplyBatches keys(final Glob glob) {
+            final boolean prefixed = null!=prefixIndex && !glob.isLiteral() && !glob.getPrefix().isEmpty();
+            return new ReplyBatches() {
+                @Override
+                protected boolean next(int count, List<String> out) {
+                    if (glob.isLiteral()) {
+                        if (exists(glob.getPrefix())) {
+                            out.add(glob.getPrefix());
+                        }
+                        return false;
+                    }
+                    if (!prefixed) {
+                        cursor = scan(cursor, count, glob, null, out);
+                        return 0!=cursor;
+                    }
+                    lockReader();
+                    try {
+                        if (null==prefixIndex) {
+                            return false;
+                        }
+                        List<String> found = new ArrayList<String>(count);
+                        after = prefixIndex.collect(glob.getPrefix(), glob, after, count, found);
+                        for (String key : found) {
+                            if (null!=get(key, false)) {
+                                out.add(key);
+                            }
+                        }
+                        return null!=after;
+                    }
+                    finally {
+                        unlockReader();
+                    }
+                }
+
+                private long   cursor;
+                private String after;
+            };
+        }
+
+        public int hset(String key, String field, String value) {
+            return _hset(key, field, value, false);
+        }
+
+        public int hsetnx(String key, String field, String value) {
+            return _hset(key, field, value, true);
+        }
+
+        /**
+         * @return the number of set bits, start and end are byte offsets (or bit offsets if
+         * bitUnit) and may be negative to count from the end
+         */
+        public long bitcount(String key, Long start, Long end, boolean bitUnit) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return 0;
+                }
+                Bitmap bitmap = _bitmapView(a);
+                long[] range = _bitRange(bitmap, start, end, bitUnit);
+                return null==range ? 0 : bitmap.count(range[0], range[1]);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public long bitpos(String key, int bit, Long start, Long end, boolean bitUnit) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return 0==bit ? 0 : -1;
+                }
+                Bitmap bitmap = _bitmapView(a);
+                long[] range = _bitRange(bitmap, start, end, bitUnit);
+                return null==range ? -1 : bitmap.position(bit, range[0], range[1], null!=end);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public int getbit(String key, long offset) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return 0;
+                }
+                if (a.value instanceof Bitmap) {
+                    return ((Bitmap) a.value).getBit(offset);
+                }
+                CharSequence s = a.value instanceof HyperLogLog ? a.value.toString() : (CharSequence) a.value;
+                long pos = offset>>>3;
+                return pos>=s.length() ? 0 : (s.charAt((int) pos) >>> (7-(offset&7))) & 1;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return the previous value of the bit
+         */
+        public int setbit(String key, long offset, int value) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    a = new Ageable(new Bitmap());
+                    put(key, a);
+                }
+                markDirty();
+                int old = _bitmap(a).setBit(offset, value);
+                notifyEvent(NOTIFY_STRING, "setbit", key);
+                return old;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return the length of the string stored at dest
+         */
+        public int bitop(int op, String dest, Collection<String> keys) {
+            lockWriter();
+            try {
+                List<Bitmap> bitmaps = new ArrayList<Bitmap>(keys.size());
+                for (String key : keys) {
+                    Ageable a = get(key, false);
+                    bitmaps.add(null==a ? null : _bitmapView(a));
+                }
+                Bitmap result = Bitmap.combine(op, bitmaps);
+                markDirty();
+                if (0==result.length()) {
+                    if (null!=remove(dest)) {
+                        notifyEvent(NOTIFY_GENERIC, "del", dest);
+                    }
+                }
+                else {
+                    put(dest, new Ageable(result));
+                    notifyEvent(NOTIFY_STRING, "set", dest);
+                }
+                return result.length();
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return the result of each operation, null for those failed with OVERFLOW FAIL
+         */
+        public List<Long> bitfield(String key, List<Bitmap.FieldOp> ops) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                boolean write = false;
+                for (Bitmap.FieldOp op : ops) {
+                    write |= Bitmap.FieldOp.GET!=op.op;
+                }
+                Bitmap bitmap;
+                if (null==a) {
+                    bitmap = new Bitmap();
+                    if (write) {
+                        put(key, new Ageable(bitmap));
+                    }
+                }
+                else {
+                    bitmap = write ? _bitmap(a) : _bitmapView(a);
+                }
+                if (write) {
+                    markDirty();
+                    notifyEvent(NOTIFY_STRING, "setbit", key);
+                }
+
+                List<Long> results = new ArrayList<Long>(ops.size());
+                for (Bitmap.FieldOp op : ops) {
+                    if (Bitmap.FieldOp.GET==op.op) {
+                        results.add(bitmap.getField(op.offset, op.bits, op.signed));
+                    }
+                    else if (Bitmap.FieldOp.SET==op.op) {
+                        long old = bitmap.getField(op.offset, op.bits, op.signed);
+                        Long value = bitmap.updateField(op.offset, op.bits, op.signed, op.value, false, op.overflow);
+                        results.add(null==value ? null : old);
+                    }
+                    else {
+                        results.add(bitmap.updateField(op.offset, op.bits, op.signed, op.value, true, op.overflow));
+                    }
+                }
+                return results;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return the bitmap of a string value, converting the value if necessary.
+         */
+        private Bitmap _bitmap(Ageable a) {
+            if (!(a.value instanceof Bitmap)) {
+                a.value = Bitmap.fromString(_string(a));
+            }
+            return (Bitmap) a.value;
+        }
+
+        /**
+         * @return the bitmap of a string value or a temporary copy for read-only access.
+         */
+        private Bitmap _bitmapView(Ageable a) {
+            return a.value instanceof Bitmap ? (Bitmap) a.value : Bitmap.fromString(_string(a));
+        }
+
+        /**
+         * @return the inclusive bit range for start and end offsets as given to BITCOUNT and
+         * BITPOS or null if it is empty
+         */
+        private long[] _bitRange(Bitmap bitmap, Long start, Long end, boolean bitUnit) {
+            long len = bitUnit ? 8L*bitmap.length() : bitmap.length();
+            long s = null==start ? 0 : start;
+            long e = null==end ? len-1 : end;
+            if (s<0) s += len;
+            if (e<0) e += len;
+            if (s<0) s = 0;
+            if (e<0) e = 0;
+            if (e>=len) e = len-1;
+            if (s>e) {
+                return null;
+            }
+            return bitUnit ? new long[] { s, e } : new long[] { 8*s, 8*e+7 };
+        }
+
+        public int sadd(String key, String ... members) {
+            List<String> list = Arrays.asList(members);
+            return sadd(key, list);
+        }
+
+        public int sadd(String key, Collection<String> members) {
+
+            lockWriter();
+            try {
+                Ageable age = get(key, false);
+                _Set    set = null;
+                if (null==age) {
+                    put(key, age = new Ageable(set = new _Set(members.size())));
+                }
+                else {
+                    set = age.get();
+                }
+                int before = set.size();
+                set.addAll(members);
+                int after = set.size();
+                if (after>before) {
+                    markDirty();
+                    notifyEvent(NOTIFY_SET, "sadd", key);
+                }
+                return after-before;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return true if the key was created or a register was changed
+         */
+        public boolean pfadd(String key, Collection<String> elements) {
+            lockWriter();
+            try {
+                boolean changed = false;
+                Ageable a = get(key, false);
+                if (null==a) {
+                    a = new Ageable(new HyperLogLog());
+                    put(key, a);
+                    changed = true;
+                }
+                HyperLogLog hll = _hyperLogLog(a);
+                for (String element : elements) {
+                    changed |= hll.add(element);
+                }
+                if (changed) {
+                    markDirty();
+                    notifyEvent(NOTIFY_STRING, "pfadd", key);
+                }
+                return changed;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public long pfcount(Collection<String> keys) {
+            lockReader();
+            try {
+                List<HyperLogLog> hlls = new ArrayList<HyperLogLog>(keys.size());
+                for (String key : keys) {
+                    Ageable a = get(key, false);
+                    if (null!=a) {
+                        hlls.add(_hyperLogLogView(a));
+                    }
+                }
+                if (hlls.isEmpty()) {
+                    return 0;
+                }
+                if (1==hlls.size()) {
+                    return hlls.get(0).cardinality();
+                }
+                return HyperLogLog.cardinality(hlls);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return the counter of a value, parsing a string holding the bytes of one, like
+         *         those read by GET, and storing the counter in its place.
+         * @throws ClassCastException if the value is not a counter
+         */
+        private HyperLogLog _hyperLogLog(Ageable a) {
+            if (!(a.value instanceof HyperLogLog)) {
+                a.value = _hyperLogLogView(a);
+            }
+            return (HyperLogLog) a.value;
+        }
+
+        /**
+         * @return the counter of a value or a temporary one parsed from a string for read-only
+         *         access.
+         */
+        private HyperLogLog _hyperLogLogView(Ageable a) {
+            if (a.value instanceof HyperLogLog) {
+                return (HyperLogLog) a.value;
+            }
+            HyperLogLog hll = HyperLogLog.fromString(_string(a));
+            if (null==hll) {
+                throw new ClassCastException("not a valid HyperLogLog string value");
+            }
+            return hll;
+        }
+
+        public void pfmerge(String dest, Collection<String> sources) {
+            lockWriter();
+            try {
+                List<HyperLogLog> hlls = new ArrayList<HyperLogLog>(sources.size());
+                for (String key : sources) {
+                    Ageable a = get(key, false);
+                    if (null!=a) {
+                        hlls.add(_hyperLogLogView(a));
+                    }
+                }
+                Ageable a = get(dest, false);
+                if (null==a) {
+                    a = new Ageable(new HyperLogLog());
+                    put(dest, a);
+                }
+                HyperLogLog target = _hyperLogLog(a);
+                for (HyperLogLog hll : hlls) {
+                    if (hll!=target) {
+                        target.merge(hll);
+                    }
+                }
+                markDirty();
+                notifyEvent(NOTIFY_STRING, "pfadd", dest);
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return the last ID of the stream, 0-0 if it does not exist
+         */
+        public Stream.ID xlastId(String key) {
+            lockReader();
+            try {
+                Stream stream = _stream(key, false);
+                return null==stream ? Stream.ID.MIN : stream.getLastId();
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * Appends an entry, its ID must be greater than the last ID of the stream. The
+         * stream is trimmed afterwards as requested.
+         */
+        public void xadd(String key, Stream.ID id, String[] fieldsValues, Stream.Trim trim) {
+            lockWriter();
+            try {
+                Stream stream = _stream(key, true);
+                stream.add(id, fieldsValues);
+                markDirty();
+                notifyEvent(NOTIFY_STREAM, "xadd", key);
+                if (stream.trim(trim)>0) {
+                    notifyEvent(NOTIFY_STREAM, "xtrim", key);
+                }
+                notifier.signal(key);
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public long xlen(String key) {
+            lockReader();
+            try {
+                Stream stream = _stream(key, false);
+                return null==stream ? 0 : stream.size();
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public List<Stream.Entry> xrange(String key, Stream.ID start, Stream.ID end, long count, boolean reverse) {
+            lockReader();
+            try {
+                Stream stream = _stream(key, false);
+                return null==stream ? new ArrayList<Stream.Entry>() : stream.range(start, end, count, reverse);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return the entries after the given IDs for each stream having any
+         */
+        public Map<String, List<Stream.Entry>> xread(List<String> keys, List<Stream.ID> ids, long count) {
+            lockReader();
+            try {
+                Map<String, List<Stream.Entry>> result = new LinkedHashMap<String, List<Stream.Entry>>();
+                for (int i=0; i<keys.size(); i++) {
+                    Stream stream = _stream(keys.get(i), false);
+                    Stream.ID start = ids.get(i).next();
+                    if (null!=stream && null!=start) {
+                        List<Stream.Entry> entries = stream.range(start, Stream.ID.MAX, count, false);
+                        if (!entries.isEmpty()) {
+                            result.put(keys.get(i), entries);
+                        }
+                    }
+                }
+                return result;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public int xdel(String key, Collection<Stream.ID> ids) {
+            lockWriter();
+            try {
+                Stream stream = _stream(key, false);
+                int count = 0;
+                if (null!=stream) {
+                    for (Stream.ID id : ids) {
+                        if (stream.delete(id)) {
+                            count++;
+                        }
+                    }
+                }
+                if (count>0) {
+                    markDirty();
+                    notifyEvent(NOTIFY_STREAM, "xdel", key);
+                }
+                return count;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public long xtrim(String key, Stream.Trim trim) {
+            lockWriter();
+            try {
+                Stream stream = _stream(key, false);
+                long removed = null==stream ? 0 : stream.trim(trim);
+                if (removed>0) {
+                    markDirty();
+                    notifyEvent(NOTIFY_STREAM, "xtrim", key);
+                }
+                return removed;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return the stream, the caller must hold the lock while accessing it
+         */
+        public Stream xstream(String key) {
+            lockReader();
+            try {
+                return _stream(key, false);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @param id the last delivered ID or null for the last ID of the stream
+         * @return 1 if created, 0 if the stream does not exist, -1 if the group exists
+         */
+        public int xgroupCreate(String key, String group, Stream.ID id, boolean mkstream) {
+            lockWriter();
+            try {
+                Stream stream = _stream(key, mkstream);
+                if (null==stream) {
+                    return 0;
+                }
+                markDirty();
+                if (null==stream.createGroup(group, null==id ? stream.getLastId() : id)) {
+                    return -1;
+                }
+                notifyEvent(NOTIFY_STREAM, "xgroup-create", key);
+                return 1;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @param id the last delivered ID or null for the last ID of the stream
+         * @return false if there is no such group
+         */
+        public boolean xgroupSetId(String key, String group, Stream.ID id) {
+            lockWriter();
+            try {
+                Stream stream = _stream(key, false);
+                Stream.Group g = null==stream ? null : stream.getGroup(group);
+                if (null==g) {
+                    return false;
+                }
+                g.setLastDeliveredId(null==id ? stream.getLastId() : id);
+                markDirty();
+                notifyEvent(NOTIFY_STREAM, "xgroup-setid", key);
+                return true;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public boolean xgroupDestroy(String key, String group) {
+            lockWriter();
+            try {
+                Stream stream = _stream(key, false);
+                boolean destroyed = null!=stream && stream.destroyGroup(group);
+                if (destroyed) {
+                    markDirty();
+                    notifyEvent(NOTIFY_STREAM, "xgroup-destroy", key);
+                }
+                return destroyed;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return 1 if created, 0 if it exists, -1 if there is no such group
+         */
+        public int xgroupCreateConsumer(String key, String group, String consumer) {
+            lockWriter();
+            try {
+                Stream.Group g = _group(key, group);
+                if (null==g) {
+                    return -1;
+                }
+                if (null!=g.getConsumer(consumer)) {
+                    return 0;
+                }
+                g.consumer(consumer, now());
+                markDirty();
+                notifyEvent(NOTIFY_STREAM, "xgroup-createconsumer", key);
+                return 1;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return the number of entries the consumer had pending, -1 if there is no such group
+         */
+        public long xgroupDelConsumer(String key, String group, String consumer) {
+            lockWriter();
+            try {
+                Stream.Group g = _group(key, group);
+                if (null==g) {
+                    return -1;
+                }
+                markDirty();
+                notifyEvent(NOTIFY_STREAM, "xgroup-delconsumer", key);
+                return Math.max(0, g.deleteConsumer(consumer));
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * Reads entries for a consumer, new ones for IDs given as null, pending ones otherwise.
+         * @return the entries for each stream, or null if a stream or group does not exist
+         */
+        public Map<String, List<Stream.Entry>> xreadgroup(String group, String consumer, List<String> keys, List<Stream.ID> ids, long count, boolean noack) {
+            lockWriter();
+            try {
+                for (String key : keys) {
+                    if (null==_group(key, group)) {
+                        return null;
+                    }
+                }
+                long now = now();
+                Map<String, List<Stream.Entry>> result = new LinkedHashMap<String, List<Stream.Entry>>();
+                for (int i=0; i<keys.size(); i++) {
+                    Stream stream = _stream(keys.get(i), false);
+                    Stream.Group g = stream.getGroup(group);
+                    Stream.Consumer c = g.consumer(consumer, now);
+                    c.seenTime = now;
+                    Stream.ID id = ids.get(i);
+                    List<Stream.Entry> entries = null==id
+                            ? g.readNew(stream, c, count, noack, now)
+                            : g.readPending(stream, c, id, count, now);
+                    if (null!=id || !entries.isEmpty()) {
+                        result.put(keys.get(i), entries);
+                    }
+                }
+                markDirty();
+                return result;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public int xack(String key, String group, Collection<Stream.ID> ids) {
+            lockWriter();
+            try {
+                Stream.Group g = _group(key, group);
+                int count = 0;
+                if (null!=g) {
+                    for (Stream.ID id : ids) {
+                        if (g.ack(id)) {
+                            count++;
+                        }
+                    }
+                }
+                if (count>0) {
+                    markDirty();
+                }
+                return count;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @param deliveryTime the new delivery time or -1 for now
+         * @return the entries claimed or null if there is no such group
+         */
+        public List<Stream.Entry> xclaim(String key, String group, String consumer, long minIdle, Collection<Stream.ID> ids,
+                long deliveryTime, long retryCount, boolean force, boolean justId) {
+            lockWriter();
+            try {
+                Stream.Group g = _group(key, group);
+                if (null==g) {
+                    return null;
+                }
+                Stream stream = _stream(key, false);
+                long now = now();
+                Stream.Consumer c = g.consumer(consumer, now);
+                c.seenTime = now;
+                List<Stream.Entry> entries = new ArrayList<Stream.Entry>();
+                for (Stream.ID id : ids) {
+                    Stream.Entry entry = g.claim(stream, c, id, minIdle, now, deliveryTime<0 ? now : deliveryTime, retryCount, force, justId);
+                    if (null!=entry) {
+                        entries.add(entry);
+                    }
+                }
+                markDirty();
+                return entries;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return the pending entries between start and end idle for at least minIdle ms,
+         * optionally only those of a consumer, or null if there is no such group
+         */
+        public List<Stream.Pending> xpending(String key, String group, Stream.ID start, Stream.ID end, long count, String consumer, long minIdle) {
+            lockReader();
+            try {
+                Stream.Group g = _group(key, group);
+                if (null==g) {
+                    return null;
+                }
+                List<Stream.Pending> list = new ArrayList<Stream.Pending>();
+                NavigableMap<Stream.ID, Stream.Pending> pel = g.getPending();
+                if (null!=consumer) {
+                    Stream.Consumer c = g.getConsumer(consumer);
+                    if (null==c) {
+                        return list;
+                    }
+                    pel = c.getPending();
+                }
+                if (start.compareTo(end)>0) {
+                    return list;
+                }
+                long now = now();
+                for (Stream.Pending pending : pel.subMap(start, true, end, true).values()) {
+                    if (list.size()>=count) {
+                        break;
+                    }
+                    if (now-pending.getDeliveryTime()>=minIdle) {
+                        list.add(pending);
+                    }
+                }
+                return list;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return the consumer group or null, the caller must hold the lock while accessing it
+         */
+        public Stream.Group xgroup(String key, String group) {
+            lockReader();
+            try {
+                return _group(key, group);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        private Stream.Group _group(String key, String group) {
+            Stream stream = _stream(key, false);
+            return null==stream ? null : stream.getGroup(group);
+        }
+
+        private Stream _stream(String key, boolean create) {
+            Ageable a = get(key, false);
+            if (null==a) {
+                if (!create) {
+                    return null;
+                }
+                put(key, a = new Ageable(new Stream()));
+            }
+            return (Stream) a.value;
+        }
+
+        public int scard(String key) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                return null==a ? 0 : ((_Set) a.value).size();
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public boolean sismember(String key, String member) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                return null!=a && ((_Set) a.value).contains(member);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public List<String> smembers(String key) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                return null==a ? new ArrayList<String>() : new ArrayList<String>((_Set) a.value);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return the cursor to continue with, 0 when the iteration is complete
+         */
+        public long sscan(String key, long cursor, int count, Glob match, List<String> members) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return 0;
+                }
+                List<String> found = new ArrayList<String>();
+                cursor = ((_Set) a.value).scan(cursor, count, found);
+                for (String member : found) {
+                    if (null==match || match.matches(member)) {
+                        members.add(member);
+                    }
+                }
+                return cursor;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @param distinct false to allow a member to be returned more than once
+         * @return count members chosen at random, fewer if distinct and the set is smaller
+         */
+        public List<String> srandmember(String key, int count, boolean distinct) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return new ArrayList<String>();
+                }
+                return ((_Set) a.value).sample(count, distinct, ThreadLocalRandom.current());
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * Removes count distinct members chosen at random, the key too if the set becomes empty.
+         * @return the members removed
+         */
+        public List<String> spop(String key, int count) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                if (null==a || count<=0) {
+                    return new ArrayList<String>();
+                }
+                _Set set = (_Set) a.value;
+                List<String> members = set.sample(count, true, ThreadLocalRandom.current());
+                for (String member : members) {
+                    set.remove(member);
+                }
+                markDirty();
+                notifyEvent(NOTIFY_SET, "spop", key);
+                if (set.isEmpty()) {
+                    remove(key);
+                    notifyEvent(NOTIFY_GENERIC, "del", key);
+                }
+                return members;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public _Set sinter(List<String> keys) {
+            return new SetAlgebra(this).sinter(keys);
+        }
+
+        public _Set sunion(List<String> keys) {
+            return new SetAlgebra(this).sunion(keys);
+        }
+
+        public _Set sdiff(List<String> keys) {
+            return new SetAlgebra(this).sdiff(keys);
+        }
+
+        /**
+         * Stores the result of a set operation at dest, which is deleted if the result is empty.
+         * Only this final step holds the write lock.
+         * @param event the name of the keyspace event, e.g. "sinterstore"
+         * @return the number of elements stored
+         */
+        public int store(String dest, Object value, int size, String event) {
+            lockWriter();
+            try {
+                markDirty();
+                if (0==size) {
+                    if (null!=remove(dest)) {
+                        notifyEvent(NOTIFY_GENERIC, "del", dest);
+                    }
+                }
+                else {
+                    put(dest, new Ageable(value));
+                    notifyEvent(value instanceof ZSet ? NOTIFY_ZSET : value instanceof QuickList ? NOTIFY_LIST : NOTIFY_SET, event, dest);
+                }
+                return size;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public void set(String key, String value) {
+            set(key, value, new SetArgs());
+        }
+
+        public boolean setnx(String key, String value) {
+            SetArgs set = new SetArgs();
+            set.nx = true;
+            return set(key, value, set);
+        }
+
+        /**
+         * SET with its options as a single operation: the condition, the old value for GET,
+         * the new value and its expiry are all handled while holding the write lock once.
+         * @return false if NX or XX prevented the value from being set
+         * @throws ClassCastException for GET if the key holds no string
+         */
+        public boolean set(String key, CharSequence value, SetArgs set) {
+            lockWriter();
+            try {
+                Ageable old = get(key, false);
+                if (set.get) {
+                    set.old = null==old ? null : _string(old);
+                }
+                if ((set.nx && null!=old) || (set.xx && null==old)) {
+                    return false;
+                }
+                Ageable a = new Ageable(value);
+                markDirty().put(key, a);
+                if (set.keepTtl && null!=old) {
+                    _expireAt(key, a, old.expires);
+                }
+                else if (set.expiresAt>=0) {
+                    _expireAt(key, a, set.expiresAt);
+                }
+                notifyEvent(NOTIFY_STRING, "set", key);
+                if (set.expiresAt>=0) {
+                    notifyEvent(NOTIFY_GENERIC, "expire", key);
+                }
+                return true;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * Returns the value of a string and changes its expiry, if set.expiresAt or
+         * set.persist ask for it.
+         * @throws ClassCastException if the key holds no string
+         */
+        public String getex(String key, SetArgs set) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return null;
+                }
+                String value = _string(a);
+                if (set.expiresAt>=0) {
+                    _expireAt(key, a, set.expiresAt);
+                    markDirty();
+                    notifyEvent(NOTIFY_GENERIC, "expire", key);
+                }
+                else if (set.persist && a.expires>=0) {
+                    a.expires = -1;
+                    markDirty();
+                    notifyEvent(NOTIFY_GENERIC, "persist", key);
+                }
+                return value;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * Relinks the value of key to newKey, replacing any value there, without copying it.
+         * @param nx true to leave an existing newKey alone, as RENAMENX does
+         * @return -1 if key does not exist, 0 if nx prevented the rename, 1 otherwise
+         */
+        public int rename(String key, String newKey, boolean nx) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return -1;
+                }
+                if (key.equals(newKey)) {
+                    return nx ? 0 : 1;
+                }
+                if (nx && null!=get(newKey, false)) {
+                    return 0;
+                }
+                remove(key);
+                _link(newKey, a);
+                markDirty();
+                notifyEvent(NOTIFY_GENERIC, "rename_from", key);
+                notifyEvent(NOTIFY_GENERIC, "rename_to", newKey);
+                return 1;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * Relinks the value of key to the same key in target, the locks of both databases
+         * are taken in the order of their ids.
+         * @return false if key does not exist here or already exists in target
+         */
+        public boolean move(String key, Database target) {
+            List<Database> locked = lockWriters(Arrays.asList(this, target));
+            try {
+                Ageable a = get(key, false);
+                if (null==a || null!=target.get(key, false)) {
+                    return false;
+                }
+                remove(key);
+                markDirty();
+                target._link(key, a);
+                target.markDirty();
+                notifyEvent(NOTIFY_GENERIC, "move_from", key);
+                target.notifyEvent(NOTIFY_GENERIC, "move_to", key);
+                return true;
+            }
+            finally {
+                unlockWriters(locked);
+            }
+        }
+
+        /**
+         * Copies the value of key, with its time to live, to newKey in target. Unlike rename
+         * and move the value is duplicated, strings are shared as they are immutable.
+         * @param replace true to overwrite an existing newKey
+         * @return false if key does not exist or newKey exists and replace is false
+         */
+        public boolean copy(String key, Database target, String newKey, boolean replace) throws IOException {
+            List<Database> locked = lockWriters(Arrays.asList(this, target));
+            try {
+                Ageable a = get(key, false);
+                if (null==a || (!replace && null!=target.get(newKey, false))) {
+                    return false;
+                }
+                target._link(newKey, new Ageable(_copy(a.value), a.expires));
+                target.markDirty();
+                target.notifyEvent(NOTIFY_GENERIC, "copy_to", newKey);
+                return true;
+            }
+            finally {
+                unlockWriters(locked);
+            }
+        }
+
+        private Object _copy(Object value) throws IOException {
+            if (value instanceof String || value instanceof ChunkedString) {
+                return value;
+            }
+            if (value instanceof MutableString) {
+                return new MutableString(value.toString());
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new RESPWriter(out).sendValue(value);
+            Object copy = new RESPReader(new ByteArrayInputStream(out.toByteArray())).withNonStandard(true).readStringOrList();
+            return copy instanceof Args ? new QuickList((Args) copy) : copy;
+        }
+
+        /**
+         * Puts a value taken from another key and schedules its expiries again, the ones
+         * already queued name the old key and are skipped as stale.
+         */
+        private void _link(String key, Ageable a) {
+            put(key, a);
+            notifier.signal(key);
+            if (a.expires>=0) {
+                expiries.add(new Expiry(key, a, a.expires));
+            }
+            if (a.value instanceof Hash && ((Hash) a.value).hasExpiries()) {
+                for (Entry<String, Long> e : ((Hash) a.value).getExpiries().entrySet()) {
+                    expiries.add(new Expiry(key, a, e.getKey(), e.getValue()));
+                }
+            }
+        }
+
+        /**
+         * @return the value of the string removed, null if there was none
+         * @throws ClassCastException if the key holds no string
+         */
+        public String getdel(String key) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return null;
+                }
+                String value = _string(a);
+                remove(key);
+                markDirty();
+                notifyEvent(NOTIFY_GENERIC, "del", key);
+                return value;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        private String _string(Ageable a) {
+            if (a.value instanceof Bitmap || a.value instanceof MutableString || a.value instanceof ChunkedString || a.value instanceof HyperLogLog) {
+                return a.value.toString();
+            }
+            return (String) a.value;
+        }
+
+        public Database markDirty() {
+            this.dirty = true;
+            return this;
+        }
+
+        /**
+         * @return the number of keys removed
+         */
+        public int del(Collection<String> keys) {
+            lockWriter();
+            try {
+                int count = 0;
+                for (String key : keys) {
+                    if (null!=get(key, false)) {
+                        remove(key);
+                        markDirty();
+                        notifyEvent(NOTIFY_GENERIC, "del", key);
+                        count++;
+                    }
+                }
+                return count;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public String get(String key) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                return null==a ? null : _string(a);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * Like get(), but a ChunkedString is returned as it is rather than copied into a String.
+         */
+        public CharSequence getChars(String key) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return null;
+                }
+                return a.value instanceof ChunkedString ? (ChunkedString) a.value : _string(a);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public Ageable get(String key, boolean returnExpired) {
+            Ageable a = super.get(key);
+            if (notExpired(a) || returnExpired) {
+                return a;
+            }
+            // Readers leave expired keys to the Expirer.
+            if (null!=a && lock instanceof ReentrantReadWriteLock && ((ReentrantReadWriteLock) lock).isWriteLockedByCurrentThread()) {
+                _expired(key);
+            }
+            return null;
+        }
+
+        @Override
+        public Ageable put(String key, Ageable value) {
+            Ageable old = super.put(key, value);
+            if (null==old) {
+                index.add(key);
+                if (null!=prefixIndex) {
+                    prefixIndex.add(key);
+                }
+            }
+            if (!notExpired(old)) {
+                notifyEvent(NOTIFY_NEW, "new", key);
+            }
+            return old;
+        }
+
+        @Override
+        public Ageable remove(Object key) {
+            Ageable old = super.remove(key);
+            if (null!=old) {
+                index.remove((String) key);
+                if (null!=prefixIndex) {
+                    prefixIndex.remove((String) key);
+                }
+            }
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            index.clear();
+            if (null!=prefixIndex) {
+                prefixIndex.clear();
+            }
+        }
+
+        /**
+         * @return the number of keys starting with prefix, including expired ones not yet
+         *         removed, like DBSIZE
+         */
+        public int countPrefix(String prefix) {
+            lockReader();
+            try {
+                if (null!=prefixIndex) {
+                    return prefixIndex.count(prefix);
+                }
+                int count = 0;
+                for (String key : keySet()) {
+                    if (key.startsWith(prefix)) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * Deletes all keys starting with prefix.
+         * @return the number of keys deleted
+         */
+        public int deletePrefix(String prefix) {
+            lockWriter();
+            try {
+                List<String> keys = new ArrayList<String>();
+                if (null!=prefixIndex) {
+                    prefixIndex.collect(prefix, null, keys);
+                }
+                else {
+                    for (String key : keySet()) {
+                        if (key.startsWith(prefix)) {
+                            keys.add(key);
+                        }
+                    }
+                }
+                int deleted = 0;
+                for (String key : keys) {
+                    Ageable a = remove(key);
+                    if (notExpired(a)) {
+                        deleted++;
+                        notifyEvent(NOTIFY_GENERIC, "del", key);
+                    }
+                }
+                if (!keys.isEmpty()) {
+                    markDirty();
+                }
+                return deleted;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * Returns the keys of the buckets of the key index visited from cursor on, which
+         * match the glob and have the type, if given. Expired keys are skipped.
+         * @param count the number of keys to collect before returning, the work done is
+         *        bounded by this, not by the number of keys in the database
+         * @return the cursor to continue with, 0 when the iteration is complete
+         */
+        public long scan(long cursor, int count, Glob match, String type, List<String> keys) {
+            lockReader();
+            try {
+                List<String> found = new ArrayList<String>(count);
+                if (0==cursor && null!=prefixIndex && null!=match && !match.getPrefix().isEmpty()
+                        && prefixIndex.count(match.getPrefix())<=count) {
+                    // All candidates fit into this reply, so the iteration is complete at once.
+                    prefixIndex.collect(match.getPrefix(), null, found);
+                }
+                else {
+                    cursor = index.scan(cursor, count, found);
+                }
+                for (String key : found) {
+                    Ageable a = get(key, false);
+                    if (null!=a && (null==match || match.matches(key)) && (null==type || type.equals(typeOf(a.value)))) {
+                        keys.add(key);
+                    }
+                }
+                return cursor;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return a key chosen at random from the key index, null if all keys are expired
+         */
+        public String randomKey() {
+            lockReader();
+            try {
+                Random random = ThreadLocalRandom.current();
+                int n = index.size();
+                // Expired keys are left to the Expirer, so give up sampling after a few of them.
+                for (int i=0; i<n && i<RANDOM_KEY_TRIES; i++) {
+                    String key = index.random(random);
+                    if (notExpired(super.get(key))) {
+                        return key;
+                    }
+                }
+                int start = 0==n ? 0 : random.nextInt(n);
+                for (int i=0; i<n; i++) {
+                    String key = index.get((start+i) % n);
+                    if (notExpired(super.get(key))) {
+                        return key;
+                    }
+                }
+                return null;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * Removes keys whose time to live has elapsed, publishing an expired event for each.
+         * @param limit the maximum number of keys to remove
+         * @return the number of keys removed
+         */
+        public int expireDue(int limit) {
+            lockWriter();
+            try {
+                long now = now();
+                int removed = 0;
+                while (removed<limit && !expiries.isEmpty() && expiries.peek().when<=now) {
+                    Expiry e = expiries.poll();
+                    // Entries of keys overwritten, deleted or persisted in the meantime are stale.
+                    if (null!=e.field) {
+                        if (super.get(e.key)==e.ageable && e.ageable.value instanceof Hash
+                                && ((Hash) e.ageable.value).expiresAt(e.field)==e.when) {
+                            _fieldExpired(e.key, (Hash) e.ageable.value, e.field);
+                            removed++;
+                        }
+                    }
+                    else if (e.ageable.expires==e.when && super.get(e.key)==e.ageable) {
+                        _expired(e.key);
+                        removed++;
+                    }
+                }
+                return removed;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * Sets the absolute expiry time of a key and schedules it for the Expirer.
+         */
+        public void expireAt(String key, Ageable a, long when) {
+            lockWriter();
+            try {
+                _expireAt(key, a, when);
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        private void _expireAt(String key, Ageable a, long when) {
+            a.expires = when;
+            if (when>=0) {
+                expiries.add(new Expiry(key, a, when));
+            }
+        }
+
+        /**
+         * Schedules the fields with a time to live of a hash just loaded for the Expirer.
+         */
+        public void expireFields(String key, Ageable a) {
+            lockWriter();
+            try {
+                for (Entry<String, Long> e : ((Hash) a.value).getExpiries().entrySet()) {
+                    expiries.add(new Expiry(key, a, e.getKey(), e.getValue()));
+                }
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        private void _expireFieldAt(String key, Ageable a, String field, long when) {
+            ((Hash) a.value).expireAt(field, when);
+            expiries.add(new Expiry(key, a, field, when));
+        }
+
+        private void _fieldExpired(String key, Hash hash, String field) {
+            hash.remove(field);
+            markDirty();
+            notifyEvent(NOTIFY_HASH, "hexpired", key);
+            if (hash.isEmpty()) {
+                remove(key);
+                notifyEvent(NOTIFY_GENERIC, "del", key);
+            }
+        }
+
+        /**
+         * Starts watching a key for WATCH, its version is bumped by every modification
+         * until the watch is released by unwatch().
+         * @return the current value of the key, null if it does not exist
+         */
+        public Ageable watch(String key) {
+            lockReader();
+            try {
+                watchers.incrementAndGet();
+                return get(key, false);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public void unwatch() {
+            watchers.decrementAndGet();
+        }
+
+        /**
+         * @return true if the watched key was modified, deleted, expired or created since
+         */
+        public boolean isModified(Watch w) {
+            lockReader();
+            try {
+                Ageable a = get(w.key, false);
+                return a!=w.ageable || (null!=a && a.version!=w.version);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        private void _expired(String key) {
+            remove(key);
+            markDirty();
+            notifyEvent(NOTIFY_EXPIRED, "expired", key);
+        }
+
+        /**
+         * Publishes a keyspace notification and bumps the version of a watched key. Unless
+         * notifications of type are enabled and anyone is subscribed and no key is watched,
+         * this costs two branches.
+         */
+        protected void notifyEvent(int type, String event, String key) {
+            if (watchers.get()>0) {
+                Ageable a = super.get(key);
+                if (null!=a) {
+                    a.version++;
+                }
+            }
+            if (0!=(notifyMask & type)) {
+                notifyKeyspaceEvent(event, key, number);
+            }
+        }
+
+        public long ttl(String key) {
+            lockReader();
+            try {
+                long ttl = -2;
+                Ageable a = get(key, false);
+                if (notExpired(a)) {
+                    if (a.expires<0) {
+                        ttl = -1;
+                    }
+                    else {
+                        ttl = (a.expires-now()+500)/1000;
+                    }
+                }
+                else {
+                    ttl = -2;
+                }
+                return ttl;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public long pttl(String key) {
+            lockReader();
+            try {
+                long ttl = -2;
+                Ageable a = get(key, false);
+                if (notExpired(a)) {
+                    if (a.expires<0) {
+                        ttl = -1;
+                    }
+                    else {
+                        ttl = a.expires-now();
+                    }
+                }
+                else {
+                    ttl = -2;
+                }
+                return ttl;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return 1 if the timeout was set, 0 if the key does not exist
+         */
+        public int expire(String key, int secs) {
+            return pexpireAt(key, now()+1000L*secs);
+        }
+
+        /**
+         * @param when the absolute unix time in milliseconds, a time in the past deletes the key
+         * @return 1 if the timeout was set, 0 if the key does not exist
+         */
+        public int pexpireAt(String key, long when) {
+            return pexpireAt(Collections.singletonList(key), when);
+        }
+
+        /**
+         * Sets the expiry time of many keys under a single lock.
+         * @return the number of keys whose timeout was set
+         */
+        public int pexpireAt(Collection<String> keys, long when) {
+            lockWriter();
+            try {
+                int count = 0;
+                for (String key : keys) {
+                    Ageable a = get(key, false);
+                    if (null==a) {
+                        continue;
+                    }
+                    markDirty();
+                    if (when<=now()) {
+                        remove(key);
+                        notifyEvent(NOTIFY_GENERIC, "del", key);
+                    }
+                    else {
+                        _expireAt(key, a, when);
+                        notifyEvent(NOTIFY_GENERIC, "expire", key);
+                    }
+                    count++;
+                }
+                return count;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public int hexists(String key, String field) {
+            lockReader();
+            try {
+                int rc = 0;
+                    Ageable a = get(key, false);
+                    if (null!=a) {
+                        Hash h = (Hash) a.value;
+                        if (h.containsKey(field)) {
+                            rc = 1;
+                        }
+                    }
+                return rc;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public void hmset(String key, List<String> keyVal) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                Hash hash = null;
+                if (null==a) {
+                    put(key, new Ageable(hash = new Hash()));
+                }
+                else {
+                    hash = a.get();
+                }
+                for (int i=0, len=keyVal.size(); i<len; i+=2) {
+                    hash.put(keyVal.get(i), keyVal.get(i+1));
+                }
+                notifyEvent(NOTIFY_HASH, "hset", key);
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+
+        /**
+         * @return the fields, the values or both of a hash in batches read like HSCAN, for
+         *         HKEYS, HVALS and HGETALL
+         */
+        public ReplyBatches hscan(final String key, final boolean fields, final boolean values) {
+            return new ReplyBatches() {
+                @Override
+                protected boolean next(int count, List<String> out) {
+                    List<String> items = new ArrayList<String>(2*count);
+                    try {
+                        cursor = hscan(key, cursor, count, null, false, items);
+                    }
+                    catch (ClassCastException e) {
+                        // The key was replaced by another type since the first batch.
+                        return false;
+                    }
+                    for (int i=0; i<items.size(); i+=2) {
+                        if (fields) {
+                            out.add(items.get(i));
+                        }
+                        if (values) {
+                            out.add(items.get(i+1));
+                        }
+                    }
+                    return 0!=cursor;
+                }
+
+                private long cursor;
+            };
+        }
+
+        public int hdel(String key, Args args) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                int count = 0;
+                if (null!=a) {
+                    Hash hash = (Hash) a.value;
+                    for (int i=0; i<args.size(); i++) {
+                        String field = args.get(i);
+                        if (hash.contains(field)) {
+                            hash.remove(field);
+                            count++;
+                        }
+                    }
+                    if (count>0) {
+                        markDirty();
+                        notifyEvent(NOTIFY_HASH, "hdel", key);
+                    }
+                    if (hash.isEmpty()) {
+                        remove(key);
+                        notifyEvent(NOTIFY_GENERIC, "del", key);
+                    }
+                }
+                return count;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public int hlen(String key) {
+            lockReader();
+            try {
+                int rc = 0;
+                Ageable a = get(key, false);
+                if (null!=a) {
+                    Hash hash = (Hash) a.value;
+                    rc = hash.liveSize(now());
+                }
+                return rc;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public int hstrlen(String key, String field) throws IOException {
+            lockReader();
+            try {
+                int rc = 0;
+                Ageable a = get(key, false);
+                if (null!=a) {
+                    Hash hash = (Hash) a.value;
+                    String value = hash.get(field);
+                    rc = null==value ? 0 : value.length();
+                }
+                return rc;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public int lpush(String key, String ... values) {
+            return _push(key, Arrays.asList(values), true);
+        }
+
+        public int lpush(String key, Collection<String> values) {
+            return _push(key, values, true);
+        }
+
+        public int rpush(String key, String ... values) {
+            return _push(key, Arrays.asList(values), false);
+        }
+
+        public int rpush(String key, Collection<String> values) {
+            return _push(key, values, false);
+        }
+
+        public String lindex(String key, int index) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return null;
+                }
+                QuickList list = a.get();
+                if (index<0) {
+                    index += list.size();
+                }
+                if (index<0 || index>=list.size()) {
+                    return null;
+                }
+                return list.get(index);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public List<String> lrange(String key, int start, int stop) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return new ArrayList<String>();
+                }
+                QuickList list = a.get();
+                int size = list.size();
+                if (start<0) start = Math.max(0, start+size);
+                if (stop<0)  stop  = stop+size;
+                if (stop>=size) stop = size-1;
+                return list.range(start, stop);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public void ltrim(String key, int start, int stop) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return;
+                }
+                QuickList list = a.get();
+                int size = list.size();
+                if (start<0) start = Math.max(0, start+size);
+                if (stop<0)  stop  = stop+size;
+                if (stop>=size) stop = size-1;
+
+                markDirty();
+                if (start>stop || start>=size) {
+                    remove(key);
+                }
+                else {
+                    list.removeLast(size-1-stop);
+                    list.removeFirst(start);
+                }
+                notifyEvent(NOTIFY_LIST, "ltrim", key);
+                if (!containsKey(key)) {
+                    notifyEvent(NOTIFY_GENERIC, "del", key);
+                }
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return the length of the list after the insert, -1 if the pivot was not found
+         * or 0 if the key does not exist.
+         */
+        public int linsert(String key, boolean before, String pivot, String value) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return 0;
+                }
+                QuickList list = a.get();
+                int index = list.indexOf(pivot);
+                if (index<0) {
+                    return -1;
+                }
+                markDirty();
+                list.add(before ? index : index+1, value);
+                notifyEvent(NOTIFY_LIST, "linsert", key);
+                return list.size();
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return 1 if the element was set, 0 if the key does not exist
+         * or -1 if the index is out of range.
+         */
+        public int lset(String key, int index, String value) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return 0;
+                }
+                QuickList list = a.get();
+                if (index<0) {
+                    index += list.size();
+                }
+                if (index<0 || index>=list.size()) {
+                    return -1;
+                }
+                markDirty();
+                list.set(index, value);
+                notifyEvent(NOTIFY_LIST, "lset", key);
+                return 1;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public int lrem(String key, int count, String value) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return 0;
+                }
+                QuickList list = a.get();
+                int removed = list.removeValue(value, count);
+                if (removed>0) {
+                    markDirty();
+                    notifyEvent(NOTIFY_LIST, "lrem", key);
+                    if (list.isEmpty()) {
+                        remove(key);
+                        notifyEvent(NOTIFY_GENERIC, "del", key);
+                    }
+                }
+                return removed;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public String hget(String key, String field) {
+            String rc = EMPTY_STRING;
+
+                Ageable a = get(key, false);
+                if (null!=a) {
+                    Hash hash = (Hash) a.value;
+                    rc = hash.get(field);
+                }
+            return rc;
+        }
+
+        /**
+         * Adds the matching fields and, unless noValues, their values to items.
+         * @return the cursor to continue with, 0 when the iteration is complete
+         */
+        public long hscan(String key, long cursor, int count, Glob match, boolean noValues, List<String> items) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return 0;
+                }
+                Hash hash = (Hash) a.value;
+                List<String> found = new ArrayList<String>();
+                cursor = hash.scan(cursor, count, found);
+                long now = now();
+                for (String field : found) {
+                    if ((null==match || match.matches(field)) && hash.isLive(field, now)) {
+                        items.add(field);
+                        if (!noValues) {
+                            items.add(hash.get(field));
+                        }
+                    }
+                }
+                return cursor;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * Adds count fields chosen at random and, if withValues, their values to items.
+         * @param distinct false to allow a field to be returned more than once
+         */
+        public void hrandfield(String key, int count, boolean distinct, boolean withValues, List<String> items) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return;
+                }
+                Hash hash = (Hash) a.value;
+                for (String field : hash.sample(count, distinct, ThreadLocalRandom.current())) {
+                    items.add(field);
+                    if (withValues) {
+                        items.add(hash.get(field));
+                    }
+                }
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * Sets the expiry time of hash fields as HEXPIRE and its variants do.
+         * @param when the absolute expiry time in milliseconds, the fields are deleted at
+         *        once if it is not in the future
+         * @param condition 0 or one of Hash.EXPIRE_NX, EXPIRE_XX, EXPIRE_GT and EXPIRE_LT
+         * @return per field -2 if it does not exist, 0 if the condition was not met, 1 if the
+         *         expiry time was set and 2 if the field was deleted
+         */
+        public List<Long> hexpireAt(String key, long when, int condition, List<String> fields) {
+            lockWriter();
+            try {
+                List<Long> results = new ArrayList<Long>(fields.size());
+                Ageable a = get(key, false);
+                Hash hash = null==a ? null : (Hash) a.value;
+                boolean set = false;
+                boolean deleted = false;
+                long now = now();
+                for (String field : fields) {
+                    if (null==hash || !hash.containsKey(field)) {
+                        results.add(-2L);
+                        continue;
+                    }
+                    long current = hash.expiresAt(field);
+                    if ((0!=(condition & Hash.EXPIRE_NX) && current>=0)
+                            || (0!=(condition & Hash.EXPIRE_XX) && current<0)
+                            || (0!=(condition & Hash.EXPIRE_GT) && (current<0 || when<=current))
+                            || (0!=(condition & Hash.EXPIRE_LT) && current>=0 && when>=current)) {
+                        results.add(0L);
+                    }
+                    else if (when<=now) {
+                        hash.remove(field);
+                        deleted = true;
+                        results.add(2L);
+                    }
+                    else {
+                        _expireFieldAt(key, a, field, when);
+                        set = true;
+                        results.add(1L);
+                    }
+                }
+                if (set || deleted) {
+                    markDirty();
+                }
+                if (set) {
+                    notifyEvent(NOTIFY_HASH, "hexpire", key);
+                }
+                if (deleted) {
+                    notifyEvent(NOTIFY_HASH, "hexpired", key);
+                    if (hash.isEmpty()) {
+                        remove(key);
+                        notifyEvent(NOTIFY_GENERIC, "del", key);
+                    }
+                }
+                return results;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @param millis true for milliseconds, false for seconds
+         * @param absolute true for the expiry time, false for the time to live
+         * @return per field -2 if it does not exist, -1 if it has no time to live, else the
+         *         time to live or expiry time
+         */
+        public List<Long> httl(String key, List<String> fields, boolean millis, boolean absolute) {
+            lockReader();
+            try {
+                List<Long> results = new ArrayList<Long>(fields.size());
+                Ageable a = get(key, false);
+                Hash hash = null==a ? null : (Hash) a.value;
+                long now = now();
+                for (String field : fields) {
+                    long when = null==hash ? -1 : hash.expiresAt(field);
+                    if (null==hash || !hash.containsKey(field)) {
+                        results.add(-2L);
+                    }
+                    else if (when<0) {
+                        results.add(-1L);
+                    }
+                    else if (absolute) {
+                        results.add(millis ? when : when/1000);
+                    }
+                    else {
+                        results.add(millis ? when-now : (when-now+500)/1000);
+                    }
+                }
+                return results;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return per field -2 if it does not exist, -1 if it has no time to live and 1 if
+         *         its time to live was removed
+         */
+        public List<Long> hpersist(String key, List<String> fields) {
+            lockWriter();
+            try {
+                List<Long> results = new ArrayList<Long>(fields.size());
+                Ageable a = get(key, false);
+                Hash hash = null==a ? null : (Hash) a.value;
+                boolean persisted = false;
+                for (String field : fields) {
+                    if (null==hash || !hash.containsKey(field)) {
+                        results.add(-2L);
+                    }
+                    else if (hash.expiresAt(field)<0) {
+                        results.add(-1L);
+                    }
+                    else {
+                        hash.expireAt(field, -1);
+                        persisted = true;
+                        results.add(1L);
+                    }
+                }
+                if (persisted) {
+                    markDirty();
+                    notifyEvent(NOTIFY_HASH, "hpersist", key);
+                }
+                return results;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public String lpop(String key) {
+            return _pop(key, true);
+        }
+
+        public String rpop(String key) {
+            return _pop(key, false);
+        }
+
+        /**
+         * Pops from the first of the keys holding a list, BLPOP waits for a push on the
+         * notifier and calls it again.
+         * @return the key and the element, null if none of the keys exists
+         */
+        public List<String> blpop(List<String> keys) {
+            return _bpop(true, keys);
+        }
+
+        public List<String> brpop(List<String> keys) {
+            return _bpop(false, keys);
+        }
+
+        private List<String> _bpop(boolean left, List<String> keys) {
+            lockWriter();
+            try {
+                for (String key : keys) {
+                    Ageable a = get(key, false);
+                    if (null!=a) {
+                        QuickList list = (QuickList) a.value;
+                        String item = left ? list.pollFirst() : list.pollLast();
+                        markDirty();
+                        notifyEvent(NOTIFY_LIST, left ? "lpop" : "rpop", key);
+                        if (list.isEmpty()) {
+                            remove(key);
+                            notifyEvent(NOTIFY_GENERIC, "del", key);
+                        }
+                        ArrayList<String> result = new ArrayList<String>();
+                        result.add(key);
+                        result.add(item);
+                        return result;
+                    }
+                }
+                return null;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        private int _push(String key, Collection<String> values, boolean left) {
+            lockWriter();
+            try {
+                markDirty();
+                Ageable a = get(key, false);
+                if (null==a) {
+                    put(key, a = new Ageable(new QuickList()));
+                }
+
+                QuickList list = (QuickList) a.value;
+                for (String value : values) {
+                    if (left) {
+                        list.addFirst(value);
+                    }
+                    else {
+                        list.addLast(value);
+                    }
+                }
+                notifyEvent(NOTIFY_LIST, left ? "lpush" : "rpush", key);
+                notifier.signal(key);
+                return list.size();
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        private String _pop(String key, boolean left) {
+            lockWriter();
+            try {
+                markDirty();
+                String item = null;
+                Ageable a = get(key, false);
+                if (null!=a) {
+                    QuickList list = (QuickList) a.value;
+                    item = left ? list.pollFirst() : list.pollLast();
+                    if (null!=item) {
+                        notifyEvent(NOTIFY_LIST, left ? "lpop" : "rpop", key);
+                    }
+                    if (list.isEmpty()) {
+                        remove(key);
+                        notifyEvent(NOTIFY_GENERIC, "del", key);
+                    }
+                }
+                return item;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return the number of members added, or added and updated if ZADD_CH is set in flags.
+         */
+        public int zadd(String key, int flags, double[] scores, String[] members) {
+            lockWriter();
+            try {
+                ZSet zset = _zset(key, 0==(flags & ZSet.ZADD_XX));
+                if (null==zset) {
+                    return 0;
+                }
+                int added   = 0;
+                int changed = 0;
+                for (int i=0; i<members.length; i++) {
+                    Double old = zset.score(members[i]);
+                    if (!_zaddAllowed(flags, old, scores[i])) {
+                        continue;
+                    }
+                    if (zset.add(members[i], scores[i])) {
+                        added++;
+                    }
+                    else if (old!=scores[i]) {
+                        changed++;
+                    }
+                }
+                if (added+changed>0) {
+                    markDirty();
+                    notifyEvent(NOTIFY_ZSET, "zadd", key);
+                }
+                if (zset.isEmpty()) {
+                    remove(key);
+                }
+                return 0!=(flags & ZSet.ZADD_CH) ? added+changed : added;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * @return the new score of member or null if the operation was aborted due to flags.
+         * @throws RESPException if the score would be NaN, like +inf plus -inf, leaving the set
+         *         unchanged
+         */
+        public Double zincrby(String key, int flags, double increment, String member) {
+            lockWriter();
+            try {
+                ZSet zset = _zset(key, 0==(flags & ZSet.ZADD_XX));
+                if (null==zset) {
+                    return null;
+                }
+                Double old   = zset.score(member);
+                double score = (null==old ? 0 : old)+increment;
+                if (Double.isNaN(score)) {
+                    if (zset.isEmpty()) {
+                        remove(key);
+                    }
+                    throw new RESPException("resulting score is not a number (NaN)");
+                }
+                if (!_zaddAllowed(flags, old, score)) {
+                    if (zset.isEmpty()) {
+                        remove(key);
+                    }
+                    return null;
+                }
+                markDirty();
+                zset.add(member, score);
+                notifyEvent(NOTIFY_ZSET, "zincr", key);
+                return score;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public int zcard(String key) {
+            lockReader();
+            try {
+                ZSet zset = _zset(key, false);
+                return null==zset ? 0 : zset.size();
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public Double zscore(String key, String member) {
+            lockReader();
+            try {
+                ZSet zset = _zset(key, false);
+                return null==zset ? null : zset.score(member);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * Adds the matching members and their scores to items.
+         * @return the cursor to continue with, 0 when the iteration is complete
+         */
+        public long zscan(String key, long cursor, int count, Glob match, List<String> items) {
+            lockReader();
+            try {
+                ZSet zset = _zset(key, false);
+                if (null==zset) {
+                    return 0;
+                }
+                List<String> found = new ArrayList<String>();
+                cursor = zset.scan(cursor, count, found);
+                for (String member : found) {
+                    if (null==match || match.matches(member)) {
+                        items.add(member);
+                        items.add(ZSet.formatScore(zset.score(member)));
+                    }
+                }
+                return cursor;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * Scans the geohash cells covering shape and filters their members by distance.
+         * @param count with any set, the scan stops once count points were found
+         */
+        public List<GeoHash.Point> geosearch(String key, GeoHash.Shape shape, int count, boolean any) {
+            lockReader();
+            try {
+                List<GeoHash.Point> points = new ArrayList<GeoHash.Point>();
+                ZSet zset = _zset(key, false);
+                if (null==zset) {
+                    return points;
+                }
+                for (double[] cell : shape.ranges()) {
+                    ZSet.ScoreRange range = new ZSet.ScoreRange(cell[0], false, cell[1], true);
+                    for (ZSet.Node n : zset.rangeByScore(range, false, 0, -1)) {
+                        double[] xy = GeoHash.decodeScore(n.getScore());
+                        double distance = shape.distance(xy[0], xy[1]);
+                        if (distance<0) {
+                            continue;
+                        }
+                        points.add(new GeoHash.Point(n.getMember(), n.getScore(), xy[0], xy[1], distance));
+                        if (any && points.size()>=count) {
+                            return points;
+                        }
+                    }
+                }
+                return points;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public int zcount(String key, ZSet.ScoreRange range) {
+            lockReader();
+            try {
+                ZSet zset = _zset(key, false);
+                return null==zset ? 0 : zset.count(range);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public int zlexcount(String key, ZSet.LexRange range) {
+            lockReader();
+            try {
+                ZSet zset = _zset(key, false);
+                return null==zset ? 0 : zset.lexCount(range);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public List<ZSet.Node> zrange(String key, int start, int stop, boolean reverse) {
+            lockReader();
+            try {
+                ZSet zset = _zset(key, false);
+                if (null==zset) {
+                    return new ArrayList<ZSet.Node>();
+                }
+                int size = zset.size();
+                if (start<0) start = Math.max(0, start+size);
+                if (stop<0)  stop  = stop+size;
+                if (stop>=size) stop = size-1;
+                if (!reverse) {
+                    return zset.range(start, stop);
+                }
+                List<ZSet.Node> list = zset.range(size-1-stop, size-1-start);
+                Collections.reverse(list);
+                return list;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public List<ZSet.Node> zrangebyscore(String key, ZSet.ScoreRange range, boolean reverse, int offset, int count) {
+            lockReader();
+            try {
+                ZSet zset = _zset(key, false);
+                return null==zset ? new ArrayList<ZSet.Node>() : zset.rangeByScore(range, reverse, offset, count);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public List<ZSet.Node> zrangebylex(String key, ZSet.LexRange range, boolean reverse, int offset, int count) {
+            lockReader();
+            try {
+                ZSet zset = _zset(key, false);
+                return null==zset ? new ArrayList<ZSet.Node>() : zset.rangeByLex(range, reverse, offset, count);
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return the rank of member or null if either key or member do not exist.
+         */
+        public Integer zrank(String key, String member, boolean reverse) {
+            lockReader();
+            try {
+                ZSet zset = _zset(key, false);
+                int rank = null==zset ? -1 : zset.rank(member);
+                if (rank<0) {
+                    return null;
+                }
+                return reverse ? zset.size()-1-rank : rank;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        public int zrem(String key, Collection<String> members) {
+            lockWriter();
+            try {
+                ZSet zset = _zset(key, false);
+                int count = 0;
+                if (null!=zset) {
+                    for (String member : members) {
+                        if (zset.remove(member)) {
+                            count++;
+                        }
+                    }
+                    _zremoved(key, zset, count, "zrem");
+                }
+                return count;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public int zremrangebyrank(String key, int start, int stop) {
+            lockWriter();
+            try {
+                List<ZSet.Node> nodes = zrange(key, start, stop, false);
+                ZSet zset = _zset(key, false);
+                int count = 0;
+                if (null!=zset) {
+                    count = zset.removeAll(nodes);
+                    _zremoved(key, zset, count, "zremrangebyrank");
+                }
+                return count;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public int zremrangebyscore(String key, ZSet.ScoreRange range) {
+            lockWriter();
+            try {
+                ZSet zset = _zset(key, false);
+                int count = 0;
+                if (null!=zset) {
+                    count = zset.removeAll(zset.rangeByScore(range, false, 0, -1));
+                    _zremoved(key, zset, count, "zremrangebyscore");
+                }
+                return count;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        public int zremrangebylex(String key, ZSet.LexRange range) {
+            lockWriter();
+            try {
+                ZSet zset = _zset(key, false);
+                int count = 0;
+                if (null!=zset) {
+                    count = zset.removeAll(zset.rangeByLex(range, false, 0, -1));
+                    _zremoved(key, zset, count, "zremrangebylex");
+                }
+                return count;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * Removes and returns up to count members with the lowest (or highest if max) scores.
+         */
+        public List<ZSet.Node> zpop(String key, int count, boolean max) {
+            lockWriter();
+            try {
+                ZSet zset = _zset(key, false);
+                if (null==zset || count<=0) {
+                    return new ArrayList<ZSet.Node>();
+                }
+                int size = zset.size();
+                List<ZSet.Node> nodes = max
+                        ? zrange(key, 0, Math.min(count, size)-1, true)
+                        : zset.range(0, Math.min(count, size)-1);
+                _zremoved(key, zset, zset.removeAll(nodes), max ? "zpopmax" : "zpopmin");
+                return nodes;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        private ZSet _zset(String key, boolean create) {
+            Ageable a = get(key, false);
+            if (null==a) {
+                if (!create) {
+                    return null;
+                }
+                put(key, a = new Ageable(new ZSet()));
+            }
+            return (ZSet) a.value;
+        }
+
+        /**
+         * Sorts the elements of a list, set or sorted set as SORT does. The weights of BY and
+         * the values of GET are all looked up while holding the lock once.
+         * @return the elements or GET values of the selected range, null for missing values
+         * @throws NumberFormatException if a numeric sort found an element or weight that is
+         *         not a number
+         */
+        public List<String> sort(String key, SortArgs sort) {
+            lockReader();
+            try {
+                Ageable a = get(key, false);
+                if (null==a) {
+                    return new ArrayList<String>();
+                }
+                String[] elements;
+                if (a.value instanceof QuickList) {
+                    elements = ((QuickList) a.value).toArray(new String[0]);
+                }
+                else if (a.value instanceof _Set) {
+                    elements = ((_Set) a.value).toArray(new String[0]);
+                }
+                else {
+                    List<ZSet.Node> nodes = ((ZSet) a.value).range(0, ((ZSet) a.value).size()-1);
+                    elements = new String[nodes.size()];
+                    for (int i=0; i<elements.length; i++) {
+                        elements[i] = nodes.get(i).member;
+                    }
+                }
+                int n = elements.length;
+                int start = Math.max(0, sort.offset);
+                int end = sort.count<0 ? n : (int) Math.min(n, (long) start+sort.count);
+                List<String> result = new ArrayList<String>();
+                if (start>=end) {
+                    return result;
+                }
+                int[] perm = new int[n];
+                for (int i=0; i<n; i++) {
+                    perm[i] = i;
+                }
+                if (null==sort.by || sort.by.hasStar()) {
+                    double[] scores  = null;
+                    String[] weights = elements;
+                    if (null!=sort.by) {
+                        weights = new String[n];
+                        for (int i=0; i<n; i++) {
+                            weights[i] = _lookup(sort.by, elements[i]);
+                        }
+                    }
+                    if (!sort.alpha) {
+                        scores = new double[n];
+                        for (int i=0; i<n; i++) {
+                            scores[i] = null==weights[i] ? 0 : ZSet.parseScore(weights[i]);
+                        }
+                        weights = null;
+                    }
+                    new IndexSort(scores, weights, elements, sort.desc).sort(perm, end);
+                }
+                else if (sort.desc) {
+                    // Unsorted, DESC still walks lists and sorted sets from the end.
+                    for (int i=0, j=n-1; i<j; i++, j--) {
+                        int t = perm[i];
+                        perm[i] = perm[j];
+                        perm[j] = t;
+                    }
+                }
+                for (int i=start; i<end; i++) {
+                    String element = elements[perm[i]];
+                    if (sort.get.isEmpty()) {
+                        result.add(element);
+                    }
+                    for (SortArgs.Pattern pattern : sort.get) {
+                        result.add(_lookup(pattern, element));
+                    }
+                }
+                return result;
+            }
+            finally {
+                unlockReader();
+            }
+        }
+
+        /**
+         * @return the value of the string key or hash field the pattern names for the element,
+         *         null if it does not exist or is of another type
+         */
+        private String _lookup(SortArgs.Pattern pattern, String element) {
+            if (pattern.self) {
+                return element;
+            }
+            if (!pattern.hasStar()) {
+                return null;
+            }
+            Ageable a = get(pattern.prefix + element + pattern.suffix, false);
+            if (null==a) {
+                return null;
+            }
+            if (null!=pattern.field) {
+                return a.value instanceof Hash ? ((Hash) a.value).get(pattern.field) : null;
+            }
+            if (a.value instanceof Bitmap || a.value instanceof MutableString || a.value instanceof ChunkedString || a.value instanceof HyperLogLog) {
+                return a.value.toString();
+            }
+            return a.value instanceof String ? (String) a.value : null;
+        }
+
+        private void _zremoved(String key, ZSet zset, int count, String event) {
+            if (count>0) {
+                markDirty();
+                notifyEvent(NOTIFY_ZSET, event, key);
+                if (zset.isEmpty()) {
+                    remove(key);
+                    notifyEvent(NOTIFY_GENERIC, "del", key);
+                }
+            }
+        }
+
+        private boolean _zaddAllowed(int flags, Double old, double score) {
+            if (null==old) {
+                return 0==(flags & ZSet.ZADD_XX);
+            }
+            if (0!=(flags & ZSet.ZADD_NX)) {
+                return false;
+            }
+            if (0!=(flags & ZSet.ZADD_GT) && score<=old) {
+                return false;
+            }
+            if (0!=(flags & ZSet.ZADD_LT) && score>=old) {
+                return false;
+            }
+            return true;
+        }
+
+        private long _hincrBy(String key, String field, Args args) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                Hash hash = null;
+                if (null==a) {
+                    put(key, new Ageable(hash = new Hash()));
+                }
+                else {
+                    hash = (Hash) a.value;
+                }
+
+                long incr = Long.parseLong(args.get(2));
+                String value = hash.getOrDefault(field, "0");
+                long sum = Long.parseLong(value)+incr;
+                String string = Long.toString(sum);
+                hash.put(field, string);
+                markDirty();
+                notifyEvent(NOTIFY_HASH, "hincrby", key);
+                return sum;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        protected Long decrby(String key, long amount) {
+            return _incrDecr(key, false, amount);
+        }
+
+        @CommandMethod(args = {"key", "amout"}, since="1.0.0")
+        protected Long incrby(String key, long amount) {
+            return _incrDecr(key, true, amount);
+        }
+
+        @CommandMethod(args = {"key"}, since="1.0.0")
+        protected Long decr(String key) {
+            return _incrDecr(key, false, 1);
+        }
+
+        @CommandMethod(args = {"key"}, since="1.0.0")
+        protected Long incr(String key) {
+            return _incrDecr(key, true, 1);
+        }
+
+        private Long _incrDecr(String key, boolean incr, long amount) {
+            lockWriter();
+            try {
+                markDirty();
+                Ageable a = get(key, false);
+                if (null==a) {
+                    put(key, a = new Ageable("0"));
+                }
+
+                Long    b = (incr ? 1 : -1) * amount;
+                String  s = _string(a);
+                Long    l = toLong(s)+b;
+                a.value = l.toString();
+                notifyEvent(NOTIFY_STRING, "incrby", key);
+                return l;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        private String _hincrByFloat(String key, String field, double incr) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                Hash hash = null;
+                if (null==a) {
+                    put(key, new Ageable(hash = new Hash()));
+                }
+                else {
+                    hash = (Hash) a.value;
+                }
+
+                //double incr = Double.parseDouble(args.get(2));
+                String value = hash.getOrDefault(field, "0");
+                double sum = Double.parseDouble(value)+incr;
+                String string = Double.toString(sum);
+                hash.put(field, string);
+                markDirty();
+                notifyEvent(NOTIFY_HASH, "hincrbyfloat", key);
+                return string;
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        private int _hset(String key, String field, String value, boolean nx) {
+            lockWriter();
+            try {
+                Ageable a = get(key, false);
+                Hash hash = null;
+                if (null==a) {
+                    markDirty().put(key, new Ageable(hash = new Hash()));
+                }
+                else {
+                    hash = (Hash) a.value;
+                }
+
+                if (nx && hash.contains(field)) {
+                    return 0;
+                }
+                else {
+                    markDirty();
+                    hash.put(field, value);
+                    notifyEvent(NOTIFY_HASH, "hset", key);
+                    return 1;
+                }
+            }
+            finally {
+                unlockWriter();
+            }
+        }
+
+        /**
+         * The number, which SWAPDB changes, and the id, which orders the locks of databases.
+         */
+        protected volatile int number;
+        protected final long id = databaseIds.incrementAndGet();
+        protected boolean dirty;
+        protected final KeyNotifier notifier = new KeyNotifier();
+        protected final PriorityQueue<Expiry> expiries = new PriorityQueue<Expiry>();
+        protected final AtomicInteger watchers = new AtomicInteger();
+        protected final ScanTable index = new ScanTable();
+        protected RadixTree prefixIndex;
+
+        protected boolean locking;
+        protected ReadWriteLock lock;
+    }
+
+    /**
+     * This class implements the set algebra commands (SINTER, SUNION, SDIFF, ZUNIONSTORE
+     * and ZINTERSTORE) for a database. Inputs are resolved and snapshotted under a short
+     * read lock, inputs beyond PARALLEL_THRESHOLD elements are then split into partitions
+     * processed in the fork-join pool. Each partition only holds the read lock while
+     * probing its own elements, so writers may proceed between partitions.
+     */
+    class SetAlgebra {
+
+        static final int PARALLEL_THRESHOLD = 64*1024;
+        static final int PARTITION_SIZE     = 16*1024;
+
+        static final int AGGREGATE_SUM = 0;
+        static final int AGGREGATE_MIN = 1;
+        static final int AGGREGATE_MAX = 2;
+
+        public SetAlgebra(Database db) {
+            this.db = db;
+        }
+
+        public _Set sinter(List<String> keys) {
+            return filter(keys, true);
+        }
+
+        public _Set sdiff(List<String> keys) {
+            return filter(keys, false);
+        }
+
+        public _Set sunion(List<String> keys) {
+            List<String[]> snapshots = new ArrayList<String[]>();
+            long total = 0;
+            db.lockReader();
+            try {
+                for (String key : keys) {
+                    Ageable a = db.get(key, false);
+                    if (null!=a) {
+                        _Set set = (_Set) a.value;
+                        snapshots.add(set.toArray(new String[set.size()]));
+                        total += set.size();
+                    }
+                }
+            }
+            finally {
+                db.unlockReader();
+            }
+
+            if (!isParallel(total)) {
+                _Set result = new _Set((int)total);
+                for (String[] items : snapshots) {
+                    result.addAll(Arrays.asList(items));
+                }
+                return result;
+            }
+
+            final Set<String> union = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>((int)total));
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+            for (final String[] items : snapshots) {
+                for (int from=0; from<items.length; from+=PARTITION_SIZE) {
+                    final int start = from;
+                    final int end   = Math.min(items.length, from+PARTITION_SIZE);
+                    tasks.add(ForkJoinTask.adapt(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int i=start; i<end; i++) {
+                                union.add(items[i]);
+                            }
+                        }
+                    }));
+                }
+            }
+            invokeAll(tasks);
+
+            _Set result = new _Set(union.size());
+            result.addAll(union);
+            return result;
+        }
+
+        public ZSet zinter(List<String> keys, double[] weights, int aggregate) {
+            int n = keys.size();
+            ZSet.Node[] smallest;
+            int smallestIndex = 0;
+            Integer[] order = new Integer[n];
+            db.lockReader();
+            try {
+                final int[] sizes = new int[n];
+                for (int i=0; i<n; i++) {
+                    Object value = zvalue(keys.get(i));
+                    if (null==value) {
+                        return new ZSet();
+                    }
+                    sizes[i] = value instanceof ZSet ? ((ZSet) value).size() : ((_Set) value).size();
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return sizes[a]-sizes[b];
+                    }
+                });
+                smallestIndex = order[0];
+                smallest = znodes(zvalue(keys.get(smallestIndex)));
+            }
+            finally {
+                db.unlockReader();
+            }
+
+            int[] others = new int[n-1];
+            for (int i=1; i<n; i++) {
+                others[i-1] = order[i];
+            }
+            ZInterTask task = new ZInterTask(keys, weights, aggregate, smallest, smallestIndex, others, 0, smallest.length);
+            List<ZSet.Node> matches = isParallel(smallest.length) ? ForkJoinPool.commonPool().invoke(task) : task.compute();
+
+            ZSet result = new ZSet();
+            for (ZSet.Node node : matches) {
+                result.add(node.member, node.score);
+            }
+            return result;
+        }
+
+        public ZSet zunion(List<String> keys, double[] weights, final int aggregate) {
+            List<ZSet.Node[]> snapshots = new ArrayList<ZSet.Node[]>();
+            List<Double> snapshotWeights = new ArrayList<Double>();
+            long total = 0;
+            db.lockReader();
+            try {
+                for (int i=0; i<keys.size(); i++) {
+                    Object value = zvalue(keys.get(i));
+                    if (null!=value) {
+                        ZSet.Node[] nodes = znodes(value);
+                        snapshots.add(nodes);
+                        snapshotWeights.add(weights[i]);
+                        total += nodes.length;
+                    }
+                }
+            }
+            finally {
+                db.unlockReader();
+            }
+
+            final Map<String, Double> union = isParallel(total)
+                    ? new ConcurrentHashMap<String, Double>((int)total)
+                    : new HashMap<String, Double>((int)total);
+            final BiFunction<Double, Double, Double> merger = new BiFunction<Double, Double, Double>() {
+                @Override
+                public Double apply(Double a, Double b) {
+                    return aggregate(aggregate, a, b);
+                }
+            };
+
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+            for (int s=0; s<snapshots.size(); s++) {
+                final ZSet.Node[] nodes = snapshots.get(s);
+                final double weight = snapshotWeights.get(s);
+                for (int from=0; from<nodes.length; from+=PARTITION_SIZE) {
+                    final int start = from;
+                    final int end   = Math.min(nodes.length, from+PARTITION_SIZE);
+                    tasks.add(ForkJoinTask.adapt(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int i=start; i<end; i++) {
+                                union.merge(nodes[i].member, weighted(nodes[i].score, weight), merger);
+                            }
+                        }
+                    }));
+                }
+            }
+            if (isParallel(total)) {
+                invokeAll(tasks);
+            }
+            else {
+                for (ForkJoinTask<?> task : tasks) {
+                    task.invoke();
+                }
+            }
+
+            ZSet result = new ZSet();
+            for (Entry<String, Double> e : union.entrySet()) {
+                result.add(e.getKey(), e.getValue());
+            }
+            return result;
+        }
+
+        private _Set filter(List<String> keys, boolean intersect) {
+            String[] items;
+            List<String> others = new ArrayList<String>();
+            db.lockReader();
+            try {
+                int n = keys.size();
+                final _Set[] sets = new _Set[n];
+                for (int i=0; i<n; i++) {
+                    Ageable a = db.get(keys.get(i), false);
+                    sets[i] = null==a ? null : (_Set) a.value;
+                }
+                if (intersect) {
+                    // Probe the smallest set against the others, most selective ones first.
+                    Integer[] order = new Integer[n];
+                    for (int i=0; i<n; i++) {
+                        if (null==sets[i]) {
+                            return new _Set(0);
+                        }
+                        order[i] = i;
+                    }
+                    Arrays.sort(order, new Comparator<Integer>() {
+                        @Override
+                        public int compare(Integer a, Integer b) {
+                            return sets[a].size()-sets[b].size();
+                        }
+                    });
+                    items = sets[order[0]].toArray(new String[sets[order[0]].size()]);
+                    for (int i=1; i<n; i++) {
+                        others.add(keys.get(order[i]));
+                    }
+                }
+                else {
+                    if (null==sets[0]) {
+                        return new _Set(0);
+                    }
+                    items = sets[0].toArray(new String[sets[0].size()]);
+                    // Probe the largest sets first as they are most likely to contain an element.
+                    Integer[] order = new Integer[n-1];
+                    for (int i=1; i<n; i++) {
+                        order[i-1] = i;
+                    }
+                    Arrays.sort(order, new Comparator<Integer>() {
+                        @Override
+                        public int compare(Integer a, Integer b) {
+                            return size(sets[b])-size(sets[a]);
+                        }
+                    });
+                    for (Integer i : order) {
+                        if (null!=sets[i]) {
+                            others.add(keys.get(i));
+                        }
+                    }
+                }
+            }
+            finally {
+                db.unlockReader();
+            }
+
+            FilterTask task = new FilterTask(items, 0, items.length, others, intersect);
+            List<String> matches = isParallel(items.length) ? ForkJoinPool.commonPool().invoke(task) : task.compute();
+            _Set result = new _Set(matches.size());
+            result.addAll(matches);
+            return result;
+        }
+
+        /**
+         * Running partitions in the pool is only safe if the calling thread does not hold the
+         * database lock itself, e.g. when running inside a transaction.
+         */
+        private boolean isParallel(long total) {
+            return total>=PARALLEL_THRESHOLD && !db.isLockedByCurrentThread();
+        }
+
+        private void invokeAll(List<ForkJoinTask<?>> tasks) {
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+            for (ForkJoinTask<?> task : tasks) {
+                pool.execute(task);
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+
+        private int size(_Set set) {
+            return null==set ? 0 : set.size();
+        }
+
+        private Object zvalue(String key) {
+            Ageable a = db.get(key, false);
+            if (null==a) {
+                return null;
+            }
+            if (a.value instanceof ZSet || a.value instanceof _Set) {
+                return a.value;
+            }
+            throw new ClassCastException(a.value.getClass().getName());
+        }
+
+        private ZSet.Node[] znodes(Object value) {
+            if (value instanceof ZSet) {
+                ZSet zset = (ZSet) value;
+                List<ZSet.Node> list = zset.range(0, zset.size()-1);
+                return list.toArray(new ZSet.Node[list.size()]);
+            }
+            _Set set = (_Set) value;
+            ZSet.Node[] nodes = new ZSet.Node[set.size()];
+            int i = 0;
+            for (String member : set) {
+                nodes[i++] = new ZSet.Node(member, 1, 0);
+            }
+            return nodes;
+        }
+
+        private double weighted(double score, double weight) {
+            double d = score*weight;
+            return Double.isNaN(d) ? 0 : d;
+        }
+
+        private double aggregate(int aggregate, double a, double b) {
+            switch (aggregate) {
+            case AGGREGATE_MIN: return Math.min(a, b);
+            case AGGREGATE_MAX: return Math.max(a, b);
+            default:
+                double d = a+b;
+                return Double.isNaN(d) ? 0 : d;
+            }
+        }
+
+        /**
+         * Keeps the elements of a partition that are contained in all (intersect) or none of
+         * the sets stored at keys. The sets are looked up again for every partition since they
+         * may have been changed or replaced in between.
+         */
+        @SuppressWarnings("serial")
+        class FilterTask extends RecursiveTask<List<String>> {
+
+            FilterTask(String[] items, int from, int to, List<String> keys, boolean intersect) {
+                this.items = items;
+                this.from  = from;
+                this.to    = to;
+                this.keys  = keys;
+                this.intersect = intersect;
+            }
+
+            @Override
+            protected List<String> compute() {
+                if (to-from>PARTITION_SIZE && isParallel(items.length)) {
+                    int mid = (from+to)>>>1;
+                    FilterTask left  = new FilterTask(items, from, mid, keys, intersect);
+                    FilterTask right = new FilterTask(items, mid, to, keys, intersect);
+                    left.fork();
+                    List<String> list = right.compute();
+                    List<String> result = left.join();
+                    result.addAll(list);
+                    return result;
+                }
+
+                List<String> result = new ArrayList<String>();
+                db.lockReader();
+                try {
+                    _Set[] sets = new _Set[keys.size()];
+                    for (int i=0; i<sets.length; i++) {
+                        Ageable a = db.get(keys.get(i), false);
+                        sets[i] = null==a ? null : (_Set) a.value;
+                    }
+                    for (int i=from; i<to; i++) {
+                        String item = items[i];
+                        boolean keep = true;
+                        for (_Set set : sets) {
+                            boolean contains = null!=set && set.contains(item);
+                            if (contains!=intersect) {
+                                keep = false;
+                                break;
+                            }
+                        }
+                        if (keep) {
+                            result.add(item);
+                        }
+                    }
+                }
+                finally {
+                    db.unlockReader();
+                }
+                return result;
+            }
+
+            private final String[] items;
+            private final int from;
+            private final int to;
+            private final List<String> keys;
+            private final boolean intersect;
+        }
+
+        /**
+         * Intersects a partition of the smallest input with the other inputs, aggregating scores.
+         */
+        @SuppressWarnings("serial")
+        class ZInterTask extends RecursiveTask<List<ZSet.Node>> {
+
+            ZInterTask(List<String> keys, double[] weights, int aggregate, ZSet.Node[] items, int itemsIndex, int[] others, int from, int to) {
+                this.keys      = keys;
+                this.weights   = weights;
+                this.aggregate = aggregate;
+                this.items     = items;
+                this.itemsIndex = itemsIndex;
+                this.others    = others;
+                this.from      = from;
+                this.to        = to;
+            }
+
+            @Override
+            protected List<ZSet.Node> compute() {
+                if (to-from>PARTITION_SIZE && isParallel(items.length)) {
+                    int mid = (from+to)>>>1;
+                    ZInterTask left  = new ZInterTask(keys, weights, aggregate, items, itemsIndex, others, from, mid);
+                    ZInterTask right = new ZInterTask(keys, weights, aggregate, items, itemsIndex, others, mid, to);
+                    left.fork();
+                    List<ZSet.Node> list = right.compute();
+                    List<ZSet.Node> result = left.join();
+                    result.addAll(list);
+                    return result;
+                }
+
+                List<ZSet.Node> result = new ArrayList<ZSet.Node>();
+                db.lockReader();
+                try {
+                    Object[] values = new Object[others.length];
+                    for (int i=0; i<others.length; i++) {
+                        values[i] = zvalue(keys.get(others[i]));
+                        if (null==values[i]) {
+                            return result;
+                        }
+                    }
+                    for (int i=from; i<to; i++) {
+                        String member = items[i].member;
+                        double score  = weighted(items[i].score, weights[itemsIndex]);
+                        boolean keep  = true;
+                        for (int o=0; o<others.length && keep; o++) {
+                            Double other = null;
+                            if (values[o] instanceof ZSet) {
+                                other = ((ZSet) values[o]).score(member);
+                            }
+                            else if (((_Set) values[o]).contains(member)) {
+                                other = 1.0;
+                            }
+                            if (null==other) {
+                                keep = false;
+                            }
+                            else {
+                                score = aggregate(aggregate, score, weighted(other, weights[others[o]]));
+                            }
+                        }
+                        if (keep) {
+                            result.add(new ZSet.Node(member, score, 0));
+                        }
+                    }
+                }
+                finally {
+                    db.unlockReader();
+                }
+                return result;
+            }
+
+            private final List<String> keys;
+            private final double[] weights;
+            private final int aggregate;
+            private final ZSet.Node[] items;
+            private final int itemsIndex;
+            private final int[] others;
+            private final int from;
+            private final int to;
+        }
+
+        private final Database db;
+    }
+
+    /**
+     * A glob-style pattern as used by KEYS, SCAN and PSUBSCRIBE, compiled once into an array
+     * of tokens, so that matching neither needs a regex nor parses the pattern again.
+     * Supports '*', '?', '\' escapes and '[...]' classes with ranges and '^' negation.
+     * Literal patterns and patterns like "prefix*" are matched by a plain comparison.
+     */
+    static class Glob {
+
+        static final int STAR  = -1;
+        static final int ANY   = -2;
+        static final int CLASS = -3;
+
+        static final int MAX_CACHED = 1024;
+
+        private static final Map<String, Glob> cache = new ConcurrentHashMap<String, Glob>();
+
+        /**
+         * @return the compiled pattern, shared by all callers using the same pattern
+         */
+        static Glob compile(String pattern) {
+            Glob glob = cache.get(pattern);
+            if (null==glob) {
+                glob = new Glob(pattern);
+                // Patterns are client input, so rather than evicting one by one the cache
+                // is simply dropped once it is full.
+                if (cache.size()>=MAX_CACHED) {
+                    cache.clear();
+                }
+                cache.put(pattern, glob);
+            }
+            return glob;
+        }
+
+        Glob(String pattern) {
+            int   n       = pattern.length();
+            int[] ops     = new int[n];
+            char[][] sets = new char[n][];
+            int count = 0;
+            for (int i=0; i<n; i++) {
+                char c = pattern.charAt(i);
+                if ('*'==c) {
+                    // Consecutive stars match the same as a single one.
+                    if (0==count || STAR!=ops[count-1]) {
+                        ops[count++] = STAR;
+                    }
+                }
+                else if ('?'==c) {
+                    ops[count++] = ANY;
+                }
+                else if ('\\'==c && i+1<n) {
+                    ops[count++] = pattern.charAt(++i);
+                }
+                else if ('['==c) {
+                    StringBuilder ranges = new StringBuilder();
+                    i++;
+                    boolean negate = i<n && '^'==pattern.charAt(i);
+                    if (negate) {
+                        i++;
+                    }
+                    // An unterminated class extends to the end of the pattern.
+                    for (; i<n && ']'!=pattern.charAt(i); i++) {
+                        char lo = pattern.charAt(i);
+                        char hi = lo;
+                        if ('\\'==lo && i+1<n) {
+                            lo = hi = pattern.charAt(++i);
+                        }
+                        else if (i+2<n && '-'==pattern.charAt(i+1)) {
+                            hi = pattern.charAt(i+2);
+                            i += 2;
+                            if (lo>hi) {
+                                char t = lo;
+                                lo = hi;
+                                hi = t;
+                            }
+                        }
+                        ranges.append(lo).append(hi);
+                    }
+                    sets[count] = ranges.toString().toCharArray();
+                    ops[count++] = negate ? CLASS-1 : CLASS;
+                }
+                else {
+                    ops[count++] = c;
+                }
+            }
+            this.ops  = Arrays.copyOf(ops, count);
+            this.sets = Arrays.copyOf(sets, count);
+
+            StringBuilder prefix = new StringBuilder();
+            for (int i=0; i<count && this.ops[i]>=0; i++) {
+                prefix.append((char)this.ops[i]);
+            }
+            this.prefix = prefix.toString();
+            this.literal    = this.prefix.length()==count;
+            this.prefixStar = this.prefix.length()==count-1 && STAR==this.ops[count-1];
+        }
+
+        /**
+         * @return the literal characters the pattern starts with.
+         */
+        String getPrefix() {
+            return prefix;
+        }
+
+        /**
+         * @return true if the pattern has no wildcards, so it only matches getPrefix()
+         */
+        boolean isLiteral() {
+            return literal;
+        }
+
+        /**
+         * @return true if the pattern is a literal prefix followed by a single '*'
+         */
+        boolean isPrefixStar() {
+            return prefixStar;
+        }
+
+        boolean matches(String s) {
+            return matches(s, 0);
+        }
+
+        /**
+         * Matches s, skipping the first from characters, which must be known to match the
+         * prefix already.
+         */
+        boolean matches(String s, int from) {
+            if (literal) {
+                return s.length()==prefix.length() && s.regionMatches(from, prefix, from, prefix.length()-from);
+            }
+            if (prefixStar) {
+                return s.regionMatches(from, prefix, from, prefix.length()-from);
+            }
+            int n     = s.length();
+            int p     = from;
+            int i     = from;
+            int starP = -1;
+            int starI = -1;
+            while (i<n) {
+                if (p<ops.length && STAR==ops[p]) {
+                    starP = p++;
+                    starI = i;
+                }
+                else if (p<ops.length && matches(p, s.charAt(i))) {
+                    p++;
+                    i++;
+                }
+                else if (starP>=0) {
+                    // Let the last star consume one more character and retry.
+                    p = starP+1;
+                    i = ++starI;
+                }
+                else {
+                    return false;
+                }
+            }
+            while (p<ops.length && STAR==ops[p]) {
+                p++;
+            }
+            return p==ops.length;
+        }
+
+        private boolean matches(int p, char c) {
+            int op = ops[p];
+            if (op>=0) {
+                return op==c;
+            }
+            if (ANY==op) {
+                return true;
+            }
+            char[] ranges = sets[p];
+            boolean found = false;
+            for (int r=0; r<ranges.length && !found; r+=2) {
+                found = c>=ranges[r] && c<=ranges[r+1];
+            }
+            return CLASS==op ? found : !found;
+        }
+
+        private final int[]    ops;
+        private final char[][] sets;
+        private final String   prefix;
+        private final boolean  literal;
+        private final boolean  prefixStar;
+    }
+
+    /**
+     * Runs scripts on the luaj interpreter. A script is compiled once into a Prototype
+     * shared by all clients, each client runs it in its own State with the base, string,
+     * table and math libraries and the redis and cjson tables. The io, os and debug
+     * libraries are not available, the debug hook of luaj only serves to stop a script
+     * killed with SCRIPT KILL and to name the variables in error messages.
+     */
+    static class Lua {
+
+        static final String CHUNK_NAME = "@user_script";
+        static final int    MAX_DEPTH  = 200;
+
+        /**
+         * The cjson.null value.
+         */
+        static final LuaValue NULL = LuaValue.userdataOf(new Object() {
+            @Override
+            public String toString() {
+                return "NULL";
+            }
+        });
+
+        /**
+         * @throws LuaError with the message "user_script:LINE: MESSAGE" on syntax errors
+         */
+        public static Chunk compile(String source) {
+            try {
+                Prototype proto = LuaC.instance.compile(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)), CHUNK_NAME);
+                return new Chunk(proto, sha1hex(source));
+            }
+            catch (IOException e) {
+                throw new LuaError(e.getMessage());
+            }
+        }
+
+        public static String sha1hex(String s) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                byte[] digest = md.digest(s.getBytes(StandardCharsets.UTF_8));
+                StringBuilder sb = new StringBuilder(40);
+                for (byte b : digest) {
+                    sb.append(Character.forDigit((b>>4) & 0xf, 16));
+                    sb.append(Character.forDigit(b & 0xf, 16));
+                }
+                return sb.toString();
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return the table scripts use for an error reply
+         */
+        public static LuaTable errorReply(String message) {
+            LuaTable t = new LuaTable();
+            t.set("err", message);
+            return t;
+        }
+
+        /**
+         * A compiled script.
+         */
+        static class Chunk {
+
+            Chunk(Prototype proto, String sha) {
+                this.proto = proto;
+                this.sha   = sha;
+            }
+
+            final Prototype proto;
+            final String sha;
+        }
+
+        /**
+         * Runs the commands called by redis.call() and redis.pcall().
+         */
+        interface Caller {
+
+            /**
+             * @return the reply, an error reply is a table with an err field
+             */
+            LuaValue call(String[] command);
+        }
+
+        /**
+         * Thrown by the hook to stop a killed script. It is an Error so that pcall() can not
+         * catch it.
+         */
+        @SuppressWarnings("serial")
+        static class Killed extends Error {
+
+            Killed() {
+                super("killed", null, false, false);
+            }
+        }
+
+        /**
+         * The interpreter used by one client: the globals with the libraries, which scripts
+         * may not add to, and the hook.
+         */
+        static class State {
+
+            State(Caller caller) {
+                globals = new Globals();
+                globals.load(new BaseLib());
+                // The table library registers itself in package.loaded.
+                globals.load(new PackageLib());
+                globals.load(new TableLib());
+                globals.load(new StringLib());
+                globals.load(new JseMathLib());
+                globals.load(hook = new Hook());
+                // Error messages should not carry a traceback, which the debug library adds.
+                globals.running.errorfunc = new OneArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue message) {
+                        return message;
+                    }
+                };
+                for (String name : new String[] {"debug", "dofile", "load", "loadfile", "module", "package", "print", "require"}) {
+                    globals.set(name, LuaValue.NIL);
+                }
+                // Lua 5.1 as in Redis.
+                LuaValue table = globals.get("table");
+                globals.set("unpack", table.get("unpack"));
+                table.set("getn", new OneArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue t) {
+                        return t.checktable().len();
+                    }
+                });
+                globals.get("string").set("format", new Format());
+                randomseed = globals.get("math").get("randomseed");
+
+                LuaTable redis = new LuaTable();
+                redis.set("call", new RedisCall(caller, true));
+                redis.set("pcall", new RedisCall(caller, false));
+                redis.set("error_reply", new OneArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue message) {
+                        return errorReply(message.checkjstring());
+                    }
+                });
+                redis.set("status_reply", new OneArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue message) {
+                        LuaTable t = new LuaTable();
+                        t.set("ok", message.checkjstring());
+                        return t;
+                    }
+                });
+                redis.set("sha1hex", new OneArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue s) {
+                        return valueOf(sha1hex(s.checkjstring()));
+                    }
+                });
+                redis.set("replicate_commands", new VarArgFunction() {
+                    @Override
+                    public Varargs invoke(Varargs args) {
+                        return TRUE;
+                    }
+                });
+                VarArgFunction noop = new VarArgFunction() {
+                    @Override
+                    public Varargs invoke(Varargs args) {
+                        return NONE;
+                    }
+                };
+                redis.set("log", noop);
+                redis.set("setresp", noop);
+                redis.set("set_repl", noop);
+                redis.set("LOG_DEBUG", 0);
+                redis.set("LOG_VERBOSE", 1);
+                redis.set("LOG_NOTICE", 2);
+                redis.set("LOG_WARNING", 3);
+                redis.set("REPL_NONE", 0);
+                redis.set("REPL_AOF", 1);
+                redis.set("REPL_SLAVE", 2);
+                redis.set("REPL_REPLICA", 2);
+                redis.set("REPL_ALL", 3);
+                globals.set("redis", redis);
+
+                LuaTable cjson = new LuaTable();
+                cjson.set("encode", new OneArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue value) {
+                        StringBuilder sb = new StringBuilder();
+                        encodeJson(sb, value, 0);
+                        return valueOf(sb.toString());
+                    }
+                });
+                cjson.set("decode", new OneArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue json) {
+                        return new JsonDecoder(json.checkjstring()).decode();
+                    }
+                });
+                cjson.set("null", NULL);
+                globals.set("cjson", cjson);
+
+                LuaTable meta = new LuaTable();
+                meta.set("__newindex", new ThreeArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue t, LuaValue name, LuaValue value) {
+                        throw new LuaError("Script attempted to create global variable '" + name.tojstring() + "'");
+                    }
+                });
+                globals.setmetatable(meta);
+            }
+
+            /**
+             * Runs a script with the KEYS and ARGV tables.
+             * @return the first value returned by the script
+             * @throws Killed if kill() was called meanwhile
+             */
+            public LuaValue execute(Chunk chunk, List<String> keys, List<String> argv) {
+                globals.rawset("KEYS", toTable(keys));
+                globals.rawset("ARGV", toTable(argv));
+                randomseed.call(LuaValue.ZERO);
+                hook.reset();
+                return new LuaClosure(chunk.proto, globals).call();
+            }
+
+            /**
+             * Stops the running script at its next instruction.
+             */
+            public void kill() {
+                hook.killed = true;
+            }
+
+            /**
+             * @return the message of an error of the last script in the form of Lua, i.e.
+             *         "user_script:LINE: MESSAGE"
+             */
+            public String message(LuaError e) {
+                String m = String.valueOf(e.getMessage());
+                String line = null;
+                Matcher matcher = POSITION.matcher(m);
+                if (matcher.lookingAt()) {
+                    line = matcher.group(1);
+                    m = m.substring(matcher.end());
+                }
+                Prototype p = null==hook.failed ? null : hook.failed.p;
+                int pc = hook.failedPc;
+                if (null!=p && pc>=0 && pc<p.code.length) {
+                    int code = p.code[pc];
+                    int op   = org.luaj.vm2.Lua.GET_OPCODE(code);
+                    if ((org.luaj.vm2.Lua.OP_CALL==op || org.luaj.vm2.Lua.OP_TAILCALL==op) && m.matches("attempt to call \\w+")) {
+                        String name = describe(p, pc, org.luaj.vm2.Lua.GETARG_A(code));
+                        if (null!=name) {
+                            m = "attempt to call " + name + " (a " + m.substring(16) + " value)";
+                        }
+                    }
+                    else if ((org.luaj.vm2.Lua.OP_GETTABLE==op || org.luaj.vm2.Lua.OP_SELF==op) && m.startsWith("attempt to index ? ")) {
+                        String name = describe(p, pc, org.luaj.vm2.Lua.GETARG_B(code));
+                        if (null!=name) {
+                            m = "attempt to index " + name + m.substring(18);
+                        }
+                    }
+                    if (null==line) {
+                        line = Integer.toString(null!=p.lineinfo && pc<p.lineinfo.length ? p.lineinfo[pc] : 0);
+                    }
+                }
+                return null==line ? m : "user_script:" + line + ": " + m;
+            }
+
+            private static LuaTable toTable(List<String> strings) {
+                LuaTable t = new LuaTable(strings.size(), 0);
+                for (int i=0; i<strings.size(); i++) {
+                    t.rawset(i+1, LuaValue.valueOf(strings.get(i)));
+                }
+                return t;
+            }
+
+            private static final Pattern POSITION = Pattern.compile("@?user_script:(\\d+):? ");
+
+            final Globals  globals;
+            final Hook     hook;
+            final LuaValue randomseed;
+        }
+
+        /**
+         * @return a description like "global 'f'" of the variable a register was loaded from,
+         *         as in the error messages of Lua, null if it is not known
+         */
+        static String describe(Prototype p, int pc, int reg) {
+            LuaString local = p.getlocalname(reg+1, pc);
+            if (null!=local) {
+                return "local '" + local.tojstring() + "'";
+            }
+            for (int i=pc-1; i>=0; i--) {
+                int code = p.code[i];
+                if (org.luaj.vm2.Lua.GETARG_A(code)!=reg) {
+                    continue;
+                }
+                int op = org.luaj.vm2.Lua.GET_OPCODE(code);
+                int c  = org.luaj.vm2.Lua.GETARG_C(code);
+                if ((org.luaj.vm2.Lua.OP_GETTABUP==op || org.luaj.vm2.Lua.OP_GETTABLE==op || org.luaj.vm2.Lua.OP_SELF==op)
+                        && org.luaj.vm2.Lua.ISK(c) && p.k[org.luaj.vm2.Lua.INDEXK(c)].isstring()) {
+                    String key = p.k[org.luaj.vm2.Lua.INDEXK(c)].tojstring();
+                    if (org.luaj.vm2.Lua.OP_GETTABUP==op) {
+                        LuaString up = p.upvalues[org.luaj.vm2.Lua.GETARG_B(code)].name;
+                        return (null!=up && "_ENV".equals(up.tojstring()) ? "global '" : "field '") + key + "'";
+                    }
+                    return (org.luaj.vm2.Lua.OP_SELF==op ? "method '" : "field '") + key + "'";
+                }
+                return null;
+            }
+            return null;
+        }
+
+        /**
+         * The debug hook: it follows the calls to know where an error was raised, limits
+         * their depth and stops a killed script. Unlike DebugLib it keeps no call frames
+         * with the values, which scripts can not inspect anyway.
+         */
+        static class Hook extends DebugLib {
+
+            void reset() {
+                depth  = 0;
+                failed = null;
+                killed = false;
+            }
+
+            @Override
+            public void onCall(LuaClosure c, Varargs varargs, LuaValue[] stack) {
+                push(c);
+            }
+
+            @Override
+            public void onCall(LuaFunction f) {
+                push(null);
+            }
+
+            private void push(LuaClosure c) {
+                if (depth>=MAX_DEPTH) {
+                    throw new LuaError("stack overflow");
+                }
+                if (depth==closures.length) {
+                    closures = Arrays.copyOf(closures, 2*depth);
+                    pcs = Arrays.copyOf(pcs, 2*depth);
+                }
+                closures[depth] = c;
+                pcs[depth++] = -1;
+            }
+
+            /**
+             * Remembers the innermost function an error unwinds, no instruction runs in between.
+             */
+            @Override
+            public void onReturn() {
+                if (depth>0) {
+                    depth--;
+                    if (null==failed && null!=closures[depth]) {
+                        failed   = closures[depth];
+                        failedPc = pcs[depth];
+                    }
+                    closures[depth] = null;
+                }
+            }
+
+            @Override
+            public void onInstruction(int pc, Varargs v, int top) {
+                if (killed) {
+                    throw new Killed();
+                }
+                failed = null;
+                if (depth>0) {
+                    pcs[depth-1] = pc;
+                }
+            }
+
+            @Override
+            public String traceback(int level) {
+                return "";
+            }
+
+            private LuaClosure[] closures = new LuaClosure[16];
+            private int[] pcs = new int[16];
+            private int depth;
+            private LuaClosure failed;
+            private int failedPc;
+            volatile boolean killed;
+        }
+
+        /**
+         * redis.call() and redis.pcall(), which only differ in raising error replies.
+         */
+        static class RedisCall extends VarArgFunction {
+
+            RedisCall(Caller caller, boolean raise) {
+                this.caller = caller;
+                this.raise  = raise;
+            }
+
+            @Override
+            public Varargs invoke(Varargs args) {
+                int n = args.narg();
+                if (0==n) {
+                    throw new LuaError("Please specify at least one argument for redis.call()");
+                }
+                String[] command = new String[n];
+                for (int i=0; i<n; i++) {
+                    LuaValue arg = args.arg(i+1);
+                    if (!arg.isstring()) {
+                        throw new LuaError("Lua redis() command arguments must be strings or integers");
+                    }
+                    command[i] = arg.tojstring();
+                }
+                LuaValue reply = caller.call(command);
+                if (raise && reply.istable() && reply.get("err").isstring()) {
+                    throw new LuaError(reply);
+                }
+                return reply;
+            }
+
+            private final Caller caller;
+            private final boolean raise;
+        }
+
+        /**
+         * string.format() with the flags, width and precision of C, which luaj ignores.
+         */
+        static class Format extends VarArgFunction {
+
+            @Override
+            public Varargs invoke(Varargs args) {
+                String format = args.checkjstring(1);
+                StringBuilder sb = new StringBuilder(format.length()+16);
+                int arg = 1;
+                for (int i=0; i<format.length(); i++) {
+                    char c = format.charAt(i);
+                    if ('%'!=c) {
+                        sb.append(c);
+                        continue;
+                    }
+                    if (i+1<format.length() && '%'==format.charAt(i+1)) {
+                        sb.append('%');
+                        i++;
+                        continue;
+                    }
+                    int start = ++i;
+                    while (i<format.length() && "-+ #0123456789.".indexOf(format.charAt(i))>=0) {
+                        i++;
+                    }
+                    if (i>=format.length()) {
+                        throw new LuaError("invalid option '%' to 'format'");
+                    }
+                    String spec = "%" + format.substring(start, i);
+                    char conversion = format.charAt(i);
+                    if (++arg>args.narg()) {
+                        throw new LuaError("bad argument #" + arg + " to 'format' (no value)");
+                    }
+                    LuaValue value = args.arg(arg);
+                    try {
+                        switch (conversion) {
+                        case 'd':
+                        case 'i':
+                        case 'u':
+                            sb.append(String.format(Locale.ROOT, spec + "d", (long) value.checkdouble()));
+                            break;
+                        case 'o':
+                        case 'x':
+                        case 'X':
+                            sb.append(String.format(Locale.ROOT, spec + conversion, (long) value.checkdouble()));
+                            break;
+                        case 'c':
+                            sb.append((char) value.checkint());
+                            break;
+                        case 'e':
+                        case 'E':
+                        case 'f':
+                        case 'g':
+                        case 'G':
+                            sb.append(String.format(Locale.ROOT, spec + conversion, value.checkdouble()));
+                            break;
+                        case 's':
+                            sb.append(String.format(Locale.ROOT, spec + "s", value.tojstring()));
+                            break;
+                        case 'q':
+                            quote(sb, value.checkjstring());
+                            break;
+                        default:
+                            throw new LuaError("invalid option '%" + conversion + "' to 'format'");
+                        }
+                    }
+                    catch (IllegalFormatException e) {
+                        throw new LuaError("invalid format '" + spec + conversion + "' to 'format'");
+                    }
+                }
+                return valueOf(sb.toString());
+            }
+
+            private static void quote(StringBuilder sb, String s) {
+                sb.append('"');
+                for (int i=0; i<s.length(); i++) {
+                    char c = s.charAt(i);
+                    switch (c) {
+                    case '"':
+                    case '\\':
+                    case '\n':
+                        sb.append('\\').append(c);
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\0':
+                        sb.append("\\000");
+                        break;
+                    default:
+                        sb.append(c);
+                    }
+                }
+                sb.append('"');
+            }
+        }
+
+        /**
+         * A writer turning the reply of a command called by a script directly into Lua values:
+         * integers to numbers, nil to false, arrays to tables, status and error replies to
+         * tables with an ok or err field. Only the raw frames the commands write, like +OK or
+         * $-1, are parsed.
+         */
+        static class Replies extends RESPWriter {
+
+            Replies() {
+                super((OutputStream) null);
+            }
+
+            /**
+             * @return the reply, false if none was written
+             */
+            public LuaValue getReply() {
+                return null==reply ? LuaValue.FALSE : reply;
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void write(byte[] data) throws IOException {
+                String frames = new String(data, StandardCharsets.UTF_8);
+                for (int pos=0; pos<frames.length();) {
+                    int eol = frames.indexOf(CRLF_STRING, pos);
+                    if (eol<0) {
+                        throw new IOException("Incomplete reply in script: " + frames.substring(pos));
+                    }
+                    String line = frames.substring(pos+1, eol);
+                    char type = frames.charAt(pos);
+                    pos = eol+2;
+                    switch (type) {
+                    case '+': {
+                        LuaTable t = new LuaTable();
+                        t.set("ok", line);
+                        add(t);
+                        break;
+                    }
+                    case '-':
+                        add(errorReply(line));
+                        break;
+                    case ':':
+                        add(LuaValue.valueOf(Long.parseLong(line)));
+                        break;
+                    case '$': {
+                        int len = Integer.parseInt(line);
+                        if (len<0) {
+                            add(LuaValue.FALSE);
+                        }
+                        else {
+                            add(LuaValue.valueOf(frames.substring(pos, pos+len)));
+                            pos += len+2;
+                        }
+                        break;
+                    }
+                    case '*':
+                        sendArrayLength(Integer.parseInt(line));
+                        break;
+                    default:
+                        throw new IOException("Unsupported reply in script: " + line);
+                    }
+                }
+            }
+
+            @Override
+            public void sendReply(StringBuilder sb) {
+                add(LuaValue.valueOf(sb.toString()));
+            }
+
+            @Override
+            public void sendArray(Collection<String> strings) {
+                if (null==strings) {
+                    add(LuaValue.FALSE);
+                    return;
+                }
+                LuaTable t = new LuaTable(strings.size(), 0);
+                int i = 0;
+                for (String s : strings) {
+                    t.rawset(++i, null==s ? LuaValue.FALSE : LuaValue.valueOf(s));
+                }
+                add(t);
+            }
+
+            @Override
+            public void sendArrayLength(int len) {
+                if (len<0) {
+                    add(LuaValue.FALSE);
+                }
+                else if (0==len) {
+                    add(new LuaTable());
+                }
+                else {
+                    open = new Open(new LuaTable(len, 0), len, open);
+                }
+            }
+
+            @Override
+            public void sendStrings(Collection<String> strings) {
+                for (String s : strings) {
+                    sendString(s);
+                }
+            }
+
+            @Override
+            public void sendHashLength(int len) {
+                sendArrayLength(2*len);
+            }
+
+            @Override
+            public void sendSetLength(int len) {
+                sendArrayLength(len);
+            }
+
+            @Override
+            public void sendZSetLength(int len) {
+                sendArrayLength(2*len);
+            }
+
+            @Override
+            public void sendNumber(long l) {
+                add(LuaValue.valueOf(l));
+            }
+
+            @Override
+            public void sendString(String s) {
+                add(null==s ? LuaValue.FALSE : LuaValue.valueOf(s));
+            }
+
+            @Override
+            public void sendError(String category, String format, Object ... args) {
+                add(errorReply(category + " " + String.format(format, args)));
+            }
+
+            private void add(LuaValue value) {
+                while (null!=open) {
+                    open.table.rawset(++open.count, value);
+                    if (open.count<open.size) {
+                        return;
+                    }
+                    value = open.table;
+                    open  = open.parent;
+                }
+                reply = value;
+            }
+
+            /**
+             * An array whose elements are still being written.
+             */
+            static class Open {
+
+                Open(LuaTable table, int size, Open parent) {
+                    this.table  = table;
+                    this.size   = size;
+                    this.parent = parent;
+                }
+
+                final LuaTable table;
+                final int size;
+                final Open parent;
+                int count;
+            }
+
+            private Open open;
+            private LuaValue reply;
+        }
+
+        static void encodeJson(StringBuilder sb, LuaValue v, int depth) {
+            if (depth>1000) {
+                throw new LuaError("Cannot serialise, excessive nesting (1001)");
+            }
+            switch (v.type()) {
+            case LuaValue.TNIL:
+                sb.append("null");
+                break;
+            case LuaValue.TBOOLEAN:
+                sb.append(v.toboolean());
+                break;
+            case LuaValue.TNUMBER:
+                double d = v.todouble();
+                if (Double.isNaN(d) || Double.isInfinite(d)) {
+                    throw new LuaError("Cannot serialise number: must not be NaN or Inf");
+                }
+                sb.append(v.tojstring());
+                break;
+            case LuaValue.TSTRING:
+                encodeJsonString(sb, v.tojstring());
+                break;
+            case LuaValue.TTABLE: {
+                LuaTable t = (LuaTable) v;
+                int n = t.length();
+                int keys = 0;
+                for (LuaValue k = LuaValue.NIL;;) {
+                    Varargs next = t.next(k);
+                    if ((k = next.arg1()).isnil()) {
+                        break;
+                    }
+                    keys++;
+                }
+                if (n>0 && keys==n) {
+                    sb.append('[');
+                    for (int i=1; i<=n; i++) {
+                        if (i>1) {
+                            sb.append(',');
+                        }
+                        encodeJson(sb, t.get(i), depth+1);
+                    }
+                    sb.append(']');
+                    return;
+                }
+                sb.append('{');
+                boolean first = true;
+                for (LuaValue k = LuaValue.NIL;;) {
+                    Varargs next = t.next(k);
+                    if ((k = next.arg1()).isnil()) {
+                        break;
+                    }
+                    if (!k.isstring()) {
+                        throw new LuaError("Cannot serialise table: table key must be a number or string");
+                    }
+                    if (!first) {
+                        sb.append(',');
+                    }
+                    first = false;
+                    encodeJsonString(sb, k.tojstring());
+                    sb.append(':');
+                    encodeJson(sb, next.arg(2), depth+1);
+                }
+                sb.append('}');
+                break;
+            }
+            default:
+                if (NULL==v) {
+                    sb.append("null");
+                    break;
+                }
+                throw new LuaError("Cannot serialise " + v.typename() + ": type not supported");
+            }
+        }
+
+        private static void encodeJsonString(StringBuilder sb, String s) {
+            sb.append('"');
+            for (int i=0; i<s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '/':  sb.append("\\/"); break;
+                case '\b': sb.append("\\b"); break;
+                case '\f': sb.append("\\f"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c<0x20 || 0x7f==c) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        sb.append(c);
+                    }
+                }
+            }
+            sb.append('"');
+        }
+
+        /**
+         * The parser of cjson.decode().
+         */
+        static final class JsonDecoder {
+
+            JsonDecoder(String s) {
+                this.s = s;
+            }
+
+            LuaValue decode() {
+                LuaValue v = value(0);
+                skip();
+                if (pos<s.length()) {
+                    throw error("the end");
+                }
+                return v;
+            }
+
+            private LuaValue value(int depth) {
+                if (depth>1000) {
+                    throw new LuaError("Found too many nested data structures (1001) at character " + (pos+1));
+                }
+                skip();
+                if (pos>=s.length()) {
+                    throw error("value");
+                }
+                char c = s.charAt(pos);
+                if ('{'==c) {
+                    pos++;
+                    LuaTable t = new LuaTable();
+                    skip();
+                    if (pos<s.length() && '}'==s.charAt(pos)) {
+                        pos++;
+                        return t;
+                    }
+                    for (;;) {
+                        skip();
+                        if (pos>=s.length() || '"'!=s.charAt(pos)) {
+                            throw error("object key string");
+                        }
+                        String key = string();
+                        skip();
+                        expect(':', "colon");
+                        t.set(key, value(depth+1));
+                        skip();
+                        if (pos<s.length() && ','==s.charAt(pos)) {
+                            pos++;
+                            continue;
+                        }
+                        expect('}', "comma or object end");
+                        return t;
+                    }
+                }
+                if ('['==c) {
+                    pos++;
+                    LuaTable t = new LuaTable();
+                    skip();
+                    if (pos<s.length() && ']'==s.charAt(pos)) {
+                        pos++;
+                        return t;
+                    }
+                    for (int i=1;; i++) {
+                        t.set(i, value(depth+1));
+                        skip();
+                        if (pos<s.length() && ','==s.charAt(pos)) {
+                            pos++;
+                            continue;
+                        }
+                        expect(']', "comma or array end");
+                        return t;
+                    }
+                }
+                if ('"'==c) {
+                    return LuaValue.valueOf(string());
+                }
+                if (s.startsWith("true", pos)) {
+                    pos += 4;
+                    return LuaValue.TRUE;
+                }
+                if (s.startsWith("false", pos)) {
+                    pos += 5;
+                    return LuaValue.FALSE;
+                }
+                if (s.startsWith("null", pos)) {
+                    pos += 4;
+                    return NULL;
+                }
+                int start = pos;
+                while (pos<s.length() && "+-0123456789.eE".indexOf(s.charAt(pos))>=0) {
+                    pos++;
+                }
+                try {
+                    return LuaValue.valueOf(Double.parseDouble(s.substring(start, pos)));
+                }
+                catch (NumberFormatException e) {
+                    pos = start;
+                    throw error("value");
+                }
+            }
+
+            private String string() {
+                StringBuilder sb = new StringBuilder();
+                pos++;
+                for (;;) {
+                    if (pos>=s.length()) {
+                        throw error("string end");
+                    }
+                    char c = s.charAt(pos++);
+                    if ('"'==c) {
+                        return sb.toString();
+                    }
+                    if ('\\'!=c) {
+                        sb.append(c);
+                        continue;
+                    }
+                    if (pos>=s.length()) {
+                        throw error("string end");
+                    }
+                    c = s.charAt(pos++);
+                    switch (c) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos+4>s.length()) {
+                            throw error("unicode escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(s.substring(pos, pos+4), 16));
+                        }
+                        catch (NumberFormatException e) {
+                            throw error("unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        sb.append(c);
+                    }
+                }
+            }
+
+            private void skip() {
+                while (pos<s.length() && Character.isWhitespace(s.charAt(pos))) {
+                    pos++;
+                }
+            }
+
+            private void expect(char c, String what) {
+                if (pos>=s.length() || c!=s.charAt(pos)) {
+                    throw error(what);
+                }
+                pos++;
+            }
+
+            private LuaError error(String expected) {
+                return new LuaError("Expected " + expected + " but found invalid token at character " + (pos+1));
+            }
+
+            final String s;
+            int pos;
+        }
+    }
+
+    /**
+     * The channel and pattern subscriptions of all clients. Channels map directly to their
+     * subscribers. Patterns are kept in a trie by their literal prefix, so that a message is
+     * only matched against the patterns whose prefix the channel starts with. A message is
+     * encoded once per channel and matching pattern, and the same bytes are written to every
+     * subscriber, from the publishing thread.
+     */
+    class PubSub {
+
+        class PatternNode {
+            HashMap<Character, PatternNode> children = new HashMap<Character, PatternNode>();
+            LinkedHashMap<String, Subscribers> patterns;
+        }
+
+        @SuppressWarnings("serial")
+        class Subscribers extends LinkedHashSet<Worker> {
+
+            Subscribers(String pattern) {
+                this.pattern = pattern;
+                this.glob    = null==pattern ? null : Glob.compile(pattern);
+            }
+
+            final String pattern;
+            final Glob   glob;
+        }
+
+        public boolean subscribe(Worker worker, String channel) {
+            lock.writeLock().lock();
+            try {
+                Subscribers subscribers = channels.get(channel);
+                if (null==subscribers) {
+                    subscribers = new Subscribers(null);
+                    channels.put(channel, subscribers);
+                }
+                return subscribers.add(worker);
+            }
+            finally {
+                lock.writeLock().unlock();
+                updateNotifyMask();
+            }
+        }
+
+        public boolean unsubscribe(Worker worker, String channel) {
+            lock.writeLock().lock();
+            try {
+                Subscribers subscribers = channels.get(channel);
+                if (null==subscribers || !subscribers.remove(worker)) {
+                    return false;
+                }
+                if (subscribers.isEmpty()) {
+                    channels.remove(channel);
+                }
+                return true;
+            }
+            finally {
+                lock.writeLock().unlock();
+                updateNotifyMask();
+            }
+        }
+
+        public boolean psubscribe(Worker worker, String pattern) {
+            lock.writeLock().lock();
+            try {
+                PatternNode node = patternRoot;
+                for (char c : Glob.compile(pattern).getPrefix().toCharArray()) {
+                    PatternNode child = node.children.get(c);
+                    if (null==child) {
+                        child = new PatternNode();
+                        node.children.put(c, child);
+                    }
+                    node = child;
+                }
+                if (null==node.patterns) {
+                    node.patterns = new LinkedHashMap<String, Subscribers>();
+                }
+                Subscribers subscribers = node.patterns.get(pattern);
+                if (null==subscribers) {
+                    subscribers = new Subscribers(pattern);
+                    node.patterns.put(pattern, subscribers);
+                    patternCount++;
+                }
+                return subscribers.add(worker);
+            }
+            finally {
+                lock.writeLock().unlock();
+                updateNotifyMask();
+            }
+        }
+
+        public boolean punsubscribe(Worker worker, String pattern) {
+            lock.writeLock().lock();
+            try {
+                String prefix = Glob.compile(pattern).getPrefix();
+                PatternNode[] path = new PatternNode[prefix.length()+1];
+                path[0] = patternRoot;
+                for (int i=0; i<prefix.length(); i++) {
+                    path[i+1] = path[i].children.get(prefix.charAt(i));
+                    if (null==path[i+1]) {
+                        return false;
+                    }
+                }
+                PatternNode node = path[prefix.length()];
+                Subscribers subscribers = null==node.patterns ? null : node.patterns.get(pattern);
+                if (null==subscribers || !subscribers.remove(worker)) {
+                    return false;
+                }
+                if (subscribers.isEmpty()) {
+                    node.patterns.remove(pattern);
+                    patternCount--;
+                    // Drop the nodes no longer leading to any pattern.
+                    for (int i=prefix.length(); i>0; i--) {
+                        PatternNode n = path[i];
+                        if (!n.children.isEmpty() || (null!=n.patterns && !n.patterns.isEmpty())) {
+                            break;
+                        }
+                        path[i-1].children.remove(prefix.charAt(i-1));
+                    }
+                }
+                return true;
+            }
+            finally {
+                lock.writeLock().unlock();
+                updateNotifyMask();
+            }
+        }
+
+        /**
+         * @return the number of clients that received the message.
+         */
+        public int publish(String channel, String message) {
+            List<Worker> workers = new ArrayList<Worker>();
+            List<byte[]> frames  = new ArrayList<byte[]>();
+            lock.readLock().lock();
+            try {
+                Subscribers subscribers = channels.get(channel);
+                if (null!=subscribers) {
+                    byte[] frame = RESPWriter.encode("message", channel, message);
+                    for (Worker w : subscribers) {
+                        workers.add(w);
+                        frames.add(frame);
+                    }
+                }
+                if (patternCount>0) {
+                    PatternNode node = patternRoot;
+                    for (int i=0; null!=node; i++) {
+                        if (null!=node.patterns) {
+                            for (Subscribers s : node.patterns.values()) {
+                                if (s.glob.matches(channel, i)) {
+                                    byte[] frame = RESPWriter.encode("pmessage", s.pattern, channel, message);
+                                    for (Worker w : s) {
+                                        workers.add(w);
+                                        frames.add(frame);
+                                    }
+                                }
+                            }
+                        }
+                        node = i<channel.length() ? node.children.get(channel.charAt(i)) : null;
+                    }
+                }
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            // Slow subscribers must not block subscribing clients, so writes happen unlocked.
+            for (int i=0; i<workers.size(); i++) {
+                workers.get(i).deliver(frames.get(i));
+            }
+            return workers.size();
+        }
+
+        /**
+         * @return the channels having at least one subscriber, optionally matching pattern.
+         */
+        public List<String> channels(String pattern) {
+            Glob glob = null==pattern ? null : Glob.compile(pattern);
+            lock.readLock().lock();
+            try {
+                List<String> list = new ArrayList<String>();
+                for (String channel : channels.keySet()) {
+                    if (null==glob || glob.matches(channel)) {
+                        list.add(channel);
+                    }
+                }
+                return list;
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        public int numsub(String channel) {
+            lock.readLock().lock();
+            try {
+                Subscribers subscribers = channels.get(channel);
+                return null==subscribers ? 0 : subscribers.size();
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        public int numpat() {
+            lock.readLock().lock();
+            try {
+                return patternCount;
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        public boolean hasSubscriptions() {
+            lock.readLock().lock();
+            try {
+                return !channels.isEmpty() || patternCount>0;
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final HashMap<String, Subscribers> channels = new HashMap<String, Subscribers>();
+        private final PatternNode patternRoot = new PatternNode();
+        private int patternCount;
+    }
+
+    /**
+     * This thread watches the connections of idle subscribers, so that they do not occupy a
+     * thread of the worker executor while waiting for messages, which are written by the
+     * publishing threads anyway. A worker is handed back to the executor once its client
+     * sends a command. A client closing its connection is noticed once a message fails to be
+     * written to it.
+     */
+    class SubscriberPoller extends Thread {
+
+        static final long POLL_INTERVAL = 10;
+
+        /**
+         * How often a round of checking parked subscribers for closed connections starts.
+         * A check costs a short read timeout, so it is made outside the monitor and only for
+         * CLOSED_CHECKS_PER_PASS subscribers per pass, a round taking as many passes as needed.
+         */
+        static final long CLOSED_CHECK_INTERVAL = 1000;
+        static final int  CLOSED_CHECKS_PER_PASS = 16;
+
+        public SubscriberPoller(ExecutorService executor) {
+            super(SubscriberPoller.class.getSimpleName());
+            super.setDaemon(true);
+            this.executor = executor;
+        }
+
+        /**
+         * @return false if the worker has to keep its thread, as the poller is stopped.
+         */
+        public synchronized boolean park(Worker worker) {
+            if (!isAlive() || isInterrupted()) {
+                return false;
+            }
+            parked.add(worker);
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopRequested) {
+                    List<Worker> ready = new ArrayList<Worker>();
+                    List<Worker> gone  = new ArrayList<Worker>();
+                    List<Worker> check = new ArrayList<Worker>();
+                    synchronized (this) {
+                        while (parked.isEmpty()) {
+                            wait();
+                        }
+                        for (Iterator<Worker> it=parked.iterator(); it.hasNext(); ) {
+                            Worker w = it.next();
+                            try {
+                                if (!w.isOpen()) {
+                                    it.remove();
+                                    gone.add(w);
+                                }
+                                else if (w.reader.ready()) {
+                                    it.remove();
+                                    ready.add(w);
+                                }
+                            }
+                            catch (IOException e) {
+                                it.remove();
+                                gone.add(w);
+                            }
+                        }
+                        if (0==closedChecksLeft && now()-lastClosedCheck>=CLOSED_CHECK_INTERVAL) {
+                            lastClosedCheck  = now();
+                            closedChecksLeft = parked.size();
+                        }
+                        int n = Math.min(Math.min(closedChecksLeft, CLOSED_CHECKS_PER_PASS), parked.size());
+                        for (int i=0; i<n; i++) {
+                            nextClosedCheck = nextClosedCheck % parked.size();
+                            check.add(parked.get(nextClosedCheck++));
+                        }
+                        closedChecksLeft = n<CLOSED_CHECKS_PER_PASS ? 0 : closedChecksLeft-n;
+                    }
+                    // Only this thread reads from parked workers, so they can be probed while
+                    // park() and the publishers go on.
+                    List<Worker> closed = new ArrayList<Worker>();
+                    for (Worker w : check) {
+                        try {
+                            if (w.reader.isClosed(1)) {
+                                closed.add(w);
+                            }
+                        }
+                        catch (IOException e) {
+                            closed.add(w);
+                        }
+                    }
+                    if (!closed.isEmpty()) {
+                        synchronized (this) {
+                            parked.removeAll(closed);
+                        }
+                        gone.addAll(closed);
+                    }
+                    for (Worker w : ready) {
+                        try {
+                            executor.execute(w);
+                        }
+                        catch (RejectedExecutionException e) {
+                            gone.add(w);
+                        }
+                    }
+                    for (Worker w : gone) {
+                        w.disconnected();
+                    }
+                    Thread.sleep(POLL_INTERVAL);
+                }
+            }
+            catch (InterruptedException e) {
+            }
+            synchronized (this) {
+                for (Worker w : parked) {
+                    w.disconnected();
+                }
+                parked.clear();
+            }
+        }
+
+        private final List<Worker> parked = new ArrayList<Worker>();
+        private int closedChecksLeft;
+        private int nextClosedCheck;
+        private final ExecutorService executor;
+        private long lastClosedCheck;
+    }
+
+    /**
+     * This class lets blocking commands wait for writes to any of a set of keys without
+     * polling and without holding the database lock. A waiter registers a ticket before
+     * checking the keys, so that no write in between can be missed, and then waits on it.
+     */
+    class KeyNotifier {
+
+        class Ticket {
+
+            Ticket(Collection<String> keys) {
+                this.keys = keys;
+            }
+
+            /**
+             * Waits until one of the keys is signalled.
+             * @param deadline time in ms or -1 to wait forever
+             * @return false if the deadline passed first
+             */
+            public boolean await(long deadline) throws InterruptedException {
+                synchronized (KeyNotifier.this) {
+                    while (!signalled) {
+                        if (portListener.stopRequested) {
+                            return false;
+                        }
+                        long wait = deadline<0 ? MAX_WAIT : Math.min(MAX_WAIT, deadline-now());
+                        if (wait<=0) {
+                            return false;
+                        }
+                        KeyNotifier.this.wait(wait);
+                    }
+                    signalled = false;
+                    return true;
+                }
+            }
+
+            public void close() {
+                synchronized (KeyNotifier.this) {
+                    for (String key : keys) {
+                        List<Ticket> tickets = waiters.get(key);
+                        if (null!=tickets) {
+                            tickets.remove(this);
+                            if (tickets.isEmpty()) {
+                                waiters.remove(key);
+                            }
+                        }
+                    }
+                }
+            }
+
+            private final Collection<String> keys;
+            private boolean signalled;
+        }
+
+        public synchronized Ticket watch(Collection<String> keys) {
+            Ticket ticket = new Ticket(keys);
+            for (String key : keys) {
+                List<Ticket> tickets = waiters.get(key);
+                if (null==tickets) {
+                    waiters.put(key, tickets = new ArrayList<Ticket>(1));
+                }
+                tickets.add(ticket);
+            }
+            return ticket;
+        }
+
+        public synchronized void signal(String key) {
+            List<Ticket> tickets = waiters.get(key);
+            if (null!=tickets) {
+                for (Ticket ticket : tickets) {
+                    ticket.signalled = true;
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Upper bound for a single wait, only to notice a server shutdown.
+         */
+        static final long MAX_WAIT = 1000;
+
+        private final Map<String, List<Ticket>> waiters = new HashMap<String, List<Ticket>>();
+    }
+
+    /**
+     * An entry of the queue of keys to expire. It is stale once the key was removed or got
+     * another expiry time, which is checked when it is polled.
+     */
+    static class Expiry implements Comparable<Expiry> {
+
+        Expiry(String key, Ageable ageable, long when) {
+            this(key, ageable, null, when);
+        }
+
+        /**
+         * @param field the hash field expiring, null if the key expires
+         */
+        Expiry(String key, Ageable ageable, String field, long when) {
+            this.key     = key;
+            this.ageable = ageable;
+            this.field   = field;
+            this.when    = when;
+        }
+
+        @Override
+        public int compareTo(Expiry that) {
+            return Long.compare(this.when, that.when);
+        }
+
+        final String  key;
+        final Ageable ageable;
+        final String  field;
+        final long    when;
+    }
+
+    /**
+     * The arguments of SCAN, HSCAN, SSCAN and ZSCAN.
+     */
+    static class ScanArgs {
+
+        long    cursor;
+        int     count = 10;
+        Glob    match;
+        String  type;
+        boolean noValues;
+    }
+
+    /**
+     * The options of SET and GETEX, old is set to the previous value for GET.
+     */
+    static class SetArgs {
+
+        boolean nx;
+        boolean xx;
+        boolean get;
+        boolean keepTtl;
+        boolean persist;
+        long    expiresAt = -1;
+        String  old;
+    }
+
+    /**
+     * The options of SORT and SORT_RO.
+     */
+    static class SortArgs {
+
+        Pattern       by;
+        int           offset;
+        int           count = -1;
+        List<Pattern> get = new ArrayList<Pattern>();
+        boolean       desc;
+        boolean       alpha;
+        String        store;
+
+        /**
+         * A BY or GET pattern split at its first '*' and, for a hash field, at the "->"
+         * following it, so it is parsed once rather than once per element.
+         */
+        static class Pattern {
+
+            Pattern(String pattern) {
+                this.self = "#".equals(pattern);
+                int star  = pattern.indexOf('*');
+                if (self || star<0) {
+                    this.prefix = null;
+                    this.suffix = null;
+                    this.field  = null;
+                    return;
+                }
+                int arrow = pattern.indexOf("->", star+1);
+                if (arrow<0 || arrow+2==pattern.length()) {
+                    arrow = pattern.length();
+                }
+                this.prefix = pattern.substring(0, star);
+                this.suffix = pattern.substring(star+1, arrow);
+                this.field  = arrow==pattern.length() ? null : pattern.substring(arrow+2);
+            }
+
+            /**
+             * @return false for a pattern without '*', which BY takes as "do not sort"
+             */
+            boolean hasStar() {
+                return null!=prefix;
+            }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void subscribe(Database db, Args args) throws IOException {
-            _todo("subscribe");
+            final boolean self;
+            final String  prefix;
+            final String  suffix;
+            final String  field;
         }
+    }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void sunion(Database db, Args args) throws IOException {
-            _todo("sunion");
-        }
+    /**
+     * Sorts a permutation of element indexes by primitive numeric scores, or by strings when
+     * there are no scores, breaking ties by the elements themselves like Redis does. Sorting
+     * int indexes avoids boxing the scores and a comparator per element. When only the first
+     * k entries are needed they are selected first, so just those get sorted.
+     */
+    static final class IndexSort {
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void sunionstore(Database db, Args args) throws IOException {
-            _todo("sunionstore");
-        }
+        static final int INSERTION_SORT_MAX = 16;
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void swapdb(Database db, Args args) throws IOException {
-            _todo("swapdb");
+        /**
+         * @param scores the numeric weights, null for an ALPHA sort
+         * @param weights the string weights of an ALPHA sort, null entries sort first
+         */
+        IndexSort(double[] scores, String[] weights, String[] elements, boolean desc) {
+            this.scores   = scores;
+            this.weights  = weights;
+            this.elements = elements;
+            this.desc     = desc;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void psync(Database db, Args args) throws IOException {
-            _todo("psync");
+        /**
+         * Sorts perm so that its first k entries are the smallest in order.
+         */
+        void sort(int[] perm, int k) {
+            if (k<perm.length) {
+                select(perm, 0, perm.length-1, k);
+            }
+            quicksort(perm, 0, k-1);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void touch(Database db, Args args) throws IOException {
-            _todo("touch");
+        int compare(int a, int b) {
+            int cmp;
+            if (null!=scores) {
+                double x = scores[a];
+                double y = scores[b];
+                cmp = x<y ? -1 : x>y ? 1 : 0;
+            }
+            else {
+                String x = weights[a];
+                String y = weights[b];
+                cmp = x==y ? 0 : null==x ? -1 : null==y ? 1 : x.compareTo(y);
+            }
+            if (0==cmp && weights!=elements) {
+                cmp = elements[a].compareTo(elements[b]);
+            }
+            return desc ? -cmp : cmp;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void unsubscribe(Database db, Args args) throws IOException {
-            _todo("unsubscribe");
+        /**
+         * Partitions perm[lo..hi] until the entries before k are not greater than the others.
+         */
+        private void select(int[] p, int lo, int hi, int k) {
+            while (lo<hi) {
+                int m = partition(p, lo, hi);
+                if (k==m+1) {
+                    return;
+                }
+                if (k<=m) {
+                    hi = m;
+                }
+                else {
+                    lo = m+1;
+                }
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void unlink(Database db, Args args) throws IOException {
-            _todo("unlink");
+        private void quicksort(int[] p, int lo, int hi) {
+            while (hi-lo>=INSERTION_SORT_MAX) {
+                int m = partition(p, lo, hi);
+                // Recurse into the smaller part, so the stack depth stays logarithmic.
+                if (m-lo<hi-m) {
+                    quicksort(p, lo, m);
+                    lo = m+1;
+                }
+                else {
+                    quicksort(p, m+1, hi);
+                    hi = m;
+                }
+            }
+            for (int i=lo+1; i<=hi; i++) {
+                int x = p[i];
+                int j = i-1;
+                for (; j>=lo && compare(p[j], x)>0; j--) {
+                    p[j+1] = p[j];
+                }
+                p[j+1] = x;
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void unwatch(Database db, Args args) throws IOException {
-            _todo("unwatch");
+        /**
+         * Hoare partition around a random pivot.
+         * @return m with every entry in p[lo..m] not greater than any in p[m+1..hi], lo &lt;= m &lt; hi
+         */
+        private int partition(int[] p, int lo, int hi) {
+            int r = lo + ThreadLocalRandom.current().nextInt(hi-lo+1);
+            int pivot = p[r];
+            p[r]  = p[lo];
+            p[lo] = pivot;
+            int i = lo-1;
+            int j = hi+1;
+            for (;;) {
+                do {
+                    i++;
+                }
+                while (compare(p[i], pivot)<0);
+                do {
+                    j--;
+                }
+                while (compare(p[j], pivot)>0);
+                if (i>=j) {
+                    return j;
+                }
+                int t = p[i];
+                p[i] = p[j];
+                p[j] = t;
+            }
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void wait(Database db, Args args) throws IOException {
-            _todo("wait");
-        }
+        private final double[] scores;
+        private final String[] weights;
+        private final String[] elements;
+        private final boolean  desc;
+    }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void watch(Database db, Args args) throws IOException {
-            _todo("watch");
-        }
+    /**
+     * A command queued between MULTI and EXEC.
+     */
+    static class QueuedCommand {
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zadd(Database db, Args args) throws IOException {
-            _todo("zadd");
+        QueuedCommand(String cmd, Args args) {
+            this.cmd  = cmd;
+            this.args = args;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zcard(Database db, Args args) throws IOException {
-            _todo("zcard");
-        }
+        final String cmd;
+        final Args   args;
+    }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zcount(Database db, Args args) throws IOException {
-            _todo("zcount");
-        }
+    /**
+     * A key watched by a client, the transaction fails if its value or version changed.
+     */
+    static class Watch {
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zincrby(Database db, Args args) throws IOException {
-            _todo("zincrby");
+        Watch(Database db, String key, Ageable ageable) {
+            this.db      = db;
+            this.key     = key;
+            this.ageable = ageable;
+            this.version = null==ageable ? 0 : ageable.version;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zinterstore(Database db, Args args) throws IOException {
-            _todo("zinterstore");
-        }
+        final Database db;
+        final String   key;
+        final Ageable  ageable;
+        final long     version;
+    }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zlexcount(Database db, Args args) throws IOException {
-            _todo("zlexcount");
-        }
+    /**
+     * This thread removes expired keys in the background, which would otherwise only be
+     * removed once accessed by a writer, so that their expired events are published in time.
+     */
+    class Expirer extends Thread {
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zpopmax(Database db, Args args) throws IOException {
-            _todo("zpopmax");
-        }
+        static final long INTERVAL = 100;
+        static final int  LIMIT    = 1000;
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zpopmin(Database db, Args args) throws IOException {
-            _todo("zpopmin");
+        public Expirer() {
+            super(Expirer.class.getSimpleName());
+            super.setDaemon(true);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zrange(Database db, Args args) throws IOException {
-            _todo("zrange");
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    Thread.sleep(INTERVAL);
+                    for (Database db : databases.values()) {
+                        db.expireDue(LIMIT);
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+            }
         }
+    }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zrangebylex(Database db, Args args) throws IOException {
-            _todo("zrangebylex");
-        }
+    /**
+     * Deletes or expires the keys of a database matching a pattern in the background, as
+     * started by BGDEL and BGEXPIRE. Each batch is found by a SCAN step under the read lock
+     * and applied under the write lock, so no lock is held for more than batch keys and
+     * other clients proceed between the batches. The jobs share the threads of one
+     * executor and wait in its queue for a free one.
+     */
+    class KeyJob implements Runnable {
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zrevrangebylex(Database db, Args args) throws IOException {
-            _todo("zrevrangebylex");
-        }
+        static final int DEFAULT_BATCH = 100;
+        static final int MAX_FINISHED  = 32;
+        static final int MAX_QUEUED    = 64;
+        static final int THREADS       = 2;
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zrangebyscore(Database db, Args args) throws IOException {
-            _todo("zrangebyscore");
+        /**
+         * @param ttl the time to live to set in milliseconds, -1 to delete the keys
+         */
+        public KeyJob(Database db, String pattern, long ttl, int batch) {
+            this.id      = keyJobIds.incrementAndGet();
+            this.db      = db;
+            this.pattern = pattern;
+            this.glob    = "*".equals(pattern) ? null : Glob.compile(pattern);
+            this.ttl     = ttl;
+            this.batch   = batch;
+            this.state   = "queued";
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zrank(Database db, Args args) throws IOException {
-            _todo("zrank");
-        }
+        @Override
+        public void run() {
+            state = "running";
+            String result = "done";
+            try {
+                long cursor = 0;
+                do {
+                    if (cancelled) {
+                        result = "cancelled";
+                        break;
+                    }
+                    List<String> keys = new ArrayList<String>(batch);
+                    cursor = db.scan(cursor, batch, glob, null, keys);
+                    matched  += keys.size();
+                    affected += ttl<0 ? db.del(keys) : db.pexpireAt(keys, now()+ttl);
+                    Thread.yield();
+                }
+                while (0!=cursor);
+            }
+            catch (RuntimeException e) {
+                result = "failed: " + e.getMessage();
+            }
+            state = result;
+            finished = true;
+            logInfo("%s[%d]: %s %s in db %d %s: %d keys matched, %d %s",
+                    KeyJob.class.getSimpleName(), id, ttl<0 ? "delete" : "expire", pattern, db.getNumber(), state, matched, affected, ttl<0 ? "deleted" : "expired");
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public List<String> getStatus() {
+            return Arrays.asList(
+                    "id",       String.valueOf(id),
+                    "type",     ttl<0 ? "del" : "expire",
+                    "db",       String.valueOf(db.getNumber()),
+                    "pattern",  pattern,
+                    "state",    state,
+                    "matched",  String.valueOf(matched),
+                    "affected", String.valueOf(affected));
+        }
+
+        final int      id;
+        final Database db;
+        final String   pattern;
+        final Glob     glob;
+        final long     ttl;
+        final int      batch;
+        volatile String  state;
+        volatile long    matched;
+        volatile long    affected;
+        volatile boolean cancelled;
+        volatile boolean finished;
+    }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zrem(Database db, Args args) throws IOException {
-            _todo("zrem");
-        }
+    /**
+     * This class represents a single key/value pair in a Redis database along
+     * with an expiration value.
+     */
+    class Ageable {
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zremrangebylex(Database db, Args args) throws IOException {
-            _todo("zremrangebylex");
+        public Ageable(Object value) {
+            this.value = value;
+            this.expires = -1;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zremrangebyrank(Database db, Args args) throws IOException {
-            _todo("zremrangebyrank");
+        public Ageable(Object value, Long expires) {
+            this.value = value;
+            this.expires = expires;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zremrangebyscore(Database db, Args args) throws IOException {
-            _todo("zremrangebyscore");
+        public <T> T get() {
+            @SuppressWarnings("unchecked")
+            T t = (T) value;
+            return t;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zrevrange(Database db, Args args) throws IOException {
-            _todo("zrevrange");
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[value=" + value + ", expires=" + expires + "]";
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zrevrangebyscore(Database db, Args args) throws IOException {
-            _todo("zrevrangebyscore");
-        }
+        long expires;
+        Object value;
+        /**
+         * Modification count, only maintained while any key of the database is watched.
+         */
+        long version;
+    }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zrevrank(Database db, Args args) throws IOException {
-            _todo("zrevrank");
-        }
+    /**
+     * This class represents a Redis sorted set. Small sets are kept packed in two parallel
+     * arrays ordered by score and member. Once they grow beyond MAX_PACKED_ENTRIES or a
+     * member exceeds MAX_PACKED_VALUE characters, they are converted to a skiplist whose
+     * links carry span counts (for O(log n) rank lookups) plus a member to node hash.
+     */
+    static class ZSet {
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zscore(Database db, Args args) throws IOException {
-            _todo("zscore");
-        }
+        static final int MAX_PACKED_ENTRIES = 128;
+        static final int MAX_PACKED_VALUE   = 64;
+        static final int MAX_LEVEL          = 32;
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zunionstore(Database db, Args args) throws IOException {
-            _todo("zunionstore");
-        }
+        static final int ZADD_NX = 1;
+        static final int ZADD_XX = 2;
+        static final int ZADD_GT = 4;
+        static final int ZADD_LT = 8;
+        static final int ZADD_CH = 16;
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void scan(Database db, Args args) throws IOException {
-            _todo("scan");
+        public ZSet() {
+            packedMembers = new String[8];
+            packedScores  = new double[8];
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void sscan(Database db, Args args) throws IOException {
-            _todo("sscan");
+        public int size() {
+            return null==dict ? packedSize : length;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void zscan(Database db, Args args) throws IOException {
-            _todo("zscan");
+        public boolean isEmpty() {
+            return 0==size();
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xinfo(Database db, Args args) throws IOException {
-            _todo("xinfo");
+        public boolean isPacked() {
+            return null==dict;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xadd(Database db, Args args) throws IOException {
-            _todo("xadd");
+        public Double score(String member) {
+            if (null==dict) {
+                int i = packedIndexOf(member);
+                return i<0 ? null : packedScores[i];
+            }
+            Node n = dict.get(member);
+            return null==n ? null : n.score;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xtrim(Database db, Args args) throws IOException {
-            _todo("xtrim");
-        }
+        /**
+         * Adds member with score or moves an existing member to its new score.
+         * @return true if the member was newly added
+         */
+        public boolean add(String member, double score) {
+            if (null==dict && (packedSize>=MAX_PACKED_ENTRIES || member.length()>MAX_PACKED_VALUE)) {
+                if (packedIndexOf(member)<0) {
+                    convertToSkiplist();
+                }
+            }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xdel(Database db, Args args) throws IOException {
-            _todo("xdel");
-        }
+            if (null==dict) {
+                int i = packedIndexOf(member);
+                if (i>=0) {
+                    if (packedScores[i]==score) {
+                        return false;
+                    }
+                    packedRemoveAt(i);
+                }
+                packedInsert(member, score);
+                return i<0;
+            }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xrange(Database db, Args args) throws IOException {
-            _todo("xrange");
+            Node n = dict.get(member);
+            if (null!=n) {
+                if (n.score==score) {
+                    return false;
+                }
+                zslDelete(n.score, member);
+            }
+            else {
+                index.add(member);
+            }
+            dict.put(member, zslInsert(member, score));
+            return null==n;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xrevrange(Database db, Args args) throws IOException {
-            _todo("xrevrange");
+        public boolean remove(String member) {
+            if (null==dict) {
+                int i = packedIndexOf(member);
+                if (i<0) {
+                    return false;
+                }
+                packedRemoveAt(i);
+                return true;
+            }
+            Node n = dict.remove(member);
+            if (null==n) {
+                return false;
+            }
+            zslDelete(n.score, member);
+            index.remove(member);
+            return true;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xlen(Database db, Args args) throws IOException {
-            _todo("xlen");
+        /**
+         * @return the next cursor, packed sets are returned at once with cursor 0
+         */
+        public long scan(long cursor, int count, List<String> members) {
+            if (null==dict) {
+                members.addAll(Arrays.asList(packedMembers).subList(0, packedSize));
+                return 0;
+            }
+            return index.scan(cursor, count, members);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xread(Database db, Args args) throws IOException {
-            _todo("xread");
+        /**
+         * @return the 0-based rank of member in ascending order or -1 if not present.
+         */
+        public int rank(String member) {
+            if (null==dict) {
+                return packedIndexOf(member);
+            }
+            Node n = dict.get(member);
+            return null==n ? -1 : zslGetRank(n.score, member)-1;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xgroup(Database db, Args args) throws IOException {
-            _todo("xgroup");
+        /**
+         * Returns the elements with ranks start to stop, both inclusive and already normalized.
+         */
+        public List<Node> range(int start, int stop) {
+            List<Node> list = new ArrayList<Node>(Math.max(0, stop-start+1));
+            if (start>stop || start>=size()) {
+                return list;
+            }
+            if (null==dict) {
+                for (int i=start; i<=stop; i++) {
+                    list.add(new Node(packedMembers[i], packedScores[i], 0));
+                }
+                return list;
+            }
+            Node n = zslGetElementByRank(start+1);
+            for (int i=start; i<=stop && null!=n; i++) {
+                list.add(n);
+                n = n.forward[0];
+            }
+            return list;
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xreadgroup(Database db, Args args) throws IOException {
-            _todo("xreadgroup");
+        public List<Node> rangeByScore(ScoreRange r, boolean reverse, int offset, int count) {
+            int first = countBelow(r.min, r.minEx);
+            int last  = countBelow(r.max, !r.maxEx)-1;
+            return slice(first, last, reverse, offset, count);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xack(Database db, Args args) throws IOException {
-            _todo("xack");
+        public List<Node> rangeByLex(LexRange r, boolean reverse, int offset, int count) {
+            if (r.empty) {
+                return new ArrayList<Node>();
+            }
+            int first = null==r.min ? 0 : countBelowLex(r.min, r.minEx);
+            int last  = (null==r.max ? size() : countBelowLex(r.max, !r.maxEx))-1;
+            return slice(first, last, reverse, offset, count);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xclaim(Database db, Args args) throws IOException {
-            _todo("xclaim");
+        public int count(ScoreRange r) {
+            int first = countBelow(r.min, r.minEx);
+            int last  = countBelow(r.max, !r.maxEx)-1;
+            return Math.max(0, last-first+1);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void xpending(Database db, Args args) throws IOException {
-            _todo("xpending");
+        public int lexCount(LexRange r) {
+            if (r.empty) {
+                return 0;
+            }
+            int first = null==r.min ? 0 : countBelowLex(r.min, r.minEx);
+            int last  = (null==r.max ? size() : countBelowLex(r.max, !r.maxEx))-1;
+            return Math.max(0, last-first+1);
         }
 
-        @CommandMethod(args = {}, since="1.0.0")
-        protected void latency(Database db, Args args) throws IOException {
-            _todo("latency");
+        /**
+         * Number of elements whose score is lower than (or equal to, if inclusive) score,
+         * which also is the rank of the first element not matching that condition.
+         */
+        public int countBelow(double score, boolean inclusive) {
+            if (null==dict) {
+                int lo = 0, hi = packedSize;
+                while (lo<hi) {
+                    int mid = (lo+hi)>>>1;
+                    double s = packedScores[mid];
+                    if (inclusive ? s<=score : s<score) lo = mid+1; else hi = mid;
+                }
+                return lo;
+            }
+            Node x = header;
+            int rank = 0;
+            for (int i=level-1; i>=0; i--) {
+                while (null!=x.forward[i] && (inclusive ? x.forward[i].score<=score : x.forward[i].score<score)) {
+                    rank += x.span[i];
+                    x = x.forward[i];
+                }
+            }
+            return rank;
         }
 
         /**
-         * This method is a placeholder for any method corresponding to a Redis command
-         * not (yet) implemented/supported.
-         * @param cmd
-         * @throws IOException
+         * Like countBelow but comparing members, assuming all elements share the same score.
          */
-        protected void _todo(String cmd) throws IOException {
-            writer.sendError("TODO", "Command '%s' not yet implemented", cmd);
+        public int countBelowLex(String member, boolean inclusive) {
+            if (null==dict) {
+                int lo = 0, hi = packedSize;
+                while (lo<hi) {
+                    int mid = (lo+hi)>>>1;
+                    int c = packedMembers[mid].compareTo(member);
+                    if (inclusive ? c<=0 : c<0) lo = mid+1; else hi = mid;
+                }
+                return lo;
+            }
+            Node x = header;
+            int rank = 0;
+            for (int i=level-1; i>=0; i--) {
+                while (null!=x.forward[i]) {
+                    int c = x.forward[i].member.compareTo(member);
+                    if (inclusive ? c>0 : c>=0) {
+                        break;
+                    }
+                    rank += x.span[i];
+                    x = x.forward[i];
+                }
+            }
+            return rank;
         }
 
-        protected void kill() {
-            try {
-                socket.close();
-                socket = null;
+        /**
+         * Cuts offset and count out of the ranks first to last, walking backwards if reverse.
+         */
+        List<Node> slice(int first, int last, boolean reverse, int offset, int count) {
+            if (first>last || offset<0) {
+                return new ArrayList<Node>();
             }
-            catch (Exception e) {
-                logError("%s[%d]: kill: %s, ", getClass().getSimpleName(), port, e);
+            if (count<0) {
+                count = Integer.MAX_VALUE;
             }
+            if (!reverse) {
+                long stop = Math.min((long)last, (long)first+offset+count-1);
+                return range(first+offset, (int)stop);
+            }
+            long start = Math.max((long)first, (long)last-offset-count+1);
+            List<Node> list = range((int)start, last-offset);
+            Collections.reverse(list);
+            return list;
         }
 
-        protected boolean hasAddr(String ipPort) {
-            String actual = socket.getRemoteSocketAddress().toString();
-            if (actual.startsWith("/")) {
-                actual = actual.substring(1);
+        public int removeAll(List<Node> nodes) {
+            int count = 0;
+            for (Node n : nodes) {
+                if (remove(n.member)) {
+                    count++;
+                }
             }
-            return ipPort.equals(actual);
+            return count;
         }
 
-        protected long clientId() {
-            return Thread.currentThread().getId();
+        private int packedIndexOf(String member) {
+            for (int i=0; i<packedSize; i++) {
+                if (packedMembers[i].equals(member)) {
+                    return i;
+                }
+            }
+            return -1;
         }
 
-        protected void assertArgCount(List<String> args, int expected) throws WrongNumberOfArgsException {
-            if (null==args || args.size()!=expected) {
-                throw new WrongNumberOfArgsException();
+        private void packedInsert(String member, double score) {
+            int lo = 0, hi = packedSize;
+            while (lo<hi) {
+                int mid = (lo+hi)>>>1;
+                if (compare(packedScores[mid], packedMembers[mid], score, member)<0) lo = mid+1; else hi = mid;
+            }
+            if (packedSize==packedMembers.length) {
+                int capacity = Math.min(MAX_PACKED_ENTRIES, 2*packedSize);
+                packedMembers = Arrays.copyOf(packedMembers, capacity);
+                packedScores  = Arrays.copyOf(packedScores, capacity);
             }
+            System.arraycopy(packedMembers, lo, packedMembers, lo+1, packedSize-lo);
+            System.arraycopy(packedScores,  lo, packedScores,  lo+1, packedSize-lo);
+            packedMembers[lo] = member;
+            packedScores[lo]  = score;
+            packedSize++;
         }
 
-        protected Database getSelectedDb() {
-            return RedisServer.this.getDb(selectedDb);
+        private void packedRemoveAt(int i) {
+            System.arraycopy(packedMembers, i+1, packedMembers, i, packedSize-i-1);
+            System.arraycopy(packedScores,  i+1, packedScores,  i, packedSize-i-1);
+            packedMembers[--packedSize] = null;
         }
 
-        protected Long toLong(String s) {
-            return null==s ? null : Long.parseLong(s);
+        private void convertToSkiplist() {
+            dict   = new HashMap<String, Node>();
+            index  = new ScanTable();
+            header = new Node(null, 0, MAX_LEVEL);
+            level  = 1;
+            length = 0;
+            for (int i=0; i<packedSize; i++) {
+                dict.put(packedMembers[i], zslInsert(packedMembers[i], packedScores[i]));
+                index.add(packedMembers[i]);
+            }
+            packedMembers = null;
+            packedScores  = null;
+            packedSize    = 0;
         }
 
-        protected Integer toInt(String s) {
-            return null==s ? null : Integer.parseInt(s);
+        private static int compare(double s1, String m1, double s2, String m2) {
+            if (s1<s2) return -1;
+            if (s1>s2) return 1;
+            return m1.compareTo(m2);
         }
 
-        protected Double toDouble(String s) {
-            return null==s ? null : Double.parseDouble(s);
+        private int randomLevel() {
+            int lvl = 1;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (lvl<MAX_LEVEL && random.nextInt(4)==0) {
+                lvl++;
+            }
+            return lvl;
         }
 
-        protected String lastCommand;
+        private Node zslInsert(String member, double score) {
+            Node[] update = new Node[MAX_LEVEL];
+            int[]  rank   = new int[MAX_LEVEL];
 
-        protected String clientName;
-        protected int selectedDb;
-        protected RESPReader reader;
-        protected long started;
+            Node x = header;
+            for (int i=level-1; i>=0; i--) {
+                rank[i] = i==level-1 ? 0 : rank[i+1];
+                while (null!=x.forward[i] && compare(x.forward[i].score, x.forward[i].member, score, member)<0) {
+                    rank[i] += x.span[i];
+                    x = x.forward[i];
+                }
+                update[i] = x;
+            }
 
-        protected RESPWriter writer;
-        protected Socket socket;
-    }
+            int lvl = randomLevel();
+            if (lvl>level) {
+                for (int i=level; i<lvl; i++) {
+                    rank[i]   = 0;
+                    update[i] = header;
+                    header.span[i] = length;
+                }
+                level = lvl;
+            }
 
-    /**
-     * This class implements the reading part of the RESP protocol, @see https://redis.io/topics/protocol
-     */
-    public static class RESPReader {
+            x = new Node(member, score, lvl);
+            for (int i=0; i<lvl; i++) {
+                x.forward[i] = update[i].forward[i];
+                update[i].forward[i] = x;
+                x.span[i] = update[i].span[i]-(rank[0]-rank[i]);
+                update[i].span[i] = (rank[0]-rank[i])+1;
+            }
+            for (int i=lvl; i<level; i++) {
+                update[i].span[i]++;
+            }
 
-        private int localPort;
-        public RESPReader(InputStream is) throws IOException {
-            this.br = new BufferedReader(new InputStreamReader(is));
-            this.socket = null;
+            x.backward = update[0]==header ? null : update[0];
+            if (null!=x.forward[0]) {
+                x.forward[0].backward = x;
+            }
+            else {
+                tail = x;
+            }
+            length++;
+            return x;
         }
 
-        public RESPReader(Socket socket) throws IOException {
-            this(socket.getInputStream());
-            this.socket = socket;
-            this.localPort = socket.getLocalPort();
-        }
+        private void zslDelete(double score, String member) {
+            Node[] update = new Node[MAX_LEVEL];
+            Node x = header;
+            for (int i=level-1; i>=0; i--) {
+                while (null!=x.forward[i] && compare(x.forward[i].score, x.forward[i].member, score, member)<0) {
+                    x = x.forward[i];
+                }
+                update[i] = x;
+            }
 
-        public RESPReader withNonStandard(boolean b) {
-            nonStandard = b;
-            return this;
+            x = x.forward[0];
+            if (null==x || x.score!=score || !x.member.equals(member)) {
+                return;
+            }
+
+            for (int i=0; i<level; i++) {
+                if (update[i].forward[i]==x) {
+                    update[i].span[i] += x.span[i]-1;
+                    update[i].forward[i] = x.forward[i];
+                }
+                else {
+                    update[i].span[i]--;
+                }
+            }
+            if (null!=x.forward[0]) {
+                x.forward[0].backward = x.backward;
+            }
+            else {
+                tail = x.backward;
+            }
+            while (level>1 && null==header.forward[level-1]) {
+                level--;
+            }
+            length--;
         }
 
-        public Object readStringOrList() throws IOException {
+        private int zslGetRank(double score, String member) {
+            Node x = header;
+            int rank = 0;
+            for (int i=level-1; i>=0; i--) {
+                while (null!=x.forward[i] && compare(x.forward[i].score, x.forward[i].member, score, member)<=0) {
+                    rank += x.span[i];
+                    x = x.forward[i];
+                }
+                if (x!=header && x.member.equals(member)) {
+                    return rank;
+                }
+            }
+            return 0;
+        }
 
-            String line = br.readLine();
-            if (line.startsWith("+")) {
-                return line.substring(1);
+        private Node zslGetElementByRank(int rank) {
+            Node x = header;
+            int traversed = 0;
+            for (int i=level-1; i>=0; i--) {
+                while (null!=x.forward[i] && traversed+x.span[i]<=rank) {
+                    traversed += x.span[i];
+                    x = x.forward[i];
+                }
+                if (traversed==rank) {
+                    return x;
+                }
             }
+            return null;
+        }
 
-            int count = Integer.parseInt(line.substring(1));
-            if (line.startsWith("$")) {
-                char[] cbuf = new char[count];
-                readComplete(cbuf);
-                readCrLf();
-                return new String(cbuf);
+        public static double parseScore(String s) {
+            if ("inf".equalsIgnoreCase(s) || "+inf".equalsIgnoreCase(s)) {
+                return Double.POSITIVE_INFINITY;
             }
-            else if (line.startsWith("*")) {
-                return readList(count);
+            if ("-inf".equalsIgnoreCase(s)) {
+                return Double.NEGATIVE_INFINITY;
             }
-            else if (line.startsWith("#") && nonStandard) {
-                return readHash(count);
+            double d = Double.parseDouble(s);
+            if (Double.isNaN(d)) {
+                throw new NumberFormatException("NaN");
             }
-            else if (line.startsWith("%") && nonStandard) {
-                return readSet(count);
+            return d;
+        }
+
+        public static String formatScore(double d) {
+            if (Double.isInfinite(d)) {
+                return d>0 ? "inf" : "-inf";
             }
-            throw new RESPException("Expected character out of ['$','*','#','%'] but found " + truncateString(line));
+            if (d==Math.rint(d) && Math.abs(d)<1e17) {
+                return Long.toString((long)d);
+            }
+            return Double.toString(d);
         }
 
-        public String readString() throws IOException {
+        /**
+         * A single element of a sorted set. In skiplist encoding this also is the skiplist node.
+         */
+        static final class Node {
 
-            String line = br.readLine();
-            if (null==line) {
-                return null; // EOF
+            Node(String member, double score, int levels) {
+                this.member  = member;
+                this.score   = score;
+                this.forward = new Node[levels];
+                this.span    = new int[levels];
             }
 
-            if (!line.startsWith("$")) {
-                throw new RESPException("Expected $ but got " + truncateString(line));
+            public String getMember() {
+                return member;
             }
 
-            int length = Integer.parseInt(line.substring(1));
-            String s = readString(length);
-            return s;
+            public double getScore() {
+                return score;
+            }
+
+            final String member;
+            final double score;
+            final Node[] forward;
+            final int[]  span;
+            Node backward;
         }
 
-        public Args readList() throws IOException {
+        /**
+         * A score interval as given to ZRANGEBYSCORE and friends, e.g. "(1.5" or "-inf".
+         */
+        static final class ScoreRange {
 
-            String line = br.readLine();
-            if (null==line) {
-                SocketAddress addr = null==socket ? null :  socket.getRemoteSocketAddress();
-                String cause = String.format("RESPReader[%d]: client disconnected %s", localPort, addr);
-                onError(cause);
-                return null; // EOF
+            ScoreRange(String min, String max) {
+                this.minEx = min.startsWith("(");
+                this.maxEx = max.startsWith("(");
+                this.min   = parseScore(minEx ? min.substring(1) : min);
+                this.max   = parseScore(maxEx ? max.substring(1) : max);
             }
 
-            if (line.startsWith("-")) {
-                throw new RESPException("Error: " + line);
+            ScoreRange(double min, boolean minEx, double max, boolean maxEx) {
+                this.min   = min;
+                this.minEx = minEx;
+                this.max   = max;
+                this.maxEx = maxEx;
             }
 
-            if (!line.startsWith("*")) {
-                throw new RESPException("Expected * but got " + truncateString(line));
+            final double  min;
+            final double  max;
+            final boolean minEx;
+            final boolean maxEx;
+        }
+
+        /**
+         * A lexicographical interval as given to ZRANGEBYLEX, e.g. "[a", "(b", "-" or "+".
+         * A null min or max means unbounded.
+         */
+        static final class LexRange {
+
+            LexRange(String min, String max) {
+                this.empty = "+".equals(min) || "-".equals(max);
+                this.minEx = min.startsWith("(");
+                this.maxEx = max.startsWith("(");
+                this.min   = empty || "-".equals(min) ? null : parse(min);
+                this.max   = empty || "+".equals(max) ? null : parse(max);
             }
 
-            int count = Integer.parseInt(line.substring(1));
-            Args list = readList(count);
-            return list;
+            private static String parse(String bound) {
+                if (!bound.startsWith("(") && !bound.startsWith("[")) {
+                    throw new IllegalArgumentException("min or max not valid string range item");
+                }
+                return bound.substring(1);
+            }
+
+            final String  min;
+            final String  max;
+            final boolean minEx;
+            final boolean maxEx;
+            final boolean empty;
         }
 
-        protected void onError(String cause) {
+        private String[] packedMembers;
+        private double[] packedScores;
+        private int      packedSize;
+
+        private HashMap<String, Node> dict;
+        private ScanTable index;
+        private Node header;
+        private Node tail;
+        private int  length;
+        private int  level;
+    }
+
+    /**
+     * Geohash helpers for the GEO commands. Coordinates are stored as 52 bit scores of a sorted
+     * set, interleaving 26 bits of latitude and longitude, so that each geohash cell covers a
+     * contiguous score range. A radius or box search estimates the cell size from the radius,
+     * and only scans the ranges of the cell containing the center and its 8 neighbours.
+     */
+    static class GeoHash {
+
+        static final double LON_MIN      = -180;
+        static final double LON_MAX      = 180;
+        static final double LAT_MIN      = -85.05112878;
+        static final double LAT_MAX      = 85.05112878;
+        static final int    STEP_MAX     = 26;
+        static final double EARTH_RADIUS = 6372797.560856;
+        static final double MERCATOR_MAX = 20037726.37;
+        static final String ALPHABET     = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+        static boolean isValid(double lon, double lat) {
+            return lon>=LON_MIN && lon<=LON_MAX && lat>=LAT_MIN && lat<=LAT_MAX;
         }
 
-        public Long readNumber() throws IOException {
-            String line = br.readLine();
-            if (!line.startsWith(":")) {
-                throw new RESPException("Expected : but got " + truncateString(line));
-            }
-            long number = Long.parseLong(line.substring(1));
-            return number;
+        static long encode(double lon, double lat, int step) {
+            return encode(lon, lat, step, LAT_MIN, LAT_MAX);
         }
 
-        protected Args readList(int count) throws IOException {
-            Args list = new Args();
-            for (int i=0; i<count; i++) {
-                String s = readString();
-                list.add(s);
-            }
-            return list;
+        static long encode(double lon, double lat, int step, double latMin, double latMax) {
+            double latOffset = (lat-latMin)/(latMax-latMin)*(1L<<step);
+            double lonOffset = (lon-LON_MIN)/(LON_MAX-LON_MIN)*(1L<<step);
+            return interleave((long)latOffset & 0xffffffffL, (long)lonOffset & 0xffffffffL);
         }
 
-        protected Hash readHash(int count) throws IOException {
-            Hash hash = new Hash(count);
-            for (int i=0; i<count; i+=2) {
-                String key  = readString();
-                String value = readString();
-                hash.put(key, value);
-            }
-            return hash;
+        /**
+         * @return the area of the cell as {lonMin, latMin, lonMax, latMax}.
+         */
+        static double[] decode(long bits, int step) {
+            long   separated = deinterleave(bits);
+            long   lat       = separated & 0xffffffffL;
+            long   lon       = separated>>>32;
+            double cells     = 1L<<step;
+            return new double[] {
+                LON_MIN+(lon/cells)*(LON_MAX-LON_MIN),
+                LAT_MIN+(lat/cells)*(LAT_MAX-LAT_MIN),
+                LON_MIN+((lon+1)/cells)*(LON_MAX-LON_MIN),
+                LAT_MIN+((lat+1)/cells)*(LAT_MAX-LAT_MIN)
+            };
         }
 
-        protected _Set readSet(int count) throws IOException {
-            _Set hash = new _Set(count);
-            for (int i=0; i<count; i++) {
-                String value = readString();
-                hash.add(value);
+        /**
+         * @return the center of the cell of a score as {lon, lat}.
+         */
+        static double[] decodeScore(double score) {
+            double[] area = decode((long)score, STEP_MAX);
+            double lon = Math.max(LON_MIN, Math.min(LON_MAX, (area[0]+area[2])/2));
+            double lat = Math.max(LAT_MIN, Math.min(LAT_MAX, (area[1]+area[3])/2));
+            return new double[] { lon, lat };
+        }
+
+        /**
+         * @return the standard 11 character geohash of a score, which uses a latitude range
+         * of +/-90 degrees, unlike the scores.
+         */
+        static String toString(double score) {
+            double[] xy = decodeScore(score);
+            long bits = encode(xy[0], xy[1], STEP_MAX, -90, 90);
+            char[] chars = new char[11];
+            for (int i=0; i<chars.length; i++) {
+                // Only 52 bits are available, the last character is always 0.
+                int index = 10==i ? 0 : (int)(bits>>>(52-(i+1)*5)) & 0x1f;
+                chars[i] = ALPHABET.charAt(index);
             }
-            return hash;
+            return new String(chars);
         }
 
-        protected String truncateString(String s) {
-            if (s.length()>200) s = s.substring(0,200);
-            s = s.replace("\r", "\\r");
-            s = s.replace("\n", "\\n");
-            return s;
+        static double distance(double lon1, double lat1, double lon2, double lat2) {
+            double v = Math.sin((Math.toRadians(lon2)-Math.toRadians(lon1))/2);
+            if (0==v) {
+                return latDistance(lat1, lat2);
+            }
+            double lat1r = Math.toRadians(lat1);
+            double lat2r = Math.toRadians(lat2);
+            double u = Math.sin((lat2r-lat1r)/2);
+            double a = u*u+Math.cos(lat1r)*Math.cos(lat2r)*v*v;
+            return 2*EARTH_RADIUS*Math.asin(Math.sqrt(a));
         }
 
-        protected String readString(int length) throws IOException {
-            char[] cbuf = new char[length];
-            readComplete(cbuf);
-            readCrLf();
+        static double latDistance(double lat1, double lat2) {
+            return EARTH_RADIUS*Math.abs(Math.toRadians(lat2)-Math.toRadians(lat1));
+        }
 
-            String s = new String(cbuf);
-            return s;
+        /**
+         * @return the coarsest step whose cells, together with their neighbours, still cover
+         * a circle of the given radius.
+         */
+        static int estimateSteps(double radius, double lat) {
+            if (0==radius) {
+                return STEP_MAX;
+            }
+            int step = 1;
+            while (radius<MERCATOR_MAX) {
+                radius *= 2;
+                step++;
+            }
+            step -= 2;
+            // Cells get narrower towards the poles.
+            if (lat>66 || lat<-66) {
+                step--;
+                if (lat>80 || lat<-80) {
+                    step--;
+                }
+            }
+            return Math.max(1, Math.min(STEP_MAX, step));
         }
 
-        protected void readComplete(char[] cbuf) throws IOException {
+        static long moveX(long bits, int step, int d) {
+            long x  = bits & 0xaaaaaaaaaaaaaaaaL;
+            long y  = bits & 0x5555555555555555L;
+            long zz = 0x5555555555555555L>>>(64-step*2);
+            if (d>0) {
+                x = x+(zz+1);
+            }
+            else {
+                x = (x | zz)-(zz+1);
+            }
+            x &= 0xaaaaaaaaaaaaaaaaL>>>(64-step*2);
+            return x | y;
+        }
 
-            int length = cbuf.length;
-            int count  = 0;
-            while (count<cbuf.length) {
+        static long moveY(long bits, int step, int d) {
+            long x  = bits & 0xaaaaaaaaaaaaaaaaL;
+            long y  = bits & 0x5555555555555555L;
+            long zz = 0xaaaaaaaaaaaaaaaaL>>>(64-step*2);
+            if (d>0) {
+                y = y+(zz+1);
+            }
+            else {
+                y = (y | zz)-(zz+1);
+            }
+            y &= 0x5555555555555555L>>>(64-step*2);
+            return x | y;
+        }
+
+        private static long interleave(long x, long y) {
+            x = (x | (x<<16)) & 0x0000ffff0000ffffL;
+            x = (x | (x<<8))  & 0x00ff00ff00ff00ffL;
+            x = (x | (x<<4))  & 0x0f0f0f0f0f0f0f0fL;
+            x = (x | (x<<2))  & 0x3333333333333333L;
+            x = (x | (x<<1))  & 0x5555555555555555L;
+            y = (y | (y<<16)) & 0x0000ffff0000ffffL;
+            y = (y | (y<<8))  & 0x00ff00ff00ff00ffL;
+            y = (y | (y<<4))  & 0x0f0f0f0f0f0f0f0fL;
+            y = (y | (y<<2))  & 0x3333333333333333L;
+            y = (y | (y<<1))  & 0x5555555555555555L;
+            return x | (y<<1);
+        }
+
+        private static long deinterleave(long bits) {
+            long x = bits;
+            long y = bits>>>1;
+            x = x & 0x5555555555555555L;
+            x = (x | (x>>>1))  & 0x3333333333333333L;
+            x = (x | (x>>>2))  & 0x0f0f0f0f0f0f0f0fL;
+            x = (x | (x>>>4))  & 0x00ff00ff00ff00ffL;
+            x = (x | (x>>>8))  & 0x0000ffff0000ffffL;
+            x = (x | (x>>>16)) & 0x00000000ffffffffL;
+            y = y & 0x5555555555555555L;
+            y = (y | (y>>>1))  & 0x3333333333333333L;
+            y = (y | (y>>>2))  & 0x0f0f0f0f0f0f0f0fL;
+            y = (y | (y>>>4))  & 0x00ff00ff00ff00ffL;
+            y = (y | (y>>>8))  & 0x0000ffff0000ffffL;
+            y = (y | (y>>>16)) & 0x00000000ffffffffL;
+            return x | (y<<32);
+        }
 
-                int read = br.read(cbuf, count, length-count);
-                if (read>0) {
-                    count+=read;
+        /**
+         * The area of a GEORADIUS or GEOSEARCH query, either a circle or a box around its
+         * center. Sizes are in meters, conversion is the number of meters of the unit given
+         * by the client.
+         */
+        static class Shape {
+
+            double  lon;
+            double  lat;
+            boolean box;
+            double  radius;
+            double  width;
+            double  height;
+            double  conversion = 1;
+
+            /**
+             * @return the distance of the point to the center or -1 if it is outside the shape.
+             */
+            double distance(double lon, double lat) {
+                if (!box) {
+                    double d = GeoHash.distance(this.lon, this.lat, lon, lat);
+                    return d>radius ? -1 : d;
                 }
-                else if (read<0) {
-                    break;
+                // The latitude distance is cheaper, so it is checked first.
+                if (latDistance(lat, this.lat)>height/2) {
+                    return -1;
                 }
-            }
-            if (count!=length) {
-                throw new IOException("Incomplete read. Expected " + length + " bytes but actually got only " + count);
+                if (GeoHash.distance(lon, lat, this.lon, lat)>width/2) {
+                    return -1;
+                }
+                return GeoHash.distance(this.lon, this.lat, lon, lat);
+            }
+
+            /**
+             * @return {lonMin, latMin, lonMax, latMax} of a box enclosing the shape.
+             */
+            double[] bounds() {
+                double h = box ? height/2 : radius;
+                double w = box ? width/2  : radius;
+                double latDelta    = Math.toDegrees(h/EARTH_RADIUS);
+                double lonDeltaTop = Math.toDegrees(w/EARTH_RADIUS/Math.cos(Math.toRadians(lat+latDelta)));
+                double lonDeltaBot = Math.toDegrees(w/EARTH_RADIUS/Math.cos(Math.toRadians(lat-latDelta)));
+                double lonDelta    = lat<0 ? lonDeltaBot : lonDeltaTop;
+                return new double[] { lon-lonDelta, lat-latDelta, lon+lonDelta, lat+latDelta };
+            }
+
+            /**
+             * @return the score ranges [min, max) of the cell containing the center and its
+             * neighbours that intersect the shape, without duplicates.
+             */
+            List<double[]> ranges() {
+                double   r      = box ? Math.sqrt(width*width/4+height*height/4) : radius;
+                double[] bounds = bounds();
+                int      step   = estimateSteps(r, lat);
+                long     bits   = encode(lon, lat, step);
+
+                // At the edges of the center cell the estimated step may be too coarse for the
+                // neighbours to cover the whole shape.
+                if (step>1) {
+                    double[] north = decode(moveY(bits, step, 1), step);
+                    double[] south = decode(moveY(bits, step, -1), step);
+                    double[] east  = decode(moveX(bits, step, 1), step);
+                    double[] west  = decode(moveX(bits, step, -1), step);
+                    if (GeoHash.distance(lon, lat, lon, north[3])<r || GeoHash.distance(lon, lat, lon, south[1])<r
+                            || GeoHash.distance(lon, lat, east[2], lat)<r || GeoHash.distance(lon, lat, west[0], lat)<r) {
+                        step--;
+                        bits = encode(lon, lat, step);
+                    }
+                }
+
+                double[] area = decode(bits, step);
+                boolean  cut  = step>=2;
+                // Neighbours beyond a side of the shape the center cell already exceeds are skipped.
+                boolean  n    = cut && area[3]>bounds[3];
+                boolean  s    = cut && area[1]<bounds[1];
+                boolean  e    = cut && area[2]>bounds[2];
+                boolean  w    = cut && area[0]<bounds[0];
+
+                // Same order as Redis, so that unsorted replies match.
+                List<Long> cells = new ArrayList<Long>(9);
+                cells.add(bits);
+                if (!n)      cells.add(moveY(bits, step, 1));
+                if (!s)      cells.add(moveY(bits, step, -1));
+                if (!e)      cells.add(moveX(bits, step, 1));
+                if (!w)      cells.add(moveX(bits, step, -1));
+                if (!n && !e) cells.add(moveY(moveX(bits, step, 1), step, 1));
+                if (!n && !w) cells.add(moveY(moveX(bits, step, -1), step, 1));
+                if (!s && !e) cells.add(moveY(moveX(bits, step, 1), step, -1));
+                if (!s && !w) cells.add(moveY(moveX(bits, step, -1), step, -1));
+
+                List<double[]> ranges = new ArrayList<double[]>(cells.size());
+                Set<Long> seen = new HashSet<Long>();
+                int shift = (STEP_MAX-step)*2;
+                for (Long cell : cells) {
+                    if (seen.add(cell)) {
+                        ranges.add(new double[] { cell<<shift, (cell+1)<<shift });
+                    }
+                }
+                return ranges;
             }
         }
 
-        protected void readCrLf() throws IOException {
-            char cbuf[] = new char[2];
-            readComplete(cbuf);
-            if ('\r'!=cbuf[0]) throw new RESPException("Invalid line end");
-            if ('\n'!=cbuf[1]) throw new RESPException("Invalid line end");
-        }
+        /**
+         * A member found by a query.
+         */
+        static class Point {
 
-        private BufferedReader br;
-        private Socket socket;
-        private boolean nonStandard;
+            Point(String member, double score, double lon, double lat, double distance) {
+                this.member   = member;
+                this.score    = score;
+                this.lon      = lon;
+                this.lat      = lat;
+                this.distance = distance;
+            }
 
+            final String member;
+            final double score;
+            final double lon;
+            final double lat;
+            final double distance;
+        }
     }
 
     /**
-     * This class implements the writing part of the RESP protocol, @see https://redis.io/topics/protocol
+     * This class represents a Redis stream. Entries are appended to macro-nodes of up to
+     * NODE_MAX_ENTRIES entries, which store their IDs as deltas to the ID of their first
+     * entry and only the values of entries having the same fields as the first entry. The
+     * nodes are indexed by the ID of their first entry, so that appending is O(1) and
+     * locating the start of a range is O(log n). Deleted entries are only flagged, a node
+     * is dropped once all its entries are deleted or trimmed.
      */
-    public static class RESPWriter {
-
-        public RESPWriter(Socket socket) throws IOException {
-            this(socket.getOutputStream());
-            this.socket = socket;
-        }
+    public static class Stream {
 
-        public RESPWriter(OutputStream output) {
-            this.output = output;
-        }
+        static final int NODE_MAX_ENTRIES = 100;
 
-        public void flush() throws IOException {
-            output.flush();
+        public Stream() {
+            nodes  = new TreeMap<ID, Node>();
+            lastId = ID.MIN;
         }
 
-        public void write(byte[] data) throws IOException {
-            output.write(data);
+        public long size() {
+            return length;
         }
 
-        public void sendReply(StringBuilder sb) throws IOException {
-            String string = sb.toString();
-            byte[] data = string.getBytes(StandardCharsets.UTF_8);
-
-            String lenStr = String.format("$%d\r\n", data.length);
-
-            output.write(lenStr.getBytes());
-            output.write(data);
-            output.write(CRLF_BYTES);
-            output.flush();
+        public ID getLastId() {
+            return lastId;
         }
 
-        public void sendArray(String ... strings) throws IOException {
-            sendArrayLength(strings.length);
-            for (String s : strings) {
-                sendString(s);
+        /**
+         * Restores the last ID, which may be greater than the ID of the last entry.
+         */
+        public void setLastId(ID id) {
+            if (id.compareTo(lastId)>0) {
+                lastId = id;
             }
         }
 
-        public void sendHash(Hash hash) throws IOException {
-            sendHashLength(hash.size());
-            for (Entry<String, String> e : hash.entrySet()) {
-                sendString(e.getKey());
-                sendString(e.getValue());
+        /**
+         * @return the ID following last generated for ms or the current time if ms is
+         * negative, null if none is left
+         */
+        public static ID nextId(ID lastId, long ms) {
+            if (ms<0) {
+                ms = Math.max(System.currentTimeMillis(), lastId.ms);
+            }
+            if (ms>lastId.ms) {
+                return new ID(ms, 0);
+            }
+            if (ms==lastId.ms && lastId.seq!=Long.MAX_VALUE) {
+                return new ID(ms, lastId.seq+1);
             }
+            return null;
         }
 
-        public void sendSet(_Set set) throws IOException {
-            sendSetLength(set.size());
-            for (String member : set) {
-                sendString(member);
+        /**
+         * Appends an entry, its ID must be greater than the last ID.
+         */
+        public void add(ID id, String[] fieldsValues) {
+            Node tail = nodes.isEmpty() ? null : nodes.lastEntry().getValue();
+            if (null==tail || !tail.append(id, fieldsValues)) {
+                tail = new Node(id, fieldsValues);
+                tail.append(id, fieldsValues);
+                nodes.put(id, tail);
             }
+            lastId = id;
+            length++;
+            entriesAdded++;
         }
 
-        public void sendArray(Collection<String> strings) throws IOException {
-            if (null==strings) {
-                write(EMPTY_BYTES);
-                return;
+        /**
+         * @return the entries between start and end inclusive, at most count unless negative
+         */
+        public List<Entry> range(ID start, ID end, long count, boolean reverse) {
+            List<Entry> entries = new ArrayList<Entry>();
+            if (start.compareTo(end)>0 || 0==count) {
+                return entries;
+            }
+            if (!reverse) {
+                ID from = nodes.floorKey(start);
+                for (Node node : nodes.tailMap(null==from ? start : from, true).values()) {
+                    if (node.id(0).compareTo(end)>0) {
+                        break;
+                    }
+                    for (int i=0; i<node.count; i++) {
+                        if (node.isDeleted(i)) {
+                            continue;
+                        }
+                        ID id = node.id(i);
+                        if (id.compareTo(end)>0) {
+                            return entries;
+                        }
+                        if (id.compareTo(start)>=0) {
+                            entries.add(node.entry(i));
+                            if (entries.size()==count) {
+                                return entries;
+                            }
+                        }
+                    }
+                }
             }
-            sendArrayLength(strings.size());
-            for (String s : strings) {
-                if (null==s) {
-                    write(EMPTY_BYTES);
+            else {
+                for (Node node : nodes.headMap(end, true).descendingMap().values()) {
+                    for (int i=node.count-1; i>=0; i--) {
+                        if (node.isDeleted(i)) {
+                            continue;
+                        }
+                        ID id = node.id(i);
+                        if (id.compareTo(start)<0) {
+                            return entries;
+                        }
+                        if (id.compareTo(end)<=0) {
+                            entries.add(node.entry(i));
+                            if (entries.size()==count) {
+                                return entries;
+                            }
+                        }
+                    }
                 }
-                else {
-                    sendString(s);
+            }
+            return entries;
+        }
+
+        public Entry get(ID id) {
+            Map.Entry<ID, Node> e = nodes.floorEntry(id);
+            if (null!=e) {
+                int i = e.getValue().indexOf(id);
+                if (i>=0) {
+                    return e.getValue().entry(i);
                 }
             }
+            return null;
         }
 
-        public void sendArrayLength(int len) throws IOException {
-            output.write(("*" + len).getBytes());
-            output.write(CRLF_BYTES);
+        /**
+         * @return true if the entry existed
+         */
+        public boolean delete(ID id) {
+            Map.Entry<ID, Node> e = nodes.floorEntry(id);
+            if (null==e) {
+                return false;
+            }
+            Node node = e.getValue();
+            int i = node.indexOf(id);
+            if (i<0) {
+                return false;
+            }
+            node.delete(i);
+            length--;
+            if (id.compareTo(maxDeletedId)>0) {
+                maxDeletedId = id;
+            }
+            if (0==node.live) {
+                nodes.remove(e.getKey());
+            }
+            return true;
         }
 
-        public void sendHashLength(int len) throws IOException {
-            output.write(("#" + len).getBytes());
-            output.write(CRLF_BYTES);
+        /**
+         * Removes entries from the head of the stream, either beyond the maximum length or
+         * with lower IDs than the minimum ID. An approximate trim only drops whole nodes.
+         * @return the number of entries removed
+         */
+        public long trim(Trim trim) {
+            long maxLen  = trim.maxLen;
+            ID   minId   = trim.minId;
+            boolean approx = trim.approx;
+            long limit   = trim.limit;
+            long removed = 0;
+            if (maxLen<0 && null==minId) {
+                return 0;
+            }
+            while (!nodes.isEmpty()) {
+                Map.Entry<ID, Node> first = nodes.firstEntry();
+                Node node = first.getValue();
+                boolean whole = null==minId ? length-node.live>=maxLen : node.id(node.count-1).compareTo(minId)<0;
+                if (whole) {
+                    if (limit>=0 && removed+node.live>limit) {
+                        break;
+                    }
+                    for (int i=0; i<node.count; i++) {
+                        if (!node.isDeleted(i)) {
+                            ID id = node.id(i);
+                            if (id.compareTo(maxDeletedId)>0) {
+                                maxDeletedId = id;
+                            }
+                        }
+                    }
+                    removed += node.live;
+                    length  -= node.live;
+                    nodes.remove(first.getKey());
+                    continue;
+                }
+                if (approx) {
+                    break;
+                }
+                for (int i=0; i<node.count; i++) {
+                    if (node.isDeleted(i)) {
+                        continue;
+                    }
+                    boolean drop = null==minId ? length>maxLen : node.id(i).compareTo(minId)<0;
+                    if (!drop || (limit>=0 && removed>=limit)) {
+                        break;
+                    }
+                    delete(node.id(i));
+                    removed++;
+                }
+                break;
+            }
+            return removed;
         }
 
-        public void sendSetLength(int len) throws IOException {
-            output.write(("%" + len).getBytes());
-            output.write(CRLF_BYTES);
+        public Entry first() {
+            List<Entry> entries = range(ID.MIN, ID.MAX, 1, false);
+            return entries.isEmpty() ? null : entries.get(0);
         }
 
-        public void sendNumber(long l) throws IOException {
-            output.write((":" + l).getBytes());
-            output.write(CRLF_BYTES);
+        public Entry last() {
+            List<Entry> entries = range(ID.MIN, ID.MAX, 1, true);
+            return entries.isEmpty() ? null : entries.get(0);
         }
 
-        public void sendString(String s) throws IOException {
-            if (null==s) {
-                output.write(EMPTY_BYTES);
+        /**
+         * @return the consumer group or null
+         */
+        public Group getGroup(String name) {
+            return null==groups ? null : groups.get(name);
+        }
+
+        /**
+         * @return the new group or null if it already exists
+         */
+        public Group createGroup(String name, ID lastDeliveredId) {
+            if (null==groups) {
+                groups = new LinkedHashMap<String, Group>();
             }
-            else {
-                String formatted = String.format("$%d\r\n%s\r\n", s.length(), s);
-                byte[] bytes = formatted.getBytes();
-                output.write(bytes);
+            if (groups.containsKey(name)) {
+                return null;
             }
+            Group group = new Group(name, lastDeliveredId);
+            groups.put(name, group);
+            return group;
         }
 
-        public void sendError(String category, String format, Object ... args) throws IOException {
-
-            String formatted = String.format(format, args);
-            onError(CN + ".sendError: " + formatted);
-            String line = "-" + category + " " + formatted + "\r\n";
-            output.write(line.getBytes(StandardCharsets.UTF_8));
-            output.flush();
+        public boolean destroyGroup(String name) {
+            return null!=groups && null!=groups.remove(name);
         }
 
-        protected void onError(String cause) {
+        public Collection<Group> getGroups() {
+            return null==groups ? Collections.<Group>emptyList() : groups.values();
         }
 
-        public void close() throws IOException {
-            output.close();
+        public int getNodeCount() {
+            return nodes.size();
         }
 
-        private static final String CN = RESPWriter.class.getSimpleName();
-
-        @SuppressWarnings("unused")
-        private Socket socket;
-        private OutputStream output;
-    }
-
-    /**
-     * Base class for any exceptions thrown in result of a RESP protocol issue.
-     */
-    @SuppressWarnings("serial")
-    static class RESPException extends RuntimeException {
-        public RESPException(String msg) {
-            super(msg);
-        }
-        public RESPException(String msg, Throwable cause) {
-            super(msg, cause);
+        public ID getMaxDeletedId() {
+            return maxDeletedId;
         }
-    }
 
-    /**
-     * Exception thrown when a RESP command was received with a wrong number of arguments.
-     */
-    @SuppressWarnings("serial")
-    class WrongNumberOfArgsException extends RESPException {
-        public WrongNumberOfArgsException() {
-            super("Wrong number of arguments");
+        public long getEntriesAdded() {
+            return entriesAdded;
         }
-    }
 
-    /**
-     * This class implements reading and writing all databases to/from persistent storage (disk);
-     */
-    class Persistifier extends Thread {
+        /**
+         * A consumer group with its last delivered ID and the pending entries list (PEL) of
+         * entries delivered but not yet acknowledged. The PEL is indexed by ID and per
+         * consumer, so that acknowledging, claiming and range queries are O(log n).
+         */
+        public static class Group {
 
-        public Persistifier(RedisServer redisServer) {
-            this(redisServer, createWorkDir());
-        }
+            Group(String name, ID lastDeliveredId) {
+                this.name = name;
+                this.lastDeliveredId = lastDeliveredId;
+                this.pel = new TreeMap<ID, Pending>();
+                this.consumers = new LinkedHashMap<String, Consumer>();
+            }
 
-        public Persistifier(RedisServer redisServer, String dirname) {
-            super(Persistifier.class.getSimpleName());
-            super.setDaemon(true);
-            this.redisServer = redisServer;
-            this.dir = new File(dirname);
-            this.dir.mkdirs();
-        }
+            public String getName() {
+                return name;
+            }
 
-        @Override
-        public void interrupt() {
-            this.stopRequested = true;
-            super.interrupt();
-        }
+            public ID getLastDeliveredId() {
+                return lastDeliveredId;
+            }
 
-        @Override
-        public synchronized void start() {
-            this.stopRequested = false;
-            super.start();
-        }
+            public void setLastDeliveredId(ID id) {
+                lastDeliveredId = id;
+            }
 
-        @Override
-        public void run() {
+            public NavigableMap<ID, Pending> getPending() {
+                return pel;
+            }
 
-            final String info = getInfo();
+            public Collection<Consumer> getConsumers() {
+                return consumers.values();
+            }
 
-            while (!this.stopRequested) {
-                // 10 minutes:
-                sleepMillis(10*60*1000);
+            public Consumer getConsumer(String name) {
+                return consumers.get(name);
+            }
 
-                if (!stopRequested) {
-                    try {
-                        logInfo("%s: Persisting databases to disk", info);
-                        persist(databases, false);
+            /**
+             * @return the consumer, which is created if missing
+             */
+            public Consumer consumer(String name, long now) {
+                Consumer consumer = consumers.get(name);
+                if (null==consumer) {
+                    consumers.put(name, consumer = new Consumer(name, now));
+                }
+                return consumer;
+            }
+
+            /**
+             * @return the number of entries the removed consumer had pending or -1
+             */
+            public long deleteConsumer(String name) {
+                Consumer consumer = consumers.remove(name);
+                if (null==consumer) {
+                    return -1;
+                }
+                for (ID id : consumer.pending.keySet()) {
+                    pel.remove(id);
+                }
+                return consumer.pending.size();
+            }
+
+            /**
+             * Delivers entries after the last delivered ID and adds them to the PEL.
+             */
+            public List<Entry> readNew(Stream stream, Consumer consumer, long count, boolean noack, long now) {
+                ID start = lastDeliveredId.next();
+                List<Entry> entries = null==start ? new ArrayList<Entry>() : stream.range(start, ID.MAX, count, false);
+                for (Entry entry : entries) {
+                    lastDeliveredId = entry.id;
+                    if (noack) {
+                        continue;
                     }
-                    catch (Exception e) {
-                        e.printStackTrace();
+                    Pending pending = pel.get(entry.id);
+                    if (null==pending) {
+                        pending = new Pending(entry.id, consumer, now);
+                        pel.put(entry.id, pending);
+                    }
+                    else {
+                        pending.consumer.pending.remove(entry.id);
+                        pending.consumer = consumer;
+                        pending.deliveryTime  = now;
+                        pending.deliveryCount = 1;
+                    }
+                    consumer.pending.put(entry.id, pending);
+                }
+                consumer.activeTime = now;
+                return entries;
+            }
+
+            /**
+             * Delivers the entries pending for the consumer after the given ID again. Entries
+             * deleted from the stream meanwhile are returned without fields and values.
+             */
+            public List<Entry> readPending(Stream stream, Consumer consumer, ID after, long count, long now) {
+                List<Entry> entries = new ArrayList<Entry>();
+                for (Pending pending : consumer.pending.tailMap(after, false).values()) {
+                    if (entries.size()==count) {
+                        break;
                     }
+                    Entry entry = stream.get(pending.id);
+                    entries.add(null==entry ? new Entry(pending.id, null) : entry);
+                    pending.deliveryTime = now;
+                    pending.deliveryCount++;
                 }
+                return entries;
             }
 
-            logInfo("%s: terminating", info);
-        }
-
-        public Map<Integer, Database> load() throws IOException {
-
-            logInfo("%s: loading databases from %s", getInfo(), dir);
+            void restorePending(ID id, Consumer consumer, long deliveryTime, long deliveryCount) {
+                Pending pending = new Pending(id, consumer, deliveryTime);
+                pending.deliveryCount = deliveryCount;
+                pel.put(id, pending);
+                consumer.pending.put(id, pending);
+            }
 
-            Map<Integer, Database> map = new HashMap<Integer, Database>();
-            for (int num=0; num<16; num++) {
+            public boolean ack(ID id) {
+                Pending pending = pel.remove(id);
+                if (null==pending) {
+                    return false;
+                }
+                pending.consumer.pending.remove(id);
+                return true;
+            }
 
-                try {
-                    Database db = load(num);
-                    if (null!=db) {
-                        map.put(num, db);
-                        int keyCount = db.size();
-                        onDatabaseLoaded(num, keyCount, "OK");
+            /**
+             * Transfers a pending entry idle for at least minIdle ms to the consumer.
+             * @param deliveryTime the new delivery time
+             * @param retryCount the new delivery count or -1 to increment it unless justId
+             * @param force create the pending entry if missing but still in the stream
+             * @return the entry claimed or null
+             */
+            public Entry claim(Stream stream, Consumer consumer, ID id, long minIdle, long now, long deliveryTime, long retryCount, boolean force, boolean justId) {
+                Pending pending = pel.get(id);
+                Entry entry = stream.get(id);
+                if (null==pending) {
+                    if (!force || null==entry) {
+                        return null;
                     }
+                    pending = new Pending(id, consumer, now);
+                    pending.deliveryCount = 0;
+                    pel.put(id, pending);
                 }
-                catch (Exception e) {
-                    onDatabaseLoaded(num, -1, "EXCEPTION " + e.getMessage());
+                else {
+                    if (minIdle>0 && now-pending.deliveryTime<minIdle) {
+                        return null;
+                    }
+                    if (null==entry) {
+                        // deleted from the stream meanwhile
+                        ack(id);
+                        return null;
+                    }
+                    pending.consumer.pending.remove(id);
                 }
-
+                pending.consumer = consumer;
+                consumer.pending.put(id, pending);
+                pending.deliveryTime = deliveryTime;
+                if (retryCount>=0) {
+                    pending.deliveryCount = retryCount;
+                }
+                else if (!justId) {
+                    pending.deliveryCount++;
+                }
+                consumer.activeTime = now;
+                return entry;
             }
 
-            onLoadingComplete(map.size());
-            return map;
+            private final String name;
+            private ID lastDeliveredId;
+            private final TreeMap<ID, Pending> pel;
+            private final LinkedHashMap<String, Consumer> consumers;
         }
 
-        public synchronized void persist(Databases databases, boolean force) throws IOException {
-            final String info = getInfo();
-            databases.lockWriter();
-            Databases copy = null;
-            try {
-                logInfo("%s: saving %d databases", info, databases.size());
-                copy = new Databases(databases);
-            }
-            finally {
-                databases.unlockWriter();
+        public static class Consumer {
+
+            Consumer(String name, long now) {
+                this.name = name;
+                this.seenTime = now;
+                this.activeTime = -1;
+                this.pending = new TreeMap<ID, Pending>();
             }
 
-            Set<Integer> keys = copy.keySet();
-            for (Integer num : keys) {
-                Database db = databases.get(num);
-                if (force || db.dirty) {
-                    this.persist(db);
-                }
-                else {
-                    logInfo("%s: database %d was not modified", info, num);
-                }
+            public String getName() {
+                return name;
+            }
+
+            public NavigableMap<ID, Pending> getPending() {
+                return pending;
             }
-        }
 
-        public String getInfo() {
-            return getClass().getSimpleName() + "[" + redisServer.getPort() + "]";
+            public long getSeenTime() {
+                return seenTime;
+            }
+
+            final String name;
+            long seenTime;
+            long activeTime;
+            final TreeMap<ID, Pending> pending;
         }
 
-        public void persist(Database db) throws IOException {
+        /**
+         * An entry of a pending entries list.
+         */
+        public static class Pending {
 
-            db.lockReader();
-            Database copy = null;
-            try {
-                copy = new Database(db);
-            }
-            finally {
-                db.unlockReader();
+            Pending(ID id, Consumer consumer, long now) {
+                this.id = id;
+                this.consumer = consumer;
+                this.deliveryTime = now;
+                this.deliveryCount = 1;
             }
 
-            String info = getInfo();
+            public ID getId() {
+                return id;
+            }
 
-            int num  = copy.getNumber();
-            File tmp  = new File(dir, String.format("db%d.tmp", num));
-            File dest = getFileForDb(num);
+            public Consumer getConsumer() {
+                return consumer;
+            }
 
-            FileOutputStream fos = new FileOutputStream(tmp);
-            RESPWriter writer = new RESPWriter(fos);
+            public long getDeliveryTime() {
+                return deliveryTime;
+            }
 
-            int keyCount = -1;
-            synchronized (copy) {
-                Set<String> keys = copy.keySet();
-                keyCount = keys.size();
+            public long getDeliveryCount() {
+                return deliveryCount;
+            }
 
-                logInfo("%s: saving %d keys in db %d to %s", info, keyCount, databases.size(), tmp);
-                onSaving(num, keyCount, dest);
+            final ID id;
+            Consumer consumer;
+            long deliveryTime;
+            long deliveryCount;
+        }
 
-                for (String key : keys) {
+        /**
+         * A stream entry ID, the milliseconds of its creation followed by a sequence number.
+         */
+        public static class ID implements Comparable<ID> {
+
+            static final ID MIN = new ID(0, 0);
+            static final ID MAX = new ID(Long.MAX_VALUE, Long.MAX_VALUE);
+
+            public ID(long ms, long seq) {
+                this.ms  = ms;
+                this.seq = seq;
+            }
+
+            /**
+             * Parses "ms-seq" or just "ms", using the given sequence number.
+             * @throws NumberFormatException if the ID is invalid
+             */
+            public static ID parse(String s, long defaultSeq) {
+                int dash = s.indexOf('-');
+                long ms  = Long.parseLong(-1==dash ? s : s.substring(0, dash));
+                long seq = -1==dash ? defaultSeq : Long.parseLong(s.substring(dash+1));
+                if (ms<0 || seq<0) {
+                    throw new NumberFormatException(s);
+                }
+                return new ID(ms, seq);
+            }
 
-                    Ageable a = copy.get(key, false);
-                    if (null==a) {
-                        // expired right now??
-                        continue;
-                    }
+            /**
+             * @return the next greater ID or null if this is the maximum
+             */
+            ID next() {
+                if (seq!=Long.MAX_VALUE) {
+                    return new ID(ms, seq+1);
+                }
+                return ms==Long.MAX_VALUE ? null : new ID(ms+1, 0);
+            }
 
-                    Object obj = a.value;
-                    if (obj instanceof String) {
-                        String string = (String) obj;
-                        writer.sendString(key);
-                        writer.sendNumber(a.expires);
-                        writer.sendString((String)string);
-                    }
-                    else if (obj instanceof List) {
-                        @SuppressWarnings("unchecked")
-                        List<String> list = (List<String>) obj;
-                        writer.sendString(key);
-                        writer.sendNumber(a.expires);
-                        writer.sendArray(list);
-                    }
-                    else if (obj instanceof Hash) {
-                        Hash hash = (Hash) obj;
-                        writer.sendString(key);
-                        writer.sendNumber(a.expires);
-                        writer.sendHash(hash);
-                    }
-                    else if (obj instanceof _Set) {
-                        _Set set = (_Set) obj;
-                        writer.sendString(key);
-                        writer.sendNumber(a.expires);
-                        writer.sendSet(set);
-                    }
-                    else {
-                        throw new RuntimeException("Unsupported type " + obj.getClass());
-                    }
+            /**
+             * @return the next lower ID or null if this is the minimum
+             */
+            ID previous() {
+                if (seq>0) {
+                    return new ID(ms, seq-1);
                 }
+                return 0==ms ? null : new ID(ms-1, Long.MAX_VALUE);
             }
-            writer.close();
 
-            Database check = load(num, tmp, true);
-            if (check.size() != keyCount) {
+            @Override
+            public int compareTo(ID that) {
+                int c = Long.compare(ms, that.ms);
+                return 0!=c ? c : Long.compare(seq, that.seq);
+            }
 
-                Set<String> missing = new TreeSet<String>();
-                for (String key : copy.keySet()) {
-                    if (!check.containsKey(key)) {
-                        missing.add(key);
-                    }
-                }
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof ID && 0==compareTo((ID) o);
+            }
 
-                if (!checkMissingKeys(missing)) {
-                    String msg = String.format("Failed to save database %d. Wrote %d keys, read %d keys. Missing: %s",
-                            num, keyCount, check.size(), missing);
-                    logError("%s", msg);
-                    throw new RuntimeException(msg);
-                }
+            @Override
+            public int hashCode() {
+                return (int) (ms ^ (ms>>>32) ^ seq ^ (seq>>>32));
             }
 
-            dest.delete();
-            logInfo("%s: renaming %s -> %s", getInfo(), tmp, dest);
-            tmp.renameTo(dest);
+            @Override
+            public String toString() {
+                return ms + "-" + seq;
+            }
+
+            final long ms;
+            final long seq;
         }
 
-        protected Database load(int num) throws IOException {
-            File file = getFileForDb(num);
-            return load(num, file, false);
+        /**
+         * The trimming requested by XADD or XTRIM, by maximum length or minimum ID.
+         */
+        public static class Trim {
+            long    maxLen = -1;
+            ID      minId;
+            boolean approx;
+            long    limit = -1;
         }
 
-        protected Database load(int num, File file, boolean testWise) throws IOException {
+        public static class Entry {
 
-            if (!file.isFile()) {
-                onFileNotFound(num, file);
-                return null;
+            Entry(ID id, String[] fieldsValues) {
+                this.id = id;
+                this.fieldsValues = fieldsValues;
             }
 
-            if (!testWise) {
-                logInfo("%s: loading: %s", getInfo(), file);
+            public ID getId() {
+                return id;
             }
 
-            FileInputStream fis = new FileInputStream(file);
-            RESPReader reader = new RESPReader(fis).withNonStandard(true);
+            /**
+             * @return the fields and values or null if the entry was deleted
+             */
+            public List<String> getFieldsValues() {
+                return null==fieldsValues ? null : Arrays.asList(fieldsValues);
+            }
 
-            Database db = new Database(num, locking);
-            boolean done = false;
-            do {
-                String key = reader.readString();
-                if (null==key) {
-                    done = true;
+            final ID id;
+            final String[] fieldsValues;
+        }
+
+        /**
+         * A macro-node holding consecutive entries relative to a master ID and master fields.
+         */
+        static class Node {
+
+            static final byte DELETED     = 1;
+            static final byte SAME_FIELDS = 2;
+
+            Node(ID master, String[] fieldsValues) {
+                this.ms     = master.ms;
+                this.seq    = master.seq;
+                this.fields = new String[fieldsValues.length/2];
+                for (int i=0; i<fields.length; i++) {
+                    fields[i] = fieldsValues[2*i];
+                }
+                this.msDeltas = new int[4];
+                this.seqDeltas = new long[4];
+                this.flags  = new byte[4];
+                this.values = new String[4][];
+            }
+
+            /**
+             * @return false if the node is full or the ID too far from the master ID
+             */
+            boolean append(ID id, String[] fieldsValues) {
+                long delta = id.ms-ms;
+                if (count>=NODE_MAX_ENTRIES || delta>Integer.MAX_VALUE) {
+                    return false;
+                }
+                if (count==flags.length) {
+                    int capacity = Math.min(NODE_MAX_ENTRIES, 2*count);
+                    msDeltas  = Arrays.copyOf(msDeltas, capacity);
+                    seqDeltas = Arrays.copyOf(seqDeltas, capacity);
+                    flags     = Arrays.copyOf(flags, capacity);
+                    values    = Arrays.copyOf(values, capacity);
+                }
+                msDeltas[count]  = (int) delta;
+                seqDeltas[count] = 0==delta ? id.seq-seq : id.seq;
+                boolean same = fieldsValues.length==2*fields.length;
+                for (int i=0; same && i<fields.length; i++) {
+                    same = fields[i].equals(fieldsValues[2*i]);
+                }
+                if (same) {
+                    String[] v = new String[fields.length];
+                    for (int i=0; i<v.length; i++) {
+                        v[i] = fieldsValues[2*i+1];
+                    }
+                    values[count] = v;
+                    flags[count]  = SAME_FIELDS;
                 }
                 else {
-                    Long   expires = reader.readNumber();
-                    Object value   = reader.readStringOrList();
-                    Ageable a = new Ageable(value, expires);
-                    db.put(key, a);
+                    values[count] = fieldsValues.clone();
+                    flags[count]  = 0;
                 }
+                count++;
+                live++;
+                return true;
             }
-            while (!done);
 
-            if (!testWise) {
-                logInfo("%s: loaded:  %s: %d keys", getInfo(), file, db.size());
+            ID id(int i) {
+                return 0==msDeltas[i] ? new ID(ms, seq+seqDeltas[i]) : new ID(ms+msDeltas[i], seqDeltas[i]);
             }
 
-            return db;
-        }
+            boolean isDeleted(int i) {
+                return 0!=(flags[i] & DELETED);
+            }
 
-        protected File getFileForDb(int num) {
-            File dest = new File(dir, String.format("db%d%s", num, SUFFIX));
-            return dest;
-        }
+            void delete(int i) {
+                flags[i] |= DELETED;
+                values[i] = null;
+                live--;
+            }
 
-        protected volatile boolean stopRequested;
-        protected final String SUFFIX = ".redisj";
-        protected File dir;
-        protected RedisServer redisServer;
+            Entry entry(int i) {
+                String[] v = values[i];
+                if (0==(flags[i] & SAME_FIELDS)) {
+                    return new Entry(id(i), v);
+                }
+                String[] fieldsValues = new String[2*v.length];
+                for (int f=0; f<v.length; f++) {
+                    fieldsValues[2*f]   = fields[f];
+                    fieldsValues[2*f+1] = v[f];
+                }
+                return new Entry(id(i), fieldsValues);
+            }
+
+            /**
+             * @return the index of a live entry or -1
+             */
+            int indexOf(ID id) {
+                int low  = 0;
+                int high = count-1;
+                while (low<=high) {
+                    int mid = (low+high)>>>1;
+                    int c = id(mid).compareTo(id);
+                    if (c<0) {
+                        low = mid+1;
+                    }
+                    else if (c>0) {
+                        high = mid-1;
+                    }
+                    else {
+                        return isDeleted(mid) ? -1 : mid;
+                    }
+                }
+                return -1;
+            }
+
+            final long ms;
+            final long seq;
+            final String[] fields;
+            int[]  msDeltas;
+            long[] seqDeltas;
+            byte[] flags;
+            String[][] values;
+            int count;
+            int live;
+        }
+
+        private final TreeMap<ID, Node> nodes;
+        private ID   lastId;
+        private ID   maxDeletedId = ID.MIN;
+        private long length;
+        private long entriesAdded;
+        private LinkedHashMap<String, Group> groups;
     }
 
+    /**
+     * A large string value kept in the chunks of RESPReader.CHUNK_SIZE chars it was read
+     * in, so it never needs a char[] of its full length. SET stores it as it is and GET
+     * writes it chunk by chunk, other commands convert it to a String where they need one.
+     */
+    static final class ChunkedString implements CharSequence {
+
+        ChunkedString(char[][] chunks, int length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
 
-    class NoLock implements Lock {
-        @Override
-        public void lock() {}
-        @Override
-        public void lockInterruptibly() throws InterruptedException {}
-        @Override
-        public boolean tryLock() { return true; }
-        @Override
-        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException { return true; }
         @Override
-        public void unlock() {}
+        public int length() {
+            return length;
+        }
+
         @Override
-        public Condition newCondition() { return null; }
-    }
+        public char charAt(int index) {
+            if (index<0 || index>=length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return chunks[index/CHUNK_SIZE][index%CHUNK_SIZE];
+        }
 
-    class ReadWriteNoLock implements ReadWriteLock {
+        @Override
+        public String subSequence(int start, int end) {
+            if (start<0 || end>length || start>end) {
+                throw new IndexOutOfBoundsException(start + ", " + end);
+            }
+            char[] chars = new char[end-start];
+            for (int i=start; i<end;) {
+                int n = Math.min(end-i, CHUNK_SIZE-i%CHUNK_SIZE);
+                System.arraycopy(chunks[i/CHUNK_SIZE], i%CHUNK_SIZE, chars, i-start, n);
+                i += n;
+            }
+            return new String(chars);
+        }
 
-        ReadWriteNoLock() {
-            this.lock = new NoLock();
+        public void writeTo(Writer writer) throws IOException {
+            for (char[] chunk : chunks) {
+                writer.write(chunk);
+            }
         }
-        @Override
-        public Lock writeLock() { return lock; }
 
         @Override
-        public Lock readLock() { return lock; }
+        public String toString() {
+            return subSequence(0, length);
+        }
 
-        private NoLock lock;
+        static final int CHUNK_SIZE = RESPReader.CHUNK_SIZE;
+
+        private final char[][] chunks;
+        private final int      length;
     }
 
-    @SuppressWarnings("serial")
-    class Databases extends TreeMap<Integer,Database> {
+    /**
+     * A string value modified in place by APPEND and SETRANGE. Its capacity grows by half, so
+     * appending is amortized O(1) instead of copying the whole value like a String
+     * concatenation. Like Bitmap it is a string to TYPE, and it is converted to a String
+     * where one is needed.
+     */
+    static class MutableString implements CharSequence {
 
-        Databases(boolean locking) {
-            this.lock = locking ? new ReentrantReadWriteLock() : new ReadWriteNoLock();
+        public MutableString(String s) {
+            this.chars  = new char[Math.max(16, s.length() + (s.length()>>1))];
+            this.length = s.length();
+            s.getChars(0, length, chars, 0);
         }
 
-        public Databases(Databases databases) {
-            super(databases);
+        @Override
+        public int length() {
+            return length;
         }
 
-        public void lockReader() {
-            lock.readLock().lock();
+        @Override
+        public char charAt(int index) {
+            if (index>=length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return chars[index];
         }
 
-        public void lockWriter() {
-            lock.writeLock().lock();
+        @Override
+        public String subSequence(int start, int end) {
+            if (start<0 || end>length || start>end) {
+                throw new IndexOutOfBoundsException(start + ", " + end);
+            }
+            return new String(chars, start, end-start);
         }
 
-        public void unlockReader() {
-            lock.readLock().unlock();
+        /**
+         * @return the new length
+         */
+        public int append(String s) {
+            ensureCapacity(length+s.length());
+            s.getChars(0, s.length(), chars, length);
+            length += s.length();
+            return length;
         }
 
-        public void unlockWriter() {
-            lock.writeLock().unlock();
+        /**
+         * Overwrites the characters from offset on with s, padding with zero bytes if offset
+         * is beyond the end.
+         * @return the new length
+         */
+        public int setRange(int offset, String s) {
+            int end = offset+s.length();
+            ensureCapacity(end);
+            if (offset>length) {
+                Arrays.fill(chars, length, offset, '\0');
+            }
+            s.getChars(0, s.length(), chars, offset);
+            length = Math.max(length, end);
+            return length;
         }
 
-        private ReadWriteLock lock;
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity>chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(capacity, chars.length + (chars.length>>1)));
+            }
+        }
+
+        private char[] chars;
+        private int    length;
     }
 
     /**
-     * This class represents a single Redis database.
+     * This class represents a string value used as a bitmap. The bytes are packed big-endian
+     * into 64-bit words, so that bit offset n is bit 63-(n%64) of word n/64, and counting,
+     * searching and combining bitmaps is done a word at a time. Bytes beyond the length are
+     * always kept zero.
      */
-    @SuppressWarnings("serial")
-    public class Database extends LinkedHashMap<String, Ageable> {
-
-        public Database(int number, boolean locking) {
-            this.number  = number;
-            this.locking = locking;
-            this.lock    = locking ? new ReentrantReadWriteLock() : new ReadWriteNoLock();
-        }
+    static class Bitmap {
 
-        public Database(Database that) {
-            super(that);
-            this.number  = that.number;
-            this.locking = that.locking;
-            this.lock    = that.locking ? new ReentrantReadWriteLock() : new ReadWriteNoLock();
-        }
+        static final int AND = 0;
+        static final int OR  = 1;
+        static final int XOR = 2;
+        static final int NOT = 3;
 
-        public int strlen(String key) {
-            lockReader();
-            try {
-                Ageable a = get(key, false);
-                return null==a ? 0 : ((String)a.get()).length();
-            }
-            finally {
-                unlockReader();
-            }
-        }
+        static final int OVERFLOW_WRAP = 0;
+        static final int OVERFLOW_SAT  = 1;
+        static final int OVERFLOW_FAIL = 2;
 
-        public void lockReader() {
-            lock.readLock().lock();
+        public Bitmap() {
+            words = new long[1];
         }
 
-        public void lockWriter() {
-            lock.writeLock().lock();
+        public Bitmap(int length) {
+            this.words  = new long[Math.max(1, (length+7)>>>3)];
+            this.length = length;
         }
 
-        public void unlockReader() {
-            lock.readLock().unlock();
+        public static Bitmap fromString(String s) {
+            int len = s.length();
+            Bitmap bitmap = new Bitmap(len);
+            for (int i=0; i<len; i++) {
+                bitmap.words[i>>>3] |= (s.charAt(i) & 0xffL) << ((7-(i&7))<<3);
+            }
+            return bitmap;
         }
 
-        public void unlockWriter() {
-            lock.writeLock().unlock();
+        public static Bitmap fromByteArray(byte[] bytes) {
+            Bitmap bitmap = new Bitmap(bytes.length);
+            for (int i=0; i<bytes.length; i++) {
+                bitmap.words[i>>>3] |= (bytes[i] & 0xffL) << ((7-(i&7))<<3);
+            }
+            return bitmap;
         }
 
-        public long dbsize() {
-            lockReader();
-            try {
-                return size();
-            }
-            finally {
-                unlockReader();
+        public byte[] toByteArray() {
+            byte[] bytes = new byte[length];
+            for (int i=0; i<length; i++) {
+                bytes[i] = (byte) (words[i>>>3] >>> ((7-(i&7))<<3));
             }
+            return bytes;
         }
 
-        public Database flushDb() {
-            clear();
-            return this;
+        /**
+         * @return the bytes as a string of ISO-8859-1 characters, the way GET returns them
+         */
+        @Override
+        public String toString() {
+            return new String(toByteArray(), StandardCharsets.ISO_8859_1);
         }
 
-        public void mset(List<String> args) throws IOException {
-            lockWriter();
-            try {
-                for (int i=0; i<args.size(); i+=2) {
-                    String key = args.get(i);
-                    String val = args.get(i+1);
-                    markDirty();
-                    put(key, new Ageable(val));
-                }
-            }
-            finally {
-                unlockWriter();
+        /**
+         * @return the length in bytes
+         */
+        public int length() {
+            return length;
+        }
+
+        public int getBit(long offset) {
+            if (offset>=8L*length) {
+                return 0;
             }
+            return (int) (words[(int) (offset>>>6)] >>> (63-(offset&63))) & 1;
         }
 
-        public List<String> hmget(String key, Args args) {
-            lockReader();
-            try {
-                Ageable a = get(key, false);
-                List<String> list = new ArrayList<String>();
-                if (null!=a) {
-                    Hash hash = (Hash) a.value;
-                    for (int i=1, len=args.size(); i<len; i++) {
-                        String value = hash.get(args.get(i));
-                        list.add(value);
-                    }
-                }
-                return list;
+        /**
+         * @return the previous value of the bit
+         */
+        public int setBit(long offset, int value) {
+            ensureLength((int) ((offset>>>3)+1));
+            int  w   = (int) (offset>>>6);
+            long bit = 1L << (63-(offset&63));
+            int old = 0==(words[w] & bit) ? 0 : 1;
+            if (0==value) {
+                words[w] &= ~bit;
             }
-            finally {
-                unlockReader();
+            else {
+                words[w] |= bit;
             }
+            return old;
         }
 
-        public int llen(String key) {
-            lockReader();
-            try {
-                Ageable a = get(key, false);
-                int len = 0;
-                if (null!=a) {
-                    List<Object> list = a.get();
-                    len = list.size();
-                }
-                return len;
+        /**
+         * @return the number of set bits between the bit offsets start and end, inclusive
+         */
+        public long count(long start, long end) {
+            end = Math.min(end, 8L*length-1);
+            if (start>end) {
+                return 0;
             }
-            finally {
-                unlockReader();
+            int  ws    = (int) (start>>>6);
+            int  we    = (int) (end>>>6);
+            long first = -1L >>> (start&63);
+            long last  = -1L << (63-(end&63));
+            if (ws==we) {
+                return Long.bitCount(words[ws] & first & last);
+            }
+            long count = Long.bitCount(words[ws] & first) + Long.bitCount(words[we] & last);
+            for (int i=ws+1; i<we; i++) {
+                count += Long.bitCount(words[i]);
             }
+            return count;
         }
 
-        public List<String> mget(Args args) {
-            lockReader();
-            try {
-                List<String> values = new ArrayList<String>(args.size());
-                for (String key : args) {
-                    Ageable a = get(key, false);
-                    if (null==a) {
-                        values.add(null);
+        /**
+         * @return the offset of the first bit set to value between the bit offsets start and
+         * end, inclusive, or -1. Clear bits are looked for beyond the end of the string unless
+         * bounded, as in Redis.
+         */
+        public long position(int value, long start, long end, boolean bounded) {
+            long bits = 8L*length;
+            end = Math.min(end, bits-1);
+            if (start<=end) {
+                int  ws    = (int) (start>>>6);
+                int  we    = (int) (end>>>6);
+                long first = -1L >>> (start&63);
+                long last  = -1L << (63-(end&63));
+                for (int i=ws; i<=we; i++) {
+                    long w = 0==value ? ~words[i] : words[i];
+                    if (i==ws) {
+                        w &= first;
                     }
-                    else {
-                        String string = a.get();
-                        values.add(string);
+                    if (i==we) {
+                        w &= last;
+                    }
+                    if (0!=w) {
+                        return 64L*i + Long.numberOfLeadingZeros(w);
                     }
                 }
-                return values;
-            }
-            finally {
-                unlockReader();
             }
+            return 0==value && !bounded ? bits : -1;
         }
 
-        public int msetnx(List<String> args) throws IOException {
-            lockWriter();
-            try {
-                for (int i=1; i<args.size(); i+=2) {
-                    String key = args.get(i);
-                    Ageable a = get(key, false);
-                    if (notExpired(a)) {
-                        return 0;
+        /**
+         * @return the combination of the bitmaps, missing ones (null) count as empty
+         */
+        public static Bitmap combine(int op, List<Bitmap> bitmaps) {
+            int length = 0;
+            for (Bitmap bitmap : bitmaps) {
+                if (null!=bitmap) {
+                    length = Math.max(length, bitmap.length);
+                }
+            }
+            Bitmap result = new Bitmap(length);
+            long[] words = result.words;
+            int n = (length+7)>>>3;
+            for (int b=0; b<bitmaps.size(); b++) {
+                Bitmap bitmap = bitmaps.get(b);
+                long[] source = null==bitmap ? new long[0] : bitmap.words;
+                int m = Math.min(n, null==bitmap ? 0 : (bitmap.length+7)>>>3);
+                if (0==b) {
+                    System.arraycopy(source, 0, words, 0, m);
+                    if (NOT==op) {
+                        for (int i=0; i<n; i++) {
+                            words[i] = ~words[i];
+                        }
                     }
+                    continue;
                 }
-
-                int count = 0;
-                for (int i=0; i<args.size(); i+=2) {
-                    markDirty();
-                    String key = args.get(i);
-                    String val = args.get(i+1);
-                    put(key, new Ageable(val));
-                    count ++;
+                switch (op) {
+                case AND:
+                    for (int i=0; i<m; i++) {
+                        words[i] &= source[i];
+                    }
+                    Arrays.fill(words, m, n, 0);
+                    break;
+                case OR:
+                    for (int i=0; i<m; i++) {
+                        words[i] |= source[i];
+                    }
+                    break;
+                case XOR:
+                    for (int i=0; i<m; i++) {
+                        words[i] ^= source[i];
+                    }
+                    break;
                 }
-                return count;
             }
-            finally {
-                unlockWriter();
+            result.clearTail();
+            return result;
+        }
+
+        /**
+         * @return the bits unsigned in the lowest bits of the result
+         */
+        public long getBits(long offset, int bits) {
+            int  w = (int) (offset>>>6);
+            int  o = (int) (offset&63);
+            long v = w<words.length ? words[w] << o : 0;
+            if (o+bits>64 && w+1<words.length) {
+                v |= words[w+1] >>> (64-o);
+            }
+            return v >>> (64-bits);
+        }
+
+        public void setBits(long offset, int bits, long value) {
+            ensureLength((int) ((offset+bits+7)>>>3));
+            int w = (int) (offset>>>6);
+            int o = (int) (offset&63);
+            long mask = 64==bits ? -1L : (1L<<bits)-1;
+            value &= mask;
+            if (o+bits<=64) {
+                int shift = 64-o-bits;
+                words[w] = (words[w] & ~(mask<<shift)) | (value<<shift);
+            }
+            else {
+                int low = o+bits-64;
+                words[w]   = (words[w] & ~(mask>>>low)) | (value>>>low);
+                words[w+1] = (words[w+1] & (-1L>>>low)) | (value<<(64-low));
             }
         }
 
-        public int psetex(String key, int millis, String value) {
-            lockWriter();
-            try {
-                Ageable a = get(key, false);
-                int rc = 0;
-                if (null==a) {
-                    put(key, a = new Ageable(value));
-                    a.expires = now()+millis;
-                    rc = 1;
+        public long getField(long offset, int bits, boolean signed) {
+            long raw = getBits(offset, bits);
+            return signed ? (raw << (64-bits)) >> (64-bits) : raw;
+        }
+
+        /**
+         * Sets or increments a field, handling an overflow as requested.
+         * @return the new value of the field or null if it overflowed with OVERFLOW_FAIL
+         */
+        public Long updateField(long offset, int bits, boolean signed, long value, boolean increment, int overflow) {
+            long min = !signed ? 0 : 64==bits ? Long.MIN_VALUE : -(1L<<(bits-1));
+            long max = !signed ? (1L<<bits)-1 : 64==bits ? Long.MAX_VALUE : (1L<<(bits-1))-1;
+            long result = value;
+            int  overflowed = 0;
+            if (increment) {
+                long old = getField(offset, bits, signed);
+                result = old+value;
+                try {
+                    long sum = Math.addExact(old, value);
+                    overflowed = sum>max ? 1 : sum<min ? -1 : 0;
                 }
-                else {
-                    rc = 0;
+                catch (ArithmeticException e) {
+                    overflowed = value>0 ? 1 : -1;
                 }
-                return rc;
             }
-            finally {
-                unlockWriter();
+            else if (!signed && value<0) {
+                // like Redis, which takes the value as unsigned
+                overflowed = 1;
+            }
+            else {
+                overflowed = value>max ? 1 : value<min ? -1 : 0;
             }
-        }
-
 
-        public int setex(String key, int secs, String value) {
-            lockWriter();
-            try {
-                Ageable a = get(key, false);
-                int rc = 0;
-                if (null==a) {
-                    put(key, a = new Ageable(value));
-                    a.expires = now()+1000*secs;
-                    rc = 1;
+            if (0!=overflowed) {
+                if (OVERFLOW_FAIL==overflow) {
+                    return null;
                 }
-                else {
-                    rc = 0;
+                if (OVERFLOW_SAT==overflow) {
+                    result = overflowed>0 ? max : min;
                 }
-                return rc;
             }
-            finally {
-                unlockWriter();
+            setBits(offset, bits, result);
+            return getField(offset, bits, signed);
+        }
+
+        protected void ensureLength(int len) {
+            if (len<=length) {
+                return;
+            }
+            int n = (len+7)>>>3;
+            if (n>words.length) {
+                words = Arrays.copyOf(words, Math.max(n, words.length+(words.length>>>1)));
             }
+            length = len;
         }
 
-        public String type(String key) {
-            lockReader();
-            try {
-                String type  = null;
-                Ageable a = get(key, false);
-                if (notExpired(a)) {
-                    Object value = a.value;
-                    if (value instanceof String) {
-                        type = "string";
-                    }
-                    else if (value instanceof List) {
-                        type = "list";
-                    }
-                    else if (value instanceof Set) {
-                        type = "set";
-                    }
-                    else if (value instanceof Map) {
-                        type = "hash";
-                    }
-                    else if (value instanceof ZSet) {
-                        type = "zset";
-                    }
-                }
-                return type;
+        protected void clearTail() {
+            int rest = length&7;
+            if (rest>0) {
+                words[length>>>3] &= -1L << ((8-rest)<<3);
             }
-            finally {
-                unlockReader();
+            Arrays.fill(words, (length+7)>>>3, words.length, 0);
+        }
+
+        /**
+         * A single GET, SET or INCRBY operation of a BITFIELD command.
+         */
+        static class FieldOp {
+
+            static final int GET    = 0;
+            static final int SET    = 1;
+            static final int INCRBY = 2;
+
+            FieldOp(int op, boolean signed, int bits, long offset, long value, int overflow) {
+                this.op       = op;
+                this.signed   = signed;
+                this.bits     = bits;
+                this.offset   = offset;
+                this.value    = value;
+                this.overflow = overflow;
             }
+
+            final int op;
+            final boolean signed;
+            final int bits;
+            final long offset;
+            final long value;
+            final int overflow;
         }
 
-        public long append(String key, String value) {
-            lockWriter();
-            try {
-                Ageable a = get(key, false);
-                long len = 0;
-                if (null==a) {
-                    put(key, new Ageable(value));
-                    len = value.length();
+        private long[] words;
+        private int    length;
+    }
+
+    /**
+     * This class represents a HyperLogLog with 2^14 six bit registers. Small counters use a
+     * sparse run-length encoding of the registers (the ZERO, XZERO and VAL opcodes known from
+     * Redis) and are converted to the 12 KB dense array once the encoding exceeds
+     * SPARSE_MAX_BYTES or a register exceeds SPARSE_MAX_VALUE. The last cardinality is cached
+     * until a register changes.
+     */
+    static class HyperLogLog {
+
+        static final int P                = 14;
+        static final int Q                = 64-P;
+        static final int REGISTERS        = 1<<P;
+        static final int BITS             = 6;
+        static final int DENSE_SIZE       = (REGISTERS*BITS+7)/8;
+        static final int SPARSE_MAX_BYTES = 3000;
+        static final int SPARSE_MAX_VALUE = 32;
+        static final int XZERO_MAX_LEN    = 16384;
+        static final int ZERO_MAX_LEN     = 64;
+        static final int VAL_MAX_LEN      = 4;
+
+        static final double ALPHA_INF = 0.721347520444481703680;
+
+        public HyperLogLog() {
+            sparse = new byte[16];
+            sparseLen = appendZeros(sparse, 0, REGISTERS);
+            cardinality = 0;
+        }
+
+        public boolean isSparse() {
+            return null==dense;
+        }
+
+        /**
+         * @return true if a register was changed
+         */
+        public boolean add(String element) {
+            long hash = hash(element.getBytes(StandardCharsets.UTF_8));
+            int index = (int) (hash & (REGISTERS-1));
+            int count = Long.numberOfTrailingZeros((hash>>>P) | (1L<<Q)) + 1;
+            return set(index, count);
+        }
+
+        /**
+         * PFCOUNT runs under the read lock, so concurrent callers fill the cache under the
+         * counter's monitor rather than racing on it.
+         */
+        public synchronized long cardinality() {
+            if (cardinality<0) {
+                int[] histogram = new int[Q+2];
+                if (null==dense) {
+                    sparseHistogram(histogram);
                 }
                 else {
-                    String s = a.value.toString() + value;
-                    a.value = s;
-                    len = s.length();
+                    for (int i=0; i<REGISTERS; i++) {
+                        histogram[get(i)]++;
+                    }
                 }
-                return len;
-            }
-            finally {
-                unlockWriter();
+                cardinality = estimate(histogram);
             }
+            return cardinality;
         }
 
-        public double incrbyfloat(String key, double amount) {
-            lockWriter();
-            try {
-            Ageable a = markDirty().get(key, false);
-            if (null==a) {
-                put(key, a = new Ageable("0"));
-            }
-
-            String s = a.get();
-            Double l = toDouble(s)+amount;
-            s = l.toString();
-            a.value  = s;
-            return l;
+        /**
+         * @return the cardinality of the union of the given counters
+         */
+        public static long cardinality(Collection<HyperLogLog> hlls) {
+            byte[] registers = new byte[REGISTERS];
+            for (HyperLogLog hll : hlls) {
+                hll.maxInto(registers);
             }
-            finally {
-                unlockWriter();
+            int[] histogram = new int[Q+2];
+            for (byte r : registers) {
+                histogram[r]++;
             }
+            return estimate(histogram);
         }
 
-        public boolean exists(String key) {
-            lockReader();
-            try {
-                Ageable a = get(key, false);
-                return null!=a;
-            }
-            finally {
-                unlockReader();
+        /**
+         * Sets every register to the maximum of its own and the other counter's value.
+         */
+        public void merge(HyperLogLog other) {
+            byte[] registers = new byte[REGISTERS];
+            other.maxInto(registers);
+            for (int i=0; i<REGISTERS; i++) {
+                if (0!=registers[i]) {
+                    set(i, registers[i]);
+                }
             }
         }
 
-        public Collection<String> keys(String glob) {
-            lockReader();
-            try {
-                Pattern rex = createRegexFromGlob(glob);
-                ArrayList<String> matches = new ArrayList<String>();
+        public byte[] toByteArray() {
+            byte[] data = null==dense ? Arrays.copyOf(sparse, sparseLen) : dense;
+            byte[] bytes = new byte[data.length+1];
+            bytes[0] = (byte) (null==dense ? 'S' : 'D');
+            System.arraycopy(data, 0, bytes, 1, data.length);
+            return bytes;
+        }
 
-                for (String key : keySet()) {
-                    if (rex.matcher(key).matches()) {
-                        matches.add(key);
+        /**
+         * @return the bytes of toByteArray() one char each, which is how GET, STRLEN and the
+         *         other string commands see a counter, like Redis whose counters are strings.
+         */
+        @Override
+        public String toString() {
+            return new String(toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * @return the counter of a string made by toString() or null if it is not one
+         */
+        public static HyperLogLog fromString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+            if (0==bytes.length || !s.equals(new String(bytes, StandardCharsets.ISO_8859_1))) {
+                return null;
+            }
+            if ('D'==bytes[0]) {
+                return bytes.length==1+DENSE_SIZE ? fromByteArray(bytes) : null;
+            }
+            if ('S'!=bytes[0] || bytes.length-1>SPARSE_MAX_BYTES) {
+                return null;
+            }
+            // the opcodes have to cover the registers exactly
+            int index = 0;
+            for (int pos=1; pos<bytes.length; pos++) {
+                int b = bytes[pos] & 0xff;
+                if (0==(b & 0xc0)) {
+                    index += (b & 0x3f) + 1;
+                }
+                else if (0x40==(b & 0xc0)) {
+                    if (++pos==bytes.length) {
+                        return null;
                     }
+                    index += (((b & 0x3f)<<8) | (bytes[pos] & 0xff)) + 1;
+                }
+                else {
+                    index += (b & 0x03) + 1;
+                }
+                if (index>REGISTERS) {
+                    return null;
                 }
-                return matches;
-            }
-            finally {
-                unlockReader();
             }
+            return REGISTERS==index ? fromByteArray(bytes) : null;
         }
 
-        public int hset(String key, String field, String value) {
-            return _hset(key, field, value, false);
+        public static HyperLogLog fromByteArray(byte[] bytes) {
+            HyperLogLog hll = new HyperLogLog();
+            if ('D'==bytes[0]) {
+                hll.sparse = null;
+                hll.dense  = Arrays.copyOfRange(bytes, 1, 1+DENSE_SIZE);
+            }
+            else {
+                hll.sparse    = Arrays.copyOfRange(bytes, 1, bytes.length);
+                hll.sparseLen = hll.sparse.length;
+            }
+            hll.cardinality = -1;
+            return hll;
         }
 
-        public int hsetnx(String key, String field, String value) {
-            return _hset(key, field, value, true);
-        }
+        protected boolean set(int index, int count) {
+            if (null!=dense) {
+                if (get(index)>=count) {
+                    return false;
+                }
+                int bit   = index*BITS;
+                int pos   = bit>>>3;
+                int shift = bit&7;
+                dense[pos] = (byte) ((dense[pos] & ~(0x3f<<shift)) | (count<<shift));
+                if (shift>8-BITS) {
+                    dense[pos+1] = (byte) ((dense[pos+1] & ~(0x3f>>>(8-shift))) | (count>>>(8-shift)));
+                }
+                cardinality = -1;
+                return true;
+            }
 
-        public int bitcount(String key) throws IOException {
-            lockReader();
-            try {
-                int count = 0;
-                Ageable a = get(key, false);
-                if (null!=a) {
-                    String s = a.get();
-                    for (int i=0, len=s.length(); i<len; i++) {
-                        char c = s.charAt(i);
-                        int upper = ((byte)c) >> 4;
-                    int lower = ((byte)c) & 0x0f;
-                    count += NIBBLE_BITS[upper] + NIBBLE_BITS[lower];
-                    }
+            // locate the opcode covering the register
+            int pos   = 0;
+            int first = 0;
+            int opLen = 0;
+            int len   = 0;
+            int value = 0;
+            while (pos<sparseLen) {
+                int b = sparse[pos] & 0xff;
+                if (0==(b & 0xc0)) {
+                    opLen = 1;
+                    len   = (b & 0x3f) + 1;
+                    value = 0;
                 }
-                return count;
+                else if (0x40==(b & 0xc0)) {
+                    opLen = 2;
+                    len   = (((b & 0x3f)<<8) | (sparse[pos+1] & 0xff)) + 1;
+                    value = 0;
+                }
+                else {
+                    opLen = 1;
+                    len   = (b & 0x03) + 1;
+                    value = ((b>>>2) & 0x1f) + 1;
+                }
+                if (index<first+len) {
+                    break;
+                }
+                first += len;
+                pos   += opLen;
             }
-            finally {
-                unlockReader();
+            if (value>=count) {
+                return false;
+            }
+            if (count>SPARSE_MAX_VALUE) {
+                toDense();
+                return set(index, count);
+            }
+
+            // replace it by up to three opcodes: the run before, the register and the run after
+            byte[] seq = new byte[5];
+            int n = 0;
+            int before = index-first;
+            int after  = first+len-index-1;
+            n = 0==value ? appendZeros(seq, n, before) : appendValue(seq, n, value, before);
+            n = appendValue(seq, n, count, 1);
+            n = 0==value ? appendZeros(seq, n, after) : appendValue(seq, n, value, after);
+
+            int newLen = sparseLen-opLen+n;
+            if (newLen>SPARSE_MAX_BYTES) {
+                toDense();
+                return set(index, count);
+            }
+            if (newLen>sparse.length) {
+                sparse = Arrays.copyOf(sparse, Math.min(SPARSE_MAX_BYTES, Math.max(newLen, sparse.length*2)));
+            }
+            System.arraycopy(sparse, pos+opLen, sparse, pos+n, sparseLen-pos-opLen);
+            System.arraycopy(seq, 0, sparse, pos, n);
+            sparseLen = newLen;
+            cardinality = -1;
+            return true;
+        }
+
+        protected int get(int index) {
+            int bit   = index*BITS;
+            int pos   = bit>>>3;
+            int shift = bit&7;
+            int value = (dense[pos] & 0xff)>>>shift;
+            if (shift>8-BITS) {
+                value |= (dense[pos+1] & 0xff)<<(8-shift);
+            }
+            return value & 0x3f;
+        }
+
+        protected void toDense() {
+            byte[] registers = new byte[REGISTERS];
+            maxInto(registers);
+            sparse = null;
+            sparseLen = 0;
+            dense = new byte[DENSE_SIZE];
+            for (int i=0; i<REGISTERS; i++) {
+                if (0!=registers[i]) {
+                    set(i, registers[i]);
+                }
             }
         }
 
-        @CommandMethod(args= {"key", "offset"}, since="2.2.0", ro=true)
-        public int getbit(String key, int off) throws IOException {
-            lockReader();
-            try {
-                int value = 0;
-                Ageable a = get(key, false);
-                if (null!=a) {
-                    String s = a.get();
-                    //int off = Integer.parseInt(args.get(1));
-                    int pos = off/8;
-                    char c = (null==s || pos>=s.length()) ? 0 : s.charAt(pos);
-                    byte mask = (byte)(0x80 >> (off%8));
-                    if ((mask & c) > 0) {
-                        value = 1;
+        protected void maxInto(byte[] registers) {
+            if (null!=dense) {
+                for (int i=0; i<REGISTERS; i++) {
+                    int value = get(i);
+                    if (value>registers[i]) {
+                        registers[i] = (byte) value;
+                    }
+                }
+                return;
+            }
+            int index = 0;
+            for (int pos=0; pos<sparseLen; pos++) {
+                int b = sparse[pos] & 0xff;
+                if (0==(b & 0xc0)) {
+                    index += (b & 0x3f) + 1;
+                }
+                else if (0x40==(b & 0xc0)) {
+                    index += (((b & 0x3f)<<8) | (sparse[++pos] & 0xff)) + 1;
+                }
+                else {
+                    int len   = (b & 0x03) + 1;
+                    int value = ((b>>>2) & 0x1f) + 1;
+                    for (int end=index+len; index<end; index++) {
+                        if (value>registers[index]) {
+                            registers[index] = (byte) value;
+                        }
                     }
                 }
-                return value;
-            }
-            finally {
-                unlockReader();
             }
         }
 
-        public int sadd(String key, String ... members) {
-            List<String> list = Arrays.asList(members);
-            return sadd(key, list);
+        protected void sparseHistogram(int[] histogram) {
+            for (int pos=0; pos<sparseLen; pos++) {
+                int b = sparse[pos] & 0xff;
+                if (0==(b & 0xc0)) {
+                    histogram[0] += (b & 0x3f) + 1;
+                }
+                else if (0x40==(b & 0xc0)) {
+                    histogram[0] += (((b & 0x3f)<<8) | (sparse[++pos] & 0xff)) + 1;
+                }
+                else {
+                    histogram[((b>>>2) & 0x1f) + 1] += (b & 0x03) + 1;
+                }
+            }
         }
 
-        public int sadd(String key, Collection<String> members) {
-
-            lockWriter();
-            try {
-                Ageable age = get(key, false);
-                _Set    set = null;
-                if (null==age) {
-                    put(key, age = new Ageable(set = new _Set(members.size())));
+        protected static int appendZeros(byte[] seq, int n, int len) {
+            while (len>0) {
+                int run = Math.min(len, XZERO_MAX_LEN);
+                if (run<=ZERO_MAX_LEN) {
+                    seq[n++] = (byte) (run-1);
                 }
                 else {
-                    set = age.get();
+                    seq[n++] = (byte) (0x40 | ((run-1)>>>8));
+                    seq[n++] = (byte) (run-1);
                 }
-                int before = set.size();
-                set.addAll(members);
-                int after = set.size();
-                return after-before;
+                len -= run;
             }
-            finally {
-                unlockWriter();
+            return n;
+        }
+
+        protected static int appendValue(byte[] seq, int n, int value, int len) {
+            while (len>0) {
+                int run = Math.min(len, VAL_MAX_LEN);
+                seq[n++] = (byte) (0x80 | ((value-1)<<2) | (run-1));
+                len -= run;
             }
+            return n;
         }
 
-        public int getNumber() {
-            return number;
+        /**
+         * Cardinality estimation from the register histogram as proposed by Otmar Ertl in
+         * "New cardinality estimation algorithms for HyperLogLog sketches".
+         */
+        protected static long estimate(int[] histogram) {
+            double m = REGISTERS;
+            double z = m * tau((m-histogram[Q+1])/m);
+            for (int j=Q; j>=1; j--) {
+                z += histogram[j];
+                z *= 0.5;
+            }
+            z += m * sigma(histogram[0]/m);
+            return Math.round(ALPHA_INF*m*m/z);
         }
 
-        public void set(String key, String value) {
-            lockWriter();
-            try {
-                put(key, new Ageable(value));
+        protected static double sigma(double x) {
+            if (x==1) {
+                return Double.POSITIVE_INFINITY;
             }
-            finally {
-                unlockWriter();
+            double zPrime;
+            double y = 1;
+            double z = x;
+            do {
+                x *= x;
+                zPrime = z;
+                z += x*y;
+                y += y;
+            } while (zPrime!=z);
+            return z;
+        }
+
+        protected static double tau(double x) {
+            if (x==0 || x==1) {
+                return 0;
             }
+            double zPrime;
+            double y = 1;
+            double z = 1-x;
+            do {
+                x = Math.sqrt(x);
+                zPrime = z;
+                y *= 0.5;
+                z -= Math.pow(1-x, 2)*y;
+            } while (zPrime!=z);
+            return z/3;
         }
 
-        public boolean setnx(String key, String value) throws IOException {
-            lockWriter();
-            try {
-                if (containsKey(key)) {
-                    return false;
+        /**
+         * MurmurHash64A, the hash function used by Redis for HyperLogLogs.
+         */
+        protected static long hash(byte[] data) {
+            final long m = 0xc6a4a7935bd1e995L;
+            final int r = 47;
+            int len = data.length;
+            long h = 0xadc83b19L ^ (len*m);
+
+            int blocks = len & ~7;
+            for (int i=0; i<blocks; i+=8) {
+                long k = (data[i] & 0xffL)
+                        | (data[i+1] & 0xffL)<<8
+                        | (data[i+2] & 0xffL)<<16
+                        | (data[i+3] & 0xffL)<<24
+                        | (data[i+4] & 0xffL)<<32
+                        | (data[i+5] & 0xffL)<<40
+                        | (data[i+6] & 0xffL)<<48
+                        | (data[i+7] & 0xffL)<<56;
+                k *= m;
+                k ^= k>>>r;
+                k *= m;
+                h ^= k;
+                h *= m;
+            }
+
+            int rest = len & 7;
+            if (rest>0) {
+                for (int i=rest-1; i>=0; i--) {
+                    h ^= (data[blocks+i] & 0xffL)<<(8*i);
                 }
-                markDirty().put(key, new Ageable(value));
-                return false;
-            }
-            finally {
-                unlockWriter();
+                h *= m;
             }
+
+            h ^= h>>>r;
+            h *= m;
+            h ^= h>>>r;
+            return h;
         }
 
-        public Database markDirty() {
-            this.dirty = true;
-            return this;
+        private byte[] sparse;
+        private int    sparseLen;
+        private byte[] dense;
+        private volatile long cardinality;
+    }
+
+    /**
+     * @return the type of a value as reported by TYPE
+     */
+    static String typeOf(Object value) {
+        if (value instanceof CharSequence || value instanceof Bitmap || value instanceof HyperLogLog) {
+            // like Redis, which stores bitmaps and HyperLogLogs as strings
+            return "string";
+        }
+        if (value instanceof List) {
+            return "list";
+        }
+        if (value instanceof Set) {
+            return "set";
+        }
+        if (value instanceof Map) {
+            return "hash";
+        }
+        if (value instanceof ZSet) {
+            return "zset";
         }
+        if (value instanceof Stream) {
+            return "stream";
+        }
+        return null;
+    }
 
-        public String get(String key) {
-            lockReader();
-            try {
-                Ageable a = get(key, false);
-                return null==a ? null : (String) a.value;
-            }
-            finally {
-                unlockReader();
-            }
+    /**
+     * A chained hash table of the keys of a database or the members of a large collection,
+     * kept beside the map holding the values, as the buckets of java.util.HashMap are not
+     * accessible. Its size is a power of two, so it can be scanned with a reverse binary
+     * cursor like dictScan() in Redis: the cursor is incremented from its high bit down,
+     * which visits the buckets a bucket is split into (or merged from) by a resize right
+     * after each other. A scan therefore returns every key present for its whole duration
+     * at least once, although the table may have grown or shrunk between the calls.
+     * The nodes are also kept in a dense array, removal moving the last node into the gap,
+     * so a key can be picked uniformly at random in O(1).
+     */
+    static class ScanTable {
+
+        static final int MIN_SIZE = 16;
+
+        ScanTable() {
+            table = new Node[MIN_SIZE];
+            slots = new Node[MIN_SIZE];
         }
 
-        public Ageable get(String key, boolean returnExpired) {
-            Ageable a = super.get(key);
-            if (notExpired(a) || returnExpired) {
-                return a;
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return true if the key was added, false if it was present
+         */
+        boolean add(String key) {
+            int h = hash(key);
+            int i = h & (table.length-1);
+            for (Node n=table[i]; null!=n; n=n.next) {
+                if (h==n.hash && key.equals(n.key)) {
+                    return false;
+                }
             }
-            return null;
+            Node node = table[i] = new Node(key, h, table[i]);
+            if (++size>table.length) {
+                resize(table.length*2);
+            }
+            node.slot = size-1;
+            slots[node.slot] = node;
+            return true;
         }
 
-        public long ttl(String key) {
-            lockReader();
-            try {
-                long ttl = -2;
-                Ageable a = get(key, false);
-                if (notExpired(a)) {
-                    if (a.expires<0) {
-                        ttl = -1;
+        /**
+         * @return true if the key was removed, false if it was not present
+         */
+        boolean remove(String key) {
+            int h = hash(key);
+            int i = h & (table.length-1);
+            for (Node n=table[i], prev=null; null!=n; prev=n, n=n.next) {
+                if (h==n.hash && key.equals(n.key)) {
+                    if (null==prev) {
+                        table[i] = n.next;
                     }
                     else {
-                        ttl = (now()-a.expires)/1000;
+                        prev.next = n.next;
                     }
+                    Node last = slots[--size];
+                    last.slot = n.slot;
+                    slots[last.slot] = last;
+                    slots[size] = null;
+                    if (size<table.length/8 && table.length>MIN_SIZE) {
+                        resize(table.length/2);
+                    }
+                    return true;
                 }
-                else {
-                    ttl = -2;
-                }
-                return ttl;
-            }
-            finally {
-                unlockReader();
             }
+            return false;
         }
 
-        public long pttl(String key) {
-            lockReader();
-            try {
-                long ttl = -2;
-                Ageable a = get(key, false);
-                if (notExpired(a)) {
-                    if (a.expires<0) {
-                        ttl = -1;
-                    }
-                    else {
-                        ttl = (now()-a.expires);
+        void clear() {
+            table = new Node[MIN_SIZE];
+            slots = new Node[MIN_SIZE];
+            size  = 0;
+        }
+
+        /**
+         * @return the key in the dense array at i, 0 &lt;= i &lt; size()
+         */
+        String get(int i) {
+            return slots[i].key;
+        }
+
+        /**
+         * @return a key chosen uniformly at random, null if the table is empty
+         */
+        String random(Random random) {
+            return 0==size ? null : slots[random.nextInt(size)].key;
+        }
+
+        /**
+         * Picks count keys at random from c, which index holds the keys of unless it is null.
+         * Without an index c is copied, which is meant for collections of a bounded size.
+         * @param distinct true to pick every key at most once, so at most c.size() keys,
+         *        false to pick each key independently, as SRANDMEMBER with a negative count
+         */
+        static List<String> sample(Collection<String> c, ScanTable index, int count, boolean distinct, Random random) {
+            int n = c.size();
+            List<String> keys = new ArrayList<String>(Math.min(count, distinct ? n : 1024));
+            if (0==n || count<=0) {
+                return keys;
+            }
+            if (distinct && count>=n) {
+                keys.addAll(c);
+                return keys;
+            }
+            if (distinct && null!=index && count*3<=n) {
+                // Few keys of many: retry on duplicates, expected O(count).
+                Set<String> picked = new HashSet<String>(count*2);
+                while (keys.size()<count) {
+                    String key = index.get(random.nextInt(n));
+                    if (picked.add(key)) {
+                        keys.add(key);
                     }
                 }
-                else {
-                    ttl = -2;
+                return keys;
+            }
+            String[] all = null==index ? c.toArray(new String[n]) : null;
+            if (!distinct) {
+                for (int i=0; i<count; i++) {
+                    int j = random.nextInt(n);
+                    keys.add(null==all ? index.get(j) : all[j]);
                 }
-                return ttl;
+                return keys;
             }
-            finally {
-                unlockReader();
+            if (null==all) {
+                all = new String[n];
+                for (int i=0; i<n; i++) {
+                    all[i] = index.get(i);
+                }
+            }
+            // A partial Fisher-Yates shuffle, O(n) but n is small or at most 3 * count.
+            for (int i=0; i<count; i++) {
+                int j = i+random.nextInt(n-i);
+                String key = all[j];
+                all[j] = all[i];
+                all[i] = key;
+                keys.add(key);
             }
+            return keys;
         }
 
-        public int expire(String key, int secs) {
-            lockWriter();
-            try {
-                int rc = 0;
-                Ageable a = get(key, false);
-                if (notExpired(a)) {
-                    a.expires = now()+1000*secs;
-                    rc = 0;
+        /**
+         * Adds the keys of the buckets from cursor on to keys until at least count keys
+         * were added or 10 * count buckets were visited.
+         * @return the cursor of the next bucket, 0 if all buckets were visited
+         */
+        long scan(long cursor, int count, List<String> keys) {
+            Node[] t = table;
+            long mask = t.length-1;
+            long v = cursor;
+            int added = 0;
+            int visits = 10*count;
+            do {
+                for (Node n=t[(int) (v & mask)]; null!=n; n=n.next) {
+                    keys.add(n.key);
+                    added++;
                 }
-                else {
-                    rc = 1;
+                // Increment the reversed cursor.
+                v |= ~mask;
+                v = Long.reverse(v);
+                v++;
+                v = Long.reverse(v);
+            }
+            while (0!=v && added<count && --visits>0);
+            return v;
+        }
+
+        private void resize(int capacity) {
+            Node[] old = table;
+            Node[] t = new Node[capacity];
+            for (Node head : old) {
+                for (Node n=head, next; null!=n; n=next) {
+                    next = n.next;
+                    int i = n.hash & (capacity-1);
+                    n.next = t[i];
+                    t[i] = n;
                 }
-                return rc;
-            }
-            finally {
-                unlockWriter();
             }
+            table = t;
+            slots = Arrays.copyOf(slots, capacity);
         }
 
-        public int hexists(String key, String field) {
-            lockReader();
-            try {
-                int rc = 0;
-                    Ageable a = get(key, false);
-                    if (null!=a) {
-                        Hash h = (Hash) a.value;
-                        if (h.containsKey(field)) {
-                            rc = 1;
-                        }
-                    }
-                return rc;
-            }
-            finally {
-                unlockReader();
+        private static int hash(String key) {
+            int h = key.hashCode();
+            return h ^ (h>>>16);
+        }
+
+        static final class Node {
+
+            Node(String key, int hash, Node next) {
+                this.key  = key;
+                this.hash = hash;
+                this.next = next;
             }
+
+            final String key;
+            final int    hash;
+            Node next;
+            int  slot;
         }
 
-        public void hmset(String key, List<String> keyVal) {
-            lockWriter();
-            try {
-                Ageable a = get(key, false);
-                Hash hash = null;
-                if (null==a) {
-                    put(key, new Ageable(hash = new Hash()));
+        private Node[] table;
+        private Node[] slots;
+        private int    size;
+    }
+
+    /**
+     * An ordered index of key names as a radix tree: the edges are labeled with strings and
+     * nodes with a single child are merged with it, so the depth is bounded by the number of
+     * distinct branches rather than the key length. Every node counts the keys below it,
+     * so counting the keys with a prefix is O(prefix) and listing them O(prefix + matches).
+     */
+    static class RadixTree {
+
+        RadixTree() {
+            root = new Node("");
+        }
+
+        int size() {
+            return root.size;
+        }
+
+        /**
+         * @return true if the key was added, false if it was present
+         */
+        boolean add(String key) {
+            path.clear();
+            Node node = root;
+            int i = 0;
+            for (;;) {
+                path.add(node);
+                if (i==key.length()) {
+                    if (node.terminal) {
+                        return false;
+                    }
+                    node.terminal = true;
+                    break;
                 }
-                else {
-                    hash = a.get();
+                int c = node.indexOf(key.charAt(i));
+                if (c<0) {
+                    Node leaf = new Node(key.substring(i));
+                    leaf.terminal = true;
+                    leaf.size = 1;
+                    node.insert(-c-1, leaf);
+                    break;
                 }
-                for (int i=0, len=keyVal.size(); i<len; i+=2) {
-                    hash.put(keyVal.get(i), keyVal.get(i+1));
+                Node child = node.children[c];
+                int l = commonPrefix(child.label, key, i);
+                if (l<child.label.length()) {
+                    // Split the edge where the key leaves it.
+                    Node mid = new Node(child.label.substring(0, l));
+                    child.label = child.label.substring(l);
+                    mid.insert(0, child);
+                    mid.size = child.size;
+                    node.children[c] = mid;
+                    child = mid;
                 }
+                node = child;
+                i += l;
             }
-            finally {
-                unlockWriter();
+            for (Node n : path) {
+                n.size++;
             }
+            return true;
         }
 
-
-        public List<String> hkeys(String key) {
-            lockReader();
-            try {
-                Ageable a = get(key, false);
-                List<String> list = new ArrayList<String>();
-                if (null!=a) {
-                    Hash hash = (Hash) a.value;
-                    for (String field : hash.keySet()) {
-                        list.add(field);
-                    }
+        /**
+         * @return true if the key was removed, false if it was not present
+         */
+        boolean remove(String key) {
+            path.clear();
+            Node node = root;
+            int i = 0;
+            while (i<key.length()) {
+                path.add(node);
+                int c = node.indexOf(key.charAt(i));
+                if (c<0) {
+                    return false;
                 }
-                return list;
+                Node child = node.children[c];
+                if (!key.startsWith(child.label, i)) {
+                    return false;
+                }
+                node = child;
+                i += child.label.length();
             }
-            finally {
-                unlockReader();
+            if (!node.terminal) {
+                return false;
             }
+            node.terminal = false;
+            node.size--;
+            for (Node n : path) {
+                n.size--;
+            }
+            // Drop the emptied leaf and merge what became a chain of single children.
+            Node parent = path.isEmpty() ? null : path.get(path.size()-1);
+            if (0==node.childCount && null!=parent) {
+                parent.delete(parent.indexOf(node.label.charAt(0)));
+                node = parent;
+                parent = path.size()>1 ? path.get(path.size()-2) : null;
+            }
+            if (node!=root && !node.terminal && 1==node.childCount) {
+                Node child = node.children[0];
+                child.label = node.label + child.label;
+                parent.children[parent.indexOf(node.label.charAt(0))] = child;
+            }
+            return true;
         }
 
-        public List<String> hvals(String key) {
-            lockReader();
-            try {
-                Ageable a = get(key, false);
-                List<String> list = new ArrayList<String>();
-                if (null!=a) {
-                    Hash hash = (Hash) a.value;
-                    for (String field : hash.values()) {
-                        list.add(field);
-                    }
-                }
-                return list;
-            }
-            finally {
-                unlockReader();
+        void clear() {
+            root = new Node("");
+        }
+
+        /**
+         * @return the number of keys starting with prefix
+         */
+        int count(String prefix) {
+            StringBuilder sb = new StringBuilder();
+            Node node = find(prefix, sb);
+            return null==node ? 0 : node.size;
+        }
+
+        /**
+         * Adds the keys starting with prefix which match glob, if given, in lexicographic
+         * order of their chars.
+         */
+        void collect(String prefix, Glob glob, List<String> keys) {
+            StringBuilder sb = new StringBuilder();
+            Node node = find(prefix, sb);
+            if (null!=node) {
+                collect(node, sb, null==glob || glob.isPrefixStar() ? null : glob, keys);
             }
         }
 
-        public int hdel(String key, Args args) {
-            lockWriter();
-            try {
-                Ageable a = get(key, false);
-                int count = 0;
-                if (null!=a) {
-                    Hash hash = (Hash) a.value;
-                    for (int i=0; i<args.size(); i++) {
-                        String field = args.get(i);
-                        if (hash.contains(field)) {
-                            hash.remove(field);
-                            count++;
-                        }
+        /**
+         * Like collect(), but only adds the keys after the key after, unless it is null, and
+         * stops at limit keys, so a large range can be read in pieces.
+         * @return the last key added to continue after, null if no keys are left
+         */
+        String collect(String prefix, Glob glob, String after, int limit, List<String> keys) {
+            StringBuilder sb = new StringBuilder();
+            Node node = find(prefix, sb);
+            if (null!=node && collect(node, sb, null==glob || glob.isPrefixStar() ? null : glob, after, keys.size()+limit, keys)) {
+                return keys.get(keys.size()-1);
+            }
+            return null;
+        }
+
+        /**
+         * @return true if keys reached the limit
+         */
+        private boolean collect(Node node, StringBuilder sb, Glob glob, String after, int limit, List<String> keys) {
+            boolean terminal = node.terminal;
+            if (null!=after) {
+                String path = sb.toString();
+                if (after.startsWith(path)) {
+                    // The key of this node is not after it, some of the children may be.
+                    terminal = false;
+                }
+                else if (path.compareTo(after)<0) {
+                    return false;
+                }
+                else {
+                    after = null;
+                }
+            }
+            if (terminal) {
+                String key = sb.toString();
+                if (null==glob || glob.matches(key)) {
+                    keys.add(key);
+                    if (keys.size()>=limit) {
+                        return true;
                     }
                 }
-                return count;
             }
-            finally {
-                unlockWriter();
+            for (int c=0; c<node.childCount; c++) {
+                Node child = node.children[c];
+                int len = sb.length();
+                sb.append(child.label);
+                boolean full = collect(child, sb, glob, after, limit, keys);
+                sb.setLength(len);
+                if (full) {
+                    return true;
+                }
             }
+            return false;
         }
 
-        public int hlen(String key) {
-            lockReader();
-            try {
-                int rc = 0;
-                Ageable a = get(key, false);
-                if (null!=a) {
-                    Hash hash = (Hash) a.value;
-                    rc = hash.size();
+        private void collect(Node node, StringBuilder sb, Glob glob, List<String> keys) {
+            if (node.terminal) {
+                String key = sb.toString();
+                if (null==glob || glob.matches(key)) {
+                    keys.add(key);
                 }
-                return rc;
             }
-            finally {
-                unlockReader();
+            for (int c=0; c<node.childCount; c++) {
+                Node child = node.children[c];
+                int len = sb.length();
+                sb.append(child.label);
+                collect(child, sb, glob, keys);
+                sb.setLength(len);
             }
         }
 
-        public int hstrlen(String key, String field) throws IOException {
-            lockReader();
-            try {
-                int rc = -1;
-                Ageable a = get(key, false);
-                if (null!=a) {
-                    Hash hash = (Hash) a.value;
-                    String value = hash.get(field);
-                    rc = value.length();
+        /**
+         * @param sb receives the key of the node returned
+         * @return the topmost node whose keys all start with prefix, null if there is none
+         */
+        private Node find(String prefix, StringBuilder sb) {
+            Node node = root;
+            int i = 0;
+            while (i<prefix.length()) {
+                int c = node.indexOf(prefix.charAt(i));
+                if (c<0) {
+                    return null;
                 }
-                return rc;
-            }
-            finally {
-                unlockReader();
+                Node child = node.children[c];
+                int l = commonPrefix(child.label, prefix, i);
+                if (i+l<prefix.length() && l<child.label.length()) {
+                    return null;
+                }
+                sb.append(child.label);
+                node = child;
+                i += l;
             }
+            return node;
         }
 
-        public List<Object> lpush(String key, String val) {
-            return _push(key, val, true);
+        private static int commonPrefix(String label, String key, int from) {
+            int n = Math.min(label.length(), key.length()-from);
+            int l = 0;
+            while (l<n && label.charAt(l)==key.charAt(from+l)) {
+                l++;
+            }
+            return l;
         }
 
-        public List<Object> rpush(String key, String val) {
-            return _push(key, val, false);
-        }
+        static final class Node {
 
-        public String hget(String key, String field) {
-            String rc = EMPTY_STRING;
+            Node(String label) {
+                this.label = label;
+            }
 
-                Ageable a = get(key, false);
-                if (null!=a) {
-                    Hash hash = (Hash) a.value;
-                    rc = hash.get(field);
+            /**
+             * @return the index of the child whose label starts with c or -(insertion point)-1
+             */
+            int indexOf(char c) {
+                int lo = 0;
+                int hi = childCount-1;
+                while (lo<=hi) {
+                    int mid = (lo+hi)>>>1;
+                    char m = children[mid].label.charAt(0);
+                    if (m<c) {
+                        lo = mid+1;
+                    }
+                    else if (m>c) {
+                        hi = mid-1;
+                    }
+                    else {
+                        return mid;
+                    }
                 }
-            return rc;
+                return -lo-1;
+            }
+
+            void insert(int i, Node child) {
+                if (null==children) {
+                    children = new Node[2];
+                }
+                else if (childCount==children.length) {
+                    children = Arrays.copyOf(children, 2*childCount);
+                }
+                System.arraycopy(children, i, children, i+1, childCount-i);
+                children[i] = child;
+                childCount++;
+            }
+
+            void delete(int i) {
+                System.arraycopy(children, i+1, children, i, childCount-i-1);
+                children[--childCount] = null;
+            }
+
+            String  label;
+            Node[]  children;
+            int     childCount;
+            boolean terminal;
+            /**
+             * The number of keys in the subtree of this node, including its own.
+             */
+            int     size;
         }
 
-        public List<String> hgetall(String key) {
-            Ageable a = get(key, false);
-            List<String> list = new ArrayList<String>();
-            if (null!=a) {
-                Hash hash = (Hash) a.value;
+        private Node root;
+        private final ArrayList<Node> path = new ArrayList<Node>();
+    }
 
-                for (Entry<String, String> entry : hash.entrySet()) {
-                    list.add(entry.getKey());
-                    list.add(entry.getValue());
+    /**
+     * This class represents a Redis set. Sets with more than MAX_UNINDEXED_SIZE members get a
+     * ScanTable, so SSCAN can return them in bounded steps and SPOP and SRANDMEMBER can pick
+     * members at random without iterating the set.
+     */
+    @SuppressWarnings("serial")
+    static class _Set extends LinkedHashSet<String>{
+
+        static final int MAX_UNINDEXED_SIZE = 128;
+
+        public _Set(int count) {
+            super(count);
+        }
+
+        @Override
+        public boolean add(String member) {
+            if (!super.add(member)) {
+                return false;
+            }
+            if (null!=index) {
+                index.add(member);
+            }
+            else if (size()>MAX_UNINDEXED_SIZE) {
+                index = new ScanTable();
+                for (String m : this) {
+                    index.add(m);
                 }
             }
-            return list;
+            return true;
         }
 
-        public String lpop(String key) {
-            return _pop(key, true);
+        @Override
+        public boolean remove(Object member) {
+            if (!super.remove(member)) {
+                return false;
+            }
+            if (null!=index) {
+                index.remove((String) member);
+            }
+            return true;
         }
 
-        public String rpop(String key) {
-            return _pop(key, false);
+        @Override
+        public void clear() {
+            super.clear();
+            index = null;
         }
 
-        public List<String> blpop(List<String> args) throws IOException {
-            return _bpop(true, args);
+        /**
+         * @return the next cursor, small sets are returned at once with cursor 0
+         */
+        public long scan(long cursor, int count, List<String> members) {
+            if (null==index) {
+                members.addAll(this);
+                return 0;
+            }
+            List<String> found = new ArrayList<String>(count);
+            cursor = index.scan(cursor, count, found);
+            for (String member : found) {
+                // The index may hold members removed through an iterator.
+                if (contains(member)) {
+                    members.add(member);
+                }
+            }
+            return cursor;
         }
 
-        public List<String> brpop(List<String> args) throws IOException {
-            return _bpop(false, args);
+        /**
+         * @see ScanTable#sample(Collection, ScanTable, int, boolean, Random)
+         */
+        public List<String> sample(int count, boolean distinct, Random random) {
+            return ScanTable.sample(this, index, count, distinct, random);
         }
 
-        private List<String> _bpop(boolean left, List<String> args) throws IOException {
+        private ScanTable index;
+    }
 
-            String last = args.get(args.size()-1);
-            Long timeout = toLong(last);
-            long expires = (timeout>0) ? now()+1000*timeout : -1;
+    /**
+     * The items of an array reply read in batches, each under its own database lock, for
+     * Worker.sendBatched() to write while no lock is held. An implementation keeps the
+     * cursor of the next batch, like SCAN does.
+     */
+    static abstract class ReplyBatches {
 
-            markDirty();
-            String item = null;
-            boolean expired = false;
-            for (;!portListener.stopRequested && !expired;) {
+        static final int BATCH = 1024;
 
-                for (int i=0, len=args.size()-1; i<len; i++) {
+        /**
+         * Adds the next items to out, about count of them.
+         * @return false if there are no more items
+         */
+        protected abstract boolean next(int count, List<String> out);
 
-                    String key = args.get(i);
-                    Ageable a = get(key, false);
-                    if (null!=a) {
-                        @SuppressWarnings("unchecked")
-                        List<String> list = (List<String>) a.value;
-                        if (list.size()>0) {
-                            if (left) {
-                                item = list.remove(0);
-                            }
-                            else {
-                                item = list.remove(list.size()-1);
-                            }
-                        }
-                    }
+        /**
+         * Reads all batches only to count their items, for a reply whose length is not known
+         * before.
+         */
+        public int count() {
+            List<String> items = new ArrayList<String>(BATCH);
+            int n = 0;
+            boolean more;
+            do {
+                items.clear();
+                more = next(BATCH, items);
+                n += items.size();
+            }
+            while (more);
+            return n;
+        }
+    }
 
-                    if (null!=item) {
-                        ArrayList<String> list = new ArrayList<String>();
-                        list.add(key);
-                        list.add(item);
-                        return list;
-                    }
+    /**
+     * This class represents a Redis list. Like the quicklist in Redis it is a doubly
+     * linked list of small array nodes, so pushing and popping at either end is O(1)
+     * and index based access only walks node headers rather than single elements.
+     */
+    static class QuickList extends AbstractList<String> {
 
-                    if (timeout>0 && now()>expires) {
-                        expired = true;
-                    }
+        static final int NODE_SIZE = 128;
 
-                    if (portListener.stopRequested || expired) {
-                        break;
-                    }
+        public QuickList() {
+        }
 
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
+        public QuickList(Collection<String> values) {
+            for (String value : values) {
+                addLast(value);
             }
-
-            return null;
         }
 
-        private List<Object> _push(String key, String val, boolean left) {
-            lockWriter();
-            try {
-                markDirty();
-                Ageable a = get(key, false);
-                if (null==a) {
-                    put(key, a = new Ageable(new ArrayList<Object>()));
-                }
+        @Override
+        public int size() {
+            return size;
+        }
 
-                @SuppressWarnings("unchecked")
-                List<Object> list = (List<Object>) a.value;
-                if (left) {
-                    list.add(0, val);
-                }
-                else {
-                    list.add(val); /// at end
-                }
-                return list;
+        public void addFirst(String value) {
+            if (null==head) {
+                linkFirst(new Node(NODE_SIZE/2));
             }
-            finally {
-                unlockWriter();
+            else if (head.start==0) {
+                linkFirst(new Node(NODE_SIZE));
             }
+            head.items[--head.start] = value;
+            size++;
+            modCount++;
         }
 
-        private String _pop(String key, boolean left) {
-            lockWriter();
-            try {
-                markDirty();
-                String item = null;
-                Ageable a = get(key, false);
-                if (null!=a) {
-                    @SuppressWarnings("unchecked")
-                    List<String> list = (List<String>) a.value;
-                    if (list.size()>0) {
-                        if (left) {
-                            item = list.remove(0);
-                        }
-                        else {
-                            item = list.remove(list.size()-1);
-                        }
-                    }
-                }
-                return item;
+        public void addLast(String value) {
+            if (null==tail) {
+                linkLast(new Node(NODE_SIZE/2));
             }
-            finally {
-                unlockWriter();
+            else if (tail.end==NODE_SIZE) {
+                linkLast(new Node(0));
             }
+            tail.items[tail.end++] = value;
+            size++;
+            modCount++;
         }
 
-        private long _hincrBy(String key, String field, Args args) {
-            lockWriter();
-            try {
-                Ageable a = get(key, false);
-                Hash hash = null;
-                if (null==a) {
-                    put(key, new Ageable(hash = new Hash()));
-                }
-                else {
-                    hash = (Hash) a.value;
-                }
+        public String pollFirst() {
+            if (null==head) {
+                return null;
+            }
+            Node n = head;
+            String value = n.items[n.start];
+            n.items[n.start++] = null;
+            if (n.count()==0) {
+                unlink(n);
+            }
+            size--;
+            modCount++;
+            return value;
+        }
 
-                long incr = Long.parseLong(args.get(2));
-                String value = hash.getOrDefault(field, "0");
-                long sum = Long.parseLong(value)+incr;
-                String string = Long.toString(sum);
-                hash.put(field, string);
-                return sum;
+        public String pollLast() {
+            if (null==tail) {
+                return null;
             }
-            finally {
-                unlockWriter();
+            Node n = tail;
+            String value = n.items[--n.end];
+            n.items[n.end] = null;
+            if (n.count()==0) {
+                unlink(n);
             }
+            size--;
+            modCount++;
+            return value;
         }
 
-        protected Long decrby(String key, long amount) {
-            return _incrDecr(key, false, amount);
+        @Override
+        public boolean add(String value) {
+            addLast(value);
+            return true;
         }
 
-        @CommandMethod(args = {"key", "amout"}, since="1.0.0")
-        protected Long incrby(String key, long amount) {
-            return _incrDecr(key, true, amount);
+        @Override
+        public String get(int index) {
+            checkIndex(index);
+            int[] offset = new int[1];
+            Node n = locate(index, offset);
+            return n.items[n.start+offset[0]];
         }
 
-        @CommandMethod(args = {"key"}, since="1.0.0")
-        protected Long decr(String key) {
-            return _incrDecr(key, false, 1);
+        @Override
+        public String set(int index, String value) {
+            checkIndex(index);
+            int[] offset = new int[1];
+            Node n = locate(index, offset);
+            int pos = n.start+offset[0];
+            String old = n.items[pos];
+            n.items[pos] = value;
+            return old;
         }
 
-        @CommandMethod(args = {"key"}, since="1.0.0")
-        protected Long incr(String key) {
-            return _incrDecr(key, true, 1);
+        @Override
+        public void add(int index, String value) {
+            if (index==0) {
+                addFirst(value);
+                return;
+            }
+            if (index==size) {
+                addLast(value);
+                return;
+            }
+            checkIndex(index);
+
+            int[] offset = new int[1];
+            Node n = locate(index, offset);
+            int off = offset[0];
+            if (n.count()==NODE_SIZE) {
+                // Split a full node in halves and insert into the one that now holds the index.
+                Node right = new Node(0);
+                int half = NODE_SIZE/2;
+                System.arraycopy(n.items, n.start+half, right.items, 0, n.count()-half);
+                Arrays.fill(n.items, n.start+half, n.end, null);
+                right.end = n.count()-half;
+                n.end = n.start+half;
+                linkAfter(n, right);
+                if (off>half) {
+                    n = right;
+                    off -= half;
+                }
+            }
+
+            int pos = n.start+off;
+            if (n.end<NODE_SIZE) {
+                System.arraycopy(n.items, pos, n.items, pos+1, n.end-pos);
+                n.end++;
+            }
+            else {
+                System.arraycopy(n.items, n.start, n.items, n.start-1, off);
+                n.start--;
+                pos--;
+            }
+            n.items[pos] = value;
+            size++;
+            modCount++;
         }
 
-        private Long _incrDecr(String key, boolean incr, long amount) {
-            lockWriter();
-            try {
-                markDirty();
-                Ageable a = get(key, false);
-                if (null==a) {
-                    put(key, a = new Ageable("0"));
+        @Override
+        public String remove(int index) {
+            checkIndex(index);
+            int[] offset = new int[1];
+            Node n = locate(index, offset);
+            int off = offset[0];
+            int pos = n.start+off;
+            String old = n.items[pos];
+            if (off<n.count()/2) {
+                System.arraycopy(n.items, n.start, n.items, n.start+1, off);
+                n.items[n.start++] = null;
+            }
+            else {
+                System.arraycopy(n.items, pos+1, n.items, pos, n.end-pos-1);
+                n.items[--n.end] = null;
+            }
+            if (n.count()==0) {
+                unlink(n);
+            }
+            size--;
+            modCount++;
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            head = tail = null;
+            size = 0;
+            modCount++;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+
+                @Override
+                public boolean hasNext() {
+                    return null!=node && pos<node.end;
                 }
 
-                Long    b = (incr ? 1 : -1) * amount;
-                String  s = a.get();
-                Long    l = toLong(s)+b;
-                a.value = l.toString();;
-                return l;
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    String value = node.items[pos++];
+                    if (pos==node.end && null!=node.next) {
+                        node = node.next;
+                        pos  = node.start;
+                    }
+                    return value;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                Node node = head;
+                int  pos  = null==head ? 0 : head.start;
+            };
+        }
+
+        /**
+         * Returns the elements from index start to stop, both inclusive and already normalized.
+         */
+        public List<String> range(int start, int stop) {
+            List<String> list = new ArrayList<String>(Math.max(0, stop-start+1));
+            if (start>stop || start>=size) {
+                return list;
             }
-            finally {
-                unlockWriter();
+            int[] offset = new int[1];
+            Node n = locate(start, offset);
+            int pos = n.start+offset[0];
+            for (int i=start; i<=stop; i++) {
+                if (pos==n.end) {
+                    n = n.next;
+                    pos = n.start;
+                }
+                list.add(n.items[pos++]);
             }
+            return list;
         }
 
-        private String _hincrByFloat(String key, String field, double incr) {
-            lockWriter();
-            try {
-                Ageable a = get(key, false);
-                Hash hash = null;
-                if (null==a) {
-                    put(key, new Ageable(hash = new Hash()));
+        /**
+         * Removes count elements from the head, dropping whole nodes where possible.
+         */
+        public void removeFirst(int count) {
+            count = Math.min(count, size);
+            size -= count;
+            while (count>0) {
+                Node n = head;
+                if (n.count()<=count) {
+                    count -= n.count();
+                    unlink(n);
                 }
                 else {
-                    hash = (Hash) a.value;
+                    Arrays.fill(n.items, n.start, n.start+count, null);
+                    n.start += count;
+                    count = 0;
                 }
-
-                //double incr = Double.parseDouble(args.get(2));
-                String value = hash.getOrDefault(field, "0");
-                double sum = Double.parseDouble(value)+incr;
-                String string = Double.toString(sum);
-                hash.put(field, string);
-                return string;
-            }
-            finally {
-                unlockWriter();
             }
+            modCount++;
         }
 
-        private int _hset(String key, String field, String value, boolean nx) {
-            lockWriter();
-            try {
-                Ageable a = get(key, false);
-                Hash hash = null;
-                if (null==a) {
-                    markDirty().put(key, new Ageable(hash = new Hash()));
+        /**
+         * Removes count elements from the tail, dropping whole nodes where possible.
+         */
+        public void removeLast(int count) {
+            count = Math.min(count, size);
+            size -= count;
+            while (count>0) {
+                Node n = tail;
+                if (n.count()<=count) {
+                    count -= n.count();
+                    unlink(n);
                 }
                 else {
-                    hash = (Hash) a.value;
+                    Arrays.fill(n.items, n.end-count, n.end, null);
+                    n.end -= count;
+                    count = 0;
                 }
+            }
+            modCount++;
+        }
 
-                if (nx && hash.contains(field)) {
-                    return 0;
+        /**
+         * Removes up to count occurrences of value (all if count is 0), starting
+         * from the head for positive and from the tail for negative counts.
+         * Each node is compacted in place.
+         */
+        public int removeValue(String value, int count) {
+            boolean fromTail = count<0;
+            int limit = 0==count ? Integer.MAX_VALUE : Math.abs(count);
+            int removed = 0;
+
+            Node n = fromTail ? tail : head;
+            while (null!=n && removed<limit) {
+                Node following = fromTail ? n.prev : n.next;
+                if (fromTail) {
+                    int w = n.end;
+                    for (int r=n.end-1; r>=n.start; r--) {
+                        String item = n.items[r];
+                        if (removed<limit && value.equals(item)) {
+                            removed++;
+                        }
+                        else {
+                            n.items[--w] = item;
+                        }
+                    }
+                    Arrays.fill(n.items, n.start, w, null);
+                    n.start = w;
                 }
                 else {
-                    markDirty();
-                    hash.put(field, value);
-                    return 1;
+                    int w = n.start;
+                    for (int r=n.start; r<n.end; r++) {
+                        String item = n.items[r];
+                        if (removed<limit && value.equals(item)) {
+                            removed++;
+                        }
+                        else {
+                            n.items[w++] = item;
+                        }
+                    }
+                    Arrays.fill(n.items, w, n.end, null);
+                    n.end = w;
                 }
+                if (n.count()==0) {
+                    unlink(n);
+                }
+                n = following;
             }
-            finally {
-                unlockWriter();
-            }
+            size -= removed;
+            modCount++;
+            return removed;
         }
 
-        protected int number;
-        protected boolean dirty;
+        public int indexOf(String value) {
+            int index = 0;
+            for (Node n=head; null!=n; n=n.next) {
+                for (int i=n.start; i<n.end; i++, index++) {
+                    if (value.equals(n.items[i])) {
+                        return index;
+                    }
+                }
+            }
+            return -1;
+        }
 
-        protected boolean locking;
-        protected ReadWriteLock lock;
-    }
+        /**
+         * Finds the node holding the element at index walking from the nearer end.
+         * The offset of the element within that node is returned in offset[0].
+         */
+        private Node locate(int index, int[] offset) {
+            if (index<size/2) {
+                Node n = head;
+                while (index>=n.count()) {
+                    index -= n.count();
+                    n = n.next;
+                }
+                offset[0] = index;
+                return n;
+            }
+            else {
+                Node n = tail;
+                int fromEnd = size-1-index;
+                while (fromEnd>=n.count()) {
+                    fromEnd -= n.count();
+                    n = n.prev;
+                }
+                offset[0] = n.count()-1-fromEnd;
+                return n;
+            }
+        }
 
-    /**
-     * This class represents a single key/value pair in a Redis database along
-     * with an expiration value.
-     */
-    class Ageable {
+        private void checkIndex(int index) {
+            if (index<0 || index>=size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+        }
 
-        public Ageable(Object value) {
-            this.value = value;
-            this.expires = -1;
+        private void linkFirst(Node n) {
+            n.next = head;
+            if (null!=head) head.prev = n; else tail = n;
+            head = n;
         }
 
-        public Ageable(Object value, Long expires) {
-            this.value = value;
-            this.expires = expires;
+        private void linkLast(Node n) {
+            n.prev = tail;
+            if (null!=tail) tail.next = n; else head = n;
+            tail = n;
         }
 
-        public <T> T get() {
-            @SuppressWarnings("unchecked")
-            T t = (T) value;
-            return t;
+        private void linkAfter(Node n, Node added) {
+            added.prev = n;
+            added.next = n.next;
+            if (null!=n.next) n.next.prev = added; else tail = added;
+            n.next = added;
         }
 
-        @Override
-        public String toString() {
-            return getClass().getSimpleName() + "[value=" + value + ", expires=" + expires + "]";
+        private void unlink(Node n) {
+            if (null!=n.prev) n.prev.next = n.next; else head = n.next;
+            if (null!=n.next) n.next.prev = n.prev; else tail = n.prev;
+            n.prev = n.next = null;
         }
 
-        long expires;
-        Object value;
-    }
+        static final class Node {
 
-    // TODO: Implement support for ZSet, Hash, Bits, Sets
-    class ZSet {
-    }
+            Node(int start) {
+                this.items = new String[NODE_SIZE];
+                this.start = start;
+                this.end   = start;
+            }
 
-    @SuppressWarnings("serial")
-    static class _Set extends LinkedHashSet<String>{
+            int count() {
+                return end-start;
+            }
 
-        public _Set(int count) {
-            super(count);
+            final String[] items;
+            int  start;
+            int  end;
+            Node prev;
+            Node next;
         }
 
+        private Node head;
+        private Node tail;
+        private int  size;
     }
 
+    /**
+     * This class represents a Redis hash. Fields with a time to live set by HEXPIRE and its
+     * variants have their expiry time in a side map, which only exists for hashes using it.
+     * Point lookups hide expired fields, iterating callers check isLive(), and the Expirer
+     * removes them in the background.
+     */
     @SuppressWarnings("serial")
     static class Hash extends LinkedHashMap<String,String> {
 
+        static final int EXPIRE_NX = 1;
+        static final int EXPIRE_XX = 2;
+        static final int EXPIRE_GT = 4;
+        static final int EXPIRE_LT = 8;
+
         public Hash() {
             super();
         }
@@ -3803,8 +15632,197 @@ public class RedisServer {
         }
 
         public boolean contains(String field) {
-            return super.containsKey(field);
+            return containsKey(field);
+        }
+
+        @Override
+        public String get(Object field) {
+            String value = super.get(field);
+            if (null==expires || null==value || isLive((String) field, System.currentTimeMillis())) {
+                return value;
+            }
+            return null;
+        }
+
+        @Override
+        public String getOrDefault(Object field, String defaultValue) {
+            String value = get(field);
+            return null==value ? defaultValue : value;
+        }
+
+        @Override
+        public boolean containsKey(Object field) {
+            return null!=get(field);
+        }
+
+        /**
+         * @return false if the field has expired, but was not removed yet
+         */
+        public boolean isLive(String field, long now) {
+            if (null==expires) {
+                return true;
+            }
+            Long when = expires.get(field);
+            return null==when || when>now;
+        }
+
+        /**
+         * @return the number of fields not expired
+         */
+        public int liveSize(long now) {
+            if (null==expires) {
+                return size();
+            }
+            int expired = 0;
+            for (long when : expires.values()) {
+                if (when<=now) {
+                    expired++;
+                }
+            }
+            return size()-expired;
+        }
+
+        public boolean hasExpiries() {
+            return null!=expires;
+        }
+
+        /**
+         * @return the fields with a time to live and their expiry times
+         */
+        public Map<String, Long> getExpiries() {
+            return null==expires ? Collections.<String, Long>emptyMap() : Collections.unmodifiableMap(expires);
+        }
+
+        /**
+         * @return the absolute expiry time of the field in milliseconds, -1 if it has none
+         */
+        public long expiresAt(String field) {
+            Long when = null==expires ? null : expires.get(field);
+            return null==when ? -1 : when;
+        }
+
+        /**
+         * Sets the absolute expiry time of a field, or removes it if when is negative.
+         */
+        public void expireAt(String field, long when) {
+            if (when>=0) {
+                if (null==expires) {
+                    expires = new HashMap<String, Long>();
+                }
+                expires.put(field, when);
+            }
+            else if (null!=expires) {
+                expires.remove(field);
+                if (expires.isEmpty()) {
+                    expires = null;
+                }
+            }
+        }
+
+        @Override
+        public String put(String field, String value) {
+            String old = super.put(field, value);
+            // Setting a field discards its time to live, like HSET in Redis.
+            expireAt(field, -1);
+            if (null!=old) {
+                return old;
+            }
+            if (null!=index) {
+                index.add(field);
+            }
+            else if (size()>_Set.MAX_UNINDEXED_SIZE) {
+                index = new ScanTable();
+                for (String f : keySet()) {
+                    index.add(f);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String remove(Object field) {
+            String old = super.remove(field);
+            if (null!=old) {
+                if (null!=index) {
+                    index.remove((String) field);
+                }
+                expireAt((String) field, -1);
+            }
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            index   = null;
+            expires = null;
+        }
+
+        /**
+         * @return the next cursor, small hashes are returned at once with cursor 0
+         */
+        public long scan(long cursor, int count, List<String> fields) {
+            if (null==index) {
+                fields.addAll(keySet());
+                return 0;
+            }
+            List<String> found = new ArrayList<String>(count);
+            cursor = index.scan(cursor, count, found);
+            for (String field : found) {
+                if (containsKey(field)) {
+                    fields.add(field);
+                }
+            }
+            return cursor;
+        }
+
+        /**
+         * @see ScanTable#sample(Collection, ScanTable, int, boolean, Random)
+         */
+        public List<String> sample(int count, boolean distinct, Random random) {
+            if (null!=expires) {
+                // Only the fields alive may be picked, so these hashes are sampled in O(n).
+                long now = System.currentTimeMillis();
+                List<String> live = new ArrayList<String>(size());
+                for (String field : keySet()) {
+                    if (isLive(field, now)) {
+                        live.add(field);
+                    }
+                }
+                return ScanTable.sample(live, null, count, distinct, random);
+            }
+            return ScanTable.sample(keySet(), index, count, distinct, random);
+        }
+
+        private ScanTable index;
+        private HashMap<String, Long> expires;
+    }
+
+    /**
+     * A server side function called by FCALL name numkeys key ... arg ...
+     */
+    public interface RedisFunction {
+
+        /**
+         * @param db the selected database, already locked
+         * @param keys the key names
+         * @param args the remaining arguments
+         * @return the reply, see Worker.sendObject()
+         */
+        public Object call(Database db, List<String> keys, List<String> args) throws Exception;
+    }
+
+    static class RegisteredFunction {
+
+        RegisteredFunction(String name, RedisFunction function, boolean ro) {
+            this.name     = name;
+            this.function = function;
+            this.ro       = ro;
         }
+
+        final String        name;
+        final RedisFunction function;
+        final boolean       ro;
     }
 
     public interface RedisListener {
@@ -3880,10 +15898,50 @@ public class RedisServer {
             return this;
         }
 
+        /**
+         * Adds a large argument read as a ChunkedString. Its slot holds a placeholder until
+         * materialize() replaces it with a String, value() returns the ChunkedString.
+         */
+        public Args add(ChunkedString value) {
+            String placeholder = new String();
+            if (null==chunked) {
+                chunked = new IdentityHashMap<String, ChunkedString>();
+            }
+            chunked.put(placeholder, value);
+            add(placeholder);
+            return this;
+        }
+
         public String key() {
             return get(0);
         }
 
+        /**
+         * @return the argument at index, a ChunkedString if it was read as one
+         */
+        public CharSequence value(int index) {
+            String s = get(index);
+            ChunkedString value = null==chunked ? null : chunked.get(s);
+            return null==value ? s : value;
+        }
+
+        /**
+         * Replaces the placeholders of chunked arguments by Strings, except the one at index.
+         */
+        public void materialize(int index) {
+            if (null==chunked) {
+                return;
+            }
+            for (int i=0; i<size(); i++) {
+                ChunkedString value = chunked.get(get(i));
+                if (null!=value && i!=index) {
+                    chunked.remove(get(i));
+                    set(i, value.toString());
+                }
+            }
+        }
+
+        private IdentityHashMap<String, ChunkedString> chunked;
     }
 
     /**
@@ -3929,29 +15987,29 @@ public class RedisServer {
          */
         int max() default -1;
 
-        String since();
+        /**
+         * The Redis version that introduced the command, empty for an extension.
+         * @return
+         */
+        String since() default "";
+
+        /**
+         * true if the command is a RedisJ extension Redis does not have, which is available
+         * whatever Redis version the server sticks to
+         * @return
+         */
+        boolean extension() default false;
 
         // TODO: Use info whether a methoid is R/O only.
         boolean ro() default false;
-    }
-    protected Pattern createRegexFromGlob(String glob) {
-        String out = "^";
-        for(int i = 0; i < glob.length(); ++i)
-        {
-            final char c = glob.charAt(i);
-            switch(c)
-            {
-            case '*': out += ".*"; break;
-            case '?': out += '.'; break;
-            case '.': out += "\\."; break;
-            case '\\': out += "\\\\"; break;
-            default: out += c;
-            }
-        }
-        out += '$';
-        return Pattern.compile(out);
-    }
 
+        /**
+         * Index of the argument the command reads with Args.value(), which keeps a large one
+         * a ChunkedString, or -1 if all arguments are read as Strings.
+         * @return
+         */
+        int chunked() default -1;
+    }
 
     static final String CN = RedisServer.class.getSimpleName();
 
@@ -3962,21 +16020,127 @@ public class RedisServer {
     protected static final byte[] EMPTY_BYTES  = EMPTY_STRING.getBytes();
 
     protected static final byte[] OK_BYTES   = "+OK\r\n".getBytes();
+
+    /**
+     * The commands a client may send while subscribed to a channel or pattern.
+     */
+    protected static final Set<String> SUBSCRIBED_COMMANDS = new HashSet<String>(Arrays.asList(
+            "subscribe", "psubscribe", "unsubscribe", "punsubscribe", "ping", "quit"));
+
+    /**
+     * The commands executed right away instead of being queued between MULTI and EXEC.
+     */
+    protected static final Set<String> TRANSACTION_COMMANDS = new HashSet<String>(Arrays.asList(
+            "multi", "exec", "discard", "watch", "quit"));
+
+    /**
+     * Commands running code which can touch any database.
+     */
+    protected static final Set<String> SCRIPT_COMMANDS = new HashSet<String>(Arrays.asList(
+            "eval", "eval_ro", "evalsha", "evalsha_ro", "fcall", "fcall_ro"));
+
+    protected static final byte[] QUEUED_BYTES = "+QUEUED\r\n".getBytes();
+
+    /**
+     * The commands a script may not call with redis.call().
+     */
+    protected static final Set<String> SCRIPT_DENIED_COMMANDS = new HashSet<String>(Arrays.asList(
+            "multi", "exec", "discard", "watch", "unwatch", "subscribe", "psubscribe", "unsubscribe", "punsubscribe",
+            "eval", "eval_ro", "evalsha", "evalsha_ro", "script", "fcall", "fcall_ro", "function", "quit"));
     protected static final byte[] NONE_BYTES = "+none\r\n".getBytes();
 
-    final int NIBBLE_BITS[] = {
-            0, 1, 1, 2, 1, 2, 2, 3,
-            1, 2, 2, 3, 2, 3, 3, 4
+    /**
+     * Highest bit offset of a string, as strings are limited to 512 MB.
+     */
+    protected static final long MAX_BIT_OFFSET = 4L*1024*1024*1024-1;
+
+    /**
+     * Keyspace notification classes as configured by notify-keyspace-events.
+     */
+    protected static final int NOTIFY_KEYSPACE = 1<<0;
+    protected static final int NOTIFY_KEYEVENT = 1<<1;
+    protected static final int NOTIFY_GENERIC  = 1<<2;
+    protected static final int NOTIFY_STRING   = 1<<3;
+    protected static final int NOTIFY_LIST     = 1<<4;
+    protected static final int NOTIFY_SET      = 1<<5;
+    protected static final int NOTIFY_HASH     = 1<<6;
+    protected static final int NOTIFY_ZSET     = 1<<7;
+    protected static final int NOTIFY_EXPIRED  = 1<<8;
+    protected static final int NOTIFY_EVICTED  = 1<<9;
+    protected static final int NOTIFY_STREAM   = 1<<10;
+    protected static final int NOTIFY_KEY_MISS = 1<<11;
+    protected static final int NOTIFY_NEW      = 1<<14;
+    protected static final int NOTIFY_ALL      = NOTIFY_GENERIC|NOTIFY_STRING|NOTIFY_LIST|NOTIFY_SET|NOTIFY_HASH|NOTIFY_ZSET|NOTIFY_EXPIRED|NOTIFY_EVICTED|NOTIFY_STREAM;
+
+    protected static final String[] CONFIG_PARAMETERS = {"lua-time-limit", "notify-keyspace-events", "prefix-index-dbs", "proto-max-bulk-len"};
+
+    protected static final String NOTIFY_CHARS      = "Ag$lshzxetKEmn";
+    protected static final int[]  NOTIFY_CHAR_FLAGS = {
+        NOTIFY_ALL, NOTIFY_GENERIC, NOTIFY_STRING, NOTIFY_LIST, NOTIFY_SET, NOTIFY_HASH, NOTIFY_ZSET,
+        NOTIFY_EXPIRED, NOTIFY_EVICTED, NOTIFY_STREAM, NOTIFY_KEYSPACE, NOTIFY_KEYEVENT, NOTIFY_KEY_MISS, NOTIFY_NEW
     };
 
     protected Map<String, WorkerMethod> methodCache = new HashMap<String, RedisServer.WorkerMethod>();
 
     protected List<RedisListener> commandListeners = new ArrayList<RedisListener>();
+    protected final Map<String, RegisteredFunction> functions = new ConcurrentHashMap<String, RegisteredFunction>();
+
+    /**
+     * Compiled scripts by the SHA1 of their body, as loaded by EVAL and SCRIPT LOAD.
+     */
+    protected final Map<String, Lua.Chunk> scripts = new ConcurrentHashMap<String, Lua.Chunk>();
 
     protected String persistDir;
 
     protected LinkedHashSet<Worker> workers = new LinkedHashSet<Worker>();
 
+    protected final PubSub pubsub = new PubSub();
+    protected SubscriberPoller subscriberPoller;
+    protected Expirer expirer;
+
+    /**
+     * The running and the last finished BGDEL and BGEXPIRE jobs by id.
+     */
+    protected final Map<Integer, KeyJob> keyJobs = new LinkedHashMap<Integer, KeyJob>();
+    protected final AtomicInteger keyJobIds = new AtomicInteger();
+
+    /**
+     * The configured notify-keyspace-events flags.
+     */
+    protected volatile int notifyFlags;
+
+    /**
+     * The numbers of the databases with a RadixTree index of their keys.
+     */
+    protected volatile Set<Integer> prefixIndexDbs = Collections.emptySet();
+
+    /**
+     * The configured proto-max-bulk-len, the maximum length of a bulk argument and of a string value.
+     */
+    protected volatile long protoMaxBulkLen = DEFAULT_PROTO_MAX_BULK_LEN;
+
+    /**
+     * The length from which bulk arguments are read into a ChunkedString.
+     */
+    protected volatile int chunkedBulkLen = DEFAULT_CHUNKED_BULK_LEN;
+
+    /**
+     * The configured lua-time-limit in milliseconds, after which other clients get BUSY
+     * errors while a script runs, 0 or less for never.
+     */
+    protected volatile long luaTimeLimit = DEFAULT_LUA_TIME_LIMIT;
+
+    /**
+     * The client running a script, null if none.
+     */
+    protected volatile Worker runningScript;
+
+    /**
+     * The event types to publish, which is 0 unless notifications are enabled and anyone
+     * is subscribed to a channel or pattern.
+     */
+    protected volatile int notifyMask;
+
     protected long totalConnectionsReceived;
     protected long totalCommandsProcessed;
     protected long clientLongestOutputList;
@@ -3987,6 +16151,7 @@ public class RedisServer {
     protected boolean locking;
 
     protected Databases databases;
+    protected final AtomicLong databaseIds = new AtomicLong();
     protected int port;
     protected int maxDb;
     protected Persistifier persistifier;
@@ -7,19 +7,51 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import redis.clients.jedis.BitOP;
+import redis.clients.jedis.BitPosParams;
+import redis.clients.jedis.GeoCoordinate;
+import redis.clients.jedis.GeoRadiusResponse;
+import redis.clients.jedis.GeoUnit;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.ListPosition;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.SortingParams;
+import redis.clients.jedis.params.GeoRadiusParam;
+import redis.clients.jedis.StreamEntry;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.ZParams;
+import redis.clients.jedis.commands.ProtocolCommand;
 import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.util.SafeEncoder;
 
 public class TestRedisServer {
 
@@ -132,6 +164,74 @@ public class TestRedisServer {
         assertEquals(expected, actual);
     }
 
+    @Test
+    public void testSetOptions() {
+        final String key = "testSetOptions";
+        client.del(key);
+        assertEquals(1L, (long) client.setnx(key, "lock"));
+        assertEquals(0L, (long) client.setnx(key, "other"));
+        assertNull(command("SET", key, "other", "NX", "PX", "10000"));
+        assertEquals("lock", client.get(key));
+        assertEquals(-1L, (long) client.ttl(key));
+
+        assertEquals("OK", SafeEncoder.encode((byte[]) command("SET", key, "v1", "XX", "EX", "100")));
+        assertEquals(100L, (long) client.ttl(key));
+        assertEquals("v1", SafeEncoder.encode((byte[]) command("SET", key, "v2", "GET", "KEEPTTL")));
+        assertEquals(100L, (long) client.ttl(key));
+        assertEquals("v2", client.get(key));
+        assertEquals("OK", SafeEncoder.encode((byte[]) command("SET", key, "v3")));
+        assertEquals(-1L, (long) client.ttl(key));
+        long at = System.currentTimeMillis()/1000 + 200;
+        command("SET", key, "v4", "EXAT", String.valueOf(at));
+        assertTrue(client.ttl(key)>190);
+        assertNull(command("SET", "nokey", "v", "XX", "GET"));
+        assertFalse(client.exists("nokey"));
+
+        assertEquals("v4", client.getSet(key, "v5"));
+        assertEquals(-1L, (long) client.ttl(key));
+        assertEquals("v5", SafeEncoder.encode((byte[]) command("GETEX", key, "PX", "50000")));
+        assertEquals(50L, (long) client.ttl(key));
+        assertEquals("v5", SafeEncoder.encode((byte[]) command("GETEX", key, "PERSIST")));
+        assertEquals(-1L, (long) client.ttl(key));
+        assertEquals("v5", SafeEncoder.encode((byte[]) command("GETDEL", key)));
+        assertFalse(client.exists(key));
+        assertNull(command("GETDEL", key));
+
+        assertEquals("OK", client.setex(key, 30, "v"));
+        assertEquals("OK", client.setex(key, 60, "w"));
+        assertEquals(60L, (long) client.ttl(key));
+        assertEquals("w", client.get(key));
+        assertEquals("OK", client.psetex(key, 5000L, "x"));
+        assertEquals(5L, (long) client.ttl(key));
+
+        client.sadd("set", "a");
+        for (String[] args : new String[][] {{key, "v", "NX", "XX"}, {key, "v", "EX", "10", "PX", "100"},
+                {key, "v", "KEEPTTL", "EX", "1"}, {key, "v", "PERSIST"}, {key, "v", "EX"}}) {
+            try {
+                command("SET", args);
+                fail();
+            }
+            catch (JedisDataException e) {
+                assertTrue(e.getMessage().contains("syntax error"));
+            }
+        }
+        try {
+            command("SET", key, "v", "EX", "0");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("invalid expire time in 'set' command"));
+        }
+        try {
+            command("SET", "set", "v", "GET");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+        }
+        assertEquals(1L, (long) client.scard("set"));
+    }
+
     @Test
     public void testAppend() {
         final String key      = "testAppend";
@@ -143,6 +243,206 @@ public class TestRedisServer {
         assertEquals("123tail", actual);
     }
 
+    @Test
+    public void testRanges() {
+        final String key = "testRanges";
+        client.del(key);
+        assertEquals(0L, (long) client.setrange(key, 0, ""));
+        assertFalse(client.exists(key));
+        assertEquals(11L, (long) client.setrange(key, 6, "World"));
+        assertEquals("\0\0\0\0\0\0World", client.get(key));
+        assertEquals(11L, (long) client.setrange(key, 0, "Hello "));
+        assertEquals("Hello World", client.get(key));
+        assertEquals(11L, (long) client.setrange(key, 6, "Redis"));
+        assertEquals(14L, (long) client.append(key, "!!!"));
+        assertEquals("Hello Redis!!!", client.get(key));
+        assertEquals("Hello", client.getrange(key, 0, 4));
+        assertEquals("!!!", client.getrange(key, -3, -1));
+        assertEquals("Hello Redis!!!", client.getrange(key, 0, -1));
+        assertEquals("Redis!!!", client.getrange(key, 6, 100));
+        assertEquals("", client.getrange(key, 5, 3));
+        assertEquals("", client.getrange("nokey", 0, -1));
+        assertEquals(14L, (long) client.strlen(key));
+        assertEquals("string", client.type(key));
+
+        client.set("counter", "10");
+        client.append("counter", "0");
+        assertEquals(101L, (long) client.incr("counter"));
+        client.setbit("bits", 7, true);
+        assertEquals(2L, (long) client.append("bits", "x"));
+        assertEquals("\u0001x", client.get("bits"));
+        try {
+            client.setrange(key, -1, "x");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("offset is out of range"));
+        }
+        try {
+            client.setrange(key, 512*1024*1024, "x");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("maximum allowed size"));
+        }
+
+        // Appending is amortized O(1), a million appends would take hours if it copied.
+        RedisServer.Database db = server.select(0);
+        for (int i=0; i<1000000; i++) {
+            db.append("log", "0123456789");
+        }
+        assertEquals(10000000, db.strlen("log"));
+        assertEquals("0123456789", db.getrange("log", -10, -1));
+    }
+
+    @Test
+    public void testStreamedReplies() {
+        final String key = "testStreamedReplies";
+        client.select(0);
+        client.del(key);
+        RedisServer.Database db = server.select(0);
+        for (int i=0; i<100000; i++) {
+            db.hset(key, "field" + i, "value" + i);
+        }
+        Map<String, String> all = client.hgetAll(key);
+        assertEquals(100000, all.size());
+        assertEquals("value99999", all.get("field99999"));
+        assertEquals(100000, client.hkeys(key).size());
+        assertEquals(100000, client.hvals(key).size());
+        command("HPEXPIRE", key, "1", "FIELDS", "2", "field0", "field1");
+        try {
+            Thread.sleep(10);
+        }
+        catch (InterruptedException e) {
+        }
+        assertEquals(99998, client.hgetAll(key).size());
+        assertFalse(client.hkeys(key).contains("field0"));
+        assertEquals(99998, client.hvals(key).size());
+
+        client.set("testStreamedReplies:a", "1");
+        client.rpush("testStreamedReplies:l", "x");
+        assertEquals(Arrays.asList("1", null, null), client.mget("testStreamedReplies:a", "testStreamedReplies:l", "nokey"));
+        assertEquals(new TreeSet<String>(Arrays.asList("testStreamedReplies:a", "testStreamedReplies:l")),
+                new TreeSet<String>(client.keys("testStreamedReplies:*")));
+        assertEquals(2, client.keys("*StreamedReplies:?").size());
+        client.del(key, "testStreamedReplies:a", "testStreamedReplies:l");
+    }
+
+    @Test
+    public void testBulkLength() throws IOException {
+        final String key = "testBulkLength";
+        client.select(0);
+        char[] chars = new char[3*1024*1024];
+        Arrays.fill(chars, 'x');
+        chars[chars.length-1] = 'y';
+        String large = new String(chars);
+        assertEquals("OK", client.set(key, large));
+        assertEquals(large, client.get(key));
+        // Over the default chunked bulk length the value is stored in chunks.
+        assertTrue(server.select(0).get(key, false).value instanceof RedisServer.ChunkedString);
+        assertEquals(Long.valueOf(large.length()), client.strlen(key));
+        assertEquals("xxy", client.getrange(key, -3, -1));
+        assertEquals("string", client.type(key));
+        assertEquals(Long.valueOf(large.length()+1), client.append(key, "z"));
+        assertEquals(large + "z", client.get(key));
+        assertEquals("OK", client.set(key, large));
+        assertEquals(Arrays.asList("proto-max-bulk-len", "536870912"), client.configGet("proto-max-bulk-len"));
+
+        assertEquals("OK", client.configSet("proto-max-bulk-len", "1mb"));
+        try {
+            try {
+                client.append(key, "z");
+                fail();
+            }
+            catch (JedisDataException e) {
+                assertTrue(e.getMessage().contains("maximum allowed size"));
+            }
+            // The payload is rejected from its header, before it is sent or allocated.
+            Socket socket = new Socket("127.0.0.1", PORT);
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write("*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$2000000\r\n".getBytes());
+                out.flush();
+                InputStream in = socket.getInputStream();
+                StringBuilder reply = new StringBuilder();
+                for (int c=in.read(); c>=0 && c!='\n'; c=in.read()) {
+                    reply.append((char) c);
+                }
+                assertEquals("-ERR Protocol error: invalid bulk length\r", reply.toString());
+                assertEquals(-1, in.read());
+            }
+            finally {
+                socket.close();
+            }
+        }
+        finally {
+            client.configSet("proto-max-bulk-len", "512mb");
+        }
+        try {
+            client.configSet("proto-max-bulk-len", "1k");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("between 1mb"));
+        }
+        client.del(key);
+    }
+
+    @Test
+    public void testRenameMove() {
+        client.select(10);
+        client.flushDB();
+        client.hset("h", "a", "1");
+        client.hset("h", "b", "2");
+        command("HPEXPIRE", "h", "2000", "FIELDS", "1", "a");
+        client.pexpire("h", 3000);
+        assertEquals("OK", client.rename("h", "h2"));
+        assertFalse(client.exists("h"));
+        assertEquals("2", client.hget("h2", "b"));
+        client.set("s", "x");
+        assertEquals(0L, (long) client.renamenx("h2", "s"));
+        assertEquals(1L, (long) client.renamenx("h2", "h3"));
+        try {
+            client.rename("nokey", "other");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("no such key"));
+        }
+
+        client.select(11);
+        client.flushDB();
+        client.set("s", "y");
+        client.select(10);
+        assertEquals(0L, (long) client.move("s", 11));
+        assertEquals(1L, (long) client.move("h3", 11));
+        assertFalse(client.exists("h3"));
+        assertEquals(1L, command("COPY", "s", "s2"));
+        assertEquals(0L, command("COPY", "s", "s", "DB", "11"));
+        assertEquals(1L, command("COPY", "s", "s", "DB", "11", "REPLACE"));
+        client.sadd("set", "m");
+        assertEquals(1L, command("COPY", "set", "set2"));
+        client.sadd("set2", "n");
+        assertEquals(1L, (long) client.scard("set"));
+
+        assertEquals("OK", client.swapDB(10, 11));
+        assertEquals("x", client.get("s"));
+        assertEquals("2", client.hget("h3", "b"));
+        assertTrue(client.pttl("h3")>0);
+        assertFalse(client.exists("s2"));
+        assertEquals(4L, server.select(11).dbsize());
+
+        // The expiries follow the hash to its new key and database.
+        try {
+            Thread.sleep(3000);
+        }
+        catch (InterruptedException e) {
+        }
+        assertFalse(client.exists("h3"));
+        client.flushDB();
+        client.select(0);
+    }
+
     @Test
     public void testMGet() {
         final String key0      = "testMGet0";
@@ -183,6 +483,32 @@ public class TestRedisServer {
         assertEquals(2,  xxx.size());
         assertEquals(3,  yyy.size());
         assertEquals(5,  all.size());
+
+        // Regex metacharacters are literals, classes and escapes work like in Redis.
+        client.mset("a.b", "1", "a+b", "1", "(c)", "1", "h*llo", "1", "hello", "1", "hallo", "1", "hxllo", "1");
+        assertEquals("[a+b, a.b]", new TreeSet<String>(client.keys("a?b")).toString());
+        assertEquals("[a.b]", client.keys("a.b").toString());
+        assertEquals("[(c)]", client.keys("(c)").toString());
+        assertEquals("[hallo, hello]", new TreeSet<String>(client.keys("h[ae]llo")).toString());
+        assertEquals("[h*llo, hxllo]", new TreeSet<String>(client.keys("h[^ae]llo")).toString());
+        assertEquals("[h*llo]", client.keys("h\\*llo").toString());
+        assertEquals("[x1, y1]", new TreeSet<String>(client.keys("[w-y][0-1]*")).toString());
+        assertEquals(0, client.keys("x").size());
+
+        // Replies larger than one batch are read in several pieces.
+        Map<String,String> big = new HashMap<String,String>();
+        for (int i=0; i<3000; i++) {
+            client.set("big:" + i, "v" + i);
+            big.put("f" + i, "v" + i);
+        }
+        assertEquals(3000, client.keys("big:*").size());
+        assertEquals(3000, client.keys("*ig:*").size());
+        client.hmset("bighash", big);
+        assertEquals(big, client.hgetAll("bighash"));
+        assertEquals(3000, client.hkeys("bighash").size());
+        assertEquals(3000, client.hvals("bighash").size());
+        List<String> values = client.mget("big:0", "none", "big:2999");
+        assertEquals(Arrays.asList("v0", null, "v2999"), values);
     }
 
     @Test
@@ -341,6 +667,1356 @@ public class TestRedisServer {
         assertNull(actual5);
     }
 
+    @Test
+    public void testBLPopWaitsOutsideTheLock() throws InterruptedException {
+        final List<Object> popped = new ArrayList<Object>();
+        final int db = client.getDB();
+        Thread popper = new Thread() {
+            @Override
+            public void run() {
+                Jedis other = new Jedis("127.0.0.1", PORT, 60*1000);
+                other.select(db);
+                popped.add(other.brpop(0, "waiting"));
+                other.close();
+            }
+        };
+        long start = System.currentTimeMillis();
+        popper.start();
+        Thread.sleep(200);
+        // Neither the push nor other commands wait for the blocked client.
+        assertEquals("OK", client.set("other", "value"));
+        assertEquals(1L, (long) client.lpush("waiting", "item"));
+        popper.join(5000);
+        assertFalse(popper.isAlive());
+        assertTrue(System.currentTimeMillis()-start<5000);
+        assertEquals(Arrays.<Object>asList(Arrays.asList("waiting", "item")), popped);
+        assertFalse(client.exists("waiting"));
+    }
+
+    @Test
+    public void testList() {
+        final String key = "testList";
+
+        long len = client.rpush(key, "c", "d", "e");
+        assertEquals(3, len);
+        len = client.lpush(key, "b", "a");
+        assertEquals(5, len);
+
+        List<String> all = client.lrange(key, 0, -1);
+        assertEquals("[a, b, c, d, e]", all.toString());
+        assertEquals("[d, e]", client.lrange(key, -2, 100).toString());
+
+        assertEquals("a", client.lindex(key, 0));
+        assertEquals("e", client.lindex(key, -1));
+        assertNull(client.lindex(key, 5));
+
+        assertEquals("OK", client.lset(key, 1, "B"));
+        try {
+            client.lset(key, 10, "x");
+            fail("Exception expected");
+        }
+        catch (JedisDataException e) {
+            assertEquals("ERR index out of range", e.getMessage());
+        }
+
+        assertEquals((Long)6L, client.linsert(key, ListPosition.AFTER, "c", "x"));
+        assertEquals((Long)(-1L), client.linsert(key, ListPosition.BEFORE, "missing", "x"));
+        client.rpush(key, "x");
+        assertEquals((Long)2L, client.lrem(key, 0, "x"));
+        assertEquals("[a, B, c, d, e]", client.lrange(key, 0, -1).toString());
+
+        assertEquals("OK", client.ltrim(key, 1, -2));
+        assertEquals("[B, c, d]", client.lrange(key, 0, -1).toString());
+
+        String[] values = new String[1000];
+        for (int i=0; i<values.length; i++) {
+            values[i] = Integer.toString(i);
+        }
+        client.del(key);
+        client.lpush(key, values);
+        assertEquals((Long)1000L, client.llen(key));
+        assertEquals("999", client.lpop(key));
+        assertEquals("0", client.rpop(key));
+        assertEquals("500", client.lindex(key, 498));
+
+        client.ltrim(key, 5, 1);
+        assertEquals((Long)0L, client.llen(key));
+        assertEquals("none", client.type(key));
+    }
+
+    @Test
+    public void testZSet() {
+        final String key = "testZSet";
+
+        Map<String, Double> scores = new HashMap<String, Double>();
+        scores.put("one",   1.0);
+        scores.put("two",   2.0);
+        scores.put("three", 3.0);
+        assertEquals((Long)3L, client.zadd(key, scores));
+        assertEquals((Long)0L, client.zadd(key, 2.0, "two"));
+        assertEquals((Long)3L, client.zcard(key));
+
+        assertEquals((Double)2.5, client.zincrby(key, 0.5, "two"));
+        assertEquals((Double)2.5, client.zscore(key, "two"));
+        assertNull(client.zscore(key, "missing"));
+
+        assertEquals("[one, two, three]", client.zrange(key, 0, -1).toString());
+        assertEquals("[three, two]", client.zrevrange(key, 0, 1).toString());
+        assertEquals((Long)0L, client.zrank(key, "one"));
+        assertEquals((Long)0L, client.zrevrank(key, "three"));
+        assertNull(client.zrank(key, "missing"));
+
+        assertEquals("[two, three]", client.zrangeByScore(key, "(1", "+inf").toString());
+        assertEquals("[three]", client.zrevrangeByScore(key, "+inf", "-inf", 0, 1).toString());
+        assertEquals((Long)2L, client.zcount(key, 2, 3));
+
+        // +inf plus -inf is not a score, the set is left unchanged.
+        final String inf = "testZSetInf";
+        client.zadd(inf, Double.POSITIVE_INFINITY, "x");
+        try {
+            client.zincrby(inf, Double.NEGATIVE_INFINITY, "x");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertEquals("ERR resulting score is not a number (NaN)", e.getMessage());
+        }
+        try {
+            command("ZADD", inf, "INCR", "-inf", "x");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertEquals("ERR resulting score is not a number (NaN)", e.getMessage());
+        }
+        assertEquals((Double)Double.POSITIVE_INFINITY, client.zscore(inf, "x"));
+        assertEquals((Long)1L, client.zcard(inf));
+        client.del(inf);
+
+        // a large set is converted from the packed encoding to the skiplist
+        for (int i=0; i<500; i++) {
+            client.zadd(key, 10+i, "m" + i);
+        }
+        assertEquals((Long)503L, client.zcard(key));
+        assertEquals((Long)252L, client.zrank(key, "m249"));
+        assertEquals("[m0, m1]", client.zrangeByScore(key, 10, 11).toString());
+
+        assertEquals((Long)1L, client.zrem(key, "m0", "missing"));
+        assertEquals((Long)2L, client.zremrangeByScore(key, "(2.5", "11"));
+        assertEquals("[one, 1]", toStrings(command("ZPOPMIN", key)).toString());
+        assertEquals("[m499, 509, m498, 508]", toStrings(command("ZPOPMAX", key, "2")).toString());
+        assertEquals((Long)497L, client.zremrangeByRank(key, 0, -1));
+        assertEquals("none", client.type(key));
+
+        final String lex = "testZSetLex";
+        for (String member : new String[] {"a", "b", "c", "d", "e"}) {
+            client.zadd(lex, 0, member);
+        }
+        assertEquals("[b, c]", client.zrangeByLex(lex, "[b", "(d").toString());
+        assertEquals("[e, d]", client.zrevrangeByLex(lex, "+", "(c").toString());
+        assertEquals((Long)5L, client.zlexcount(lex, "-", "+"));
+        assertEquals((Long)2L, client.zremrangeByLex(lex, "-", "[b"));
+        assertEquals("zset", client.type(lex));
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("field", "value");
+        assertEquals("1-1", client.xadd("stream", new StreamEntryID(1, 1), fields).toString());
+        assertEquals("1-2", SafeEncoder.encode((byte[]) command("XADD", "stream", "1-*", "a", "b")));
+        assertEquals("2-0", SafeEncoder.encode((byte[]) command("XADD", "stream", "2", "a", "c")));
+        try {
+            client.xadd("stream", new StreamEntryID(1, 5), fields);
+            fail("error expected");
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("equal or smaller"));
+        }
+        StreamEntryID auto = client.xadd("stream", StreamEntryID.NEW_ENTRY, fields);
+        assertTrue(auto.getTime()>2);
+        assertEquals("stream", client.type("stream"));
+        assertEquals((Long)4L, client.xlen("stream"));
+
+        List<StreamEntry> entries = client.xrange("stream", null, null, 10);
+        assertEquals(4, entries.size());
+        assertEquals("1-1", entries.get(0).getID().toString());
+        assertEquals("{field=value}", entries.get(0).getFields().toString());
+        assertEquals("{a=c}", entries.get(2).getFields().toString());
+        assertEquals("[2-0, 1-2]", toIds(client.xrevrange("stream", new StreamEntryID(2, 0), null, 2)));
+        assertEquals("[1-2, 2-0]", toIds(client.xrange("stream", new StreamEntryID(1, 2), new StreamEntryID(2, 0), 10)));
+        assertEquals(1, ((List<?>) command("XRANGE", "stream", "(1-1", "1")).size());
+
+        assertEquals(1L, client.xdel("stream", new StreamEntryID(1, 2), new StreamEntryID(9, 9)));
+        assertEquals("[1-1, 2-0]", toIds(client.xrange("stream", null, new StreamEntryID(2, 0), 10)));
+        assertEquals(2L, client.xtrim("stream", 1, false));
+        assertEquals((Long)1L, client.xlen("stream"));
+
+        for (int i=0; i<1000; i++) {
+            command("XADD", "big", "MAXLEN", "~", "500", "*", "i", Integer.toString(i));
+        }
+        long len = client.xlen("big");
+        assertTrue(len>=500 && len<600);
+        assertEquals(0L, command("XTRIM", "big", "MAXLEN", "~", "450"));
+        assertEquals(50L, command("XTRIM", "big", "MAXLEN", "450"));
+
+        assertNull(command("XREAD", "STREAMS", "stream", auto.toString()));
+        List<?> streams = (List<?>) command("XREAD", "COUNT", "1", "STREAMS", "stream", "big", "0", "0");
+        assertEquals(2, streams.size());
+
+        final List<Object> read = new ArrayList<Object>();
+        final int db = client.getDB();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                Jedis other = new Jedis("127.0.0.1", PORT, 60*1000);
+                other.select(db);
+                read.add(other.sendCommand(new ProtocolCommand() {
+                    @Override
+                    public byte[] getRaw() {
+                        return SafeEncoder.encode("XREAD");
+                    }
+                }, "BLOCK", "10000", "STREAMS", "stream", "$"));
+                other.close();
+            }
+        };
+        long start = System.currentTimeMillis();
+        reader.start();
+        Thread.sleep(200);
+        client.xadd("stream", new StreamEntryID(auto.getTime()+1, 0), fields);
+        reader.join();
+        assertTrue(System.currentTimeMillis()-start<5000);
+        assertEquals(1, read.size());
+        assertEquals(1, ((List<?>) read.get(0)).size());
+
+        assertNull(command("XREAD", "BLOCK", "100", "STREAMS", "stream", "$"));
+    }
+
+    @Test
+    public void testStreamGroups() throws Exception {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("field", "value");
+        try {
+            client.xgroupCreate("stream", "group", null, false);
+            fail("error expected");
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("requires the key to exist"));
+        }
+        assertEquals("OK", client.xgroupCreate("stream", "group", new StreamEntryID(0, 0), true));
+        try {
+            client.xgroupCreate("stream", "group", null, false);
+            fail("error expected");
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("BUSYGROUP"));
+        }
+        for (int i=1; i<=5; i++) {
+            client.xadd("stream", new StreamEntryID(i, 0), fields);
+        }
+
+        List<?> read = (List<?>) command("XREADGROUP", "GROUP", "group", "alice", "COUNT", "2", "STREAMS", "stream", ">");
+        assertEquals(2, ((List<?>) ((List<?>) read.get(0)).get(1)).size());
+        command("XREADGROUP", "GROUP", "group", "bob", "STREAMS", "stream", ">");
+        assertNull(command("XREADGROUP", "GROUP", "group", "bob", "STREAMS", "stream", ">"));
+
+        List<?> summary = (List<?>) command("XPENDING", "stream", "group");
+        assertEquals(5L, summary.get(0));
+        assertEquals("1-0", SafeEncoder.encode((byte[]) summary.get(1)));
+        assertEquals("5-0", SafeEncoder.encode((byte[]) summary.get(2)));
+        assertEquals(2, ((List<?>) summary.get(3)).size());
+
+        assertEquals(2L, client.xack("stream", "group", new StreamEntryID(1, 0), new StreamEntryID(3, 0)));
+        assertEquals(0L, client.xack("stream", "group", new StreamEntryID(1, 0)));
+        List<?> pending = (List<?>) command("XPENDING", "stream", "group", "-", "+", "10", "bob");
+        assertEquals(2, pending.size());
+        assertEquals("4-0", SafeEncoder.encode((byte[]) ((List<?>) pending.get(0)).get(0)));
+
+        // history of alice, then claim bob's entries
+        read = (List<?>) command("XREADGROUP", "GROUP", "group", "alice", "STREAMS", "stream", "0");
+        assertEquals(1, ((List<?>) ((List<?>) read.get(0)).get(1)).size());
+        List<?> claimed = (List<?>) command("XCLAIM", "stream", "group", "alice", "0", "4-0", "5-0", "JUSTID");
+        assertEquals(2, claimed.size());
+        assertEquals(0, ((List<?>) command("XPENDING", "stream", "group", "-", "+", "10", "bob")).size());
+        assertEquals(0, ((List<?>) command("XCLAIM", "stream", "group", "bob", "3600000", "4-0")).size());
+
+        client.xdel("stream", new StreamEntryID(2, 0));
+        read = (List<?>) command("XREADGROUP", "GROUP", "group", "alice", "STREAMS", "stream", "0");
+        List<?> entries = (List<?>) ((List<?>) read.get(0)).get(1);
+        assertEquals(3, entries.size());
+        assertNull(((List<?>) entries.get(0)).get(1));
+
+        List<?> groups = (List<?>) command("XINFO", "GROUPS", "stream");
+        assertEquals(1, groups.size());
+        assertEquals(8, ((List<?>) groups.get(0)).size());
+        assertEquals(2, ((List<?>) command("XINFO", "CONSUMERS", "stream", "group")).size());
+        assertEquals(18, ((List<?>) command("XINFO", "STREAM", "stream")).size());
+        assertEquals(0L, command("XGROUP", "DELCONSUMER", "stream", "group", "bob"));
+
+        try {
+            command("XREADGROUP", "GROUP", "missing", "alice", "STREAMS", "stream", ">");
+            fail("error expected");
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("NOGROUP"));
+        }
+
+        final List<Object> blocked = new ArrayList<Object>();
+        final int db = client.getDB();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                Jedis other = new Jedis("127.0.0.1", PORT, 60*1000);
+                other.select(db);
+                blocked.add(other.sendCommand(new ProtocolCommand() {
+                    @Override
+                    public byte[] getRaw() {
+                        return SafeEncoder.encode("XREADGROUP");
+                    }
+                }, "GROUP", "group", "carol", "BLOCK", "10000", "STREAMS", "stream", ">"));
+                other.close();
+            }
+        };
+        long start = System.currentTimeMillis();
+        reader.start();
+        Thread.sleep(200);
+        client.xadd("stream", new StreamEntryID(6, 0), fields);
+        reader.join();
+        assertTrue(System.currentTimeMillis()-start<5000);
+        assertEquals(1, ((List<?>) blocked.get(0)).size());
+
+        assertEquals(1L, command("XGROUP", "DESTROY", "stream", "group"));
+    }
+
+    protected static String toIds(List<StreamEntry> entries) {
+        List<String> ids = new ArrayList<String>();
+        for (StreamEntry entry : entries) {
+            ids.add(entry.getID().toString());
+        }
+        return ids.toString();
+    }
+
+    @Test
+    public void testGeo() {
+        assertEquals((Long)2L, client.geoadd("Sicily", new HashMap<String, GeoCoordinate>() {{
+            put("Palermo", new GeoCoordinate(13.361389, 38.115556));
+            put("Catania", new GeoCoordinate(15.087269, 37.502669));
+        }}));
+        assertEquals(166274.1516, client.geodist("Sicily", "Palermo", "Catania"), 0.00001);
+        assertEquals(166.2742, client.geodist("Sicily", "Palermo", "Catania", GeoUnit.KM), 0.00001);
+        assertEquals(103.3182, client.geodist("Sicily", "Palermo", "Catania", GeoUnit.MI), 0.00001);
+        assertNull(client.geodist("Sicily", "Palermo", "missing"));
+        assertEquals("[sqc8b49rny0, sqdtr74hyu0, null]", client.geohash("Sicily", "Palermo", "Catania", "missing").toString());
+
+        List<GeoCoordinate> positions = client.geopos("Sicily", "Palermo", "missing");
+        assertEquals(13.36138933897018433, positions.get(0).getLongitude(), 1e-12);
+        assertEquals(38.11555639549629859, positions.get(0).getLatitude(), 1e-12);
+        assertNull(positions.get(1));
+
+        assertEquals("[Catania]", toStrings(command("GEORADIUS", "Sicily", "15", "37", "100", "km")).toString());
+        List<GeoRadiusResponse> results = client.georadius("Sicily", 15, 37, 200, GeoUnit.KM, GeoRadiusParam.geoRadiusParam().withDist().withCoord().sortAscending());
+        assertEquals(2, results.size());
+        assertEquals("Catania", results.get(0).getMemberByString());
+        assertEquals(56.4413, results.get(0).getDistance(), 0.00001);
+        assertEquals(15.08726745843887329, results.get(0).getCoordinate().getLongitude(), 1e-12);
+        assertEquals("Palermo", results.get(1).getMemberByString());
+        assertEquals(190.4424, results.get(1).getDistance(), 0.00001);
+
+        client.geoadd("Sicily", 12.758489, 38.788135, "edge1");
+        client.geoadd("Sicily", 17.241510, 38.788135, "edge2");
+        assertEquals("[Catania, Palermo, edge2, edge1]", toStrings(command("GEOSEARCH", "Sicily", "FROMLONLAT", "15", "37", "BYBOX", "400", "400", "km", "ASC")).toString());
+        assertEquals("[Catania, Palermo]", toStrings(command("GEOSEARCH", "Sicily", "FROMLONLAT", "15", "37", "BYRADIUS", "200", "km", "ASC")).toString());
+        assertEquals("[Palermo]", toStrings(command("GEORADIUSBYMEMBER", "Sicily", "Catania", "200", "km", "DESC", "COUNT", "1")).toString());
+        assertEquals(2L, command("GEOSEARCHSTORE", "near", "Sicily", "FROMMEMBER", "Catania", "BYRADIUS", "200", "km", "STOREDIST"));
+        assertEquals(166.2742, client.zscore("near", "Palermo"), 0.0001);
+        assertEquals(0L, command("GEOSEARCHSTORE", "near", "missing", "FROMMEMBER", "Catania", "BYRADIUS", "200", "km"));
+        assertFalse(client.exists("near"));
+
+        try {
+            command("GEOSEARCH", "Sicily", "FROMLONLAT", "15", "37", "ASC");
+            fail("error expected");
+        }
+        catch (JedisDataException e) {
+            assertEquals("ERR exactly one of BYRADIUS and BYBOX can be specified for GEOSEARCH", e.getMessage());
+        }
+        try {
+            client.geoadd("Sicily", 10, 86, "pole");
+            fail("error expected");
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("ERR invalid longitude,latitude pair"));
+        }
+
+        // The cell scan must find exactly the members a full scan finds.
+        Random random = new Random(33);
+        Map<String, GeoCoordinate> points = new HashMap<String, GeoCoordinate>();
+        for (int i=0; i<2000; i++) {
+            points.put("p"+i, new GeoCoordinate(random.nextDouble()*20-10, random.nextDouble()*20+40));
+        }
+        client.geoadd("points", points);
+        for (int q=0; q<20; q++) {
+            double lon = random.nextDouble()*20-10;
+            double lat = random.nextDouble()*20+40;
+            double radius = random.nextDouble()*500;
+            Set<String> expected = new TreeSet<String>();
+            for (GeoRadiusResponse r : client.georadius("points", lon, lat, 100000, GeoUnit.KM, GeoRadiusParam.geoRadiusParam().withDist())) {
+                if (r.getDistance()<=radius) {
+                    expected.add(r.getMemberByString());
+                }
+            }
+            Set<String> found = new TreeSet<String>();
+            for (GeoRadiusResponse r : client.georadius("points", lon, lat, radius, GeoUnit.KM)) {
+                found.add(r.getMemberByString());
+            }
+            assertEquals(expected, found);
+        }
+    }
+
+    @Test
+    public void testPubSub() throws Exception {
+        // More subscribers than worker threads, idle subscribers must not hold a thread.
+        int count = RedisServer.DEFAULT_THREAD_POOL_SIZE+5;
+        final CountDownLatch subscribed = new CountDownLatch(count+1);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch messages = new CountDownLatch(count+2);
+        List<JedisPubSub> subscriptions = new ArrayList<JedisPubSub>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i=0; i<=count; i++) {
+            final boolean patterns = i==count;
+            final JedisPubSub subscription = new JedisPubSub() {
+                @Override
+                public void onSubscribe(String channel, int subscribedChannels) {
+                    subscribed.countDown();
+                }
+                @Override
+                public void onPSubscribe(String pattern, int subscribedChannels) {
+                    if (2==subscribedChannels) {
+                        subscribed.countDown();
+                    }
+                }
+                @Override
+                public void onMessage(String channel, String message) {
+                    received.add(channel + ":" + message);
+                    messages.countDown();
+                }
+                @Override
+                public void onPMessage(String pattern, String channel, String message) {
+                    received.add(pattern + ":" + channel + ":" + message);
+                    messages.countDown();
+                }
+            };
+            subscriptions.add(subscription);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Jedis jedis = new Jedis("127.0.0.1", PORT, 60*1000);
+                    try {
+                        if (patterns) {
+                            jedis.psubscribe(subscription, "n*s", "h[ae]llo");
+                        }
+                        else {
+                            jedis.subscribe(subscription, "news");
+                        }
+                    }
+                    finally {
+                        jedis.close();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+
+        assertEquals((Long)(count+1L), client.publish("news", "hello"));
+        assertEquals((Long)1L, client.publish("hallo", "world"));
+        assertEquals((Long)0L, client.publish("hillo", "world"));
+        assertTrue(messages.await(10, TimeUnit.SECONDS));
+        assertTrue(received.contains("news:hello"));
+        assertTrue(received.contains("n*s:news:hello"));
+        assertTrue(received.contains("h[ae]llo:hallo:world"));
+        assertEquals(count+2, received.size());
+
+        assertEquals("[news]", client.pubsubChannels("*").toString());
+        assertEquals("{news="+count+", other=0}", new TreeMap<String, String>(client.pubsubNumSub("news", "other")).toString());
+        assertEquals((Long)2L, client.pubsubNumPat());
+
+        for (JedisPubSub subscription : subscriptions) {
+            if (subscription.getSubscribedChannels()>1) {
+                subscription.punsubscribe();
+            }
+            else {
+                subscription.unsubscribe();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        assertEquals((Long)0L, client.publish("news", "again"));
+        assertEquals((Long)0L, client.pubsubNumPat());
+    }
+
+    @Test
+    public void testClosedSubscriber() throws Exception {
+        Socket socket = new Socket("127.0.0.1", PORT);
+        OutputStream out = socket.getOutputStream();
+        out.write("*2\r\n$9\r\nSUBSCRIBE\r\n$7\r\nclosing\r\n".getBytes());
+        out.flush();
+        InputStream in = socket.getInputStream();
+        for (int lines=0; lines<6; ) {
+            if ('\n'==in.read()) {
+                lines++;
+            }
+        }
+        assertEquals("1", client.pubsubNumSub("closing").get("closing"));
+
+        // A parked subscriber that went away is noticed without publishing to it.
+        socket.close();
+        for (int i=0; i<50 && !"0".equals(client.pubsubNumSub("closing").get("closing")); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("0", client.pubsubNumSub("closing").get("closing"));
+    }
+
+    @Test
+    public void testTransactions() {
+        Transaction t = client.multi();
+        t.set("counter", "1");
+        t.incr("counter");
+        t.sadd("counter", "oops");
+        t.get("counter");
+        List<Object> results = t.exec();
+        assertEquals(4, results.size());
+        assertEquals("OK", results.get(0));
+        assertEquals(2L, results.get(1));
+        assertTrue(results.get(2) instanceof JedisDataException);
+        assertEquals("2", results.get(3));
+
+        t = client.multi();
+        t.set("counter", "10");
+        assertEquals("OK", t.discard());
+        assertEquals("2", client.get("counter"));
+
+        Jedis other = new Jedis("127.0.0.1", PORT, 60*1000);
+        try {
+            // Unmodified watched keys, including a missing one, let the transaction through.
+            assertEquals("OK", client.watch("counter", "missing"));
+            t = client.multi();
+            t.incr("counter");
+            assertEquals(Arrays.<Object>asList(3L), t.exec());
+
+            // In place modifications of another client abort it.
+            client.sadd("set", "a");
+            client.watch("set");
+            other.sadd("set", "b");
+            t = client.multi();
+            t.set("counter", "100");
+            assertNull(t.exec());
+            assertEquals("3", client.get("counter"));
+
+            // So does the creation of a watched key, and the watch is released by EXEC.
+            client.watch("missing");
+            other.set("missing", "now");
+            t = client.multi();
+            t.del("missing");
+            assertNull(t.exec());
+            t = client.multi();
+            t.del("missing");
+            assertEquals(Arrays.<Object>asList(1L), t.exec());
+
+            // An unknown command fails the whole transaction.
+            assertEquals("OK", SafeEncoder.encode((byte[]) command(other, "multi")));
+            try {
+                command(other, "nosuchcommand");
+                fail();
+            }
+            catch (JedisDataException e) {
+            }
+            try {
+                command(other, "exec");
+                fail();
+            }
+            catch (JedisDataException e) {
+                assertTrue(e.getMessage().startsWith("EXECABORT"));
+            }
+        }
+        finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testCrossDbTransactions() throws InterruptedException {
+        // Mirrored transactions touching two databases must not wait for each other.
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[2];
+        for (int i=0; i<threads.length; i++) {
+            final int from = 12+i;
+            final int to   = 13-i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Jedis other = new Jedis("127.0.0.1", PORT, 60*1000);
+                    try {
+                        for (int n=0; n<200; n++) {
+                            other.select(from);
+                            Transaction t = other.multi();
+                            t.select(to);
+                            t.incr("counter");
+                            t.select(from);
+                            t.incr("counter");
+                            t.exec();
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors.add(e);
+                    }
+                    finally {
+                        other.close();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(30*1000);
+            assertFalse(t.isAlive());
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        client.select(12);
+        assertEquals("400", client.get("counter"));
+        client.select(13);
+        assertEquals("400", client.get("counter"));
+        client.select(0);
+    }
+
+    @Test
+    public void testFunctions() {
+        server.registerFunction("incrmax", new RedisServer.RedisFunction() {
+            @Override
+            public Object call(RedisServer.Database db, List<String> keys, List<String> args) {
+                String value = db.get(keys.get(0));
+                long n = null==value ? 0 : Long.parseLong(value);
+                if (n<Long.parseLong(args.get(0))) {
+                    db.set(keys.get(0), String.valueOf(++n));
+                }
+                return n;
+            }
+        });
+        server.registerFunction("values", new RedisServer.RedisFunction() {
+            @Override
+            public Object call(RedisServer.Database db, List<String> keys, List<String> args) {
+                if (keys.isEmpty()) {
+                    throw new IllegalArgumentException("no keys");
+                }
+                List<String> values = new ArrayList<String>();
+                for (String key : keys) {
+                    values.add(db.get(key));
+                }
+                return values;
+            }
+        }, true);
+        try {
+            assertEquals(1L, command("fcall", "incrmax", "1", "counter", "2"));
+            assertEquals(2L, command("fcall", "incrmax", "1", "counter", "2"));
+            assertEquals(2L, command("fcall", "incrmax", "1", "counter", "2"));
+            assertEquals("[2, null]", String.valueOf(toStrings(command("fcall_ro", "values", "2", "counter", "missing"))));
+
+            String[][] errors = {
+                {"fcall_ro", "incrmax", "1", "counter", "2"},
+                {"fcall", "nosuchfunction", "0"},
+                {"fcall", "values", "3", "a", "b"},
+                {"fcall", "values", "0"},
+            };
+            for (String[] error : errors) {
+                try {
+                    command(error[0], Arrays.copyOfRange(error, 1, error.length));
+                    fail(Arrays.toString(error));
+                }
+                catch (JedisDataException e) {
+                }
+            }
+
+            assertEquals(2, ((List<?>) command("function", "list")).size());
+            assertEquals("OK", SafeEncoder.encode((byte[]) command("function", "delete", "values")));
+            assertEquals(1, ((List<?>) command("function", "list")).size());
+        }
+        finally {
+            server.unregisterFunction("incrmax");
+            server.unregisterFunction("values");
+        }
+    }
+
+    @Test
+    public void testScan() {
+        client.flushDB();
+        Set<String> expected = new TreeSet<String>();
+        List<String> keysValues = new ArrayList<String>();
+        for (int i=0; i<1000; i++) {
+            keysValues.add("key:" + i);
+            keysValues.add("v");
+            expected.add("key:" + i);
+        }
+        client.mset(keysValues.toArray(new String[0]));
+        client.sadd("set", "a");
+        expected.add("set");
+
+        // Keys added and removed while scanning must not hide the others.
+        Set<String> found = new TreeSet<String>();
+        String cursor = ScanParams.SCAN_POINTER_START;
+        int calls = 0;
+        int added = 0;
+        do {
+            ScanResult<String> result = client.scan(cursor, new ScanParams().count(20));
+            found.addAll(result.getResult());
+            cursor = result.getCursor();
+            client.set("extra:" + added++, "v");
+            client.del("key:" + (999-calls++));
+            expected.remove("key:" + (999-calls+1));
+        }
+        while (!"0".equals(cursor));
+        assertTrue(calls>10);
+        found.retainAll(expected);
+        assertEquals(expected, found);
+
+        ScanResult<String> result = client.scan("0", new ScanParams().match("key:1?").count(10000));
+        assertEquals("0", result.getCursor());
+        assertEquals(10, result.getResult().size());
+        List<?> reply = (List<?>) command("scan", "0", "type", "set", "count", "10000");
+        assertEquals("[set]", String.valueOf(toStrings(reply.get(1))));
+
+        String[] bigset = new String[200];
+        Map<String, String> bighash = new HashMap<String, String>();
+        Map<String, Double> bigzset = new HashMap<String, Double>();
+        for (int i=0; i<200; i++) {
+            bigset[i] = "m" + i;
+            bighash.put("f" + i, "v" + i);
+            bigzset.put("m" + i, (double) i);
+        }
+        client.sadd("bigset", bigset);
+        client.hmset("bighash", bighash);
+        client.zadd("bigzset", bigzset);
+        client.hset("smallhash", "f", "v");
+        Set<String> members = new TreeSet<String>();
+        Map<String, String> fields = new HashMap<String, String>();
+        Map<String, Double> scores = new HashMap<String, Double>();
+        cursor = "0";
+        do {
+            ScanResult<String> r = client.sscan("bigset", cursor, new ScanParams().count(5));
+            members.addAll(r.getResult());
+            cursor = r.getCursor();
+        }
+        while (!"0".equals(cursor));
+        do {
+            ScanResult<Map.Entry<String, String>> r = client.hscan("bighash", cursor, new ScanParams().count(5));
+            for (Map.Entry<String, String> e : r.getResult()) {
+                fields.put(e.getKey(), e.getValue());
+            }
+            cursor = r.getCursor();
+        }
+        while (!"0".equals(cursor));
+        do {
+            ScanResult<Tuple> r = client.zscan("bigzset", cursor, new ScanParams().count(5));
+            for (Tuple t : r.getResult()) {
+                scores.put(t.getElement(), t.getScore());
+            }
+            cursor = r.getCursor();
+        }
+        while (!"0".equals(cursor));
+        assertEquals(200, members.size());
+        assertEquals(200, fields.size());
+        assertEquals("v7", fields.get("f7"));
+        assertEquals(200, scores.size());
+        assertEquals(7.0, scores.get("m7"), 0);
+
+        assertEquals("[f, v]", String.valueOf(toStrings(((List<?>) command("hscan", "smallhash", "0")).get(1))));
+        assertEquals("[f]", String.valueOf(toStrings(((List<?>) command("hscan", "smallhash", "0", "novalues")).get(1))));
+        assertEquals(111, client.sscan("bigset", "0", new ScanParams().match("m1*").count(1000)).getResult().size());
+        assertEquals("0", client.sscan("nosuchkey", "0").getCursor());
+        try {
+            client.scan("abc");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("invalid cursor"));
+        }
+        try {
+            client.sscan("bighash", "0");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+        }
+    }
+
+    @Test
+    public void testRandom() {
+        client.flushDB();
+        assertNull(client.randomKey());
+        assertNull(client.srandmember("set"));
+        assertNull(client.spop("set"));
+
+        String[] members = new String[300];
+        Map<String, String> hash = new HashMap<String, String>();
+        for (int i=0; i<300; i++) {
+            members[i] = "m" + i;
+            hash.put("f" + i, "v" + i);
+        }
+        client.sadd("set", members);
+        client.hmset("hash", hash);
+        client.sadd("small", "a", "b", "c");
+        Set<String> all = new HashSet<String>(Arrays.asList(members));
+        Set<String> keys = new TreeSet<String>();
+        for (int i=0; i<50; i++) {
+            keys.add(client.randomKey());
+        }
+        assertEquals("[hash, set, small]", keys.toString());
+
+        assertTrue(all.contains(client.srandmember("set")));
+        List<String> picked = client.srandmember("set", 100);
+        assertEquals(100, new HashSet<String>(picked).size());
+        assertTrue(all.containsAll(picked));
+        assertEquals(250, new HashSet<String>(client.srandmember("set", 250)).size());
+        assertEquals(3, new HashSet<String>(client.srandmember("small", 5)).size());
+        picked = client.srandmember("small", -20);
+        assertEquals(20, picked.size());
+        assertTrue(Arrays.asList("a", "b", "c").containsAll(picked));
+
+        Set<String> popped = client.spop("set", 250);
+        assertEquals(250, popped.size());
+        assertEquals(50, (long) client.scard("set"));
+        Set<String> rest = client.smembers("set");
+        for (String member : popped) {
+            assertFalse(rest.contains(member));
+        }
+        // Members popped must not be picked any more.
+        for (int i=0; i<20; i++) {
+            assertTrue(rest.contains(client.srandmember("set")));
+        }
+        assertTrue(rest.containsAll(client.srandmember("set", -100)));
+        assertEquals(50, client.spop("set", 100).size());
+        assertFalse(client.exists("set"));
+
+        String field = SafeEncoder.encode((byte[]) command("HRANDFIELD", "hash"));
+        assertTrue(hash.containsKey(field));
+        List<String> fieldsValues = toStrings(command("HRANDFIELD", "hash", "-10", "WITHVALUES"));
+        assertEquals(20, fieldsValues.size());
+        for (int i=0; i<20; i+=2) {
+            assertEquals(hash.get(fieldsValues.get(i)), fieldsValues.get(i+1));
+        }
+        assertEquals(300, new HashSet<String>(toStrings(command("HRANDFIELD", "hash", "400"))).size());
+        assertNull(command("HRANDFIELD", "nohash"));
+        try {
+            client.spop("small", -1);
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("must be positive"));
+        }
+    }
+
+    @Test
+    public void testSort() {
+        client.flushDB();
+        Random random = new Random(42);
+        String[] values = new String[2000];
+        for (int i=0; i<values.length; i++) {
+            values[i] = String.valueOf(random.nextInt(10000)/100.0);
+        }
+        client.rpush("list", values);
+        List<String> expected = new ArrayList<String>(Arrays.asList(values));
+        Collections.sort(expected, new java.util.Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int cmp = Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+                return 0!=cmp ? cmp : a.compareTo(b);
+            }
+        });
+        assertEquals(expected, client.sort("list"));
+        assertEquals(expected.subList(100, 150), client.sort("list", new SortingParams().limit(100, 50)));
+        List<String> reversed = new ArrayList<String>(expected);
+        Collections.reverse(reversed);
+        assertEquals(reversed.subList(0, 10), client.sort("list", new SortingParams().desc().limit(0, 10)));
+        assertEquals(0, client.sort("list", new SortingParams().limit(2000, 10)).size());
+
+        client.rpush("words", "pear", "apple", "fig", "10", "9");
+        assertEquals("[10, 9, apple, fig, pear]", client.sort("words", new SortingParams().alpha()).toString());
+        try {
+            client.sort("words");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("can't be converted into double"));
+        }
+
+        client.sadd("ids", "1", "2", "3", "4");
+        client.mset("w_1", "30", "w_2", "10", "w_3", "20");
+        client.hset("o_1", "name", "one");
+        client.hset("o_2", "name", "two");
+        client.hset("o_3", "name", "three");
+        // A missing weight counts as 0, ties are broken by the elements.
+        assertEquals("[4, 2, 3, 1]", client.sort("ids", new SortingParams().by("w_*")).toString());
+        assertEquals(Arrays.asList("4", null, "2", "two", "3", "three", "1", "one"),
+                client.sort("ids", new SortingParams().by("w_*").get("#", "o_*->name")));
+        assertEquals("[2, 3, 1]", client.sort("ids", new SortingParams().by("o_*->name").alpha().desc().limit(0, 3)).toString());
+        assertEquals("[pear, apple, fig, 10, 9]", client.sort("words", new SortingParams().by("nosort")).toString());
+        assertEquals("[9, 10, fig, apple, pear]", client.sort("words", new SortingParams().by("nosort").desc()).toString());
+
+        Map<String, Double> scores = new HashMap<String, Double>();
+        scores.put("3", 1.0);
+        scores.put("1", 2.0);
+        scores.put("2", 3.0);
+        client.zadd("zset", scores);
+        assertEquals("[1, 2, 3]", client.sort("zset").toString());
+        assertEquals("[3, 1, 2]", client.sort("zset", new SortingParams().by("nosort")).toString());
+        assertEquals("[20, 30, 10]", toStrings(command("SORT_RO", "zset", "BY", "nosort", "GET", "w_*")).toString());
+
+        assertEquals(4, (long) client.sort("ids", new SortingParams().by("w_*").get("o_*->name"), "dst"));
+        assertEquals(Arrays.asList("", "two", "three", "one"), client.lrange("dst", 0, -1));
+        assertEquals(0, (long) client.sort("nokey", "dst"));
+        assertFalse(client.exists("dst"));
+        try {
+            client.sort("w_1");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+        }
+    }
+
+    @Test
+    public void testPrefixIndex() {
+        // The tree must agree with a sorted set under random adds and removes.
+        RedisServer.RadixTree tree = new RedisServer.RadixTree();
+        TreeSet<String> keys = new TreeSet<String>();
+        Random random = new Random(42);
+        for (int i=0; i<20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int n=random.nextInt(6); n>=0; n--) {
+                sb.append("ab:".charAt(random.nextInt(3)));
+            }
+            String key = sb.toString();
+            if (random.nextBoolean()) {
+                assertEquals(keys.add(key), tree.add(key));
+            }
+            else {
+                assertEquals(keys.remove(key), tree.remove(key));
+            }
+        }
+        assertEquals(keys.size(), tree.size());
+        assertEquals(keys.subSet("a:", "a;").size(), tree.count("a:"));
+        List<String> collected = new ArrayList<String>();
+        tree.collect("", null, collected);
+        assertEquals(new ArrayList<String>(keys), collected);
+        // Collected in pieces, resuming after the last key of each.
+        List<String> pieces = new ArrayList<String>();
+        String after = null;
+        do {
+            after = tree.collect("", null, after, 7, pieces);
+        }
+        while (null!=after);
+        assertEquals(collected, pieces);
+
+        client.flushDB();
+        assertEquals("OK", client.configSet("prefix-index-dbs", String.valueOf(client.getDB())));
+        try {
+            List<String> keysValues = new ArrayList<String>();
+            for (int tenant=0; tenant<20; tenant++) {
+                for (int session=0; session<50; session++) {
+                    keysValues.add("tenant:" + tenant + ":session:" + session);
+                    keysValues.add("v");
+                }
+            }
+            client.mset(keysValues.toArray(new String[0]));
+            client.set("other", "v");
+
+            assertEquals(50, client.keys("tenant:7:*").size());
+            assertEquals(4, client.keys("tenant:7:session:?5").size());
+            assertEquals(50L, command("prefix", "count", "tenant:7:"));
+            assertEquals(550L, command("prefix", "count", "tenant:1"));
+            assertEquals(1000, client.keys("tenant:*").size());
+            assertEquals(220, client.keys("tenant:*:session:1*").size());
+            assertEquals(0L, command("prefix", "count", "tenant:77"));
+
+            ScanResult<String> result = client.scan("0", new ScanParams().match("tenant:3:*").count(100));
+            assertEquals("0", result.getCursor());
+            assertEquals(50, result.getResult().size());
+
+            assertEquals(50L, command("prefix", "del", "tenant:3:"));
+            assertEquals(0, client.keys("tenant:3:*").size());
+            client.del("tenant:4:session:1");
+            assertEquals(49L, command("prefix", "count", "tenant:4:"));
+            assertEquals(950L, (long) client.dbSize());
+        }
+        finally {
+            client.configSet("prefix-index-dbs", "");
+        }
+        // Without the index the same commands scan the keys.
+        assertEquals(49L, command("prefix", "count", "tenant:4:"));
+        assertEquals(49, client.keys("tenant:4:*").size());
+    }
+
+    @Test
+    public void testKeyJobs() throws Exception {
+        client.flushDB();
+        List<String> keysValues = new ArrayList<String>();
+        for (int i=0; i<2000; i++) {
+            keysValues.add("tenant:42:" + i);
+            keysValues.add("v");
+            keysValues.add("other:" + i);
+            keysValues.add("v");
+        }
+        client.mset(keysValues.toArray(new String[0]));
+
+        long del    = (Long) command("bgdel", "tenant:42:*", "batch", "50");
+        long expire = (Long) command("bgexpire", "other:1*", "100");
+        Map<String, String> status = waitForKeyJob(del);
+        assertEquals("done", status.get("state"));
+        assertEquals("2000", status.get("affected"));
+        status = waitForKeyJob(expire);
+        assertEquals("done", status.get("state"));
+        assertEquals("1111", status.get("affected"));
+
+        assertEquals(0, client.keys("tenant:42:*").size());
+        assertEquals(2000L, (long) client.dbSize());
+        assertTrue(client.ttl("other:123")>90);
+        assertEquals(-1L, (long) client.ttl("other:234"));
+        assertEquals(2, ((List<?>) command("bgjobs")).size());
+        assertEquals("OK", SafeEncoder.encode((byte[]) command("bgjobs", "cancel", String.valueOf(del))));
+
+        String[][] errors = {
+            {"bgdel", "x*", "batch", "0"},
+            {"bgexpire", "x*", "-1"},
+            {"bgjobs", "12345"},
+        };
+        for (String[] error : errors) {
+            try {
+                command(error[0], Arrays.copyOfRange(error, 1, error.length));
+                fail(Arrays.toString(error));
+            }
+            catch (JedisDataException e) {
+            }
+        }
+    }
+
+    protected Map<String, String> waitForKeyJob(long id) throws InterruptedException {
+        for (int i=0; i<100; i++) {
+            List<String> reply = toStrings(command("bgjobs", String.valueOf(id)));
+            Map<String, String> status = new HashMap<String, String>();
+            for (int f=0; f<reply.size(); f+=2) {
+                status.put(reply.get(f), reply.get(f+1));
+            }
+            if (!"running".equals(status.get("state")) && !"queued".equals(status.get("state"))) {
+                return status;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("job " + id + " did not finish");
+    }
+
+    @Test
+    public void testScripting() {
+        client.del("counter", "list");
+        assertEquals("a", client.eval("return KEYS[1]", Arrays.asList("a"), Arrays.<String>asList()));
+        assertEquals(Arrays.asList("x", "y"), client.eval("return ARGV", Arrays.<String>asList(), Arrays.asList("x", "y")));
+        assertEquals("OK", client.eval("return redis.call('set', KEYS[1], ARGV[1])", Arrays.asList("counter"), Arrays.asList("10")));
+        assertEquals(15L, client.eval("for i=1,5 do redis.call('incr', KEYS[1]) end return tonumber(redis.call('get', KEYS[1]))",
+                Arrays.asList("counter"), Arrays.<String>asList()));
+        assertEquals(Arrays.asList(1L, 2L, "three"), client.eval("return {1, 2.9, 'three', nil, 5}"));
+        assertEquals(1L, client.eval("return redis.call('exists', 'nosuchkey') == 0"));
+        assertNull(client.eval("return redis.call('get', 'nosuchkey')"));
+
+        String script =
+                "local function fib(n) if n < 2 then return n end return fib(n-1) + fib(n-2) end\n" +
+                "local t = {}\n" +
+                "for w in string.gmatch(ARGV[1], '%a+') do table.insert(t, w:upper()) end\n" +
+                "table.sort(t)\n" +
+                "return {fib(10), table.concat(t, ','), string.format('%05.1f|%-3s|%x', math.pi, 'a', 255), " +
+                "select('#', 1, 2, 3), (string.gsub('hello world', 'o', '0'))}";
+        assertEquals(Arrays.asList(55L, "BAR,FOO", "003.1|a  |ff", 3L, "hell0 w0rld"),
+                client.eval(script, Arrays.<String>asList(), Arrays.asList("foo bar")));
+
+        assertEquals("{\"a\":[1,2,\"x\"]}", client.eval("return cjson.encode(cjson.decode(ARGV[1]))",
+                Arrays.<String>asList(), Arrays.asList("{\"a\": [1, 2, \"x\"]}")));
+
+        String sha = client.scriptLoad("return ARGV[1] .. '!'");
+        assertEquals("hi!", client.evalsha(sha, Arrays.<String>asList(), Arrays.asList("hi")));
+        assertEquals(Arrays.asList(true, false), client.scriptExists(sha, "0000000000000000000000000000000000000000"));
+
+        client.rpush("list", "a");
+        assertEquals("WRONGTYPE", client.eval("local r = redis.pcall('incr', KEYS[1]) return r.err:sub(1, 9)",
+                Arrays.asList("list"), Arrays.<String>asList()));
+        assertEquals("OK", client.eval("return redis.status_reply('OK')"));
+
+        String[][] errors = {
+            {"return redis.call('incr', KEYS[1])", "WRONGTYPE"},
+            {"return redis.error_reply('MYERR custom')", "MYERR custom"},
+            {"return nosuchfunction()", "attempt to call global 'nosuchfunction'"},
+            {"return 1 +", "Error compiling script"},
+            {"return redis.call('multi')", "not allowed from script"},
+            {"error('boom')", "user_script:1: boom"},
+        };
+        for (String[] error : errors) {
+            try {
+                client.eval(error[0], Arrays.asList("list"), Arrays.<String>asList());
+                fail(error[0]);
+            }
+            catch (JedisDataException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(error[1]));
+            }
+        }
+        try {
+            client.evalsha("0000000000000000000000000000000000000000");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("NOSCRIPT"));
+        }
+        try {
+            command("eval_ro", "return redis.call('set', 'x', 'y')", "0");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("read-only"));
+        }
+
+        assertEquals("OK", client.scriptFlush());
+        assertFalse(client.scriptExists(sha));
+    }
+
+    @Test
+    public void testScriptKill() throws Exception {
+        assertEquals("OK", client.configSet("lua-time-limit", "100"));
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        Thread looper = new Thread() {
+            @Override
+            public void run() {
+                Jedis other = new Jedis("127.0.0.1", PORT, 60*1000);
+                try {
+                    other.eval("while true do end");
+                }
+                catch (JedisDataException e) {
+                    errors.add(e.getMessage());
+                }
+                finally {
+                    other.close();
+                }
+            }
+        };
+        looper.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10*1000;
+            for (;;) {
+                try {
+                    client.configGet("lua-time-limit");
+                }
+                catch (JedisDataException e) {
+                    assertTrue(e.getMessage().startsWith("BUSY"));
+                    break;
+                }
+                assertTrue(System.currentTimeMillis()<deadline);
+                Thread.sleep(20);
+            }
+            assertEquals("OK", client.scriptKill());
+            looper.join(10*1000);
+            assertEquals(1, errors.size());
+            assertTrue(errors.get(0).contains("killed"));
+
+            try {
+                client.scriptKill();
+                fail();
+            }
+            catch (JedisDataException e) {
+                assertTrue(e.getMessage().startsWith("NOTBUSY"));
+            }
+        }
+        finally {
+            client.configSet("lua-time-limit", "5000");
+        }
+    }
+
+    @Test
+    public void testKeyspaceNotifications() throws Exception {
+        assertEquals("OK", client.configSet("notify-keyspace-events", "KEA"));
+        assertEquals("[notify-keyspace-events, AKE]", client.configGet("notify-*").toString());
+        try {
+            client.configSet("notify-keyspace-events", "KEQ");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("Invalid event class"));
+        }
+
+        int db = client.getDB();
+        final String keyspace = "__keyspace@" + db + "__:";
+        final String keyevent = "__keyevent@" + db + "__:";
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final CountDownLatch expired = new CountDownLatch(1);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final JedisPubSub subscription = new JedisPubSub() {
+            @Override
+            public void onPSubscribe(String pattern, int subscribedChannels) {
+                if (2==subscribedChannels) {
+                    subscribed.countDown();
+                }
+            }
+            @Override
+            public void onPMessage(String pattern, String channel, String message) {
+                received.add(channel + ":" + message);
+                if (channel.equals(keyevent + "expired")) {
+                    expired.countDown();
+                }
+            }
+        };
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                Jedis jedis = new Jedis("127.0.0.1", PORT, 60*1000);
+                try {
+                    jedis.psubscribe(subscription, keyspace + "*", keyevent + "expired");
+                }
+                finally {
+                    jedis.close();
+                }
+            }
+        };
+        thread.start();
+        try {
+            assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+
+            client.set("key", "value");
+            client.sadd("set", "a", "b");
+            client.del("set", "missing");
+            // Never touched again, the expirer must remove it.
+            assertEquals((Long)1L, client.pexpire("key", 100));
+            assertTrue(expired.await(10, TimeUnit.SECONDS));
+            assertFalse(client.exists("key"));
+
+            assertEquals(Arrays.asList(
+                    keyspace + "key:set",
+                    keyspace + "set:sadd",
+                    keyspace + "set:del",
+                    keyspace + "key:expire",
+                    keyspace + "key:expired",
+                    keyevent + "expired:key"),
+                    new ArrayList<String>(received));
+        }
+        finally {
+            subscription.punsubscribe();
+            thread.join(10000);
+            client.configSet("notify-keyspace-events", "");
+        }
+        assertEquals("[notify-keyspace-events, ]", client.configGet("notify-keyspace-events").toString());
+    }
+
+    @Test
+    public void testHyperLogLog() {
+        assertEquals((Long)1L, client.pfadd("hll", "a", "b", "c", "d", "e", "f", "g"));
+        assertEquals((Long)0L, client.pfadd("hll", "a", "b"));
+        assertEquals(7, client.pfcount("hll"));
+        assertEquals("string", client.type("hll"));
+        assertEquals(0, client.pfcount("missing"));
+
+        String[] elements = new String[10000];
+        for (int i=0; i<elements.length; i++) {
+            elements[i] = "element" + i;
+        }
+        assertEquals((Long)1L, client.pfadd("hll2", elements));
+        long count = client.pfcount("hll2");
+        assertTrue(Math.abs(count-10000)<200);
+
+        assertEquals("OK", client.pfmerge("merged", "hll", "hll2"));
+        assertEquals(client.pfcount("hll", "hll2"), client.pfcount("merged"));
+        assertTrue(Math.abs(client.pfcount("merged")-10007)<200);
+
+        // A counter is a string to the string commands and its bytes are a counter again.
+        long length = client.strlen("hll");
+        assertTrue(length>1);
+        assertEquals("S", client.getrange("hll", 0, 0));
+        assertNotNull(client.mget("hll", "missing").get(0));
+        client.eval("return redis.call('set', KEYS[2], redis.call('get', KEYS[1]))", 2, "hll", "copy");
+        assertEquals(length, (long) client.strlen("copy"));
+        assertEquals(7, client.pfcount("copy"));
+        assertEquals((Long)1L, client.pfadd("copy", "h"));
+        assertEquals(8, client.pfcount("copy"));
+        assertEquals((Long)(length+1), client.append("hll", "x"));
+        client.set("plain", "value");
+        try {
+            client.pfcount("plain");
+            fail("WRONGTYPE expected");
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+        }
+
+        client.lpush("list", "value");
+        try {
+            client.pfadd("list", "a");
+            fail("WRONGTYPE expected");
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+        }
+    }
+
+    @Test
+    public void testSetAlgebra() {
+        client.sadd("s1", "a", "b", "c", "d");
+        client.sadd("s2", "c", "d", "e");
+        client.sadd("s3", "d", "f");
+
+        assertEquals("[d]", new TreeSet<String>(client.sinter("s1", "s2", "s3")).toString());
+        assertEquals("[a, b, c, d, e, f]", new TreeSet<String>(client.sunion("s1", "s2", "s3")).toString());
+        assertEquals("[a, b]", new TreeSet<String>(client.sdiff("s1", "s2", "s3")).toString());
+        assertEquals(0, client.sinter("s1", "missing").size());
+        assertEquals(4, client.sdiff("s1", "missing").size());
+
+        assertEquals((Long)2L, client.sinterstore("dest", "s1", "s2"));
+        assertEquals("[c, d]", new TreeSet<String>(client.smembers("dest")).toString());
+        assertEquals((Long)2L, client.scard("dest"));
+        assertEquals((Long)0L, client.sdiffstore("dest", "s3", "s1", "s2", "s3"));
+        assertEquals("none", client.type("dest"));
+        assertEquals((Long)6L, client.sunionstore("dest", "s1", "s2", "s3"));
+
+        client.set("string", "value");
+        try {
+            client.sinter("s1", "string");
+            fail("WRONGTYPE expected");
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+        }
+
+        client.zadd("z1", 1, "a");
+        client.zadd("z1", 2, "b");
+        client.zadd("z2", 10, "b");
+        client.zadd("z2", 20, "c");
+        assertEquals((Long)1L, client.zinterstore("zdest", "z1", "z2"));
+        assertEquals((Double)12.0, client.zscore("zdest", "b"));
+        assertEquals((Long)3L, client.zunionstore("zdest", new ZParams().weights(2, 1).aggregate(ZParams.Aggregate.MAX), "z1", "z2"));
+        assertEquals("[a, b, c]", client.zrange("zdest", 0, -1).toString());
+        assertEquals((Double)10.0, client.zscore("zdest", "b"));
+        assertEquals((Long)4L, client.zunionstore("zdest", "z1", "s3"));
+        assertEquals((Double)1.0, client.zscore("zdest", "f"));
+
+        // large enough to be partitioned over the fork-join pool
+        String[] even = new String[100000];
+        String[] all  = new String[200000];
+        for (int i=0; i<all.length; i++) {
+            all[i] = Integer.toString(i);
+            if (0==i%2) {
+                even[i/2] = all[i];
+            }
+        }
+        client.sadd("even", even);
+        client.sadd("all", all);
+        assertEquals((Long)100000L, client.sinterstore("dest", "all", "even"));
+        assertEquals((Long)100000L, client.sdiffstore("dest", "all", "even"));
+        assertFalse(client.sismember("dest", "2"));
+        assertEquals((Long)200000L, client.sunionstore("dest", "all", "even"));
+        client.del("even");
+        client.del("all");
+    }
+
     @Test
     public void testHash() {
         String key = "struct";
@@ -444,6 +2120,78 @@ public class TestRedisServer {
         }
     }
 
+    @Test
+    public void testHashFieldExpiry() throws Exception {
+        String key = "session";
+        client.del(key);
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("user", "joe");
+        fields.put("token", "t1");
+        fields.put("cart", "c1");
+        client.hmset(key, fields);
+
+        assertEquals("[1, 1, -2]", String.valueOf(command("HEXPIRE", key, "100", "FIELDS", "3", "token", "cart", "nofield")));
+        assertEquals("[0]", String.valueOf(command("HEXPIRE", key, "200", "NX", "FIELDS", "1", "token")));
+        assertEquals("[1]", String.valueOf(command("HEXPIRE", key, "200", "GT", "FIELDS", "1", "token")));
+        assertEquals("[0, 1]", String.valueOf(command("HEXPIRE", key, "300", "LT", "FIELDS", "2", "token", "user")));
+        assertEquals("[200, 100, 300]", String.valueOf(command("HTTL", key, "FIELDS", "3", "token", "cart", "user")));
+        assertEquals("[-2]", String.valueOf(command("HTTL", "nokey", "FIELDS", "1", "token")));
+        assertEquals("[1, -1]", String.valueOf(command("HPERSIST", key, "FIELDS", "2", "user", "user")));
+        // Setting a field discards its time to live.
+        client.hset(key, "cart", "c2");
+        assertEquals("[-1]", String.valueOf(command("HTTL", key, "FIELDS", "1", "cart")));
+
+        assertEquals("[1]", String.valueOf(command("HPEXPIRE", key, "50", "FIELDS", "1", "cart")));
+        Thread.sleep(60);
+        assertNull(client.hget(key, "cart"));
+        assertFalse(client.hexists(key, "cart"));
+        assertEquals(2L, (long) client.hlen(key));
+        assertEquals("{token=t1, user=joe}", new TreeMap<String, String>(client.hgetAll(key)).toString());
+        assertEquals("[-2]", String.valueOf(command("HTTL", key, "FIELDS", "1", "cart")));
+        assertEquals("[2]", String.valueOf(command("HEXPIREAT", key, "1", "FIELDS", "1", "token")));
+        assertEquals("[user]", client.hkeys(key).toString());
+
+        // The Expirer removes the last field and with it the key.
+        assertEquals("[1]", String.valueOf(command("HPEXPIRE", key, "50", "FIELDS", "1", "user")));
+        for (int i=0; i<50 && client.exists(key); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(client.exists(key));
+
+        try {
+            command("HEXPIRE", key, "10", "FIELDS", "2", "a");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("numfields"));
+        }
+        try {
+            command("HTTL", key, "FELDS", "1", "a");
+            fail();
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("FIELDS"));
+        }
+
+        // Field expiry times survive the persistence format, hashes without them all fields.
+        RedisServer.Hash hash = new RedisServer.Hash();
+        hash.put("a", "1");
+        hash.put("b", "2");
+        hash.put("c", "3");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new RedisServer.RESPWriter(out).sendHash(hash);
+        long when = System.currentTimeMillis()+60000;
+        hash.expireAt("b", when);
+        hash.expireAt("c", 1);
+        new RedisServer.RESPWriter(out).sendHash(hash);
+        RedisServer.RESPReader reader = new RedisServer.RESPReader(new ByteArrayInputStream(out.toByteArray())).withNonStandard(true);
+        assertEquals("{a=1, b=2, c=3}", reader.readStringOrList().toString());
+        RedisServer.Hash loaded = (RedisServer.Hash) reader.readStringOrList();
+        assertEquals("{a=1, b=2}", loaded.toString());
+        assertEquals(-1L, loaded.expiresAt("a"));
+        assertEquals(when, loaded.expiresAt("b"));
+    }
+
     @Test
     public void testBitcount() {
         final String key = "key";
@@ -459,6 +2207,54 @@ public class TestRedisServer {
         assertEquals(21, m);
     }
 
+    @Test
+    public void testBitmap() {
+        assertFalse(client.setbit("bits", 7, true));
+        assertTrue(client.setbit("bits", 7, true));
+        client.setbit("bits", 100, true);
+        assertEquals("string", client.type("bits"));
+        assertEquals((Long)13L, client.strlen("bits"));
+        assertEquals((Long)2L, client.bitcount("bits"));
+        assertEquals((Long)1L, client.bitcount("bits", 1, -1));
+        assertEquals(1L, command("BITCOUNT", "bits", "7", "99", "BIT"));
+        assertTrue(client.getbit("bits", 100));
+        assertFalse(client.getbit("bits", 99));
+
+        assertEquals((Long)7L, client.bitpos("bits", true));
+        assertEquals((Long)100L, client.bitpos("bits", true, new BitPosParams(1)));
+        assertEquals((Long)0L, client.bitpos("bits", false));
+        assertEquals((Long)(-1L), client.bitpos("missing", true));
+
+        client.bitfield("ones", "SET", "u8", "0", "255");
+        assertEquals((Long)8L, client.bitpos("ones", false));
+        assertEquals((Long)(-1L), client.bitpos("ones", false, new BitPosParams(0, 0)));
+
+        client.set("a", "abc");
+        client.set("b", "a");
+        assertEquals((Long)3L, client.bitop(BitOP.AND, "dest", "a", "b"));
+        assertEquals("a\u0000\u0000", client.get("dest"));
+        assertEquals((Long)3L, client.bitop(BitOP.OR, "dest", "a", "b", "missing"));
+        assertEquals("abc", client.get("dest"));
+        assertEquals((Long)3L, client.bitop(BitOP.XOR, "dest", "a", "b"));
+        assertEquals("\u0000bc", client.get("dest"));
+        assertEquals((Long)0L, client.bitop(BitOP.NOT, "dest", "missing"));
+        assertEquals("none", client.type("dest"));
+
+        assertEquals("[0, 100]", client.bitfield("field", "SET", "u8", "0", "100", "GET", "u8", "0").toString());
+        assertEquals("[-56]", client.bitfield("field", "INCRBY", "i8", "0", "100").toString());
+        assertEquals("[255]", client.bitfield("field", "OVERFLOW", "SAT", "INCRBY", "u8", "#0", "1000").toString());
+        assertEquals("[null]", client.bitfield("field", "OVERFLOW", "FAIL", "INCRBY", "u8", "0", "1").toString());
+        assertEquals("[1]", client.bitfield("field", "INCRBY", "u2", "100", "1").toString());
+        assertEquals("[-1]", client.bitfield("field", "GET", "i8", "#0").toString());
+        try {
+            client.bitfield("field", "GET", "u64", "0");
+            fail("error expected");
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("Invalid bitfield type"));
+        }
+    }
+
     @Test
     public void testGetbit() {
             final String key = "key";
@@ -492,6 +2288,31 @@ public class TestRedisServer {
             assertTrue(!client.getbit(key,  99));
     }
 
+    /**
+     * Sends a command not (yet) supported by the Jedis API.
+     */
+    protected static Object command(final String name, String ... args) {
+        return command(client, name, args);
+    }
+
+    protected static Object command(Jedis jedis, final String name, String ... args) {
+        ProtocolCommand cmd = new ProtocolCommand() {
+            @Override
+            public byte[] getRaw() {
+                return SafeEncoder.encode(name);
+            }
+        };
+        return jedis.sendCommand(cmd, args);
+    }
+
+    protected static List<String> toStrings(Object reply) {
+        List<String> list = new ArrayList<String>();
+        for (Object o : (List<?>) reply) {
+            list.add(null==o ? null : SafeEncoder.encode((byte[]) o));
+        }
+        return list;
+    }
+
     protected static RedisServer server;
     protected static Jedis client;
 }
\ No newline at end of file
@@ -1,8 +1,12 @@
 package com.redisj.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -11,6 +15,7 @@ import org.junit.Test;
 
 import com.redisj.RedisServer;
 import com.redisj.RedisServer.Database;
+import com.redisj.RedisServer.Stream;
 
 public class TestPersistence {
 
@@ -55,6 +60,16 @@ public class TestPersistence {
         server.persist(0);
     }
 
+    @Test
+    public void testHashFieldExpiry() throws IOException {
+        Database db = server.select(0).flushDb();
+        db.hset("key", "field1", "value1");
+        db.hset("key", "field2", "value2");
+        long when = System.currentTimeMillis()+60000;
+        assertEquals(Arrays.asList(1L), db.hexpireAt("key", when, 0, Arrays.asList("field2")));
+        server.persist(0);
+    }
+
     @Test
     public void testSet() throws IOException {
         Database db = server.select(0).flushDb();
@@ -63,5 +78,43 @@ public class TestPersistence {
         server.persist(0);
     }
 
+    @Test
+    public void testZSet() throws IOException {
+        Database db = server.select(0).flushDb();
+        int resp = db.zadd("key", 0, new double[] { 1, 2.5 }, new String[] { "member1", "member2" });
+        assertEquals(2, resp);
+        server.persist(0);
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        Database db = server.select(0).flushDb();
+        db.xadd("key", new Stream.ID(1, 1), new String[] { "field", "value" }, new Stream.Trim());
+        db.xadd("key", new Stream.ID(1, 2), new String[] { "field", "value2" }, new Stream.Trim());
+        assertEquals(1, db.xdel("key", Arrays.asList(new Stream.ID(1, 2))));
+        assertEquals(1, db.xgroupCreate("key", "group", new Stream.ID(0, 0), false));
+        assertEquals(1, db.xreadgroup("group", "consumer", Arrays.asList("key"), Arrays.asList((Stream.ID) null), -1, false).size());
+        server.persist(0);
+    }
+
+    @Test
+    public void testBitmap() throws IOException {
+        Database db = server.select(0).flushDb();
+        assertEquals(0, db.setbit("key", 1000, 1));
+        server.persist(0);
+    }
+
+    @Test
+    public void testHyperLogLog() throws IOException {
+        Database db = server.select(0).flushDb();
+        assertTrue(db.pfadd("sparse", Arrays.asList("a", "b", "c")));
+        List<String> elements = new ArrayList<String>();
+        for (int i=0; i<10000; i++) {
+            elements.add("element" + i);
+        }
+        assertTrue(db.pfadd("dense", elements));
+        server.persist(0);
+    }
+
     protected static RedisServer server;
 }
\ No newline at end of file